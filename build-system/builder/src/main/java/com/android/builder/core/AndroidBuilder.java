@@ -56,9 +56,11 @@ import com.android.builder.packaging.PackagerException;
 import com.android.builder.packaging.SealedPackageException;
 import com.android.builder.packaging.SigningException;
 import com.android.builder.packaging.ZipAbortException;
+import com.android.builder.profile.Metrics;
 import com.android.builder.sdk.SdkInfo;
 import com.android.builder.sdk.TargetInfo;
 import com.android.builder.signing.SignedJarApkCreator;
+import com.android.builder.tasks.SlotScheduler;
 import com.android.ide.common.internal.LoggedErrorException;
 import com.android.ide.common.process.CachedProcessOutputHandler;
 import com.android.ide.common.process.JavaProcessExecutor;
@@ -86,6 +88,7 @@ import com.android.jack.api.v01.ReporterKind;
 import com.android.jack.api.v01.UnrecoverableException;
 import com.android.jack.api.v02.Api02Config;
 import com.android.jack.api.v03.Api03Config;
+import com.android.manifmerger.ManifestDocumentCache;
 import com.android.manifmerger.ManifestMerger2;
 import com.android.manifmerger.ManifestSystemProperty;
 import com.android.manifmerger.MergingReport;
@@ -532,7 +535,8 @@ public class AndroidBuilder {
                     .addBundleManifests(libraries)
                     .withFeatures(optionalFeatures.toArray(
                             new Invoker.Feature[optionalFeatures.size()]))
-                    .setMergeReportFile(reportFile);
+                    .setMergeReportFile(reportFile)
+                    .withDocumentCache(ManifestDocumentCache.getCache());
 
             if (mergeType == ManifestMerger2.MergeType.APPLICATION) {
                 manifestMergerInvoker.withFeatures(Invoker.Feature.REMOVE_TOOLS_DECLARATIONS);
@@ -718,7 +722,8 @@ public class AndroidBuilder {
                         .setPlaceHolderValues(manifestPlaceholders)
                         .setPlaceHolderValue(PlaceholderHandler.INSTRUMENTATION_RUNNER,
                                 instrumentationRunner)
-                        .addLibraryManifest(generatedTestManifest);
+                        .addLibraryManifest(generatedTestManifest)
+                        .withDocumentCache(ManifestDocumentCache.getCache());
 
                 // we override these properties
                 invoker.setOverride(ManifestSystemProperty.PACKAGE, testApplicationId);
@@ -867,11 +872,15 @@ public class AndroidBuilder {
 
         AaptPackageConfig aaptConfig = aaptConfigBuilder.build();
 
-        try {
+        long start = Metrics.startTimer();
+        // R generation blocks the java compilation, so it goes before the other tools.
+        try (SlotScheduler.Slot ignored = SlotScheduler.getScheduler()
+                .acquire("aapt", SlotScheduler.Priority.CRITICAL)) {
             aapt.link(aaptConfig).get();
         } catch (Exception e) {
             throw new ProcessException("Failed to execute aapt", e);
         }
+        Metrics.recordLatency("aapt.link", start);
 
 
         // If the project has libraries, R needs to be created for each library.
@@ -1383,6 +1392,7 @@ public class AndroidBuilder {
             boolean optimize,
             @NonNull ProcessOutputHandler processOutputHandler)
             throws IOException, InterruptedException, ProcessException {
+        long start = Metrics.startTimer();
         getDexByteCodeConverter().convertByteCode(inputs,
                 outDexFolder,
                 multidex,
@@ -1390,6 +1400,7 @@ public class AndroidBuilder {
                 dexOptions,
                 optimize,
                 processOutputHandler);
+        Metrics.recordLatency("dex.convert", start);
     }
 
     public enum MainDexListOption {
@@ -1510,7 +1521,10 @@ public class AndroidBuilder {
                 .setNoOptimize(!optimize)
                 .addInput(inputFile);
 
-        getDexByteCodeConverter().runDexer(builder, dexOptions, processOutputHandler);
+        long start = Metrics.startTimer();
+        getDexByteCodeConverter().runDexer(
+                builder, dexOptions, processOutputHandler, SlotScheduler.Priority.LOW);
+        Metrics.recordLatency("dex.predex", start);
 
         if (multiDex) {
             File[] files = outFile.listFiles((file, name) -> {
@@ -28,6 +28,7 @@ import com.android.annotations.VisibleForTesting;
 import com.android.annotations.concurrency.GuardedBy;
 import com.android.builder.internal.compiler.DexWrapper;
 import com.android.builder.sdk.TargetInfo;
+import com.android.builder.tasks.SlotScheduler;
 import com.android.ide.common.process.JavaProcessExecutor;
 import com.android.ide.common.process.JavaProcessInfo;
 import com.android.ide.common.process.ProcessException;
@@ -80,6 +81,11 @@ public class DexByteCodeConverter {
      */
     private static final AtomicInteger DEX_PROCESS_COUNT = new AtomicInteger(4);
 
+    /**
+     * Name of dx in the {@link SlotScheduler}, which gets {@link #DEX_PROCESS_COUNT} as quota.
+     */
+    private static final String DX_TOOL_NAME = "dx";
+
     /**
      * {@link ExecutorService} used to run all dexing code (either in-process or out-of-process).
      * Size of the underlying thread pool limits the number of parallel dex "invocations", even
@@ -143,7 +149,8 @@ public class DexByteCodeConverter {
                 .setMainDexList(mainDexList)
                 .addInputs(verifiedInputs.build());
 
-        runDexer(builder, dexOptions, processOutputHandler);
+        // the final dex is what the packaging is waiting for.
+        runDexer(builder, dexOptions, processOutputHandler, SlotScheduler.Priority.CRITICAL);
     }
 
     public void runDexer(
@@ -151,28 +158,46 @@ public class DexByteCodeConverter {
             @NonNull final DexOptions dexOptions,
             @NonNull final ProcessOutputHandler processOutputHandler)
             throws ProcessException, IOException, InterruptedException {
+        runDexer(builder, dexOptions, processOutputHandler, SlotScheduler.Priority.NORMAL);
+    }
+
+    /**
+     * Runs dx, once given a slot by the build-wide {@link SlotScheduler}.
+     *
+     * @param priority the priority of the slot request, relative to the other tools of the build.
+     */
+    public void runDexer(
+            @NonNull final DexProcessBuilder builder,
+            @NonNull final DexOptions dexOptions,
+            @NonNull final ProcessOutputHandler processOutputHandler,
+            @NonNull final SlotScheduler.Priority priority)
+            throws ProcessException, IOException, InterruptedException {
         initDexExecutorService(dexOptions);
 
         if (shouldDexInProcess(dexOptions, mTargetInfo.getBuildTools().getRevision())) {
-            dexInProcess(builder, dexOptions, processOutputHandler);
+            dexInProcess(builder, dexOptions, processOutputHandler, priority);
         } else {
-            dexOutOfProcess(builder, dexOptions, processOutputHandler);
+            dexOutOfProcess(builder, dexOptions, processOutputHandler, priority);
         }
     }
 
     private void dexInProcess(
             @NonNull final DexProcessBuilder builder,
             @NonNull final DexOptions dexOptions,
-            @NonNull final ProcessOutputHandler outputHandler)
+            @NonNull final ProcessOutputHandler outputHandler,
+            @NonNull final SlotScheduler.Priority priority)
             throws IOException, ProcessException {
         final String submission = Joiner.on(',').join(builder.getInputs());
         mLogger.info("Dexing in-process : %s", submission);
         try {
             sDexExecutorService.submit(() -> {
-                Stopwatch stopwatch = Stopwatch.createStarted();
-                ProcessResult result = DexWrapper.run(builder, dexOptions, outputHandler);
-                result.assertNormalExitValue();
-                mLogger.info("Dexing %s took %s.", submission, stopwatch.toString());
+                try (SlotScheduler.Slot ignored =
+                             SlotScheduler.getScheduler().acquire(DX_TOOL_NAME, priority)) {
+                    Stopwatch stopwatch = Stopwatch.createStarted();
+                    ProcessResult result = DexWrapper.run(builder, dexOptions, outputHandler);
+                    result.assertNormalExitValue();
+                    mLogger.info("Dexing %s took %s.", submission, stopwatch.toString());
+                }
                 return null;
             }).get();
         } catch (Exception e) {
@@ -183,17 +208,21 @@ public class DexByteCodeConverter {
     private void dexOutOfProcess(
             @NonNull final DexProcessBuilder builder,
             @NonNull final DexOptions dexOptions,
-            @NonNull final ProcessOutputHandler processOutputHandler)
+            @NonNull final ProcessOutputHandler processOutputHandler,
+            @NonNull final SlotScheduler.Priority priority)
             throws ProcessException, InterruptedException {
         final String submission = Joiner.on(',').join(builder.getInputs());
         mLogger.info("Dexing out-of-process : %s", submission);
         try {
             Callable<Void> task = () -> {
-                JavaProcessInfo javaProcessInfo =
-                        builder.build(mTargetInfo.getBuildTools(), dexOptions);
-                ProcessResult result =
-                        mJavaProcessExecutor.execute(javaProcessInfo, processOutputHandler);
-                result.rethrowFailure().assertNormalExitValue();
+                try (SlotScheduler.Slot ignored =
+                             SlotScheduler.getScheduler().acquire(DX_TOOL_NAME, priority)) {
+                    JavaProcessInfo javaProcessInfo =
+                            builder.build(mTargetInfo.getBuildTools(), dexOptions);
+                    ProcessResult result =
+                            mJavaProcessExecutor.execute(javaProcessInfo, processOutputHandler);
+                    result.rethrowFailure().assertNormalExitValue();
+                }
                 return null;
             };
 
@@ -222,6 +251,7 @@ public class DexByteCodeConverter {
                         "Allocated dexExecutorService of size %d.",
                         DEX_PROCESS_COUNT.get());
                 sDexExecutorService = Executors.newFixedThreadPool(DEX_PROCESS_COUNT.get());
+                SlotScheduler.getScheduler().setQuota(DX_TOOL_NAME, DEX_PROCESS_COUNT.get());
             } else {
                 // check whether our executor service has the same number of max processes as
                 // this module requests, and print a warning if necessary.
@@ -20,6 +20,7 @@ import com.android.annotations.NonNull;
 import com.android.builder.internal.packaging.zip.CompressionResult;
 import com.android.builder.internal.packaging.zip.Compressor;
 import com.android.builder.internal.packaging.zip.utils.CloseableByteSource;
+import com.android.builder.profile.Metrics;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
 
@@ -51,8 +52,10 @@ public abstract class ExecutorCompressor implements Compressor {
             @NonNull final CloseableByteSource source) {
         final SettableFuture<CompressionResult> future = SettableFuture.create();
         mExecutor.execute(() -> {
+            long start = Metrics.startTimer();
             try {
                 future.set(immediateCompress(source));
+                Metrics.recordLatency("zfile.compress", start);
             } catch (Exception e) {
                 future.setException(e);
             }
@@ -18,9 +18,11 @@ package com.android.builder.png;
 
 import com.android.SdkConstants;
 import com.android.annotations.NonNull;
+import com.android.builder.profile.Metrics;
 import com.android.builder.tasks.Job;
 import com.android.builder.tasks.JobContext;
 import com.android.builder.tasks.QueueThreadContext;
+import com.android.builder.tasks.SlotScheduler;
 import com.android.builder.tasks.Task;
 import com.android.builder.tasks.WorkQueue;
 import com.android.ide.common.internal.PngCruncher;
@@ -46,6 +48,11 @@ public class QueuedCruncher implements PngCruncher {
      */
     private static final int DEFAULT_NUMBER_CRUNCHER_PROCESSES = 5;
 
+    /**
+     * Name of the crunching queue, also used as the tool name in the {@link SlotScheduler}.
+     */
+    private static final String CRUNCHER_QUEUE_NAME = "png-cruncher";
+
     // use an enum to ensure singleton.
     public enum Builder {
         INSTANCE;
@@ -174,12 +181,15 @@ public class QueuedCruncher implements PngCruncher {
         } else {
             cruncherProcessToUse = DEFAULT_NUMBER_CRUNCHER_PROCESSES;
         }
+        // the queue may start more threads than this, but they only run jobs as they are given
+        // slots by the build-wide scheduler.
+        SlotScheduler.getScheduler().setQuota(CRUNCHER_QUEUE_NAME, cruncherProcessToUse);
 
         mCrunchingRequests =
                 new WorkQueue<>(
                         mLogger,
                         queueThreadContext,
-                        "png-cruncher",
+                        CRUNCHER_QUEUE_NAME,
                         cruncherProcessToUse,
                         0);
     }
@@ -242,6 +252,7 @@ public class QueuedCruncher implements PngCruncher {
                     });
             mOutstandingJobs.get(key).add(aaptProcessJob);
             mCrunchingRequests.push(aaptProcessJob);
+            Metrics.increment("cruncher.png");
         } catch (InterruptedException e) {
             // Restore the interrupted status
             Thread.currentThread().interrupt();
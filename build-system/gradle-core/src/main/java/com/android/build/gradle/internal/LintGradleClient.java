@@ -224,6 +224,12 @@ public class LintGradleClient extends LintCliClient {
         return merged;
     }
 
+    @Override
+    protected boolean isSpillingWarnings() {
+        // The warnings of each variant are returned by run(), to be merged afterwards
+        return false;
+    }
+
     @Override
     protected void addProgressPrinter() {
         // No progress printing from the Gradle lint task; gradle tasks
@@ -38,6 +38,7 @@ import com.android.build.gradle.internal.pipeline.TransformManager;
 import com.android.builder.core.AndroidBuilder;
 import com.android.builder.core.DexOptions;
 import com.android.builder.internal.utils.FileCache;
+import com.android.builder.profile.Metrics;
 import com.android.builder.sdk.TargetInfo;
 import com.android.ide.common.blame.Message;
 import com.android.ide.common.blame.ParsingProcessOutputHandler;
@@ -394,7 +395,9 @@ public class DexTransform extends Transform {
                     });
                 }
 
+                long waitStart = Metrics.startTimer();
                 executor.waitForTasksWithQuickFail(false);
+                Metrics.recordLatency("dex.executor.wait", waitStart);
                 logger.info("Done with all dexing");
 
                 if (needMerge) {
@@ -472,12 +475,14 @@ public class DexTransform extends Transform {
         @Override
         public Void call() throws Exception {
             logger.info("predex called for %s", from);
+            long start = Metrics.startTimer();
             // TODO remove once we can properly add a library as a dependency of its test.
             String hash = getFileHash(from);
 
             synchronized (hashs) {
                 if (hashs.contains(hash)) {
                     logger.info("Hash unknown");
+                    Metrics.increment("dex.predex.duplicate");
                     return null;
                 }
 
@@ -544,6 +549,8 @@ public class DexTransform extends Transform {
                 }
             }
 
+            // includes the cache lookups, unlike the "dex.predex" latency.
+            Metrics.recordLatency("dex.predex.task", start);
             return null;
         }
     }
@@ -33,7 +33,7 @@ import com.android.build.gradle.internal.scope.VariantScope;
 import com.android.build.gradle.shrinker.AbstractShrinker.CounterSet;
 import com.android.build.gradle.shrinker.FullRunShrinker;
 import com.android.build.gradle.shrinker.IncrementalShrinker;
-import com.android.build.gradle.shrinker.JavaSerializationShrinkerGraph;
+import com.android.build.gradle.shrinker.CompactShrinkerGraph;
 import com.android.build.gradle.shrinker.KeepRules;
 import com.android.build.gradle.shrinker.ProguardConfig;
 import com.android.build.gradle.shrinker.ProguardFlagsKeepRules;
@@ -131,10 +131,10 @@ public class NewShrinkerTransform extends ProguardConfigurable {
         ShrinkerLogger shrinkerLogger =
                 new ShrinkerLogger(config.getFlags().getDontWarnSpecs(), logger);
 
-        FullRunShrinker<String> shrinker =
+        FullRunShrinker<Integer> shrinker =
                 new FullRunShrinker<>(
                         WaitableExecutor.<Void>useGlobalSharedThreadPool(),
-                        JavaSerializationShrinkerGraph.empty(incrementalDir),
+                        CompactShrinkerGraph.empty(incrementalDir),
                         platformJars,
                         shrinkerLogger);
 
@@ -200,10 +200,7 @@ public class NewShrinkerTransform extends ProguardConfigurable {
             @NonNull TransformOutputProvider output) throws IOException {
         try {
             Stopwatch stopwatch = Stopwatch.createStarted();
-            JavaSerializationShrinkerGraph graph =
-                    JavaSerializationShrinkerGraph.readFromDir(
-                            incrementalDir,
-                            this.getClass().getClassLoader());
+            CompactShrinkerGraph graph = CompactShrinkerGraph.readFromDir(incrementalDir);
             logTime("loading state", stopwatch);
 
             ProguardConfig config = getConfig();
@@ -211,7 +208,7 @@ public class NewShrinkerTransform extends ProguardConfigurable {
             ShrinkerLogger shrinkerLogger =
                     new ShrinkerLogger(config.getFlags().getDontWarnSpecs(), logger);
 
-            IncrementalShrinker<String> shrinker =
+            IncrementalShrinker<Integer> shrinker =
                     new IncrementalShrinker<>(
                             WaitableExecutor.<Void>useGlobalSharedThreadPool(),
                             graph,
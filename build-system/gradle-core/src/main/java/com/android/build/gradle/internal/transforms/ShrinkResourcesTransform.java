@@ -89,6 +89,10 @@ public class ShrinkResourcesTransform extends Transform {
     private final File mergedManifest;
     private final File mappingFile;
 
+    /** Directory where the analyzer keeps its state between runs */
+    @NonNull
+    private final File incrementalDir;
+
     public ShrinkResourcesTransform(
             @NonNull BaseVariantOutputData variantOutputData,
             @NonNull File uncompressedResources,
@@ -107,6 +111,8 @@ public class ShrinkResourcesTransform extends Transform {
         resourceDir = variantData.getScope().getFinalResourcesDir();
         mergedManifest = variantOutputData.manifestProcessorTask.getManifestOutputFile();
         mappingFile = variantData.getMappingFile();
+        incrementalDir = variantData.getScope().getIncrementalDir(
+                variantOutputData.getScope().getTaskName("shrinkRes"));
 
         if (mappingFile != null) {
             secondaryInputs = ImmutableList.of(
@@ -166,6 +172,12 @@ public class ShrinkResourcesTransform extends Transform {
         return ImmutableList.of(compressedResources);
     }
 
+    @NonNull
+    @Override
+    public Collection<File> getSecondaryDirectoryOutputs() {
+        return ImmutableList.of(incrementalDir);
+    }
+
     @Override
     public boolean isIncremental() {
         return false;
@@ -202,6 +214,7 @@ public class ShrinkResourcesTransform extends Transform {
         try {
             analyzer.setVerbose(logger.isEnabled(LogLevel.INFO));
             analyzer.setDebug(logger.isEnabled(LogLevel.DEBUG));
+            analyzer.setIncrementalDir(incrementalDir);
             analyzer.analyze();
 
             if (ResourceUsageAnalyzer.TWO_PASS_AAPT) {
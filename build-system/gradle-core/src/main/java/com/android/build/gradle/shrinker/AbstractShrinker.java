@@ -42,7 +42,6 @@ import org.objectweb.asm.ClassWriter;
 import java.io.File;
 import java.io.IOException;
 import java.util.Collection;
-import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.jar.JarEntry;
@@ -150,25 +149,6 @@ public abstract class AbstractShrinker<T> {
                 .collect(Collectors.toList());
     }
 
-    /**
-     * Increments the counter on the given graph node. If the node just became reachable, keeps on
-     * walking the graph to find newly reachable nodes.
-     *
-     * @param node node to increment
-     * @param dependencyType type of counter to increment
-     * @param counterSet set of counters to work on
-     */
-    protected void incrementCounter(
-            @NonNull T node,
-            @NonNull DependencyType dependencyType,
-            @NonNull CounterSet counterSet) {
-        if (mGraph.incrementAndCheck(node, dependencyType, counterSet)) {
-            for (Dependency<T> dependency : mGraph.getDependencies(node)) {
-                incrementCounter(dependency.target, dependency.type, counterSet);
-            }
-        }
-    }
-
     /**
      * Finds existing methods or fields (graph nodes) which encountered opcodes refer to. Updates
      * the graph with additional edges accordingly.
@@ -273,22 +253,12 @@ public abstract class AbstractShrinker<T> {
 
     /**
      * Walks the entire graph, starting from the roots, and increments counters for reachable nodes.
+     *
+     * @see ReachabilityMarker
      */
-    protected void setCounters(@NonNull final CounterSet counterSet) {
-        Map<T, DependencyType> roots = mGraph.getRoots(counterSet);
-        for (final Map.Entry<T, DependencyType> toIncrementEntry : roots.entrySet()) {
-            mExecutor.execute(new Callable<Void>() {
-                @Override
-                public Void call() throws Exception {
-                    incrementCounter(
-                            toIncrementEntry.getKey(),
-                            toIncrementEntry.getValue(),
-                            counterSet);
-                    return null;
-                }
-            });
-        }
-        waitForAllTasks();
+    protected void setCounters(@NonNull CounterSet counterSet) {
+        new ReachabilityMarker<>(mGraph, counterSet)
+                .markReachable(mGraph.getRoots(counterSet), mExecutor);
     }
 
     /**
@@ -0,0 +1,959 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.build.gradle.shrinker;
+
+import static com.android.build.gradle.shrinker.AbstractShrinker.isSdkPackage;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.build.gradle.shrinker.AbstractShrinker.CounterSet;
+import com.android.build.gradle.shrinker.IncrementalShrinker.IncrementalRunImpossibleException;
+import com.android.ide.common.internal.WaitableExecutor;
+import com.android.utils.FileUtils;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * {@link ShrinkerGraph} implementation that identifies nodes by interned int ids, for large
+ * programs and fast incremental runs.
+ *
+ * <p>Every class and class member name is interned once, when its node is first created, and
+ * nodes refer to each other by id from then on: edges are packed into {@code int} arrays, one
+ * per source node, and node lookups by id are array accesses. Each node is guarded by its own
+ * monitor, so threads building or walking different parts of the graph do not contend with
+ * each other, unlike with a single synchronized multimap.
+ *
+ * <p>The state is saved in a compact binary format made of fixed width ints and length prefixed
+ * UTF-8 strings, written and read in a single sequential pass.
+ */
+public class CompactShrinkerGraph implements ShrinkerGraph<Integer> {
+
+    /** Magic number at the start of the state file, "SHRG". */
+    private static final int MAGIC = 0x53485247;
+
+    /** Version of the state file format, to bump when the format changes. */
+    private static final int VERSION = 1;
+
+    private static final int SEGMENT_SHIFT = 12;
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+    private static final int MAX_SEGMENTS = 1 << 16;
+
+    /** Number of bits of a packed edge used for the {@link DependencyType}. */
+    private static final int TYPE_BITS = 3;
+    private static final DependencyType[] TYPES = DependencyType.values();
+
+    static {
+        Preconditions.checkState(TYPES.length <= 1 << TYPE_BITS, "Too many dependency types.");
+    }
+
+    /** Number of counters of each {@link CounterSet}, see {@link Node#incrementAndCheck}. */
+    private static final int COUNTERS = 5;
+
+    /** Out degree above which edges are also kept in a set, to avoid linear duplicate checks. */
+    private static final int EDGE_SET_THRESHOLD = 32;
+
+    private static final int FLAG_CLASS_KNOWN = 1;
+    private static final int FLAG_MEMBER_ADDED = 2;
+    private static final int FLAG_HAS_FILE = 4;
+    private static final int FLAG_HAS_COUNTERS = 8;
+
+    private final File mStateDir;
+
+    /** Nodes by id, in segments allocated as the graph grows. */
+    private final AtomicReferenceArray<AtomicReferenceArray<Node>> mSegments =
+            new AtomicReferenceArray<>(MAX_SEGMENTS);
+
+    private final AtomicInteger mNodeCount = new AtomicInteger();
+
+    private final ConcurrentMap<String, Node> mNodesByName = Maps.newConcurrentMap();
+
+    private final List<ConcurrentMap<Integer, DependencyType>> mRoots;
+
+    private CompactShrinkerGraph(@NonNull File stateDir) {
+        mStateDir = checkNotNull(stateDir);
+        mRoots = Lists.newArrayList();
+        for (CounterSet ignored : CounterSet.values()) {
+            mRoots.add(Maps.<Integer, DependencyType>newConcurrentMap());
+        }
+    }
+
+    public static CompactShrinkerGraph empty(@NonNull File stateDir) {
+        return new CompactShrinkerGraph(stateDir);
+    }
+
+    /**
+     * Constructs a graph from the state saved by {@link #saveState()}.
+     *
+     * @param dir directory where the state was saved
+     * @throws IncrementalRunImpossibleException if the state is missing, unreadable or was saved
+     *     in another format, e.g. by a previous version of the plugin
+     */
+    public static CompactShrinkerGraph readFromDir(@NonNull File dir) {
+        File stateFile = getStateFile(dir);
+        if (!stateFile.isFile()) {
+            throw new IncrementalRunImpossibleException(
+                    "Incremental state not found: " + stateFile.getPath());
+        }
+
+        ByteBuffer buffer;
+        // The state file is read in a single read rather than mapped: a mapped file cannot be
+        // overwritten on Windows until the mapping is garbage collected, and the incremental
+        // run saves the state again right away.
+        try (RandomAccessFile file = new RandomAccessFile(stateFile, "r");
+             FileChannel channel = file.getChannel()) {
+            buffer = ByteBuffer.allocate((int) channel.size());
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    break;
+                }
+            }
+            buffer.flip();
+        } catch (IOException e) {
+            throw new IncrementalRunImpossibleException("Failed to read incremental state.", e);
+        }
+
+        try {
+            if (buffer.remaining() < 8 || buffer.getInt() != MAGIC
+                    || buffer.getInt() != VERSION) {
+                throw new IncrementalRunImpossibleException(
+                        "Incremental state was saved by a different version.");
+            }
+            CompactShrinkerGraph graph = new CompactShrinkerGraph(dir);
+            graph.read(buffer);
+            return graph;
+        } catch (BufferUnderflowException
+                | IllegalArgumentException
+                | IndexOutOfBoundsException e) {
+            throw new IncrementalRunImpossibleException("Failed to load incremental state.", e);
+        }
+    }
+
+    @Nullable
+    @Override
+    public File getSourceFile(@NonNull Integer klass) {
+        ClassInfo classInfo = getNode(klass).classInfo;
+        return classInfo != null ? classInfo.classFile : null;
+    }
+
+    @NonNull
+    @Override
+    public Iterable<Integer> getAllProgramClasses() {
+        List<Integer> classes = Lists.newArrayList();
+        int count = mNodeCount.get();
+        for (int id = 0; id < count; id++) {
+            Node node = findNode(id);
+            if (node == null) {
+                continue;
+            }
+            ClassInfo classInfo = node.classInfo;
+            if (classInfo != null && classInfo.classFile != null) {
+                classes.add(node.boxedId);
+            }
+        }
+        return classes;
+    }
+
+    @NonNull
+    @Override
+    public Set<Integer> getReachableClasses(@NonNull CounterSet counterSet) {
+        Set<Integer> classesToKeep = Sets.newHashSet();
+        int count = mNodeCount.get();
+        for (int id = 0; id < count; id++) {
+            Node node = findNode(id);
+            if (node == null) {
+                continue;
+            }
+            ClassInfo classInfo = node.classInfo;
+            if (classInfo != null && classInfo.classFile != null
+                    && node.isReachable(counterSet)) {
+                classesToKeep.add(node.boxedId);
+            }
+        }
+        return classesToKeep;
+    }
+
+    @NonNull
+    @Override
+    public Set<String> getReachableMembersLocalNames(
+            @NonNull Integer klass,
+            @NonNull CounterSet counterSet) {
+        Set<String> memberIds = Sets.newHashSet();
+        for (int member : getNode(klass).getMembers()) {
+            Node node = getNode(member);
+            if (node.isReachable(counterSet)) {
+                memberIds.add(getMemberId(node.name));
+            }
+        }
+        return memberIds;
+    }
+
+    @NonNull
+    @Override
+    public Set<Dependency<Integer>> getDependencies(@NonNull Integer node) {
+        int[] edges = getNode(node).getEdges();
+        Set<Dependency<Integer>> dependencies = Sets.newHashSetWithExpectedSize(edges.length);
+        for (int edge : edges) {
+            dependencies.add(new Dependency<>(
+                    getNode(edge >>> TYPE_BITS).boxedId,
+                    TYPES[edge & ((1 << TYPE_BITS) - 1)]));
+        }
+        return dependencies;
+    }
+
+    @NonNull
+    @Override
+    public Set<Integer> getMethods(@NonNull Integer klass) {
+        return getMembers(klass, true);
+    }
+
+    @NonNull
+    @Override
+    public Set<Integer> getFields(@NonNull Integer klass) {
+        return getMembers(klass, false);
+    }
+
+    @NonNull
+    private Set<Integer> getMembers(@NonNull Integer klass, boolean methods) {
+        Set<Integer> members = Sets.newHashSet();
+        for (int member : getNode(klass).getMembers()) {
+            Node node = getNode(member);
+            if (isMethod(node.name) == methods) {
+                members.add(node.boxedId);
+            }
+        }
+        return members;
+    }
+
+    @NonNull
+    @Override
+    public Integer addClass(
+            @NonNull String name,
+            @Nullable String superName,
+            @Nullable String[] interfaces,
+            int modifiers,
+            @Nullable File classFile) {
+        Node node = getClassNode(name);
+        int superclass = superName != null ? getClassNode(superName).id : -1;
+        int[] interfaceIds;
+        if (interfaces != null) {
+            interfaceIds = new int[interfaces.length];
+            for (int i = 0; i < interfaces.length; i++) {
+                interfaceIds[i] = getClassNode(interfaces[i]).id;
+            }
+        } else {
+            interfaceIds = new int[0];
+        }
+        node.modifiers = modifiers;
+        node.classInfo = new ClassInfo(classFile, superclass, interfaceIds);
+        return node.boxedId;
+    }
+
+    @NonNull
+    @Override
+    public Integer addMember(
+            @NonNull Integer owner,
+            @NonNull String name,
+            @NonNull String desc,
+            int modifiers) {
+        Node ownerNode = getNode(owner);
+        Node member = getMemberNode(ownerNode, name, desc);
+        member.modifiers = modifiers;
+        if (member.markAdded()) {
+            ownerNode.addMember(member.id);
+        }
+        return member.boxedId;
+    }
+
+    @NonNull
+    @Override
+    public Integer getOwnerClass(@NonNull Integer member) {
+        Node node = getNode(member);
+        return node.owner == -1 ? node.boxedId : getNode(node.owner).boxedId;
+    }
+
+    @NonNull
+    @Override
+    public Integer getClassReference(@NonNull String className) {
+        return getClassNode(checkNotNull(className)).boxedId;
+    }
+
+    @NonNull
+    @Override
+    public Integer getMemberReference(
+            @NonNull String className,
+            @NonNull String memberName,
+            @NonNull String desc) {
+        return getMemberNode(getClassNode(className), memberName, desc).boxedId;
+    }
+
+    @Override
+    public boolean incrementAndCheck(
+            @NonNull Integer node,
+            @NonNull DependencyType dependencyType,
+            @NonNull CounterSet counterSet) {
+        return getNode(node).incrementAndCheck(dependencyType, counterSet);
+    }
+
+    @Override
+    public void addDependency(
+            @NonNull Integer source,
+            @NonNull Integer target,
+            @NonNull DependencyType type) {
+        getNode(source).addEdge((target << TYPE_BITS) | type.ordinal());
+    }
+
+    @Override
+    public void saveState() throws IOException {
+        File stateFile = getStateFile(mStateDir);
+        FileUtils.deleteIfExists(stateFile);
+        Files.createParentDirs(stateFile);
+
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(stateFile), 1 << 16))) {
+            write(out);
+        }
+    }
+
+    @Override
+    public boolean isReachable(@NonNull Integer node, @NonNull CounterSet counterSet) {
+        return getNode(node).isReachable(counterSet);
+    }
+
+    @Override
+    public void removeAllCodeDependencies(@NonNull Integer node) {
+        getNode(node).removeEdges(
+                edge -> {
+                    DependencyType type = TYPES[edge & ((1 << TYPE_BITS) - 1)];
+                    return type == DependencyType.REQUIRED_CODE_REFERENCE
+                            || type == DependencyType.REQUIRED_CODE_REFERENCE_REFLECTION;
+                });
+    }
+
+    @Nullable
+    @Override
+    public Integer getSuperclass(@NonNull Integer klass) throws ClassLookupException {
+        Node node = getNode(klass);
+        ClassInfo classInfo = node.classInfo;
+        if (classInfo == null) {
+            throw new ClassLookupException(node.name);
+        }
+        if (classInfo.superclass == -1) {
+            return null;
+        }
+
+        Node superclass = getNode(classInfo.superclass);
+        if (superclass.classInfo == null) {
+            throw new ClassLookupException(superclass.name);
+        }
+        return superclass.boxedId;
+    }
+
+    @Nullable
+    @Override
+    public Integer findMatchingMethod(@NonNull Integer klass, @NonNull Integer method) {
+        Node methodNode = getNode(method);
+
+        // Common case:
+        if (methodNode.owner == klass && methodNode.isAdded()) {
+            return method;
+        }
+
+        Node candidate = mNodesByName.get(
+                getNode(klass).name + "." + getMemberId(methodNode.name));
+        if (candidate != null && candidate.owner == klass && candidate.isAdded()) {
+            return candidate.boxedId;
+        } else {
+            return null;
+        }
+    }
+
+    @Override
+    public boolean isLibraryClass(@NonNull Integer klass) {
+        Node node = getNode(klass);
+        if (isSdkPackage(node.name)) {
+            return true;
+        }
+
+        ClassInfo classInfo = node.classInfo;
+        return classInfo == null || classInfo.classFile == null;
+    }
+
+    @NonNull
+    @Override
+    public Integer[] getInterfaces(Integer klass) throws ClassLookupException {
+        Node node = getNode(klass);
+        ClassInfo classInfo = node.classInfo;
+        if (classInfo == null) {
+            throw new ClassLookupException(node.name);
+        }
+
+        Integer[] interfaces = new Integer[classInfo.interfaces.length];
+        for (int i = 0; i < interfaces.length; i++) {
+            interfaces[i] = getNode(classInfo.interfaces[i]).boxedId;
+        }
+        return interfaces;
+    }
+
+    @NonNull
+    @Override
+    public String getClassName(@NonNull Integer klass) {
+        return getNode(klass).name;
+    }
+
+    @Override
+    public String getMemberName(@NonNull Integer member) {
+        String name = getNode(member).name;
+        return name.substring(name.indexOf('.') + 1, name.indexOf(':'));
+    }
+
+    @Override
+    public String getFullMemberName(@NonNull Integer member) {
+        return getNode(member).name;
+    }
+
+    @Override
+    public String getMemberDescriptor(@NonNull Integer member) {
+        String name = getNode(member).name;
+        return name.substring(name.indexOf(':') + 1);
+    }
+
+    @Override
+    public int getModifiers(@NonNull Integer node) {
+        return getNode(node).modifiers;
+    }
+
+    @Override
+    public void addAnnotation(@NonNull Integer node, @NonNull String annotationName) {
+        Preconditions.checkArgument(!annotationName.endsWith(";"));
+        getNode(node).addAnnotation(annotationName);
+    }
+
+    @NonNull
+    @Override
+    public Iterable<String> getAnnotations(@NonNull Integer node) {
+        return getNode(node).getAnnotations();
+    }
+
+    @Override
+    public void addRoots(
+            @NonNull Map<Integer, DependencyType> symbolsToKeep,
+            @NonNull CounterSet counterSet) {
+        mRoots.get(counterSet.ordinal()).putAll(symbolsToKeep);
+    }
+
+    @NonNull
+    @Override
+    public Map<Integer, DependencyType> getRoots(@NonNull CounterSet counterSet) {
+        return ImmutableMap.copyOf(mRoots.get(counterSet.ordinal()));
+    }
+
+    @Override
+    public void clearCounters(@NonNull WaitableExecutor<Void> executor) {
+        int count = mNodeCount.get();
+        for (int start = 0; start < count; start += SEGMENT_SIZE) {
+            final int from = start;
+            final int to = Math.min(count, start + SEGMENT_SIZE);
+            executor.execute(() -> {
+                for (int id = from; id < to; id++) {
+                    Node node = findNode(id);
+                    if (node != null) {
+                        node.clearCounters();
+                    }
+                }
+                return null;
+            });
+        }
+    }
+
+    @Override
+    public boolean isClassKnown(@NonNull Integer klass) {
+        return getNode(klass).classInfo != null;
+    }
+
+    @Override
+    public void checkDependencies(ShrinkerLogger shrinkerLogger) {
+        int count = mNodeCount.get();
+        for (int id = 0; id < count; id++) {
+            final Node source = findNode(id);
+            if (source == null) {
+                continue;
+            }
+            source.removeEdges(
+                    edge -> {
+                        Node target = getNode(edge >>> TYPE_BITS);
+                        DependencyType type = TYPES[edge & ((1 << TYPE_BITS) - 1)];
+                        if (target.owner == -1) {
+                            // We don't warn about by-name references in strings.
+                            if (target.classInfo == null
+                                    && type != DependencyType.REQUIRED_CODE_REFERENCE_REFLECTION) {
+                                shrinkerLogger.invalidClassReference(source.name, target.name);
+                                return true;
+                            }
+                        } else if (!target.isAdded()) {
+                            shrinkerLogger.invalidMemberReference(source.name, target.name);
+                            return true;
+                        }
+                        return false;
+                    });
+        }
+    }
+
+    // ---- Node table ----
+
+    @NonNull
+    private Node getNode(int id) {
+        Node node = findNode(id);
+        if (node == null) {
+            throw new IllegalArgumentException("Unknown node " + id);
+        }
+        return node;
+    }
+
+    /**
+     * Returns the node of the given id, or null if it is still being created by another thread.
+     */
+    @Nullable
+    private Node findNode(int id) {
+        AtomicReferenceArray<Node> segment = mSegments.get(id >>> SEGMENT_SHIFT);
+        return segment != null ? segment.get(id & (SEGMENT_SIZE - 1)) : null;
+    }
+
+    @NonNull
+    private Node getClassNode(@NonNull String className) {
+        Node node = mNodesByName.get(className);
+        if (node == null) {
+            node = mNodesByName.computeIfAbsent(className, name -> newNode(name, -1));
+        }
+        return node;
+    }
+
+    @NonNull
+    private Node getMemberNode(@NonNull Node owner, @NonNull String name, @NonNull String desc) {
+        String fullName = owner.name + "." + name + ":" + desc;
+        Node node = mNodesByName.get(fullName);
+        if (node == null) {
+            node = mNodesByName.computeIfAbsent(fullName, n -> newNode(n, owner.id));
+        }
+        return node;
+    }
+
+    /** Allocates a node; called at most once per name. */
+    @NonNull
+    private Node newNode(@NonNull String name, int owner) {
+        int id = mNodeCount.getAndIncrement();
+        Preconditions.checkState(id < (MAX_SEGMENTS << SEGMENT_SHIFT), "Graph too large.");
+        int segmentIndex = id >>> SEGMENT_SHIFT;
+        AtomicReferenceArray<Node> segment = mSegments.get(segmentIndex);
+        if (segment == null) {
+            mSegments.compareAndSet(segmentIndex, null, new AtomicReferenceArray<>(SEGMENT_SIZE));
+            segment = mSegments.get(segmentIndex);
+        }
+        Node node = new Node(id, name, owner);
+        segment.set(id & (SEGMENT_SIZE - 1), node);
+        return node;
+    }
+
+    // ---- Serialization ----
+
+    private void write(@NonNull DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+
+        int count = mNodeCount.get();
+        out.writeInt(count);
+        for (int id = 0; id < count; id++) {
+            getNode(id).write(out);
+        }
+
+        for (ConcurrentMap<Integer, DependencyType> roots : mRoots) {
+            out.writeInt(roots.size());
+            for (Map.Entry<Integer, DependencyType> root : roots.entrySet()) {
+                out.writeInt(root.getKey());
+                out.writeByte(root.getValue().ordinal());
+            }
+        }
+    }
+
+    private void read(@NonNull ByteBuffer in) {
+        int count = in.getInt();
+        for (int id = 0; id < count; id++) {
+            String name = readString(in);
+            Node node = newNode(name, in.getInt());
+            mNodesByName.put(name, node);
+            node.read(in);
+        }
+
+        // Class members are stored as flags on the members, and rebuilt in id order
+        for (int id = 0; id < count; id++) {
+            Node node = getNode(id);
+            if (node.owner != -1 && node.isAdded()) {
+                getNode(node.owner).addMember(id);
+            }
+        }
+
+        for (ConcurrentMap<Integer, DependencyType> roots : mRoots) {
+            int rootCount = in.getInt();
+            for (int i = 0; i < rootCount; i++) {
+                roots.put(getNode(in.getInt()).boxedId, TYPES[in.get()]);
+            }
+        }
+    }
+
+    private static void writeString(@NonNull DataOutputStream out, @NonNull String string)
+            throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    @NonNull
+    private static String readString(@NonNull ByteBuffer in) {
+        int length = in.getInt();
+        String string = new String(in.array(), in.arrayOffset() + in.position(), length,
+                StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return string;
+    }
+
+    // ---- Helpers ----
+
+    @NonNull
+    private static String getMemberId(@NonNull String member) {
+        return member.substring(member.indexOf('.') + 1);
+    }
+
+    @NonNull
+    private static File getStateFile(@NonNull File dir) {
+        return new File(dir, "shrinker-graph.bin");
+    }
+
+    private static boolean isMethod(@NonNull String member) {
+        return member.contains("(");
+    }
+
+    private interface EdgeFilter {
+        boolean remove(int edge);
+    }
+
+    private static final class ClassInfo {
+        @Nullable final File classFile;
+        final int superclass;
+        @NonNull final int[] interfaces;
+
+        ClassInfo(@Nullable File classFile, int superclass, @NonNull int[] interfaces) {
+            this.classFile = classFile;
+            this.superclass = superclass;
+            this.interfaces = interfaces;
+        }
+    }
+
+    /**
+     * A class or class member. The name, id and owner never change; the other state is either
+     * volatile or guarded by the node's monitor.
+     */
+    private static final class Node {
+        final int id;
+        /** Boxed id, handed out as the node of the {@link ShrinkerGraph} API. */
+        final Integer boxedId;
+        /** Internal name of a class, or full name of a member, e.g. com/example/Class.m:()V */
+        final String name;
+        /** Id of the owner class of a member, or -1 for classes. */
+        final int owner;
+
+        volatile int modifiers;
+        /** Set once the class file of a class was read. */
+        volatile ClassInfo classInfo;
+        /** Whether a member was added to its owner class. */
+        private volatile boolean mAdded;
+
+        private int[] mMembers;
+        private int mMemberCount;
+        private int[] mEdges;
+        private int mEdgeCount;
+        private Set<Integer> mEdgeSet;
+        private String[] mAnnotations;
+        private int[] mCounters;
+
+        Node(int id, @NonNull String name, int owner) {
+            this.id = id;
+            this.boxedId = id;
+            this.name = name;
+            this.owner = owner;
+        }
+
+        boolean isAdded() {
+            return mAdded;
+        }
+
+        /** Marks a member as added to its owner, returning false if it already was. */
+        synchronized boolean markAdded() {
+            if (mAdded) {
+                return false;
+            }
+            mAdded = true;
+            return true;
+        }
+
+        synchronized void addMember(int member) {
+            if (mMembers == null) {
+                mMembers = new int[4];
+            } else if (mMemberCount == mMembers.length) {
+                mMembers = Arrays.copyOf(mMembers, mMemberCount * 2);
+            }
+            mMembers[mMemberCount++] = member;
+        }
+
+        @NonNull
+        synchronized int[] getMembers() {
+            return mMembers != null ? Arrays.copyOf(mMembers, mMemberCount) : new int[0];
+        }
+
+        synchronized void addEdge(int edge) {
+            if (mEdgeSet != null) {
+                if (!mEdgeSet.add(edge)) {
+                    return;
+                }
+            } else {
+                for (int i = 0; i < mEdgeCount; i++) {
+                    if (mEdges[i] == edge) {
+                        return;
+                    }
+                }
+            }
+
+            if (mEdges == null) {
+                mEdges = new int[4];
+            } else if (mEdgeCount == mEdges.length) {
+                mEdges = Arrays.copyOf(mEdges, mEdgeCount * 2);
+            }
+            mEdges[mEdgeCount++] = edge;
+
+            if (mEdgeSet == null && mEdgeCount > EDGE_SET_THRESHOLD) {
+                mEdgeSet = Sets.newHashSetWithExpectedSize(mEdgeCount * 2);
+                for (int i = 0; i < mEdgeCount; i++) {
+                    mEdgeSet.add(mEdges[i]);
+                }
+            }
+        }
+
+        @NonNull
+        synchronized int[] getEdges() {
+            return mEdges != null ? Arrays.copyOf(mEdges, mEdgeCount) : new int[0];
+        }
+
+        synchronized void removeEdges(@NonNull EdgeFilter filter) {
+            int kept = 0;
+            for (int i = 0; i < mEdgeCount; i++) {
+                int edge = mEdges[i];
+                if (filter.remove(edge)) {
+                    if (mEdgeSet != null) {
+                        mEdgeSet.remove(edge);
+                    }
+                } else {
+                    mEdges[kept++] = edge;
+                }
+            }
+            mEdgeCount = kept;
+        }
+
+        synchronized void addAnnotation(@NonNull String annotation) {
+            if (mAnnotations == null) {
+                mAnnotations = new String[] { annotation };
+            } else if (!Arrays.asList(mAnnotations).contains(annotation)) {
+                mAnnotations = Arrays.copyOf(mAnnotations, mAnnotations.length + 1);
+                mAnnotations[mAnnotations.length - 1] = annotation;
+            }
+        }
+
+        @NonNull
+        synchronized List<String> getAnnotations() {
+            return mAnnotations != null
+                    ? Arrays.asList(mAnnotations.clone())
+                    : Collections.<String>emptyList();
+        }
+
+        /**
+         * Increments the given counter and returns whether that made the node reachable. The
+         * counters of each {@link CounterSet} are, in order: required, if class kept, class is
+         * kept, super interface kept and interface implemented.
+         */
+        synchronized boolean incrementAndCheck(
+                @NonNull DependencyType type,
+                @NonNull CounterSet counterSet) {
+            if (mCounters == null) {
+                mCounters = new int[COUNTERS * CounterSet.values().length];
+            }
+            boolean before = isReachable(counterSet);
+            int base = counterSet.ordinal() * COUNTERS;
+            switch (type) {
+                case REQUIRED_CLASS_STRUCTURE:
+                case REQUIRED_CODE_REFERENCE:
+                case REQUIRED_CODE_REFERENCE_REFLECTION:
+                    mCounters[base]++;
+                    break;
+                case IF_CLASS_KEPT:
+                    mCounters[base + 1]++;
+                    break;
+                case CLASS_IS_KEPT:
+                    mCounters[base + 2]++;
+                    break;
+                case SUPERINTERFACE_KEPT:
+                    mCounters[base + 3]++;
+                    break;
+                case INTERFACE_IMPLEMENTED:
+                    mCounters[base + 4]++;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown dependency type.");
+            }
+            boolean after = isReachable(counterSet);
+            return before != after;
+        }
+
+        synchronized boolean isReachable(@NonNull CounterSet counterSet) {
+            if (mCounters == null) {
+                return false;
+            }
+            int base = counterSet.ordinal() * COUNTERS;
+            return mCounters[base] > 0
+                    || (mCounters[base + 1] > 0 && mCounters[base + 2] > 0)
+                    || (mCounters[base + 3] > 0 && mCounters[base + 4] > 0);
+        }
+
+        synchronized void clearCounters() {
+            mCounters = null;
+        }
+
+        synchronized void write(@NonNull DataOutputStream out) throws IOException {
+            writeString(out, name);
+            out.writeInt(owner);
+            out.writeInt(modifiers);
+
+            ClassInfo info = classInfo;
+            int flags = 0;
+            if (info != null) {
+                flags |= FLAG_CLASS_KNOWN;
+                if (info.classFile != null) {
+                    flags |= FLAG_HAS_FILE;
+                }
+            }
+            if (mAdded) {
+                flags |= FLAG_MEMBER_ADDED;
+            }
+            if (mCounters != null) {
+                flags |= FLAG_HAS_COUNTERS;
+            }
+            out.writeByte(flags);
+
+            if (info != null) {
+                if (info.classFile != null) {
+                    writeString(out, info.classFile.getPath());
+                }
+                out.writeInt(info.superclass);
+                out.writeInt(info.interfaces.length);
+                for (int itf : info.interfaces) {
+                    out.writeInt(itf);
+                }
+            }
+
+            String[] annotations = mAnnotations != null ? mAnnotations : new String[0];
+            out.writeInt(annotations.length);
+            for (String annotation : annotations) {
+                writeString(out, annotation);
+            }
+
+            out.writeInt(mEdgeCount);
+            for (int i = 0; i < mEdgeCount; i++) {
+                out.writeInt(mEdges[i]);
+            }
+
+            if (mCounters != null) {
+                for (int counter : mCounters) {
+                    out.writeInt(counter);
+                }
+            }
+        }
+
+        /** Reads the state written by {@link #write}, after the name and owner. */
+        synchronized void read(@NonNull ByteBuffer in) {
+            modifiers = in.getInt();
+            int flags = in.get();
+
+            if ((flags & FLAG_CLASS_KNOWN) != 0) {
+                File classFile = (flags & FLAG_HAS_FILE) != 0 ? new File(readString(in)) : null;
+                int superclass = in.getInt();
+                int[] interfaces = new int[in.getInt()];
+                for (int i = 0; i < interfaces.length; i++) {
+                    interfaces[i] = in.getInt();
+                }
+                classInfo = new ClassInfo(classFile, superclass, interfaces);
+            }
+            mAdded = (flags & FLAG_MEMBER_ADDED) != 0;
+
+            int annotationCount = in.getInt();
+            if (annotationCount > 0) {
+                mAnnotations = new String[annotationCount];
+                for (int i = 0; i < annotationCount; i++) {
+                    mAnnotations[i] = readString(in);
+                }
+            }
+
+            mEdgeCount = in.getInt();
+            if (mEdgeCount > 0) {
+                mEdges = new int[mEdgeCount];
+                in.asIntBuffer().get(mEdges);
+                in.position(in.position() + mEdgeCount * 4);
+                if (mEdgeCount > EDGE_SET_THRESHOLD) {
+                    mEdgeSet = Sets.newHashSetWithExpectedSize(mEdgeCount * 2);
+                    for (int edge : mEdges) {
+                        mEdgeSet.add(edge);
+                    }
+                }
+            }
+
+            if ((flags & FLAG_HAS_COUNTERS) != 0) {
+                mCounters = new int[COUNTERS * CounterSet.values().length];
+                in.asIntBuffer().get(mCounters);
+                in.position(in.position() + mCounters.length * 4);
+            }
+        }
+    }
+}
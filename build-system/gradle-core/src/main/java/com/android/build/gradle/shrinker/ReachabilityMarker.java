@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.build.gradle.shrinker;
+
+import com.android.annotations.NonNull;
+import com.android.build.gradle.shrinker.AbstractShrinker.CounterSet;
+import com.android.ide.common.internal.LoggedErrorException;
+import com.android.ide.common.internal.WaitableExecutor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Marks the nodes of a {@link ShrinkerGraph} reachable from its roots, by walking the graph
+ * breadth first with the tasks of a {@link WaitableExecutor}.
+ *
+ * <p>The walk proceeds in rounds. The frontier of newly reachable nodes is split into batches,
+ * each expanded by a single task. A task keeps expanding the nodes it discovers itself, until it
+ * has collected more than a full batch of them, which it hands over to the next round to be spread
+ * over the other threads. This keeps the number of tasks proportional to the number of nodes
+ * divided by the batch size, instead of one task per root, and the walk does not recurse, however
+ * long the chains of dependencies are. Since {@link WaitableExecutor} is not thread safe, only
+ * the calling thread submits tasks.
+ *
+ * <p>The counters of the graph are the visited state: {@link ShrinkerGraph#incrementAndCheck}
+ * returns true exactly once per node, to the thread that made it reachable, so every node is
+ * expanded by one task only.
+ */
+class ReachabilityMarker<T> {
+
+    /** Number of nodes expanded by a task before it hands new ones over to other threads. */
+    static final int BATCH_SIZE = 256;
+
+    @NonNull
+    private final ShrinkerGraph<T> mGraph;
+
+    @NonNull
+    private final CounterSet mCounterSet;
+
+    ReachabilityMarker(@NonNull ShrinkerGraph<T> graph, @NonNull CounterSet counterSet) {
+        mGraph = graph;
+        mCounterSet = counterSet;
+    }
+
+    /**
+     * Increments the counters of the given roots, and of all the nodes reachable from them.
+     */
+    void markReachable(
+            @NonNull Map<T, DependencyType> roots,
+            @NonNull WaitableExecutor<Void> executor) {
+        List<T> frontier = new ArrayList<>();
+        for (Map.Entry<T, DependencyType> root : roots.entrySet()) {
+            if (mGraph.incrementAndCheck(root.getKey(), root.getValue(), mCounterSet)) {
+                frontier.add(root.getKey());
+            }
+        }
+
+        while (!frontier.isEmpty()) {
+            final Queue<List<T>> handedOver = new ConcurrentLinkedQueue<>();
+            for (int start = 0; start < frontier.size(); start += BATCH_SIZE) {
+                final List<T> batch =
+                        frontier.subList(start, Math.min(frontier.size(), start + BATCH_SIZE));
+                executor.execute(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        expand(batch, handedOver);
+                        return null;
+                    }
+                });
+            }
+            try {
+                executor.waitForTasksWithQuickFail(true);
+            } catch (InterruptedException | LoggedErrorException e) {
+                throw new RuntimeException(e);
+            }
+
+            frontier = new ArrayList<>();
+            for (List<T> nodes : handedOver) {
+                frontier.addAll(nodes);
+            }
+        }
+    }
+
+    /**
+     * Expands a batch of nodes which just became reachable, and the nodes it makes reachable in
+     * turn, until there are more than a batch of them, which are added to the given queue.
+     */
+    private void expand(@NonNull List<T> nodes, @NonNull Queue<List<T>> handedOver) {
+        List<T> current = nodes;
+        while (!current.isEmpty()) {
+            List<T> next = new ArrayList<>();
+            for (T node : current) {
+                for (Dependency<T> dependency : mGraph.getDependencies(node)) {
+                    if (mGraph.incrementAndCheck(dependency.target, dependency.type, mCounterSet)) {
+                        next.add(dependency.target);
+                    }
+                }
+            }
+            if (next.size() > BATCH_SIZE) {
+                handedOver.add(next);
+                return;
+            }
+            current = next;
+        }
+    }
+}
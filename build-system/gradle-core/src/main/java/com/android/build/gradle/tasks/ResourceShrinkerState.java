@@ -0,0 +1,488 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.build.gradle.tasks;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.resources.ResourceType;
+import com.android.utils.FileUtils;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * State saved by {@link ResourceUsageAnalyzer} between runs, such that it only has to look at
+ * the inputs which changed.
+ *
+ * <p>It is made of:
+ * <ul>
+ *     <li>The resource reference graph built from the R classes, the merged manifest and the
+ *         merged resources, along with a fingerprint of these inputs. The graph is reused as a
+ *         whole when none of them changed, which is the common case when only code changed.</li>
+ *     <li>The resource references found in each class, keyed by the CRC of the class, such that
+ *         only new and changed classes are parsed again.</li>
+ *     <li>The entries of the shrunk resource zip which were stripped, along with the sizes and
+ *         timestamps of the source and shrunk zips, such that the shrunk zip can be patched in
+ *         place when it was not modified since.</li>
+ * </ul>
+ *
+ * <p>The state is only a cache: when it cannot be read, the analyzer starts from scratch.
+ */
+final class ResourceShrinkerState {
+
+    /** Name of the file holding the resource graph and class references. */
+    static final String FN_REFERENCES = "resource-references.bin";
+
+    /** Name of the file holding the state of the shrunk resource zip. */
+    static final String FN_ZIP = "resource-zip.bin";
+
+    private static final int MAGIC = 0x52534852; // "RSHR"
+
+    private static final int VERSION = 1;
+
+    /** Places a class constant can be found in, as printed in the debug output. */
+    static final String[] CONTEXTS = {"ldc", "field", "annotation"};
+
+    static final byte CONTEXT_LDC = 0;
+    static final byte CONTEXT_FIELD = 1;
+    static final byte CONTEXT_ANNOTATION = 2;
+
+    static final int FLAG_DECLARED = 1;
+    static final int FLAG_PUBLIC = 1 << 1;
+    static final int FLAG_KEEP = 1 << 2;
+    static final int FLAG_DISCARD = 1 << 3;
+    static final int FLAG_REACHABLE = 1 << 4;
+
+    /** Fingerprint of the inputs the resource graph was built from, or null if there is none. */
+    @Nullable
+    String resourcesFingerprint;
+
+    /** The resources, in the order they were added to the model. */
+    @NonNull
+    final List<ResourceRecord> resources = Lists.newArrayList();
+
+    /** Owners of the resource fields found in the R classes, with their resource type. */
+    @NonNull
+    final Map<String, ResourceType> resourceClasses = Maps.newLinkedHashMap();
+
+    /** The {@code tools:} attributes found in the resources, as pairs of local name and value. */
+    @NonNull
+    final List<String[]> toolsAttributes = Lists.newArrayList();
+
+    /** Strings found in the resources, which might be resource names. */
+    @NonNull
+    final Set<String> resourceStrings = Sets.newLinkedHashSet();
+
+    /** Whether the resources contain web content. */
+    boolean resourcesHaveWebContent;
+
+    /** References found in each class, keyed by {@link #getClassKey(File, String)}. */
+    @NonNull
+    final Map<String, ClassReferences> classes = Maps.newHashMap();
+
+    /**
+     * Returns the key of a class in {@link #classes}.
+     *
+     * @param file the class file, or the jar containing the class
+     * @param name the path of the class in the jar, or null for class files
+     */
+    @NonNull
+    static String getClassKey(@NonNull File file, @Nullable String name) {
+        return name == null ? file.getPath() : file.getPath() + '!' + name;
+    }
+
+    /**
+     * Returns the references found in a class during the previous run, if its contents did not
+     * change since.
+     */
+    @Nullable
+    ClassReferences getClassReferences(@NonNull String key, long crc, long size) {
+        ClassReferences references = classes.get(key);
+        if (references != null && references.crc == crc && references.size == size) {
+            return references;
+        }
+        return null;
+    }
+
+    /**
+     * Reads the state saved in the given directory.
+     *
+     * @return the state, or an empty state if none was saved or it could not be read
+     */
+    @NonNull
+    static ResourceShrinkerState read(@NonNull File dir) {
+        File file = new File(dir, FN_REFERENCES);
+        ResourceShrinkerState state = new ResourceShrinkerState();
+        if (!file.isFile()) {
+            return state;
+        }
+
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return new ResourceShrinkerState();
+            }
+
+            if (in.readBoolean()) {
+                state.resourcesFingerprint = in.readUTF();
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    state.resources.add(ResourceRecord.read(in));
+                }
+                count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    String owner = in.readUTF();
+                    state.resourceClasses.put(owner, readResourceType(in));
+                }
+                count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    state.toolsAttributes.add(new String[] {in.readUTF(), in.readUTF()});
+                }
+                count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    state.resourceStrings.add(in.readUTF());
+                }
+                state.resourcesHaveWebContent = in.readBoolean();
+            }
+
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                state.classes.put(key, ClassReferences.read(in));
+            }
+            return state;
+        } catch (IOException | IllegalArgumentException e) {
+            // Written by another version, or truncated: start from scratch.
+            return new ResourceShrinkerState();
+        }
+    }
+
+    /** Saves the state into the given directory. */
+    void write(@NonNull File dir) throws IOException {
+        File file = new File(dir, FN_REFERENCES);
+        FileUtils.deleteIfExists(file);
+        Files.createParentDirs(file);
+
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+
+            out.writeBoolean(resourcesFingerprint != null);
+            if (resourcesFingerprint != null) {
+                out.writeUTF(resourcesFingerprint);
+                out.writeInt(resources.size());
+                for (ResourceRecord resource : resources) {
+                    resource.write(out);
+                }
+                out.writeInt(resourceClasses.size());
+                for (Map.Entry<String, ResourceType> entry : resourceClasses.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.writeUTF(entry.getValue().getName());
+                }
+                out.writeInt(toolsAttributes.size());
+                for (String[] attribute : toolsAttributes) {
+                    out.writeUTF(attribute[0]);
+                    out.writeUTF(attribute[1]);
+                }
+                out.writeInt(resourceStrings.size());
+                for (String string : resourceStrings) {
+                    out.writeUTF(string);
+                }
+                out.writeBoolean(resourcesHaveWebContent);
+            }
+
+            out.writeInt(classes.size());
+            for (Map.Entry<String, ClassReferences> entry : classes.entrySet()) {
+                out.writeUTF(entry.getKey());
+                entry.getValue().write(out);
+            }
+        }
+    }
+
+    @NonNull
+    private static ResourceType readResourceType(@NonNull DataInputStream in) throws IOException {
+        String name = in.readUTF();
+        ResourceType type = ResourceType.getEnum(name);
+        if (type == null) {
+            throw new IOException("Unknown resource type " + name);
+        }
+        return type;
+    }
+
+    @NonNull
+    private static String[] readStrings(@NonNull DataInputStream in) throws IOException {
+        String[] strings = new String[in.readInt()];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = in.readUTF();
+        }
+        return strings;
+    }
+
+    private static void writeStrings(@NonNull DataOutputStream out, @NonNull List<String> strings)
+            throws IOException {
+        out.writeInt(strings.size());
+        for (String string : strings) {
+            out.writeUTF(string);
+        }
+    }
+
+    /** A resource of the reference graph. */
+    static final class ResourceRecord {
+        @NonNull
+        final ResourceType type;
+        @NonNull
+        final String name;
+        /** The id of the resource, or -1 if it is not in the R classes. */
+        final int value;
+        /** Combination of the {@code FLAG_} constants. */
+        final int flags;
+        @NonNull
+        final List<String> declarations;
+        /** Indices of the referenced resources in {@link #resources}. */
+        @NonNull
+        final int[] references;
+
+        ResourceRecord(
+                @NonNull ResourceType type,
+                @NonNull String name,
+                int value,
+                int flags,
+                @NonNull List<String> declarations,
+                @NonNull int[] references) {
+            this.type = type;
+            this.name = name;
+            this.value = value;
+            this.flags = flags;
+            this.declarations = declarations;
+            this.references = references;
+        }
+
+        @NonNull
+        static ResourceRecord read(@NonNull DataInputStream in) throws IOException {
+            ResourceType type = readResourceType(in);
+            String name = in.readUTF();
+            int value = in.readInt();
+            int flags = in.readInt();
+            List<String> declarations = Lists.newArrayList(readStrings(in));
+            int[] references = new int[in.readInt()];
+            for (int i = 0; i < references.length; i++) {
+                references[i] = in.readInt();
+            }
+            return new ResourceRecord(type, name, value, flags, declarations, references);
+        }
+
+        void write(@NonNull DataOutputStream out) throws IOException {
+            out.writeUTF(type.getName());
+            out.writeUTF(name);
+            out.writeInt(value);
+            out.writeInt(flags);
+            writeStrings(out, declarations);
+            out.writeInt(references.length);
+            for (int reference : references) {
+                out.writeInt(reference);
+            }
+        }
+    }
+
+    /**
+     * The resource references found in a class. Field references are kept unresolved, since the
+     * obfuscated names of the R classes can change without the class changing.
+     */
+    static final class ClassReferences {
+        /** CRC and size of the class, to tell whether it changed. */
+        final long crc;
+        final long size;
+
+        /** Integer constants which might be resource ids, and where they were found. */
+        final List<Integer> values = Lists.newArrayList();
+        final List<Byte> contexts = Lists.newArrayList();
+
+        /** Owners and names of the int and int[] static fields read by the class. */
+        final List<String> fieldOwners = Lists.newArrayList();
+        final List<String> fieldNames = Lists.newArrayList();
+
+        /** String constants which might be resource names or paths. */
+        final List<String> strings = Lists.newArrayList();
+
+        /** Whether the class calls {@code Resources#getIdentifier}. */
+        boolean callsGetIdentifier;
+
+        /** Whether the class loads web content. */
+        boolean loadsWebContent;
+
+        ClassReferences(long crc, long size) {
+            this.crc = crc;
+            this.size = size;
+        }
+
+        void addValue(int value, byte context) {
+            values.add(value);
+            contexts.add(context);
+        }
+
+        void addField(@NonNull String owner, @NonNull String name) {
+            fieldOwners.add(owner);
+            fieldNames.add(name);
+        }
+
+        @NonNull
+        static ClassReferences read(@NonNull DataInputStream in) throws IOException {
+            ClassReferences references = new ClassReferences(in.readLong(), in.readLong());
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                references.addValue(in.readInt(), in.readByte());
+            }
+            count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                references.addField(in.readUTF(), in.readUTF());
+            }
+            for (String string : readStrings(in)) {
+                references.strings.add(string);
+            }
+            references.callsGetIdentifier = in.readBoolean();
+            references.loadsWebContent = in.readBoolean();
+            return references;
+        }
+
+        void write(@NonNull DataOutputStream out) throws IOException {
+            out.writeLong(crc);
+            out.writeLong(size);
+            out.writeInt(values.size());
+            for (int i = 0; i < values.size(); i++) {
+                out.writeInt(values.get(i));
+                out.writeByte(contexts.get(i));
+            }
+            out.writeInt(fieldOwners.size());
+            for (int i = 0; i < fieldOwners.size(); i++) {
+                out.writeUTF(fieldOwners.get(i));
+                out.writeUTF(fieldNames.get(i));
+            }
+            writeStrings(out, strings);
+            out.writeBoolean(callsGetIdentifier);
+            out.writeBoolean(loadsWebContent);
+        }
+    }
+
+    /**
+     * The state of the shrunk resource zip: the entries stripped from it, and the source zip it
+     * was created from.
+     */
+    static final class ZipState {
+        final long sourceLength;
+        final long sourceTimestamp;
+        final long destLength;
+        final long destTimestamp;
+        /** Entries of the source zip which were replaced with dummies or dropped. */
+        @NonNull
+        final Set<String> removed;
+
+        ZipState(@NonNull File source, @NonNull File dest, @NonNull Set<String> removed) {
+            this(source.length(), source.lastModified(), dest.length(), dest.lastModified(),
+                    removed);
+        }
+
+        private ZipState(
+                long sourceLength,
+                long sourceTimestamp,
+                long destLength,
+                long destTimestamp,
+                @NonNull Set<String> removed) {
+            this.sourceLength = sourceLength;
+            this.sourceTimestamp = sourceTimestamp;
+            this.destLength = destLength;
+            this.destTimestamp = destTimestamp;
+            this.removed = removed;
+        }
+
+        /**
+         * Returns whether the given zips are still the ones this state was saved for, unmodified.
+         */
+        boolean isUpToDate(@NonNull File source, @NonNull File dest) {
+            return source.length() == sourceLength
+                    && source.lastModified() == sourceTimestamp
+                    && dest.isFile()
+                    && dest.length() == destLength
+                    && dest.lastModified() == destTimestamp;
+        }
+
+        /**
+         * Reads the zip state saved in the given directory.
+         *
+         * @return the state, or null if none was saved or it could not be read
+         */
+        @Nullable
+        static ZipState read(@NonNull File dir) {
+            File file = new File(dir, FN_ZIP);
+            if (!file.isFile()) {
+                return null;
+            }
+
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(file)))) {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    return null;
+                }
+                long sourceLength = in.readLong();
+                long sourceTimestamp = in.readLong();
+                long destLength = in.readLong();
+                long destTimestamp = in.readLong();
+                Set<String> removed = Sets.newHashSet(readStrings(in));
+                return new ZipState(
+                        sourceLength, sourceTimestamp, destLength, destTimestamp, removed);
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        /** Saves the zip state into the given directory. */
+        void write(@NonNull File dir) throws IOException {
+            File file = new File(dir, FN_ZIP);
+            FileUtils.deleteIfExists(file);
+            Files.createParentDirs(file);
+
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(file)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(sourceLength);
+                out.writeLong(sourceTimestamp);
+                out.writeLong(destLength);
+                out.writeLong(destTimestamp);
+                writeStrings(out, Lists.newArrayList(removed));
+            }
+        }
+
+        /** Deletes the zip state saved in the given directory, if any. */
+        static void delete(@NonNull File dir) throws IOException {
+            FileUtils.deleteIfExists(new File(dir, FN_ZIP));
+        }
+    }
+}
@@ -35,6 +35,12 @@ import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.annotations.VisibleForTesting;
 import com.android.build.gradle.internal.incremental.ByteCodeUtils;
+import com.android.build.gradle.tasks.ResourceShrinkerState.ClassReferences;
+import com.android.builder.internal.packaging.zip.CentralDirectoryHeader;
+import com.android.builder.internal.packaging.zip.CompressionMethod;
+import com.android.builder.internal.packaging.zip.StoredEntry;
+import com.android.builder.internal.packaging.zip.StoredEntryType;
+import com.android.builder.internal.packaging.zip.ZFile;
 import com.android.ide.common.xml.XmlPrettyPrinter;
 import com.android.resources.FolderTypeRelationship;
 import com.android.resources.ResourceFolderType;
@@ -49,6 +55,8 @@ import com.google.common.base.Joiner;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import com.google.common.io.ByteStreams;
 import com.google.common.io.Closeables;
 import com.google.common.io.Files;
@@ -65,15 +73,20 @@ import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -223,6 +236,27 @@ public class ResourceUsageAnalyzer {
     /** Obfuscated name of android/support/v7/internal/widget/ResourcesWrapper.java */
     private String mResourcesWrapper;
 
+    /** Directory to save the state of the analysis into, or null to not save it */
+    @Nullable
+    private File mIncrementalDir;
+
+    /** The state saved at the end of this analysis, or null if there is no incremental dir */
+    @Nullable
+    private ResourceShrinkerState mState;
+
+    /** The state saved by the previous analysis, or null if there is no incremental dir */
+    @Nullable
+    private ResourceShrinkerState mPreviousState;
+
+    /** Whether the resource graph was restored from the previous analysis */
+    private boolean mResourcesRestored;
+
+    /** Number of classes parsed for resource references, the other ones being reused */
+    private int mParsedClassCount;
+
+    /** The {@code tools:} attributes found in the resources, as local name and value pairs */
+    private final List<String[]> mToolsAttributes = Lists.newArrayList();
+
     public ResourceUsageAnalyzer(
             @NonNull File rDir,
             @NonNull File classes,
@@ -269,15 +303,173 @@ public class ResourceUsageAnalyzer {
     }
 
     public void analyze() throws IOException, ParserConfigurationException, SAXException {
-        gatherResourceValues(mResourceClassDir);
+        // The resource graph only depends on the R classes, the manifest and the resources, and
+        // is reused as a whole if none of them changed since the previous run. Code references
+        // are recorded afterwards, per class.
+        String fingerprint = null;
+        if (mIncrementalDir != null) {
+            mPreviousState = ResourceShrinkerState.read(mIncrementalDir);
+            mState = new ResourceShrinkerState();
+            fingerprint = computeResourcesFingerprint();
+        }
+
+        if (mPreviousState != null
+                && fingerprint.equals(mPreviousState.resourcesFingerprint)) {
+            restoreResources(mPreviousState);
+            mResourcesRestored = true;
+        } else {
+            gatherResourceValues(mResourceClassDir);
+            recordManifestUsages(mMergedManifest);
+            recordResources(mMergedResourceDir);
+        }
+        if (mState != null) {
+            saveResources(mState, fingerprint);
+        }
+
         recordMapping(mProguardMapping);
         recordClassUsages(mClasses);
-        recordManifestUsages(mMergedManifest);
-        recordResources(mMergedResourceDir);
         keepPossiblyReferencedResources();
         dumpReferences();
         mModel.processToolsAttributes();
         mUnused = mModel.findUnused();
+
+        if (mState != null) {
+            assert mIncrementalDir != null;
+            mState.write(mIncrementalDir);
+            mPreviousState = null;
+        }
+    }
+
+    /**
+     * Sets the directory to save the state of the analysis into, such that the next analysis
+     * only parses the classes which changed, and only rebuilds the resource graph if the
+     * resources changed, and such that {@link #rewriteResourceZip(File, File)} patches the
+     * previously shrunk zip rather than writing it again.
+     *
+     * @param incrementalDir the directory, or null to always analyze everything
+     */
+    public void setIncrementalDir(@Nullable File incrementalDir) {
+        mIncrementalDir = incrementalDir;
+    }
+
+    /**
+     * Returns a fingerprint of the inputs the resource graph is built from: the R classes, the
+     * merged manifest and the merged resources
+     */
+    @NonNull
+    private String computeResourcesFingerprint() {
+        Hasher hasher = Hashing.sha1().newHasher();
+        hashFiles(hasher, mResourceClassDir);
+        hashFiles(hasher, mMergedManifest);
+        hashFiles(hasher, mMergedResourceDir);
+        return hasher.hash().toString();
+    }
+
+    private static void hashFiles(@NonNull Hasher hasher, @NonNull File file) {
+        if (file.isDirectory()) {
+            File[] children = file.listFiles();
+            if (children != null) {
+                Arrays.sort(children);
+                for (File child : children) {
+                    hashFiles(hasher, child);
+                }
+            }
+        } else if (file.isFile()) {
+            hasher.putString(file.getPath(), UTF_8);
+            hasher.putLong(file.length());
+            hasher.putLong(file.lastModified());
+        }
+    }
+
+    /**
+     * Records the resource graph, as built from the R classes, the manifest and the resources,
+     * into the given state
+     */
+    private void saveResources(@NonNull ResourceShrinkerState state, @NonNull String fingerprint) {
+        state.resourcesFingerprint = fingerprint;
+
+        for (Map.Entry<String, Pair<ResourceType, Map<String, String>>> entry
+                : mResourceObfuscation.entrySet()) {
+            state.resourceClasses.put(entry.getKey(), entry.getValue().getFirst());
+        }
+
+        List<Resource> resources = mModel.getResources();
+        Map<Resource, Integer> indices = new IdentityHashMap<>(resources.size());
+        for (Resource resource : resources) {
+            indices.put(resource, indices.size());
+        }
+        for (Resource resource : resources) {
+            int flags = 0;
+            flags |= resource.isDeclared() ? ResourceShrinkerState.FLAG_DECLARED : 0;
+            flags |= resource.isPublic() ? ResourceShrinkerState.FLAG_PUBLIC : 0;
+            flags |= resource.isKeep() ? ResourceShrinkerState.FLAG_KEEP : 0;
+            flags |= resource.isDiscard() ? ResourceShrinkerState.FLAG_DISCARD : 0;
+            flags |= resource.isReachable() ? ResourceShrinkerState.FLAG_REACHABLE : 0;
+
+            List<String> declarations = Lists.newArrayList();
+            if (resource.declarations != null) {
+                for (File file : resource.declarations) {
+                    declarations.add(file.getPath());
+                }
+            }
+
+            int[] references = new int[resource.references != null
+                    ? resource.references.size() : 0];
+            for (int i = 0; i < references.length; i++) {
+                references[i] = indices.get(resource.references.get(i));
+            }
+
+            state.resources.add(new ResourceShrinkerState.ResourceRecord(
+                    resource.type, resource.name, resource.value, flags, declarations,
+                    references));
+        }
+
+        state.toolsAttributes.addAll(mToolsAttributes);
+        if (mStrings != null) {
+            state.resourceStrings.addAll(mStrings);
+        }
+        state.resourcesHaveWebContent = mFoundWebContent;
+    }
+
+    /** Rebuilds the resource graph saved by {@link #saveResources} */
+    private void restoreResources(@NonNull ResourceShrinkerState state) {
+        for (Map.Entry<String, ResourceType> entry : state.resourceClasses.entrySet()) {
+            Map<String, String> nameMap = Maps.newHashMap();
+            mResourceObfuscation.put(entry.getKey(), Pair.of(entry.getValue(), nameMap));
+        }
+
+        List<Resource> resources = Lists.newArrayListWithCapacity(state.resources.size());
+        for (ResourceShrinkerState.ResourceRecord record : state.resources) {
+            Resource resource = mModel.addResource(record.type, record.name,
+                    record.value != -1 ? Integer.toString(record.value) : null);
+            int flags = record.flags;
+            resource.setDeclared((flags & ResourceShrinkerState.FLAG_DECLARED) != 0);
+            resource.setPublic((flags & ResourceShrinkerState.FLAG_PUBLIC) != 0);
+            resource.setKeep((flags & ResourceShrinkerState.FLAG_KEEP) != 0);
+            resource.setDiscard((flags & ResourceShrinkerState.FLAG_DISCARD) != 0);
+            resource.setReachable((flags & ResourceShrinkerState.FLAG_REACHABLE) != 0);
+            for (String path : record.declarations) {
+                resource.addLocation(new File(path));
+            }
+            resources.add(resource);
+        }
+        for (int i = 0; i < resources.size(); i++) {
+            Resource resource = resources.get(i);
+            for (int reference : state.resources.get(i).references) {
+                resource.addReference(resources.get(reference));
+            }
+        }
+
+        for (String[] attribute : state.toolsAttributes) {
+            mModel.recordToolsAttribute(attribute[0], attribute[1]);
+        }
+        if (!state.resourceStrings.isEmpty()) {
+            if (mStrings == null) {
+                mStrings = Sets.newHashSetWithExpectedSize(state.resourceStrings.size());
+            }
+            mStrings.addAll(state.resourceStrings);
+        }
+        mFoundWebContent |= state.resourcesHaveWebContent;
     }
 
     public boolean isDryRun() {
@@ -372,11 +564,29 @@ public class ResourceUsageAnalyzer {
      * will remove the individual file-based resources, which is where most of
      * the data is anyway (usually in drawable bitmaps)
      *
+     * <p>
+     * If an incremental directory was set, and the .ap_ file written by the previous run was
+     * not modified since, and was created from the same source file, it is patched in place
+     * instead: only the resources which became unused, or used again, are replaced.
+     *
      * @param source the .ap_ file created by aapt
      * @param dest a new .ap_ file with unused file-based resources removed
      */
     public void rewriteResourceZip(@NonNull File source, @NonNull File dest)
             throws IOException {
+        if (mIncrementalDir != null) {
+            ResourceShrinkerState.ZipState previous =
+                    ResourceShrinkerState.ZipState.read(mIncrementalDir);
+            // Delete the state first, such that a failure below cannot leave a stale one
+            ResourceShrinkerState.ZipState.delete(mIncrementalDir);
+            if (previous != null && previous.isUpToDate(source, dest)) {
+                Set<String> removed = patchResourceZip(source, dest, previous.removed);
+                new ResourceShrinkerState.ZipState(source, dest, removed).write(mIncrementalDir);
+                return;
+            }
+        }
+
+        Set<String> removed = Sets.newHashSet();
         if (dest.exists()) {
             boolean deleted = dest.delete();
             if (!deleted) {
@@ -402,7 +612,11 @@ public class ResourceUsageAnalyzer {
                         String name = entry.getName();
                         boolean directory = entry.isDirectory();
                         Resource resource = getResourceByJarPath(name);
-                        if (resource == null || resource.isReachable()) {
+                        boolean keep = resource == null || resource.isReachable();
+                        if (!keep && !directory) {
+                            removed.add(name);
+                        }
+                        if (keep) {
                             // We can't just compress all files; files that are not
                             // compressed in the source .ap_ file must be left uncompressed
                             // here, since for example RAW files need to remain uncompressed in
@@ -502,6 +716,22 @@ public class ResourceUsageAnalyzer {
         // https://plus.google.com/+SaidTahsinDane/posts/X9sTSwoVUhB
         // "Removed unused resources: Binary resource data reduced from 588KB to 595KB: Removed -1%"
         // Guard against that, and worst case, just use the original.
+        if (useOriginalIfLarger(source, dest)) {
+            removed.clear();
+        }
+
+        if (mIncrementalDir != null) {
+            new ResourceShrinkerState.ZipState(source, dest, removed).write(mIncrementalDir);
+        }
+    }
+
+    /**
+     * Copies the source .ap_ file over the shrunk one if the shrunk one is larger
+     *
+     * @return true if the source file was copied
+     */
+    private boolean useOriginalIfLarger(@NonNull File source, @NonNull File dest)
+            throws IOException {
         long before = source.length();
         long after = dest.length();
         if (after > before) {
@@ -515,6 +745,92 @@ public class ResourceUsageAnalyzer {
             }
 
             Files.copy(source, dest);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Updates an .ap_ file previously written by {@link #rewriteResourceZip(File, File)} from
+     * the same source file: replaces the entries of the resources which became unused with
+     * dummies, and copies back the entries of the resources which are used again.
+     *
+     * @param source the .ap_ file created by aapt
+     * @param dest the .ap_ file to update
+     * @param previouslyRemoved the entries of the source file which were removed from the
+     *     destination file
+     * @return the entries of the source file which are now removed from the destination file
+     */
+    @NonNull
+    private Set<String> patchResourceZip(@NonNull File source, @NonNull File dest,
+            @NonNull Set<String> previouslyRemoved) throws IOException {
+        Set<String> removed = Sets.newHashSet();
+        try (ZFile sourceZip = new ZFile(source); ZFile destZip = new ZFile(dest)) {
+            for (StoredEntry entry : sourceZip.entries()) {
+                if (entry.getType() != StoredEntryType.FILE) {
+                    continue;
+                }
+                String name = entry.getCentralDirectoryHeader().getName();
+                Resource resource = getResourceByJarPath(name);
+                if (resource != null && !resource.isReachable()) {
+                    removed.add(name);
+                }
+                boolean wasRemoved = previouslyRemoved.contains(name);
+                if (removed.contains(name) == wasRemoved) {
+                    continue;
+                }
+
+                boolean compressed = entry.getCentralDirectoryHeader().getCompressionInfoWithWait()
+                        .getMethod() != CompressionMethod.STORE;
+                if (wasRemoved) {
+                    try (InputStream stream = entry.open()) {
+                        destZip.add(name, stream, compressed);
+                    }
+                    if (isVerbose()) {
+                        System.out.println("Restored used resource " + name);
+                    }
+                } else if (REPLACE_DELETED_WITH_EMPTY
+                        // Canonical name for resource file that only contains keep rules
+                        && !name.equals("res/raw/keep.xml")) {
+                    byte[] bytes;
+                    if (name.endsWith(DOT_9PNG)) {
+                        bytes = TINY_9PNG;
+                    } else if (name.endsWith(DOT_PNG)) {
+                        bytes = TINY_PNG;
+                    } else if (name.endsWith(DOT_XML)) {
+                        bytes = TINY_XML;
+                    } else {
+                        bytes = new byte[0];
+                    }
+                    destZip.add(name, new ByteArrayInputStream(bytes), compressed);
+                    logSkippedResource("Skipped unused resource " + name + ": "
+                            + entry.getCentralDirectoryHeader().getUncompressedSize()
+                            + " bytes (replaced with small dummy file of size "
+                            + bytes.length + " bytes)");
+                } else {
+                    StoredEntry destEntry = destZip.get(name);
+                    if (destEntry != null) {
+                        destEntry.delete();
+                    }
+                    logSkippedResource("Skipped unused resource " + name + ": "
+                            + entry.getCentralDirectoryHeader().getUncompressedSize()
+                            + " bytes");
+                }
+            }
+        }
+
+        if (useOriginalIfLarger(source, dest)) {
+            removed.clear();
+        }
+        return removed;
+    }
+
+    private void logSkippedResource(@NonNull String message) {
+        if (isVerbose()) {
+            System.out.println(message);
+        }
+        if (mDebugPrinter != null) {
+            mDebugPrinter.println(message);
         }
     }
 
@@ -1279,12 +1595,29 @@ public class ResourceUsageAnalyzer {
     private boolean mFoundWebContent;
 
     private void referencedString(@NonNull String string) {
-        // See if the string is at all eligible; ignore strings that aren't
-        // identifiers (has java identifier chars and nothing but .:/), or are empty or too long
-        // We also allow "%", used for formatting strings.
-        if (string.isEmpty() || string.length() > 80) {
+        if (!isPossibleResourceString(string)) {
             return;
         }
+
+        if (mStrings == null) {
+            mStrings = Sets.newHashSetWithExpectedSize(300);
+        }
+        mStrings.add(string);
+
+        if (!mFoundWebContent && string.contains(ANDROID_RES)) {
+            mFoundWebContent = true;
+        }
+    }
+
+    /**
+     * Returns whether the given string constant is at all eligible as a resource name or path:
+     * strings that aren't identifiers (has java identifier chars and nothing but .:/), or are
+     * empty or too long, are ignored. We also allow "%", used for formatting strings.
+     */
+    private static boolean isPossibleResourceString(@NonNull String string) {
+        if (string.isEmpty() || string.length() > 80) {
+            return false;
+        }
         boolean haveIdentifierChar = false;
         for (int i = 0, n = string.length(); i < n; i++) {
             char c = string.charAt(i);
@@ -1292,23 +1625,12 @@ public class ResourceUsageAnalyzer {
             if (!identifierChar && c != '.' && c != ':' && c != '/' && c != '%') {
                 // .:/ are for the fully qualified resource names, or for resource URLs or
                 // relative file names
-                return;
+                return false;
             } else if (identifierChar) {
                 haveIdentifierChar = true;
             }
         }
-        if (!haveIdentifierChar) {
-            return;
-        }
-
-        if (mStrings == null) {
-            mStrings = Sets.newHashSetWithExpectedSize(300);
-        }
-        mStrings.add(string);
-
-        if (!mFoundWebContent && string.contains(ANDROID_RES)) {
-            mFoundWebContent = true;
-        }
+        return haveIdentifierChar;
     }
 
     private void recordClassUsages(File file) throws IOException {
@@ -1321,44 +1643,130 @@ public class ResourceUsageAnalyzer {
             }
         } else if (file.isFile()) {
             if (file.getPath().endsWith(DOT_CLASS)) {
-                byte[] bytes = Files.toByteArray(file);
-                recordClassUsages(file, file.getName(), bytes);
+                recordClassUsages(file, file.getName(), ResourceShrinkerState.getClassKey(file,
+                        null), Files.toByteArray(file));
             } else if (file.getPath().endsWith(DOT_JAR)) {
-                ZipInputStream zis = null;
+                // Read the jar through its central directory, such that only the classes which
+                // changed since the previous analysis are inflated
+                ZFile jar;
                 try {
-                    FileInputStream fis = new FileInputStream(file);
-                    try {
-                        zis = new ZipInputStream(fis);
-                        ZipEntry entry = zis.getNextEntry();
-                        while (entry != null) {
-                            String name = entry.getName();
-                            if (name.endsWith(DOT_CLASS) &&
-                                    // Skip resource type classes like R$drawable; they will
-                                    // reference the integer id's we're looking for, but these aren't
-                                    // actual usages we need to track; if somebody references the
-                                    // field elsewhere, we'll catch that
-                                    !isResourceClass(name)) {
-                                byte[] bytes = ByteStreams.toByteArray(zis);
-                                if (bytes != null) {
-                                    recordClassUsages(file, name, bytes);
-                                }
+                    jar = new ZFile(file);
+                } catch (IOException e) {
+                    // ZFile does not read all archives, Zip64 ones in particular
+                    recordStreamedJarUsages(file);
+                    return;
+                }
+                try (ZFile zip = jar) {
+                    List<StoredEntry> entries = Lists.newArrayList(zip.entries());
+                    Collections.sort(entries, (entry1, entry2) ->
+                            entry1.getCentralDirectoryHeader().getName().compareTo(
+                                    entry2.getCentralDirectoryHeader().getName()));
+                    for (StoredEntry entry : entries) {
+                        CentralDirectoryHeader header = entry.getCentralDirectoryHeader();
+                        String name = header.getName();
+                        if (entry.getType() == StoredEntryType.FILE &&
+                                name.endsWith(DOT_CLASS) &&
+                                // Skip resource type classes like R$drawable; they will
+                                // reference the integer id's we're looking for, but these aren't
+                                // actual usages we need to track; if somebody references the
+                                // field elsewhere, we'll catch that
+                                !isResourceClass(name)) {
+                            String key = ResourceShrinkerState.getClassKey(file, name);
+                            ClassReferences references = getPreviousClassReferences(key,
+                                    header.getCrc32(), header.getUncompressedSize());
+                            if (references == null) {
+                                references = findClassReferences(entry.read(),
+                                        header.getCrc32());
                             }
-
-                            entry = zis.getNextEntry();
+                            recordClassReferences(file, name, key, references);
                         }
-                    } finally {
-                        Closeables.close(fis, true);
                     }
-                } finally {
-                    Closeables.close(zis, true);
                 }
             }
         }
     }
 
-    private void recordClassUsages(File file, String name, byte[] bytes) {
+    /**
+     * Records the usages of a jar read as a stream: all its classes are inflated, but only the
+     * ones which changed since the previous analysis are parsed
+     */
+    private void recordStreamedJarUsages(@NonNull File file) throws IOException {
+        try (ZipInputStream zis =
+                     new ZipInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            ZipEntry entry = zis.getNextEntry();
+            while (entry != null) {
+                String name = entry.getName();
+                if (!entry.isDirectory() && name.endsWith(DOT_CLASS) && !isResourceClass(name)) {
+                    recordClassUsages(file, name, ResourceShrinkerState.getClassKey(file, name),
+                            ByteStreams.toByteArray(zis));
+                }
+                entry = zis.getNextEntry();
+            }
+        }
+    }
+
+    private void recordClassUsages(@NonNull File file, @NonNull String name,
+            @NonNull String key, @NonNull byte[] bytes) {
+        long crc = Hashing.crc32().hashBytes(bytes).padToLong();
+        ClassReferences references = getPreviousClassReferences(key, crc, bytes.length);
+        if (references == null) {
+            references = findClassReferences(bytes, crc);
+        }
+        recordClassReferences(file, name, key, references);
+    }
+
+    @Nullable
+    private ClassReferences getPreviousClassReferences(@NonNull String key, long crc,
+            long size) {
+        return mPreviousState != null ? mPreviousState.getClassReferences(key, crc, size) : null;
+    }
+
+    @NonNull
+    private ClassReferences findClassReferences(@NonNull byte[] bytes, long crc) {
+        mParsedClassCount++;
+        ClassReferences references = new ClassReferences(crc, bytes.length);
         ClassReader classReader = new ClassReader(bytes);
-        classReader.accept(new UsageVisitor(file, name), SKIP_DEBUG | SKIP_FRAMES);
+        classReader.accept(new UsageVisitor(references), SKIP_DEBUG | SKIP_FRAMES);
+        return references;
+    }
+
+    /** Marks the resources referenced by a class as reachable */
+    private void recordClassReferences(@NonNull File file, @NonNull String name,
+            @NonNull String key, @NonNull ClassReferences references) {
+        if (mState != null) {
+            mState.classes.put(key, references);
+        }
+
+        for (int i = 0, n = references.values.size(); i < n; i++) {
+            Resource resource = mModel.getResource(references.values.get(i));
+            if (ResourceUsageModel.markReachable(resource) && mDebug) {
+                mDebugPrinter.println("Marking " + resource + " reachable: referenced from "
+                        + ResourceShrinkerState.CONTEXTS[references.contexts.get(i)] + " in "
+                        + file + ":" + name);
+            }
+        }
+
+        for (int i = 0, n = references.fieldOwners.size(); i < n; i++) {
+            Resource resource = getResourceFromCode(references.fieldOwners.get(i),
+                    references.fieldNames.get(i));
+            if (resource != null) {
+                ResourceUsageModel.markReachable(resource);
+            }
+        }
+
+        for (String string : references.strings) {
+            referencedString(string);
+        }
+
+        // "benign" usages: don't trigger reflection mode just because
+        // the user has included appcompat
+        if (references.callsGetIdentifier
+                && !name.equals(mResourcesWrapper) && !name.equals(mSuggestionsAdapter)) {
+            mFoundGetIdentifier = true;
+        }
+        if (references.loadsWebContent) {
+            mFoundWebContent = true;
+        }
     }
 
     /** Returns whether the given class file name points to an aapt-generated compiled R class */
@@ -1537,20 +1945,31 @@ public class ResourceUsageAnalyzer {
         return mModel;
     }
 
+    @VisibleForTesting
+    boolean isResourcesRestored() {
+        return mResourcesRestored;
+    }
+
+    @VisibleForTesting
+    int getParsedClassCount() {
+        return mParsedClassCount;
+    }
+
     /**
      * Class visitor responsible for looking for resource references in code.
      * It looks for R.type.name references (as well as inlined constants for these,
      * in the case of non-library code), as well as looking both for Resources#getIdentifier
      * calls and recording string literals, used to handle dynamic lookup of resources.
+     * <p>
+     * The references are recorded rather than resolved, such that they can be reused by the
+     * next analysis if the class does not change.
      */
-    private class UsageVisitor extends ClassVisitor {
-        private final File mJarFile;
-        private final String mCurrentClass;
+    private static class UsageVisitor extends ClassVisitor {
+        private final ClassReferences mReferences;
 
-        public UsageVisitor(File jarFile, String name) {
+        public UsageVisitor(ClassReferences references) {
             super(Opcodes.ASM5);
-            mJarFile = jarFile;
-            mCurrentClass = name;
+            mReferences = references;
         }
 
         @Override
@@ -1559,16 +1978,14 @@ public class ResourceUsageAnalyzer {
             return new MethodVisitor(Opcodes.ASM5) {
                 @Override
                 public void visitLdcInsn(Object cst) {
-                    handleCodeConstant(cst, "ldc");
+                    handleCodeConstant(cst, ResourceShrinkerState.CONTEXT_LDC);
                 }
 
                 @Override
                 public void visitFieldInsn(int opcode, String owner, String name, String desc) {
-                    if (opcode == Opcodes.GETSTATIC) {
-                        Resource resource = getResourceFromCode(owner, name);
-                        if (resource != null) {
-                            ResourceUsageModel.markReachable(resource);
-                        }
+                    // Resource fields are ints, or int arrays for styleables
+                    if (opcode == Opcodes.GETSTATIC && (desc.equals("I") || desc.equals("[I"))) {
+                        mReferences.addField(owner, name);
                     }
                 }
 
@@ -1580,21 +1997,15 @@ public class ResourceUsageAnalyzer {
                             && name.equals("getIdentifier")
                             && desc.equals(
                             "(Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;)I")) {
-
-                        if (mCurrentClass.equals(mResourcesWrapper) ||
-                                mCurrentClass.equals(mSuggestionsAdapter)) {
-                            // "benign" usages: don't trigger reflection mode just because
-                            // the user has included appcompat
-                            return;
-                        }
-
-                        mFoundGetIdentifier = true;
+                        // Benign usages from appcompat are filtered out when the references
+                        // are recorded, since the obfuscated names of these classes can change
+                        mReferences.callsGetIdentifier = true;
                         // TODO: Check previous instruction and see if we can find a literal
                         // String; if so, we can more accurately dispatch the resource here
                         // rather than having to check the whole string pool!
                     }
                     if (owner.equals("android/webkit/WebView") && name.startsWith("load")) {
-                        mFoundWebContent = true;
+                        mReferences.loadsWebContent = true;
                     }
                 }
 
@@ -1624,7 +2035,7 @@ public class ResourceUsageAnalyzer {
         @Override
         public FieldVisitor visitField(int access, String name, String desc, String signature,
                 Object value) {
-            handleCodeConstant(value, "field");
+            handleCodeConstant(value, ResourceShrinkerState.CONTEXT_FIELD);
             return new FieldVisitor(Opcodes.ASM5) {
                 @Override
                 public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
@@ -1650,32 +2061,25 @@ public class ResourceUsageAnalyzer {
 
             @Override
             public void visit(String name, Object value) {
-                handleCodeConstant(value, "annotation");
+                handleCodeConstant(value, ResourceShrinkerState.CONTEXT_ANNOTATION);
                 super.visit(name, value);
             }
         }
 
         /** Invoked when an ASM visitor encounters a constant: record corresponding reference */
-        private void handleCodeConstant(@Nullable Object cst, @NonNull String context) {
+        private void handleCodeConstant(@Nullable Object cst, byte context) {
             if (cst instanceof Integer) {
-                Integer value = (Integer) cst;
-                Resource resource = mModel.getResource(value);
-                if (ResourceUsageModel.markReachable(resource) && mDebug) {
-                    mDebugPrinter.println("Marking " + resource + " reachable: referenced from " +
-                            context + " in " + mJarFile + ":" + mCurrentClass);
-                }
+                mReferences.addValue((Integer) cst, context);
             } else if (cst instanceof int[]) {
                 int[] values = (int[]) cst;
                 for (int value : values) {
-                    Resource resource = mModel.getResource(value);
-                    if (ResourceUsageModel.markReachable(resource) && mDebug) {
-                        mDebugPrinter.println("Marking " + resource + " reachable: referenced from " +
-                                context + " in " + mJarFile + ":" + mCurrentClass);
-                    }
+                    mReferences.addValue(value, context);
                 }
             } else if (cst instanceof String) {
                 String string = (String) cst;
-                referencedString(string);
+                if (isPossibleResourceString(string)) {
+                    mReferences.strings.add(string);
+                }
             }
         }
     }
@@ -1710,5 +2114,11 @@ public class ResourceUsageAnalyzer {
             ResourceUsageAnalyzer.this.referencedString(string);
             mFoundWebContent = true;
         }
+
+        @Override
+        public void recordToolsAttribute(@Nullable String localName, @NonNull String value) {
+            super.recordToolsAttribute(localName, value);
+            mToolsAttributes.add(new String[] {localName != null ? localName : "", value});
+        }
     }
 }
@@ -90,7 +90,7 @@ public abstract class AbstractShrinkerTest {
 
     protected int mExpectedWarnings;
 
-    protected FullRunShrinker<String> mFullRunShrinker;
+    protected FullRunShrinker<Integer> mFullRunShrinker;
 
     @Before
     public void setUp() throws Exception {
@@ -116,7 +116,7 @@ public abstract class AbstractShrinkerTest {
 
         mFullRunShrinker = new FullRunShrinker<>(
                 WaitableExecutor.useGlobalSharedThreadPool(),
-                JavaSerializationShrinkerGraph.empty(mIncrementalDir),
+                CompactShrinkerGraph.empty(mIncrementalDir),
                 getPlatformJars(),
                 mShrinkerLogger);
     }
@@ -62,7 +62,7 @@ public class IncrementalShrinkerTest extends AbstractShrinkerTest {
 
         fullRun("Main", "main:()V");
 
-        assertTrue(new File(mIncrementalDir, "shrinker.bin").exists());
+        assertTrue(new File(mIncrementalDir, "shrinker-graph.bin").exists());
         assertMembersLeft("Main", "main:()V");
         assertMembersLeft("Aaa", "<init>:()V", "m1:()V");
         assertMembersLeft("Bbb", "<init>:()V");
@@ -366,7 +366,7 @@ public class IncrementalShrinkerTest extends AbstractShrinkerTest {
 
         fullRun("Main", "main:()V");
 
-        assertTrue(new File(mIncrementalDir, "shrinker.bin").exists());
+        assertTrue(new File(mIncrementalDir, "shrinker-graph.bin").exists());
         assertMembersLeft("Main", "main:()V");
         assertMembersLeft("CycleOne", "<init>:()V");
         assertMembersLeft("CycleTwo", "<init>:()V");
@@ -436,6 +436,39 @@ public class IncrementalShrinkerTest extends AbstractShrinkerTest {
         incrementalRun(ImmutableMap.of("ImplementationFromSuperclass", Status.CHANGED));
     }
 
+    @Test
+    public void upgrade_stateSavedByJavaSerializationGraph() throws Exception {
+        // Given:
+        Files.write(Simple.aaa(), new File(mTestPackageDir, "Aaa.class"));
+        Files.write(Simple.bbb(), new File(mTestPackageDir, "Bbb.class"));
+        Files.write(Simple.main1(), new File(mTestPackageDir, "Main.class"));
+
+        // The incremental dir of a build made by a previous version only holds the old state.
+        JavaSerializationShrinkerGraph.empty(mIncrementalDir).saveState();
+        assertTrue(new File(mIncrementalDir, "shrinker.bin").exists());
+
+        mException.expect(IncrementalRunImpossibleException.class);
+        mException.expectMessage("Incremental state not found");
+        incrementalRun(ImmutableMap.of("Main", Status.CHANGED));
+    }
+
+    @Test
+    public void upgrade_stateSavedInAnotherFormat() throws Exception {
+        // Given:
+        Files.write(Simple.aaa(), new File(mTestPackageDir, "Aaa.class"));
+        Files.write(Simple.bbb(), new File(mTestPackageDir, "Bbb.class"));
+        Files.write(Simple.main1(), new File(mTestPackageDir, "Main.class"));
+
+        fullRun("Main", "main:()V");
+        Files.write(
+                new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9},
+                new File(mIncrementalDir, "shrinker-graph.bin"));
+
+        mException.expect(IncrementalRunImpossibleException.class);
+        mException.expectMessage("saved by a different version");
+        incrementalRun(ImmutableMap.of("Main", Status.CHANGED));
+    }
+
     private void fullRun(String className, String... methods) throws IOException {
         mFullRunShrinker.run(
                 mInputs,
@@ -447,11 +480,9 @@ public class IncrementalShrinkerTest extends AbstractShrinkerTest {
     }
 
     private void incrementalRun(Map<String, Status> changes) throws Exception {
-        IncrementalShrinker<String> incrementalShrinker = new IncrementalShrinker<>(
+        IncrementalShrinker<Integer> incrementalShrinker = new IncrementalShrinker<>(
                 WaitableExecutor.<Void>useGlobalSharedThreadPool(),
-                JavaSerializationShrinkerGraph.readFromDir(
-                        mIncrementalDir,
-                        this.getClass().getClassLoader()),
+                CompactShrinkerGraph.readFromDir(mIncrementalDir),
                 mShrinkerLogger);
 
         Map<File, Status> files = Maps.newHashMap();
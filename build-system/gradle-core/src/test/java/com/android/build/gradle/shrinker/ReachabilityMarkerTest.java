@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.build.gradle.shrinker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.android.annotations.NonNull;
+import com.android.build.gradle.shrinker.AbstractShrinker.CounterSet;
+import com.android.ide.common.internal.WaitableExecutor;
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.objectweb.asm.Opcodes;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+/**
+ * Tests for {@link ReachabilityMarker}, checking it marks the same nodes as the recursive marker
+ * it replaced, on generated class graphs.
+ *
+ * <p>When run with {@code -Dandroid.newShrinker.profile}, the time taken by both markers is
+ * printed. The size of the generated graphs can be raised with
+ * {@code -Dandroid.newShrinker.benchmarkClasses=100000}.
+ */
+public class ReachabilityMarkerTest {
+
+    private static final int CLASSES =
+            Integer.getInteger("android.newShrinker.benchmarkClasses", 2000);
+
+    private static final int METHODS_PER_CLASS = 8;
+
+    private static final int FIELDS_PER_CLASS = 4;
+
+    private static final int REFERENCES_PER_METHOD = 4;
+
+    private static final int LAYERS = 20;
+
+    private static final long SEED = 42;
+
+    @Rule
+    public TemporaryFolder tmpDir = new TemporaryFolder();
+
+    @Test
+    public void sameNodesAsRecursiveMarker() throws Exception {
+        GeneratedGraph expected = new GeneratedGraph(tmpDir.newFolder(), CLASSES, SEED);
+        GeneratedGraph actual = new GeneratedGraph(tmpDir.newFolder(), CLASSES, SEED);
+
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        markRecursively(expected.graph, CounterSet.SHRINK);
+        AbstractShrinker.logTime("Recursive marker, " + CLASSES + " classes", stopwatch);
+        new ReachabilityMarker<>(actual.graph, CounterSet.SHRINK)
+                .markReachable(
+                        actual.graph.getRoots(CounterSet.SHRINK),
+                        WaitableExecutor.useGlobalSharedThreadPool());
+        AbstractShrinker.logTime("Parallel marker, " + CLASSES + " classes", stopwatch);
+
+        assertEquals(
+                expected.graph.getReachableClasses(CounterSet.SHRINK),
+                actual.graph.getReachableClasses(CounterSet.SHRINK));
+        int reachable = 0;
+        for (int node : expected.nodes) {
+            boolean isReachable = expected.graph.isReachable(node, CounterSet.SHRINK);
+            assertEquals(isReachable, actual.graph.isReachable(node, CounterSet.SHRINK));
+            if (isReachable) {
+                reachable++;
+            }
+        }
+        // Make sure the generated graph is neither trivial nor fully reachable.
+        assertTrue(reachable > 0);
+        assertTrue(reachable < expected.nodes.size());
+    }
+
+    @Test
+    public void countersAreSeparate() throws Exception {
+        GeneratedGraph generated = new GeneratedGraph(tmpDir.newFolder(), 100, SEED);
+        new ReachabilityMarker<>(generated.graph, CounterSet.SHRINK)
+                .markReachable(
+                        generated.graph.getRoots(CounterSet.SHRINK),
+                        WaitableExecutor.useGlobalSharedThreadPool());
+
+        for (int node : generated.nodes) {
+            assertFalse(generated.graph.isReachable(node, CounterSet.LEGACY_MULTIDEX));
+        }
+    }
+
+    @Test
+    public void longChain() throws Exception {
+        // Deep enough to overflow the stack of a recursive walk.
+        int length = 100000;
+        CompactShrinkerGraph graph = CompactShrinkerGraph.empty(tmpDir.newFolder());
+        Integer klass = graph.addClass(
+                "test/Chain", "java/lang/Object", null, Opcodes.ACC_PUBLIC, new File("Chain.class"));
+        List<Integer> methods = new ArrayList<>();
+        for (int i = 0; i < length; i++) {
+            Integer method = graph.addMember(klass, "m" + i, "()V", Opcodes.ACC_PUBLIC);
+            graph.addDependency(klass, method, DependencyType.CLASS_IS_KEPT);
+            if (!methods.isEmpty()) {
+                graph.addDependency(
+                        methods.get(methods.size() - 1),
+                        method,
+                        DependencyType.REQUIRED_CODE_REFERENCE);
+            }
+            methods.add(method);
+        }
+        graph.addRoots(
+                ImmutableMap.of(
+                        klass, DependencyType.REQUIRED_CLASS_STRUCTURE,
+                        methods.get(0), DependencyType.REQUIRED_CODE_REFERENCE),
+                CounterSet.SHRINK);
+
+        new ReachabilityMarker<>(graph, CounterSet.SHRINK)
+                .markReachable(
+                        graph.getRoots(CounterSet.SHRINK),
+                        WaitableExecutor.useGlobalSharedThreadPool());
+
+        assertEquals(ImmutableSet.of(klass), graph.getReachableClasses(CounterSet.SHRINK));
+        assertEquals(length, graph.getReachableMembersLocalNames(klass, CounterSet.SHRINK).size());
+    }
+
+    /**
+     * Marks the graph the way {@link AbstractShrinker} used to: one task per root, each walking
+     * the graph recursively.
+     */
+    private static void markRecursively(
+            @NonNull ShrinkerGraph<Integer> graph,
+            @NonNull CounterSet counterSet) throws Exception {
+        WaitableExecutor<Void> executor = WaitableExecutor.useGlobalSharedThreadPool();
+        for (final Map.Entry<Integer, DependencyType> root : graph.getRoots(counterSet).entrySet()) {
+            executor.execute(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    incrementCounter(graph, root.getKey(), root.getValue(), counterSet);
+                    return null;
+                }
+            });
+        }
+        executor.waitForTasksWithQuickFail(true);
+    }
+
+    private static void incrementCounter(
+            @NonNull ShrinkerGraph<Integer> graph,
+            @NonNull Integer node,
+            @NonNull DependencyType dependencyType,
+            @NonNull CounterSet counterSet) {
+        if (graph.incrementAndCheck(node, dependencyType, counterSet)) {
+            for (Dependency<Integer> dependency : graph.getDependencies(node)) {
+                incrementCounter(graph, dependency.target, dependency.type, counterSet);
+            }
+        }
+    }
+
+    /**
+     * A graph of classes split in layers, where methods only call methods of classes in deeper
+     * layers, like an app calling into its libraries. Only some of the classes in the first layer
+     * are roots. Keeping the graph acyclic bounds the depth of the recursive marker.
+     */
+    private static class GeneratedGraph {
+        final CompactShrinkerGraph graph;
+        final List<Integer> nodes = new ArrayList<>();
+
+        GeneratedGraph(@NonNull File stateDir, int classCount, long seed) {
+            graph = CompactShrinkerGraph.empty(stateDir);
+            Random random = new Random(seed);
+            int layerSize = Math.max(1, classCount / LAYERS);
+
+            List<Integer> classes = new ArrayList<>(classCount);
+            List<List<Integer>> methods = new ArrayList<>(classCount);
+            for (int i = 0; i < classCount; i++) {
+                Integer klass = graph.addClass(
+                        "test/C" + i,
+                        "java/lang/Object",
+                        null,
+                        Opcodes.ACC_PUBLIC,
+                        new File("C" + i + ".class"));
+                classes.add(klass);
+                nodes.add(klass);
+
+                List<Integer> classMethods = new ArrayList<>(METHODS_PER_CLASS);
+                for (int j = 0; j < METHODS_PER_CLASS; j++) {
+                    Integer method = graph.addMember(klass, "m" + j, "()V", Opcodes.ACC_PUBLIC);
+                    graph.addDependency(method, klass, DependencyType.REQUIRED_CLASS_STRUCTURE);
+                    graph.addDependency(klass, method, DependencyType.CLASS_IS_KEPT);
+                    classMethods.add(method);
+                    nodes.add(method);
+                }
+                methods.add(classMethods);
+
+                for (int j = 0; j < FIELDS_PER_CLASS; j++) {
+                    Integer field = graph.addMember(klass, "f" + j, "I", Opcodes.ACC_PUBLIC);
+                    graph.addDependency(klass, field, DependencyType.CLASS_IS_KEPT);
+                    nodes.add(field);
+                }
+            }
+
+            for (int i = 0; i < classCount; i++) {
+                int firstTarget = (i / layerSize + 1) * layerSize;
+                if (firstTarget >= classCount) {
+                    continue;
+                }
+                for (Integer method : methods.get(i)) {
+                    for (int j = 0; j < REFERENCES_PER_METHOD; j++) {
+                        int target = firstTarget + random.nextInt(classCount - firstTarget);
+                        DependencyType type = random.nextInt(4) == 0
+                                ? DependencyType.IF_CLASS_KEPT
+                                : DependencyType.REQUIRED_CODE_REFERENCE;
+                        List<Integer> targetMethods = methods.get(target);
+                        graph.addDependency(
+                                method,
+                                targetMethods.get(random.nextInt(targetMethods.size())),
+                                type);
+                    }
+                    if (random.nextInt(8) == 0) {
+                        graph.addDependency(
+                                method,
+                                classes.get(firstTarget + random.nextInt(classCount - firstTarget)),
+                                DependencyType.REQUIRED_CLASS_STRUCTURE);
+                    }
+                }
+            }
+
+            Map<Integer, DependencyType> roots = new HashMap<>();
+            for (int i = 0; i < layerSize; i += 4) {
+                roots.put(classes.get(i), DependencyType.REQUIRED_CLASS_STRUCTURE);
+                roots.put(methods.get(i).get(0), DependencyType.REQUIRED_CODE_REFERENCE);
+            }
+            graph.addRoots(roots, CounterSet.SHRINK);
+        }
+    }
+}
@@ -38,6 +38,8 @@ import com.google.common.io.Files;
 import org.junit.ClassRule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -182,42 +184,7 @@ public class ResourceUsageAnalyzerTest {
                 deleteDir(destination);
             }
         } else {
-            List<File> files = Lists.newArrayList();
-            addFiles(resources, files);
-            Collections.sort(files, new Comparator<File>() {
-
-                @Override
-                public int compare(File file, File file2) {
-                    return file.getPath().compareTo(file2.getPath());
-                }
-            });
-
-            // Generate a .zip file from a directory
-            File uncompressedFile = File.createTempFile("uncompressed", ".ap_");
-            String prefix = resources.getPath() + File.separatorChar;
-            FileOutputStream fos = new FileOutputStream(uncompressedFile);
-            ZipOutputStream zos = new ZipOutputStream(fos);
-            for (File file : files) {
-                if (file.equals(resources)) {
-                    continue;
-                }
-                assertTrue(file.getPath().startsWith(prefix));
-                String relative = "res/" + file.getPath().substring(prefix.length())
-                        .replace(File.separatorChar, '/');
-                boolean isValuesFile = relative.equals("res/values/values.xml");
-                if (isValuesFile) {
-                    relative = "resources.arsc";
-                }
-                ZipEntry ze = new ZipEntry(relative);
-                zos.putNextEntry(ze);
-                if (!file.isDirectory() && !isValuesFile) {
-                    byte[] bytes = Files.toByteArray(file);
-                    zos.write(bytes);
-                }
-                zos.closeEntry();
-            }
-            zos.close();
-            fos.close();
+            File uncompressedFile = createResourceZip(resources);
 
             assertEquals(""
                     + "res/drawable-hdpi\n"
@@ -289,6 +256,189 @@ public class ResourceUsageAnalyzerTest {
         deleteDir(dir);
     }
 
+    @Test
+    public void testIncremental() throws Exception {
+        File dir = sTemporaryFolder.newFolder();
+        File classes = createProguardedClasses(dir);
+        File mapping = createMappingFile(dir);
+        File rDir = createResourceClassFolder(dir);
+        File mergedManifest = createMergedManifest(dir);
+        File resources = createResourceFolder(dir);
+        File incrementalDir = new File(dir, "incremental");
+        File uncompressedFile = createResourceZip(resources);
+        File expectedFile = new File(dir, "expected.ap_");
+        File compressedFile = new File(dir, "compressed.ap_");
+
+        ResourceUsageAnalyzer analyzer = new ResourceUsageAnalyzer(rDir, classes,
+                mergedManifest, mapping, resources, null);
+        analyzer.setIncrementalDir(incrementalDir);
+        analyzer.analyze();
+        assertFalse(analyzer.isResourcesRestored());
+        int classCount = analyzer.getParsedClassCount();
+        assertTrue(classCount > 0);
+        String model = analyzer.getModel().dumpResourceModel();
+        analyzer.rewriteResourceZip(uncompressedFile, expectedFile);
+        analyzer.dispose();
+        assertTrue(new File(incrementalDir, ResourceShrinkerState.FN_REFERENCES).isFile());
+        assertTrue(new File(incrementalDir, ResourceShrinkerState.FN_ZIP).isFile());
+
+        // Nothing changed: the resource graph and the class references are reused
+        ResourceShrinkerState state = ResourceShrinkerState.read(incrementalDir);
+        assertNotNull(state.resourcesFingerprint);
+        assertFalse(state.classes.isEmpty());
+        analyzer = new ResourceUsageAnalyzer(rDir, classes, mergedManifest, mapping, resources,
+                null);
+        analyzer.setIncrementalDir(incrementalDir);
+        analyzer.analyze();
+        assertTrue(analyzer.isResourcesRestored());
+        assertEquals(0, analyzer.getParsedClassCount());
+        assertEquals(model, analyzer.getModel().dumpResourceModel());
+        analyzer.dispose();
+
+        // Pretend the previous run kept all the resources: the unused ones get patched out.
+        Files.copy(uncompressedFile, compressedFile);
+        new ResourceShrinkerState.ZipState(uncompressedFile, compressedFile,
+                Collections.<String>emptySet()).write(incrementalDir);
+        analyzer = new ResourceUsageAnalyzer(rDir, classes, mergedManifest, mapping, resources,
+                null);
+        analyzer.setIncrementalDir(incrementalDir);
+        analyzer.analyze();
+        analyzer.rewriteResourceZip(uncompressedFile, compressedFile);
+        analyzer.dispose();
+        assertEquals(sortedLines(dumpZipContents(expectedFile)),
+                sortedLines(dumpZipContents(compressedFile)));
+        if (REPLACE_DELETED_WITH_EMPTY) {
+            assertTrue(Arrays.equals(ResourceUsageAnalyzer.TINY_PNG,
+                    getZipContents(compressedFile, "res/drawable-xxhdpi/unused.png")));
+        }
+        assertTrue(Arrays.equals(
+                getZipContents(uncompressedFile, "res/drawable-hdpi/ic_launcher.png"),
+                getZipContents(compressedFile, "res/drawable-hdpi/ic_launcher.png")));
+
+        // A class is added: only that class is parsed
+        File updatedClasses = new File(dir, "updated.jar");
+        copyJar(classes, updatedClasses, "com/example/Added", 0);
+        Files.copy(updatedClasses, classes);
+        analyzer = new ResourceUsageAnalyzer(rDir, classes, mergedManifest, mapping, resources,
+                null);
+        analyzer.setIncrementalDir(incrementalDir);
+        analyzer.analyze();
+        assertTrue(analyzer.isResourcesRestored());
+        assertEquals(1, analyzer.getParsedClassCount());
+        assertEquals(model, analyzer.getModel().dumpResourceModel());
+        analyzer.dispose();
+
+        deleteDir(dir);
+    }
+
+    @Test
+    public void testZip64Classes() throws Exception {
+        File dir = sTemporaryFolder.newFolder();
+        File classes = createProguardedClasses(dir);
+        File mapping = createMappingFile(dir);
+        File rDir = createResourceClassFolder(dir);
+        File mergedManifest = createMergedManifest(dir);
+        File resources = createResourceFolder(dir);
+
+        ResourceUsageAnalyzer analyzer = new ResourceUsageAnalyzer(rDir, classes,
+                mergedManifest, mapping, resources, null);
+        analyzer.analyze();
+        String model = analyzer.getModel().dumpResourceModel();
+        analyzer.dispose();
+
+        // Enough entries for the jar to be written in the Zip64 format
+        File zip64Classes = new File(dir, "zip64.jar");
+        copyJar(classes, zip64Classes, null, 0x10000);
+        analyzer = new ResourceUsageAnalyzer(rDir, zip64Classes, mergedManifest, mapping,
+                resources, null);
+        analyzer.analyze();
+        assertEquals(model, analyzer.getModel().dumpResourceModel());
+        analyzer.dispose();
+
+        deleteDir(dir);
+    }
+
+    /**
+     * Copies a jar, adding an empty class of the given name if not null, and the given number of
+     * empty files
+     */
+    private static void copyJar(@NonNull File source, @NonNull File dest,
+            @Nullable String className, int fileCount) throws IOException {
+        try (ZipInputStream zis = new ZipInputStream(new FileInputStream(source));
+             ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(dest))) {
+            ZipEntry entry = zis.getNextEntry();
+            while (entry != null) {
+                zos.putNextEntry(new ZipEntry(entry.getName()));
+                ByteStreams.copy(zis, zos);
+                zos.closeEntry();
+                entry = zis.getNextEntry();
+            }
+            if (className != null) {
+                ClassWriter writer = new ClassWriter(0);
+                writer.visit(Opcodes.V1_6, Opcodes.ACC_PUBLIC, className, null,
+                        "java/lang/Object", null);
+                writer.visitEnd();
+                zos.putNextEntry(new ZipEntry(className + ".class"));
+                zos.write(writer.toByteArray());
+                zos.closeEntry();
+            }
+            for (int i = 0; i < fileCount; i++) {
+                zos.putNextEntry(new ZipEntry("files/file" + i + ".txt"));
+                zos.closeEntry();
+            }
+        }
+    }
+
+    private static List<String> sortedLines(String s) {
+        List<String> lines = Lists.newArrayList(s.split("\n"));
+        Collections.sort(lines);
+        return lines;
+    }
+
+    /**
+     * Generates an .ap_ file from a resource directory, with the values stored as
+     * resources.arsc
+     */
+    private static File createResourceZip(File resources) throws IOException {
+        List<File> files = Lists.newArrayList();
+        addFiles(resources, files);
+        Collections.sort(files, new Comparator<File>() {
+
+            @Override
+            public int compare(File file, File file2) {
+                return file.getPath().compareTo(file2.getPath());
+            }
+        });
+
+        // Generate a .zip file from a directory
+        File uncompressedFile = File.createTempFile("uncompressed", ".ap_");
+        String prefix = resources.getPath() + File.separatorChar;
+        FileOutputStream fos = new FileOutputStream(uncompressedFile);
+        ZipOutputStream zos = new ZipOutputStream(fos);
+        for (File file : files) {
+            if (file.equals(resources)) {
+                continue;
+            }
+            assertTrue(file.getPath().startsWith(prefix));
+            String relative = "res/" + file.getPath().substring(prefix.length())
+                    .replace(File.separatorChar, '/');
+            boolean isValuesFile = relative.equals("res/values/values.xml");
+            if (isValuesFile) {
+                relative = "resources.arsc";
+            }
+            ZipEntry ze = new ZipEntry(relative);
+            zos.putNextEntry(ze);
+            if (!file.isDirectory() && !isValuesFile) {
+                byte[] bytes = Files.toByteArray(file);
+                zos.write(bytes);
+            }
+            zos.closeEntry();
+        }
+        zos.close();
+        fos.close();
+        return uncompressedFile;
+    }
+
     private static String dumpZipContents(File zipFile) throws IOException {
         StringBuilder sb = new StringBuilder();
 
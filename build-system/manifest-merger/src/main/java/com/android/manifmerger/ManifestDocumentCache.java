@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.manifmerger;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.VisibleForTesting;
+import com.android.utils.PositionXmlParser;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+/**
+ * Cache of parsed manifest files, keyed by the hash of the file contents.
+ *
+ * Library manifests rarely change between two merges, yet each merge (and each variant) used
+ * to parse them again. The cache keeps the parsed DOM of each distinct manifest content and
+ * hands out deep copies of it, since the merging process mutates the documents it works on
+ * (placeholder substitution, package injection, tools instruction removal...).
+ *
+ * Because the key is the content and not the file location, the same instance can safely be
+ * shared by all the merges of a build, which is what {@link #getCache()} is for.
+ */
+public class ManifestDocumentCache {
+
+    /** Maximum number of distinct manifest documents kept in the shared cache. */
+    private static final int MAX_ENTRIES = 1000;
+
+    private static final ManifestDocumentCache sSingleton = new ManifestDocumentCache(MAX_ENTRIES);
+
+    /**
+     * Returns the cache shared by all the manifest merging invocations of this VM.
+     */
+    @NonNull
+    public static ManifestDocumentCache getCache() {
+        return sSingleton;
+    }
+
+    @NonNull
+    private final Cache<HashCode, Document> mDocuments;
+
+    @VisibleForTesting
+    ManifestDocumentCache(int maxEntries) {
+        mDocuments = CacheBuilder.newBuilder()
+                .maximumSize(maxEntries)
+                .softValues()
+                .build();
+    }
+
+    /**
+     * Returns the parsed document for the given stream content. The stream is fully read and
+     * closed.
+     *
+     * @param inputStream the manifest content.
+     * @return a document that the caller is free to modify.
+     */
+    @NonNull
+    public Document parse(@NonNull InputStream inputStream)
+            throws IOException, SAXException, ParserConfigurationException {
+        byte[] content;
+        try {
+            content = ByteStreams.toByteArray(inputStream);
+        } finally {
+            inputStream.close();
+        }
+        HashCode key = Hashing.sha1().hashBytes(content);
+
+        Document document = mDocuments.getIfPresent(key);
+        if (document == null) {
+            document = PositionXmlParser.parse(content);
+            mDocuments.put(key, document);
+        }
+        // Xerces documents are not safe for concurrent access, even read only, so serialize
+        // the copies made from the same cached instance.
+        //noinspection SynchronizationOnLocalVariableOrMethodParameter
+        synchronized (document) {
+            return PositionXmlParser.cloneDocument(document);
+        }
+    }
+
+    /**
+     * Removes all the cached documents.
+     */
+    public void clear() {
+        mDocuments.invalidateAll();
+    }
+
+    @VisibleForTesting
+    long size() {
+        return mDocuments.size();
+    }
+}
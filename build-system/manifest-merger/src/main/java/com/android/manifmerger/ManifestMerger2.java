@@ -79,6 +79,8 @@ public class ManifestMerger2 {
     private final Optional<File> mReportFile;
     @NonNull
     private final FileStreamProvider mFileStreamProvider;
+    @Nullable
+    private final ManifestDocumentCache mDocumentCache;
 
     private ManifestMerger2(
             @NonNull ILogger logger,
@@ -90,7 +92,8 @@ public class ManifestMerger2 {
             @NonNull KeyBasedValueResolver<ManifestSystemProperty> systemPropertiesResolver,
             @NonNull MergeType mergeType,
             @NonNull Optional<File> reportFile,
-            @NonNull FileStreamProvider fileStreamProvider) {
+            @NonNull FileStreamProvider fileStreamProvider,
+            @Nullable ManifestDocumentCache documentCache) {
         this.mSystemPropertyResolver = systemPropertiesResolver;
         this.mPlaceHolderValues = placeHolderValues;
         this.mManifestFile = mainManifestFile;
@@ -101,6 +104,7 @@ public class ManifestMerger2 {
         this.mMergeType = mergeType;
         this.mReportFile = reportFile;
         this.mFileStreamProvider = fileStreamProvider;
+        this.mDocumentCache = documentCache;
     }
 
     /**
@@ -458,20 +462,7 @@ public class ManifestMerger2 {
             @NonNull KeyResolver<String> selectors,
             @NonNull MergingReport.Builder mergingReportBuilder) throws MergeFailureException {
 
-        File xmlFile = manifestInfo.mLocation;
-        XmlDocument xmlDocument;
-        try {
-            InputStream inputStream = mFileStreamProvider.getInputStream(xmlFile);
-            xmlDocument = XmlLoader.load(selectors,
-                    mSystemPropertyResolver,
-                    manifestInfo.mName,
-                    xmlFile,
-                    inputStream,
-                    manifestInfo.getType(),
-                    manifestInfo.getMainManifestPackageName());
-        } catch (Exception e) {
-            throw new MergeFailureException(e);
-        }
+        XmlDocument xmlDocument = loadXmlDocument(manifestInfo, selectors);
 
         String originalPackageName = xmlDocument.getPackageName();
         MergingReport.Builder builder = manifestInfo.getType() == XmlDocument.Type.MAIN
@@ -489,6 +480,39 @@ public class ManifestMerger2 {
                 Optional.fromNullable(originalPackageName), xmlDocument);
     }
 
+    /**
+     * Parses an xml file into a {@link XmlDocument}, going through the document cache if one
+     * was provided.
+     */
+    @NonNull
+    private XmlDocument loadXmlDocument(
+            @NonNull ManifestInfo manifestInfo,
+            @NonNull KeyResolver<String> selectors) throws MergeFailureException {
+        File xmlFile = manifestInfo.mLocation;
+        try {
+            InputStream inputStream = mFileStreamProvider.getInputStream(xmlFile);
+            if (mDocumentCache != null) {
+                return XmlLoader.load(mDocumentCache,
+                        selectors,
+                        mSystemPropertyResolver,
+                        manifestInfo.mName,
+                        xmlFile,
+                        inputStream,
+                        manifestInfo.getType(),
+                        manifestInfo.getMainManifestPackageName());
+            }
+            return XmlLoader.load(selectors,
+                    mSystemPropertyResolver,
+                    manifestInfo.mName,
+                    xmlFile,
+                    inputStream,
+                    manifestInfo.getType(),
+                    manifestInfo.getMainManifestPackageName());
+        } catch (Exception e) {
+            throw new MergeFailureException(e);
+        }
+    }
+
     private void performPlaceHolderSubstitution(@NonNull ManifestInfo manifestInfo,
             @NonNull XmlDocument xmlDocument,
             @NonNull MergingReport.Builder mergingReportBuilder) {
@@ -574,20 +598,7 @@ public class ManifestMerger2 {
             ManifestInfo manifestInfo = new ManifestInfo(libraryFile.getFirst(),
                     libraryFile.getSecond(),
                     XmlDocument.Type.LIBRARY, Optional.<String>absent());
-            File xmlFile = manifestInfo.mLocation;
-            XmlDocument libraryDocument;
-            try {
-                InputStream inputStream = mFileStreamProvider.getInputStream(xmlFile);
-                libraryDocument = XmlLoader.load(selectors,
-                        mSystemPropertyResolver,
-                        manifestInfo.mName,
-                        xmlFile,
-                        inputStream,
-                        XmlDocument.Type.LIBRARY,
-                        Optional.<String>absent()  /* mainManifestPackageName */);
-            } catch (Exception e) {
-                throw new MergeFailureException(e);
-            }
+            XmlDocument libraryDocument = loadXmlDocument(manifestInfo, selectors);
             // extract the package name...
             String libraryPackage = libraryDocument.getRootNode().getXml().getAttribute("package");
             // save it in the selector instance.
@@ -757,6 +768,9 @@ public class ManifestMerger2 {
         @Nullable
         private FileStreamProvider mFileStreamProvider;
 
+        @Nullable
+        private ManifestDocumentCache mDocumentCache;
+
         /**
          * Sets a value for a {@link ManifestSystemProperty}
          * @param override the property to set
@@ -970,6 +984,20 @@ public class ManifestMerger2 {
             return thisAsT();
         }
 
+        /**
+         * Sets the cache of parsed documents to use when loading the manifest files. Files with
+         * a content identical to an already cached one are not parsed again, see
+         * {@link ManifestDocumentCache#getCache()} for a cache shared by all the merges.
+         *
+         * @param documentCache the cache to use or null to always parse the files.
+         * @return itself.
+         */
+        @NonNull
+        public Invoker withDocumentCache(@Nullable ManifestDocumentCache documentCache) {
+            mDocumentCache = documentCache;
+            return thisAsT();
+        }
+
         /**
          * Perform the merging and return the result.
          *
@@ -1010,7 +1038,8 @@ public class ManifestMerger2 {
                             new MapBasedKeyBasedValueResolver<ManifestSystemProperty>(systemProperties),
                             mMergeType,
                             Optional.fromNullable(mReportFile),
-                            fileStreamProvider);
+                            fileStreamProvider,
+                            mDocumentCache);
             return manifestMerger.merge();
         }
 
@@ -57,6 +57,45 @@ public final class XmlLoader {
             @NonNull Optional<String> mainManifestPackageName)
             throws IOException, SAXException, ParserConfigurationException {
         Document domDocument = PositionXmlParser.parse(inputStream);
+        return load(selectors, systemPropertyResolver, displayName, xmlFile, domDocument, type,
+                mainManifestPackageName);
+    }
+
+    /**
+     * Loads an xml file through a {@link ManifestDocumentCache} without doing xml validation and
+     * return a {@link XmlDocument}. If the file content was already parsed, the cached parsing
+     * result is reused.
+     *
+     * @param documentCache the cache of parsed documents.
+     * @param displayName the xml file display name.
+     * @param xmlFile the xml file.
+     * @return the initialized {@link com.android.manifmerger.XmlDocument}
+     */
+    @NonNull
+    public static XmlDocument load(
+            @NonNull ManifestDocumentCache documentCache,
+            @NonNull KeyResolver<String> selectors,
+            @NonNull KeyBasedValueResolver<ManifestSystemProperty> systemPropertyResolver,
+            @NonNull String displayName,
+            @NonNull File xmlFile,
+            @NonNull InputStream inputStream,
+            @NonNull XmlDocument.Type type,
+            @NonNull Optional<String> mainManifestPackageName)
+            throws IOException, SAXException, ParserConfigurationException {
+        Document domDocument = documentCache.parse(inputStream);
+        return load(selectors, systemPropertyResolver, displayName, xmlFile, domDocument, type,
+                mainManifestPackageName);
+    }
+
+    @NonNull
+    private static XmlDocument load(
+            @NonNull KeyResolver<String> selectors,
+            @NonNull KeyBasedValueResolver<ManifestSystemProperty> systemPropertyResolver,
+            @NonNull String displayName,
+            @NonNull File xmlFile,
+            @NonNull Document domDocument,
+            @NonNull XmlDocument.Type type,
+            @NonNull Optional<String> mainManifestPackageName) {
         return new XmlDocument(
                 new SourceFile(xmlFile, displayName),
                 selectors,
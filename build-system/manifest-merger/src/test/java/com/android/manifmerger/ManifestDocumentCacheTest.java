@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.manifmerger;
+
+import com.android.utils.PositionXmlParser;
+import com.google.common.base.Charsets;
+
+import junit.framework.TestCase;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+/**
+ * Tests for {@link ManifestDocumentCache}
+ */
+public class ManifestDocumentCacheTest extends TestCase {
+
+    private static final String LIBRARY_MANIFEST = ""
+            + "<manifest\n"
+            + "    xmlns:android=\"http://schemas.android.com/apk/res/android\"\n"
+            + "    package=\"com.example.lib1\">\n"
+            + "\n"
+            + "    <application android:label=\"@string/lib_name\" />\n"
+            + "\n"
+            + "</manifest>";
+
+    public void testSameContentIsParsedOnce() throws Exception {
+        ManifestDocumentCache cache = new ManifestDocumentCache(10);
+
+        Document first = cache.parse(stream(LIBRARY_MANIFEST));
+        Document second = cache.parse(stream(LIBRARY_MANIFEST));
+        assertEquals(1, cache.size());
+
+        // each caller gets its own copy, with the original positions.
+        assertNotSame(first, second);
+        Element application = (Element) second.getElementsByTagName("application").item(0);
+        assertEquals(LIBRARY_MANIFEST.indexOf("<application"),
+                PositionXmlParser.getPosition(application).getStartOffset());
+    }
+
+    public void testModificationsAreNotShared() throws Exception {
+        ManifestDocumentCache cache = new ManifestDocumentCache(10);
+
+        Document first = cache.parse(stream(LIBRARY_MANIFEST));
+        first.getDocumentElement().setAttribute("package", "com.example.app");
+
+        Document second = cache.parse(stream(LIBRARY_MANIFEST));
+        assertEquals("com.example.lib1", second.getDocumentElement().getAttribute("package"));
+    }
+
+    public void testDifferentContent() throws Exception {
+        ManifestDocumentCache cache = new ManifestDocumentCache(10);
+
+        cache.parse(stream(LIBRARY_MANIFEST));
+        Document other = cache.parse(
+                stream(LIBRARY_MANIFEST.replace("com.example.lib1", "com.example.lib2")));
+        assertEquals(2, cache.size());
+        assertEquals("com.example.lib2", other.getDocumentElement().getAttribute("package"));
+
+        cache.clear();
+        assertEquals(0, cache.size());
+    }
+
+    private static InputStream stream(String content) {
+        return new ByteArrayInputStream(content.getBytes(Charsets.UTF_8));
+    }
+}
@@ -20,8 +20,6 @@ import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.google.wireless.android.sdk.stats.AndroidStudioStats;
 
-import java.util.ArrayDeque;
-import java.util.Deque;
 import java.util.logging.Logger;
 
 /**
@@ -47,7 +45,7 @@ public class AsyncRecorder extends ThreadRecorder {
         // right order to maintain the stack integrity. Therefore, I used an API which makes
         // no assumption on where in the stack the allocated ID is so these Apis can be called
         // in various orders as long as allocationRecordId is called before closeRecord.
-        recordStacks.get().removeFirstOccurrence(executionRecord.getId());
+        removeRecordId(executionRecord.getId());
         ProcessRecorder.get().writeRecord(project, variant, executionRecord);
     }
 }
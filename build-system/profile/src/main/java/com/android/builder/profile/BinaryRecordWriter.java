@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.profile;
+
+import com.android.annotations.NonNull;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+import com.google.wireless.android.sdk.stats.AndroidStudioStats;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Map;
+
+/**
+ * Implementation of {@link ProcessRecorder.ExecutionRecordWriter} that persists the spans in a
+ * compact binary format, see {@link ChromeTraceConverter} to turn the output into something
+ * viewable.
+ *
+ * The file starts with {@link #MAGIC} and {@link #VERSION}, followed by a sequence of records,
+ * each starting with a tag byte:
+ * <ul>
+ *     <li>{@link #TAG_STRING}: varint id, varint length, UTF-8 bytes. Defines a string used by
+ *     the following span records, each distinct string is only written once.</li>
+ *     <li>{@link #TAG_SPAN}: varint id, varint parent id, zigzag varint start time delta (in ms,
+ *     relative to the previous span), varint duration (in ms), varint type string id, varint
+ *     attribute count, then for each attribute a varint name string id and a varint value string
+ *     id.</li>
+ * </ul>
+ *
+ * Records are encoded in a pre-allocated buffer, which is written to the channel when full. The
+ * spans are only written once the build is finished, see {@link ProcessRecorder#finish()}, so the
+ * buffer is written from the calling thread.
+ */
+public class BinaryRecordWriter implements ProcessRecorder.ExecutionRecordWriter {
+
+    static final int MAGIC = 0x41505246; // APRF
+    static final byte VERSION = 1;
+
+    static final byte TAG_STRING = 1;
+    static final byte TAG_SPAN = 2;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** Maximum size of an encoded varint. */
+    private static final int MAX_VARINT_SIZE = 10;
+
+    @NonNull
+    private final WritableByteChannel mChannel;
+
+    /** The records not written to the channel yet. */
+    @NonNull
+    private final ByteBuffer mBuffer;
+
+    /** Scratch buffer in which a record is encoded before being appended to {@link #mBuffer}. */
+    @NonNull
+    private ByteBuffer mRecord = ByteBuffer.allocate(1024);
+
+    @NonNull
+    private final Map<String, Integer> mStringIds = Maps.newHashMap();
+
+    private long mLastStartTime;
+
+    private boolean mClosed;
+
+    public BinaryRecordWriter(@NonNull WritableByteChannel channel) {
+        mChannel = channel;
+        mBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+        mBuffer.putInt(MAGIC);
+        mBuffer.put(VERSION);
+    }
+
+    @Override
+    public synchronized void write(
+            @NonNull AndroidStudioStats.GradleBuildProfileSpan executionRecord,
+            @NonNull Map<String, String> attributes) throws IOException {
+        if (mClosed) {
+            return;
+        }
+
+        String type = executionRecord.getType().toString();
+        if (executionRecord.hasTask()) {
+            type = type + "_" + executionRecord.getTask().getType().toString();
+        } else if (executionRecord.hasTransform()) {
+            type = type + "_" + executionRecord.getTransform().getType().toString();
+        }
+
+        // Strings must be defined before the span referencing them.
+        int typeId = defineString(type);
+        int[] attributeIds = new int[attributes.size() * 2];
+        int i = 0;
+        for (Map.Entry<String, String> entry : attributes.entrySet()) {
+            attributeIds[i++] = defineString(entry.getKey());
+            attributeIds[i++] = defineString(entry.getValue());
+        }
+
+        ensureRecordCapacity((4 + attributeIds.length) * MAX_VARINT_SIZE + 1);
+        mRecord.put(TAG_SPAN);
+        writeVarLong(mRecord, executionRecord.getId());
+        writeVarLong(mRecord, executionRecord.getParentId());
+        writeVarLong(mRecord, zigzag(executionRecord.getStartTimeInMs() - mLastStartTime));
+        writeVarLong(mRecord, executionRecord.getDurationInMs());
+        writeVarLong(mRecord, typeId);
+        writeVarLong(mRecord, attributes.size());
+        for (int attributeId : attributeIds) {
+            writeVarLong(mRecord, attributeId);
+        }
+        mLastStartTime = executionRecord.getStartTimeInMs();
+        appendRecord();
+    }
+
+    private int defineString(@NonNull String string) throws IOException {
+        Integer id = mStringIds.get(string);
+        if (id != null) {
+            return id;
+        }
+        id = mStringIds.size();
+        mStringIds.put(string, id);
+
+        byte[] bytes = string.getBytes(Charsets.UTF_8);
+        ensureRecordCapacity(bytes.length + 2 * MAX_VARINT_SIZE + 1);
+        mRecord.put(TAG_STRING);
+        writeVarLong(mRecord, id);
+        writeVarLong(mRecord, bytes.length);
+        mRecord.put(bytes);
+        appendRecord();
+        return id;
+    }
+
+    private void ensureRecordCapacity(int size) {
+        if (mRecord.capacity() < size) {
+            mRecord = ByteBuffer.allocate(Math.max(size, mRecord.capacity() * 2));
+        }
+    }
+
+    /**
+     * Appends the record encoded in {@link #mRecord} to the buffer, writing the buffer first if
+     * the record does not fit.
+     */
+    private void appendRecord() throws IOException {
+        mRecord.flip();
+        if (mRecord.remaining() > mBuffer.remaining()) {
+            flush();
+            if (mRecord.remaining() > mBuffer.remaining()) {
+                // Larger than a whole buffer, write it directly.
+                writeFully(mRecord);
+            }
+        }
+        mBuffer.put(mRecord);
+        mRecord.clear();
+    }
+
+    private void flush() throws IOException {
+        mBuffer.flip();
+        writeFully(mBuffer);
+        mBuffer.clear();
+    }
+
+    private void writeFully(@NonNull ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            mChannel.write(buffer);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        try {
+            flush();
+        } finally {
+            mChannel.close();
+        }
+    }
+
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static void writeVarLong(@NonNull ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+}
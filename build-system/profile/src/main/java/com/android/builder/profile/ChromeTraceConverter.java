@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.profile;
+
+import com.android.annotations.NonNull;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Converts the output of a {@link BinaryRecordWriter} to the Chrome trace event format, which
+ * can be loaded in chrome://tracing.
+ *
+ * Spans do not record the thread they ran on, so each top level span is assigned to the first
+ * lane which is free at its start time, and nested spans are put in the lane of their parent.
+ */
+public class ChromeTraceConverter {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: ChromeTraceConverter <binary profile> <json output>");
+            System.exit(1);
+        }
+        try (InputStream in = new BufferedInputStream(new FileInputStream(new File(args[0])));
+             Writer out = new BufferedWriter(new OutputStreamWriter(
+                     new FileOutputStream(new File(args[1])), Charsets.UTF_8))) {
+            convert(in, out);
+        }
+    }
+
+    /**
+     * Reads the spans written by a {@link BinaryRecordWriter} and writes them as a Chrome trace.
+     *
+     * @param in the binary profile.
+     * @param out where to write the JSON trace.
+     * @throws IOException if the input cannot be read or is not a binary profile.
+     */
+    public static void convert(@NonNull InputStream in, @NonNull Writer out) throws IOException {
+        List<Span> spans = read(in);
+        Map<Long, Integer> lanes = assignLanes(spans);
+
+        JsonWriter writer = new JsonWriter(out);
+        writer.beginObject();
+        writer.name("traceEvents");
+        writer.beginArray();
+        for (Span span : spans) {
+            writer.beginObject();
+            writer.name("name").value(span.type);
+            writer.name("cat").value("gradle");
+            writer.name("ph").value("X");
+            writer.name("pid").value(0);
+            writer.name("tid").value(lanes.get(span.id));
+            // chrome uses microseconds.
+            writer.name("ts").value(span.startTimeInMs * 1000);
+            writer.name("dur").value(span.durationInMs * 1000);
+            writer.name("args");
+            writer.beginObject();
+            writer.name("id").value(span.id);
+            for (Map.Entry<String, String> attribute : span.attributes.entrySet()) {
+                writer.name(attribute.getKey()).value(attribute.getValue());
+            }
+            writer.endObject();
+            writer.endObject();
+        }
+        writer.endArray();
+        writer.endObject();
+        writer.flush();
+    }
+
+    @NonNull
+    static List<Span> read(@NonNull InputStream input) throws IOException {
+        DataInputStream in = new DataInputStream(input);
+        if (in.readInt() != BinaryRecordWriter.MAGIC) {
+            throw new IOException("Not a binary profile");
+        }
+        byte version = in.readByte();
+        if (version != BinaryRecordWriter.VERSION) {
+            throw new IOException("Unsupported binary profile version " + version);
+        }
+
+        List<String> strings = Lists.newArrayList();
+        List<Span> spans = Lists.newArrayList();
+        long lastStartTime = 0;
+        int tag;
+        while ((tag = in.read()) != -1) {
+            switch (tag) {
+                case BinaryRecordWriter.TAG_STRING: {
+                    int id = (int) readVarLong(in);
+                    if (id != strings.size()) {
+                        throw new IOException("Unexpected string id " + id);
+                    }
+                    byte[] bytes = new byte[(int) readVarLong(in)];
+                    ByteStreams.readFully(in, bytes);
+                    strings.add(new String(bytes, Charsets.UTF_8));
+                    break;
+                }
+                case BinaryRecordWriter.TAG_SPAN: {
+                    Span span = new Span();
+                    span.id = readVarLong(in);
+                    span.parentId = readVarLong(in);
+                    lastStartTime += BinaryRecordWriter.unzigzag(readVarLong(in));
+                    span.startTimeInMs = lastStartTime;
+                    span.durationInMs = readVarLong(in);
+                    span.type = strings.get((int) readVarLong(in));
+                    long attributeCount = readVarLong(in);
+                    for (long i = 0; i < attributeCount; i++) {
+                        String name = strings.get((int) readVarLong(in));
+                        String value = strings.get((int) readVarLong(in));
+                        span.attributes.put(name, value);
+                    }
+                    spans.add(span);
+                    break;
+                }
+                default:
+                    throw new IOException("Unexpected record tag " + tag);
+            }
+        }
+        return spans;
+    }
+
+    @NonNull
+    private static Map<Long, Integer> assignLanes(@NonNull List<Span> spans) {
+        List<Span> sorted = Lists.newArrayList(spans);
+        Collections.sort(sorted, new Comparator<Span>() {
+            @Override
+            public int compare(Span o1, Span o2) {
+                // parents before the children starting at the same time.
+                int result = Long.compare(o1.startTimeInMs, o2.startTimeInMs);
+                if (result == 0) {
+                    result = Long.compare(o2.durationInMs, o1.durationInMs);
+                }
+                return result != 0 ? result : Long.compare(o1.id, o2.id);
+            }
+        });
+
+        Map<Long, Integer> lanes = Maps.newHashMap();
+        // end time of the last top level span of each lane.
+        List<Long> laneEnds = Lists.newArrayList();
+        for (Span span : sorted) {
+            Integer parentLane = lanes.get(span.parentId);
+            if (parentLane != null) {
+                lanes.put(span.id, parentLane);
+                continue;
+            }
+            int lane = 0;
+            while (lane < laneEnds.size() && laneEnds.get(lane) > span.startTimeInMs) {
+                lane++;
+            }
+            long end = span.startTimeInMs + span.durationInMs;
+            if (lane == laneEnds.size()) {
+                laneEnds.add(end);
+            } else {
+                laneEnds.set(lane, end);
+            }
+            lanes.put(span.id, lane);
+        }
+        return lanes;
+    }
+
+    private static long readVarLong(@NonNull DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException();
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    static final class Span {
+        long id;
+        long parentId;
+        long startTimeInMs;
+        long durationInMs;
+        String type;
+        final Map<String, String> attributes = Maps.newLinkedHashMap();
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.profile;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.VisibleForTesting;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableSortedMap;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fine grained metrics of the build hot paths: counters, gauges and latency histograms, all
+ * identified by a name such as "aapt.link" or "workqueue.png-cruncher.wait".
+ *
+ * Metrics are only collected when the RECORD_METRICS environment variable is set, in which case
+ * a summary is logged at the end of the build by {@link ProcessRecorderFactory#shutdown()}.
+ * Otherwise every method returns after checking a static flag, so call sites do not need to
+ * guard their calls.
+ *
+ * Latencies are measured with:
+ * <pre>
+ *     long start = Metrics.startTimer();
+ *     ...
+ *     Metrics.recordLatency("dex.convert", start);
+ * </pre>
+ */
+public final class Metrics {
+
+    private static boolean sEnabled = !Strings.isNullOrEmpty(System.getenv("RECORD_METRICS"));
+
+    private static final ConcurrentMap<String, AtomicLong> sCounters = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Gauge> sGauges = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, LatencyHistogram> sLatencies =
+            new ConcurrentHashMap<>();
+
+    private Metrics() {}
+
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    @VisibleForTesting
+    static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    /**
+     * Increments a counter by one.
+     */
+    public static void increment(@NonNull String name) {
+        increment(name, 1);
+    }
+
+    /**
+     * Increments a counter by the given amount.
+     */
+    public static void increment(@NonNull String name, long delta) {
+        if (!sEnabled) {
+            return;
+        }
+        AtomicLong counter = sCounters.get(name);
+        if (counter == null) {
+            sCounters.putIfAbsent(name, new AtomicLong());
+            counter = sCounters.get(name);
+        }
+        counter.addAndGet(delta);
+    }
+
+    /**
+     * Sets the current value of a gauge. The summary reports both the last and the largest value.
+     */
+    public static void setGauge(@NonNull String name, long value) {
+        if (!sEnabled) {
+            return;
+        }
+        Gauge gauge = sGauges.get(name);
+        if (gauge == null) {
+            sGauges.putIfAbsent(name, new Gauge());
+            gauge = sGauges.get(name);
+        }
+        gauge.set(value);
+    }
+
+    /**
+     * Returns the start time to pass to {@link #recordLatency(String, long)}, or 0 if metrics are
+     * not enabled.
+     */
+    public static long startTimer() {
+        return sEnabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records the time elapsed since the given start time.
+     *
+     * @param name the operation type.
+     * @param startTime a value returned by {@link #startTimer()}.
+     */
+    public static void recordLatency(@NonNull String name, long startTime) {
+        if (!sEnabled || startTime == 0) {
+            return;
+        }
+        getHistogram(name).record(System.nanoTime() - startTime);
+    }
+
+    @NonNull
+    @VisibleForTesting
+    static LatencyHistogram getHistogram(@NonNull String name) {
+        LatencyHistogram histogram = sLatencies.get(name);
+        if (histogram == null) {
+            sLatencies.putIfAbsent(name, new LatencyHistogram());
+            histogram = sLatencies.get(name);
+        }
+        return histogram;
+    }
+
+    @VisibleForTesting
+    static long getCounter(@NonNull String name) {
+        AtomicLong counter = sCounters.get(name);
+        return counter != null ? counter.get() : 0;
+    }
+
+    /**
+     * Returns a human readable summary of all the metrics collected so far, sorted by name.
+     */
+    @NonNull
+    public static String getReport() {
+        StringBuilder sb = new StringBuilder("Build metrics:\n");
+        for (Map.Entry<String, AtomicLong> entry : ImmutableSortedMap.copyOf(sCounters).entrySet()) {
+            sb.append(String.format("  %1$s: %2$d\n", entry.getKey(), entry.getValue().get()));
+        }
+        for (Map.Entry<String, Gauge> entry : ImmutableSortedMap.copyOf(sGauges).entrySet()) {
+            sb.append(String.format("  %1$s: last=%2$d max=%3$d\n",
+                    entry.getKey(), entry.getValue().mLast.get(), entry.getValue().mMax.get()));
+        }
+        for (Map.Entry<String, LatencyHistogram> entry
+                : ImmutableSortedMap.copyOf(sLatencies).entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            sb.append(String.format(
+                    "  %1$s: count=%2$d total=%3$.1fms p50=%4$.3fms p99=%5$.3fms max=%6$.3fms\n",
+                    entry.getKey(),
+                    histogram.getCount(),
+                    toMillis(histogram.getSum()),
+                    toMillis(histogram.getPercentile(50)),
+                    toMillis(histogram.getPercentile(99)),
+                    toMillis(histogram.getMax())));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Discards all the metrics collected so far, called at the end of each build as the daemon
+     * keeps this class loaded.
+     */
+    public static void reset() {
+        sCounters.clear();
+        sGauges.clear();
+        sLatencies.clear();
+    }
+
+    private static double toMillis(long nanos) {
+        return (double) nanos / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    private static final class Gauge {
+        private final AtomicLong mLast = new AtomicLong();
+        private final AtomicLong mMax = new AtomicLong(Long.MIN_VALUE);
+
+        void set(long value) {
+            mLast.set(value);
+            long max = mMax.get();
+            while (value > max && !mMax.compareAndSet(max, value)) {
+                max = mMax.get();
+            }
+        }
+    }
+}
@@ -149,6 +149,7 @@ public class ProcessRecorder {
         if (mExecutionRecordWriter != null) {
             try {
                 writeDebugRecords(mExecutionRecordWriter);
+                mExecutionRecordWriter.close();
             } catch (IOException e) {
                 System.err.println(Throwables.getStackTraceAsString(e));
             }
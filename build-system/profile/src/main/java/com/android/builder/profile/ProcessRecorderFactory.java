@@ -31,6 +31,7 @@ import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
@@ -60,6 +61,12 @@ public class ProcessRecorderFactory {
                 sINSTANCE.get().finish();
                 sINSTANCE.uploadData();
             }
+            if (Metrics.isEnabled()) {
+                if (sINSTANCE.mLogger != null) {
+                    sINSTANCE.mLogger.info("%1$s", Metrics.getReport());
+                }
+                Metrics.reset();
+            }
             sINSTANCE.processRecorder = null;
         }
     }
@@ -78,6 +85,14 @@ public class ProcessRecorderFactory {
         return sENABLED;
     }
 
+    /**
+     * Returns true if the spans should be written with a {@link BinaryRecordWriter} rather than
+     * in json, which is requested by setting the RECORD_SPANS environment variable to "binary".
+     */
+    private static boolean isBinaryFormat() {
+        return "binary".equals(System.getenv("RECORD_SPANS"));
+    }
+
     @VisibleForTesting
     static void setEnabled(boolean enabled) {
         sENABLED = enabled;
@@ -109,10 +124,16 @@ public class ProcessRecorderFactory {
             }
             sINSTANCE.setLogger(logger);
             if (isEnabled()) {
-                sINSTANCE.setOutputFile(out);
                 try {
-                    sINSTANCE.setRecordWriter(
-                            new ProcessRecorder.JsonRecordWriter(new FileWriter(out)));
+                    if (isBinaryFormat()) {
+                        // Binary profiles are not uploaded, see ChromeTraceConverter to view them.
+                        sINSTANCE.setRecordWriter(new BinaryRecordWriter(
+                                new FileOutputStream(out).getChannel()));
+                    } else {
+                        sINSTANCE.setOutputFile(out);
+                        sINSTANCE.setRecordWriter(
+                                new ProcessRecorder.JsonRecordWriter(new FileWriter(out)));
+                    }
                 } catch (IOException e) {
                     // This can only happen in performance test mode.
                     throw new RuntimeException("Unable to open json profile for writing", e);
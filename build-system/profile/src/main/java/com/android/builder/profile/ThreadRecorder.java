@@ -21,8 +21,7 @@ import com.android.annotations.Nullable;
 import com.google.wireless.android.sdk.stats.AndroidStudioStats;
 import com.google.wireless.android.sdk.stats.AndroidStudioStats.GradleBuildProfileSpan.ExecutionType;
 
-import java.util.ArrayDeque;
-import java.util.Deque;
+import java.util.Arrays;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -81,14 +80,17 @@ public class ThreadRecorder implements Recorder {
     }
 
     /**
+     * The ids of the records open on each thread, as the number of records followed by their
+     * ids, innermost last. Primitive longs keep the recording of a block from boxing them.
+     *
      * Do not put anything else than JDK classes in the ThreadLocal as it prevents that class
      * and therefore the plugin classloader to be gc'ed leading to OOM or PermGen issues.
      */
-    protected final ThreadLocal<Deque<Long>> recordStacks =
-            new ThreadLocal<Deque<Long>>() {
+    protected final ThreadLocal<long[]> recordStacks =
+            new ThreadLocal<long[]>() {
         @Override
-        protected Deque<Long> initialValue() {
-            return new ArrayDeque<>();
+        protected long[] initialValue() {
+            return new long[16];
         }
     };
 
@@ -96,7 +98,7 @@ public class ThreadRecorder implements Recorder {
     @Override
     public long allocationRecordId() {
         long recordId = ProcessRecorder.allocateRecordId();
-        recordStacks.get().push(recordId);
+        pushRecordId(recordId);
         return recordId;
     }
 
@@ -105,12 +107,60 @@ public class ThreadRecorder implements Recorder {
             @NonNull String project,
             @Nullable String variant,
             @NonNull AndroidStudioStats.GradleBuildProfileSpan.Builder executionRecord) {
-        if (recordStacks.get().pop() != executionRecord.getId()) {
+        if (popRecordId() != executionRecord.getId()) {
             logger.severe("Internal Error : mixed records in profiling stack");
         }
         ProcessRecorder.get().writeRecord(project, variant, executionRecord);
     }
 
+    /**
+     * Pushes a record id on the stack of the current thread.
+     *
+     * @return the id of the enclosing record, or 0 if there is none
+     */
+    protected long pushRecordId(long recordId) {
+        long[] stack = recordStacks.get();
+        int size = (int) stack[0];
+        if (size + 1 == stack.length) {
+            stack = Arrays.copyOf(stack, stack.length * 2);
+            recordStacks.set(stack);
+        }
+        stack[size + 1] = recordId;
+        stack[0] = size + 1;
+        return size > 0 ? stack[size] : 0;
+    }
+
+    /**
+     * Pops the innermost record id from the stack of the current thread.
+     *
+     * @return the id popped, or 0 if the stack is empty
+     */
+    protected long popRecordId() {
+        long[] stack = recordStacks.get();
+        int size = (int) stack[0];
+        if (size == 0) {
+            return 0;
+        }
+        stack[0] = size - 1;
+        return stack[size];
+    }
+
+    /**
+     * Removes the innermost occurrence of the given record id from the stack of the current
+     * thread, wherever it is in the stack.
+     */
+    protected void removeRecordId(long recordId) {
+        long[] stack = recordStacks.get();
+        int size = (int) stack[0];
+        for (int i = size; i > 0; i--) {
+            if (stack[i] == recordId) {
+                System.arraycopy(stack, i + 1, stack, i, size - i);
+                stack[0] = size - 1;
+                return;
+            }
+        }
+    }
+
 
     @Nullable
     @Override
@@ -132,8 +182,7 @@ public class ThreadRecorder implements Recorder {
         long thisRecordId = ProcessRecorder.allocateRecordId();
 
         // am I a child ?
-        @Nullable
-        Long parentId = recordStacks.get().peek();
+        long parentId = pushRecordId(thisRecordId);
 
         long startTimeInMs = System.currentTimeMillis();
 
@@ -147,18 +196,17 @@ public class ThreadRecorder implements Recorder {
             currentRecord.setTransform(transform);
         }
 
-        if (parentId != null) {
+        if (parentId != 0) {
             currentRecord.setParentId(parentId);
         }
 
-        recordStacks.get().push(thisRecordId);
         try {
             return block.call();
         } catch (Exception e) {
             block.handleException(e);
         } finally {
             // pop this record from the stack.
-            if (recordStacks.get().pop() != currentRecord.getId()) {
+            if (popRecordId() != thisRecordId) {
                 logger.log(Level.SEVERE, "Profiler stack corrupted");
             }
             currentRecord.setDurationInMs(
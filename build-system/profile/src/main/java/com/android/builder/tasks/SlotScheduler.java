@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.tasks;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.VisibleForTesting;
+import com.android.annotations.concurrency.GuardedBy;
+import com.android.builder.profile.Metrics;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Build-wide scheduler handing out slots to the external tools (aapt, dx, png cruncher...) so
+ * that all the modules of a build together do not start more of them than there are processors.
+ *
+ * Each tool is identified by a name and can be given a quota, the number of slots it is
+ * guaranteed to be able to use concurrently. A tool under its quota gets a slot even when there
+ * are no slots left, so that for instance the png cruncher runs as many processes as it was
+ * configured to. A tool may go over its quota and use slots left idle by the other tools, but
+ * only as long as no other tool with remaining quota is waiting. Within those constraints,
+ * waiting requests are served by {@link Priority}, then in order of arrival.
+ *
+ * Slots are never taken back: a tool which used idle slots keeps them until its tasks are done,
+ * and until then only the tools under their quota get a slot.
+ *
+ * Usage:
+ * <pre>
+ *     try (SlotScheduler.Slot slot = SlotScheduler.getScheduler().acquire("dx", Priority.NORMAL)) {
+ *         ...
+ *     }
+ * </pre>
+ * Slots must not be acquired while holding another one, since the second acquisition could wait
+ * for the first slot to be released.
+ */
+public final class SlotScheduler {
+
+    /**
+     * Priority of a slot request, in decreasing order.
+     */
+    public enum Priority {
+        /** Work other tasks are waiting for, such as the final dex or the R class generation. */
+        CRITICAL,
+        NORMAL,
+        /** Work that can be postponed, such as pre-dexing. */
+        LOW
+    }
+
+    private static final SlotScheduler sSingleton =
+            new SlotScheduler(Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Returns the scheduler shared by all the builds of this VM.
+     */
+    @NonNull
+    public static SlotScheduler getScheduler() {
+        return sSingleton;
+    }
+
+    private final int mTotalSlots;
+
+    private final Object mLock = new Object();
+
+    @GuardedBy("mLock")
+    private int mUsedSlots;
+
+    @GuardedBy("mLock")
+    private final Map<String, Integer> mQuotas = Maps.newHashMap();
+
+    @GuardedBy("mLock")
+    private final Map<String, Integer> mUsedSlotsPerTool = Maps.newHashMap();
+
+    @GuardedBy("mLock")
+    private final TreeSet<Request> mWaiting = new TreeSet<>(new Comparator<Request>() {
+        @Override
+        public int compare(Request o1, Request o2) {
+            int result = o1.priority.compareTo(o2.priority);
+            return result != 0 ? result : Long.compare(o1.sequence, o2.sequence);
+        }
+    });
+
+    @GuardedBy("mLock")
+    private long mSequence;
+
+    @VisibleForTesting
+    SlotScheduler(int totalSlots) {
+        Preconditions.checkArgument(totalSlots > 0, "totalSlots must be positive");
+        mTotalSlots = totalSlots;
+    }
+
+    /**
+     * Sets the number of slots guaranteed to a tool, even if this takes the number of slots used
+     * over the total. Tools without quota are only bounded by the total number of slots.
+     */
+    public void setQuota(@NonNull String tool, int quota) {
+        Preconditions.checkArgument(quota > 0, "quota must be positive");
+        synchronized (mLock) {
+            mQuotas.put(tool, quota);
+            dispatch();
+        }
+    }
+
+    /**
+     * Blocks until a slot is available for the given tool.
+     *
+     * @param tool the tool which will run in the slot.
+     * @param priority the priority of the request.
+     * @return the slot, which must be closed once the tool is done.
+     * @throws InterruptedException if interrupted while waiting, no slot is held in this case.
+     */
+    @NonNull
+    public Slot acquire(@NonNull String tool, @NonNull Priority priority)
+            throws InterruptedException {
+        long start = Metrics.startTimer();
+        Request request;
+        synchronized (mLock) {
+            request = new Request(tool, priority, mSequence++);
+            mWaiting.add(request);
+            dispatch();
+            try {
+                while (!request.granted) {
+                    mLock.wait();
+                }
+            } catch (InterruptedException e) {
+                if (request.granted) {
+                    release(tool);
+                } else {
+                    mWaiting.remove(request);
+                }
+                throw e;
+            }
+        }
+        if (start != 0) {
+            Metrics.recordLatency("scheduler." + tool + ".wait", start);
+        }
+        return new Slot(tool);
+    }
+
+    @VisibleForTesting
+    int getUsedSlots() {
+        synchronized (mLock) {
+            return mUsedSlots;
+        }
+    }
+
+    private void release(@NonNull String tool) {
+        synchronized (mLock) {
+            mUsedSlots--;
+            mUsedSlotsPerTool.put(tool, mUsedSlotsPerTool.get(tool) - 1);
+            dispatch();
+        }
+    }
+
+    /**
+     * Grants slots to as many waiting requests as possible: first to the tools under their quota,
+     * then in priority order while slots are left.
+     */
+    @GuardedBy("mLock")
+    private void dispatch() {
+        boolean granted = false;
+        Iterator<Request> iterator = mWaiting.iterator();
+        while (iterator.hasNext()) {
+            Request request = iterator.next();
+            if (mQuotas.containsKey(request.tool) && isUnderQuota(request.tool)) {
+                iterator.remove();
+                grant(request);
+                granted = true;
+            }
+        }
+        iterator = mWaiting.iterator();
+        while (mUsedSlots < mTotalSlots && iterator.hasNext()) {
+            Request request = iterator.next();
+            if (isUnderQuota(request.tool) || !isOtherToolWaiting(request.tool)) {
+                iterator.remove();
+                grant(request);
+                granted = true;
+            }
+        }
+        if (granted) {
+            mLock.notifyAll();
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void grant(@NonNull Request request) {
+        request.granted = true;
+        mUsedSlots++;
+        mUsedSlotsPerTool.put(request.tool, getUsedSlots(request.tool) + 1);
+    }
+
+    @GuardedBy("mLock")
+    private boolean isUnderQuota(@NonNull String tool) {
+        Integer quota = mQuotas.get(tool);
+        return quota == null || getUsedSlots(tool) < quota;
+    }
+
+    /**
+     * Returns true if a tool other than the given one is waiting for a slot it is entitled to.
+     */
+    @GuardedBy("mLock")
+    private boolean isOtherToolWaiting(@NonNull String tool) {
+        for (Request request : mWaiting) {
+            if (!request.tool.equals(tool) && isUnderQuota(request.tool)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @GuardedBy("mLock")
+    private int getUsedSlots(@NonNull String tool) {
+        Integer used = mUsedSlotsPerTool.get(tool);
+        return used != null ? used : 0;
+    }
+
+    private static final class Request {
+        @NonNull final String tool;
+        @NonNull final Priority priority;
+        final long sequence;
+        boolean granted;
+
+        Request(@NonNull String tool, @NonNull Priority priority, long sequence) {
+            this.tool = tool;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+    }
+
+    /**
+     * A slot held by a tool, released by {@link #close()}.
+     */
+    public final class Slot implements AutoCloseable {
+
+        @NonNull
+        private final String mTool;
+        private boolean mReleased;
+
+        private Slot(@NonNull String tool) {
+            mTool = tool;
+        }
+
+        @Override
+        public void close() {
+            synchronized (mLock) {
+                if (mReleased) {
+                    return;
+                }
+                mReleased = true;
+            }
+            release(mTool);
+        }
+    }
+}
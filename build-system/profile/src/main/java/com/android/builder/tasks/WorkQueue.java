@@ -17,6 +17,7 @@
 package com.android.builder.tasks;
 
 import com.android.annotations.NonNull;
+import com.android.builder.profile.Metrics;
 import com.android.utils.ILogger;
 
 import java.io.IOException;
@@ -28,6 +29,10 @@ import java.util.concurrent.atomic.AtomicInteger;
 /**
  * A work queue that accepts jobs and treat them in order.
  *
+ * Jobs are run by the queue's own threads, but each job first needs a slot from the build-wide
+ * {@link SlotScheduler}, using the queue name as the tool name, so that the queues of all the
+ * modules of a build do not run more jobs together than the machine can handle.
+ *
  * @author jedo@google.com (Jerome Dochez)
  */
 public class WorkQueue<T> implements Runnable {
@@ -51,6 +56,12 @@ public class WorkQueue<T> implements Runnable {
     private final int mMWorkforceIncrement;
     private final AtomicInteger mThreadId = new AtomicInteger(0);
     private final QueueThreadContext<T> mQueueThreadContext;
+    private final SlotScheduler mSlotScheduler;
+
+    // metric names, computed once to not allocate for each job.
+    private final String mPendingMetric;
+    private final String mWaitMetric;
+    private final String mRunMetric;
 
     // we could base this on the number of processors this machine has, etc...
     private static final int MAX_WORKFORCE_SIZE = 20;
@@ -64,10 +75,12 @@ public class WorkQueue<T> implements Runnable {
         enum ActionType { Death, Normal }
         final ActionType actionType;
         final Job<T> job;
+        final long enqueueTime;
 
         private QueueTask(ActionType actionType, Job<T> job) {
             this.actionType = actionType;
             this.job = job;
+            this.enqueueTime = Metrics.startTimer();
         }
     }
 
@@ -109,10 +122,15 @@ public class WorkQueue<T> implements Runnable {
         this.mGrowthTriggerRation = growthTriggerRatio;
         this.mMWorkforceIncrement = workforce;
         this.mQueueThreadContext = queueThreadContext;
+        this.mSlotScheduler = SlotScheduler.getScheduler();
+        this.mPendingMetric = "workqueue." + queueName + ".pending";
+        this.mWaitMetric = "workqueue." + queueName + ".wait";
+        this.mRunMetric = "workqueue." + queueName + ".run";
     }
 
     public void push(Job<T> job) throws InterruptedException {
         _push(new QueueTask<>(QueueTask.ActionType.Normal, job));
+        Metrics.setGauge(mPendingMetric, mPendingJobs.size());
         checkWorkforce();
     }
 
@@ -218,16 +236,23 @@ public class WorkQueue<T> implements Runnable {
                     return;
                 }
                 verbose("Thread(%1$s): scheduling %2$s", threadName, job.getJobTitle());
+                boolean result;
+                try (SlotScheduler.Slot ignored =
+                             mSlotScheduler.acquire(mName, SlotScheduler.Priority.NORMAL)) {
+                    Metrics.recordLatency(mWaitMetric, queueTask.enqueueTime);
+                    long runStart = Metrics.startTimer();
 
-                try {
-                    mQueueThreadContext.runTask(job);
-                } catch (Exception e) {
-                    mLogger.warning("Exception while processing task %1$s", e);
-                    job.error(e);
-                    return;
+                    try {
+                        mQueueThreadContext.runTask(job);
+                    } catch (Exception e) {
+                        mLogger.warning("Exception while processing task %1$s", e);
+                        job.error(e);
+                        return;
+                    }
+                    // wait for the job completion.
+                    result = job.await();
+                    Metrics.recordLatency(mRunMetric, runStart);
                 }
-                // wait for the job completion.
-                boolean result = job.await();
                 verbose("Thread(%1$s): job %2$s finished, result=%3$b",
                         threadName, job.getJobTitle(), result);
 
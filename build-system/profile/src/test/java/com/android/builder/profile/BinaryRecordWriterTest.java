@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.profile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
+import com.google.wireless.android.sdk.stats.AndroidStudioStats;
+import com.google.wireless.android.sdk.stats.AndroidStudioStats.GradleBuildProfileSpan.ExecutionType;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.channels.Channels;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests for the {@link BinaryRecordWriter} and {@link ChromeTraceConverter} classes.
+ */
+public class BinaryRecordWriterTest {
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryRecordWriter writer = new BinaryRecordWriter(Channels.newChannel(out));
+        writer.write(span(2, 0, 1000, 50), ImmutableMap.of("project", ":app"));
+        writer.write(span(3, 2, 1010, 20), ImmutableMap.of("project", ":app", "variant", "debug"));
+        // start times going backward are allowed.
+        writer.write(span(4, 0, 900, 5), ImmutableMap.<String, String>of());
+        writer.close();
+
+        List<ChromeTraceConverter.Span> spans =
+                ChromeTraceConverter.read(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(3, spans.size());
+
+        ChromeTraceConverter.Span span = spans.get(1);
+        assertEquals(3, span.id);
+        assertEquals(2, span.parentId);
+        assertEquals(1010, span.startTimeInMs);
+        assertEquals(20, span.durationInMs);
+        assertEquals("SOME_RANDOM_PROCESSING", span.type);
+        assertEquals(ImmutableMap.of("project", ":app", "variant", "debug"), span.attributes);
+
+        assertEquals(900, spans.get(2).startTimeInMs);
+        assertEquals(ImmutableMap.<String, String>of(), spans.get(2).attributes);
+    }
+
+    @Test
+    public void testManyRecords() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryRecordWriter writer = new BinaryRecordWriter(Channels.newChannel(out));
+        // enough records to go through several buffers, and an attribute larger than a buffer.
+        String longValue = Strings.repeat("x", 100 * 1024);
+        for (int i = 0; i < 20000; i++) {
+            Map<String, String> attributes = i == 10000
+                    ? ImmutableMap.of("value", longValue)
+                    : ImmutableMap.of("value", Integer.toString(i % 100));
+            writer.write(span(i + 2, 0, i, 1), attributes);
+        }
+        writer.close();
+
+        List<ChromeTraceConverter.Span> spans =
+                ChromeTraceConverter.read(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(20000, spans.size());
+        for (int i = 0; i < spans.size(); i++) {
+            assertEquals(i + 2, spans.get(i).id);
+            assertEquals(i, spans.get(i).startTimeInMs);
+        }
+        assertEquals(longValue, spans.get(10000).attributes.get("value"));
+        assertEquals("1", spans.get(10001).attributes.get("value"));
+    }
+
+    @Test
+    public void testChromeTrace() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryRecordWriter writer = new BinaryRecordWriter(Channels.newChannel(out));
+        // child span completes first.
+        writer.write(span(3, 2, 1000, 20), ImmutableMap.<String, String>of());
+        writer.write(span(2, 0, 1000, 50), ImmutableMap.of("project", ":app"));
+        // overlaps with span 2, so goes in another lane.
+        writer.write(span(4, 0, 1010, 10), ImmutableMap.<String, String>of());
+        writer.close();
+
+        StringWriter json = new StringWriter();
+        ChromeTraceConverter.convert(new ByteArrayInputStream(out.toByteArray()), json);
+        String trace = json.toString();
+        assertTrue(trace, trace.startsWith("{\"traceEvents\":["));
+        assertTrue(trace, trace.contains("\"tid\":0,\"ts\":1000000,\"dur\":20000,"
+                + "\"args\":{\"id\":3}"));
+        assertTrue(trace, trace.contains("\"tid\":0,\"ts\":1000000,\"dur\":50000,"
+                + "\"args\":{\"id\":2,\"project\":\":app\"}"));
+        assertTrue(trace, trace.contains("\"tid\":1,\"ts\":1010000,\"dur\":10000,"
+                + "\"args\":{\"id\":4}"));
+    }
+
+    private static AndroidStudioStats.GradleBuildProfileSpan span(
+            long id, long parentId, long startTime, long duration) {
+        return AndroidStudioStats.GradleBuildProfileSpan.newBuilder()
+                .setId(id)
+                .setParentId(parentId)
+                .setStartTimeInMs(startTime)
+                .setDurationInMs(duration)
+                .setType(ExecutionType.SOME_RANDOM_PROCESSING)
+                .build();
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.profile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests for the {@link Metrics} and {@link LatencyHistogram} classes.
+ */
+public class MetricsTest {
+
+    @After
+    public void tearDown() {
+        Metrics.setEnabled(false);
+        Metrics.reset();
+    }
+
+    @Test
+    public void testBucketBounds() {
+        for (long value : new long[] {0, 1, 15, 16, 17, 31, 32, 1000, 123456789, Long.MAX_VALUE}) {
+            int index = LatencyHistogram.getBucketIndex(value);
+            long lowerBound = LatencyHistogram.getBucketLowerBound(index);
+            assertTrue(value + " below " + lowerBound, lowerBound <= value);
+            // one significant hex digit of precision.
+            assertTrue(value + " above " + lowerBound, value - lowerBound <= value / 16);
+        }
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000000, histogram.getMax());
+        assertEquals(500000, histogram.getPercentile(50), 500000 / 16);
+        assertEquals(990000, histogram.getPercentile(99), 990000 / 16);
+        assertEquals(1000000, histogram.getPercentile(100), 1000000 / 16);
+        assertEquals(0, new LatencyHistogram().getPercentile(50));
+    }
+
+    @Test
+    public void testDisabled() {
+        Metrics.setEnabled(false);
+        Metrics.increment("counter");
+        assertEquals(0, Metrics.startTimer());
+        Metrics.recordLatency("latency", System.nanoTime());
+        assertEquals(0, Metrics.getCounter("counter"));
+        assertEquals("Build metrics:\n", Metrics.getReport());
+    }
+
+    @Test
+    public void testReport() {
+        Metrics.setEnabled(true);
+        Metrics.increment("b.counter");
+        Metrics.increment("b.counter", 2);
+        Metrics.setGauge("c.gauge", 5);
+        Metrics.setGauge("c.gauge", 3);
+        Metrics.recordLatency("a.latency", Metrics.startTimer());
+
+        assertEquals(3, Metrics.getCounter("b.counter"));
+        assertEquals(1, Metrics.getHistogram("a.latency").getCount());
+        String report = Metrics.getReport();
+        assertTrue(report, report.contains("  b.counter: 3\n"));
+        assertTrue(report, report.contains("  c.gauge: last=3 max=5\n"));
+        assertTrue(report, report.contains("  a.latency: count=1 "));
+        assertTrue(report, report.contains(" p50="));
+
+        Metrics.reset();
+        assertEquals(0, Metrics.getCounter("b.counter"));
+    }
+}
@@ -239,6 +239,26 @@ public class ThreadRecorderTest {
         Assert.assertNull(value);
     }
 
+    @Test
+    public void testRecordStack() {
+        ThreadRecorder recorder = new ThreadRecorder();
+        Assert.assertEquals(0, recorder.popRecordId());
+
+        // deeper than the initial stack
+        for (long id = 1; id <= 40; id++) {
+            Assert.assertEquals(id - 1, recorder.pushRecordId(id));
+        }
+        // closed out of order, as AsyncRecorder allows
+        recorder.removeRecordId(20);
+        recorder.removeRecordId(41);
+        for (long id = 40; id >= 1; id--) {
+            if (id != 20) {
+                Assert.assertEquals(id, recorder.popRecordId());
+            }
+        }
+        Assert.assertEquals(0, recorder.popRecordId());
+    }
+
     @Test
     public void testExceptionPropagation() {
         final Exception toBeThrown = new Exception("random");
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.tasks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.android.builder.tasks.SlotScheduler.Priority;
+import com.android.builder.tasks.SlotScheduler.Slot;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for the {@link SlotScheduler} class.
+ */
+public class SlotSchedulerTest {
+
+    @Test
+    public void testTotalSlots() throws Exception {
+        SlotScheduler scheduler = new SlotScheduler(2);
+        Slot first = scheduler.acquire("aapt", Priority.NORMAL);
+        Slot second = scheduler.acquire("dx", Priority.NORMAL);
+        assertEquals(2, scheduler.getUsedSlots());
+
+        Waiter waiter = new Waiter(scheduler, "aapt", Priority.NORMAL, null);
+        assertFalse(waiter.acquired.await(100, TimeUnit.MILLISECONDS));
+
+        first.close();
+        // closing twice does not release two slots.
+        first.close();
+        assertTrue(waiter.acquired.await(5, TimeUnit.SECONDS));
+        assertEquals(2, scheduler.getUsedSlots());
+
+        second.close();
+        waiter.release.countDown();
+        waiter.join();
+        assertEquals(0, scheduler.getUsedSlots());
+    }
+
+    @Test
+    public void testPriority() throws Exception {
+        SlotScheduler scheduler = new SlotScheduler(1);
+        Slot slot = scheduler.acquire("dx", Priority.NORMAL);
+
+        List<String> order = new CopyOnWriteArrayList<>();
+        Waiter low = new Waiter(scheduler, "low", Priority.LOW, order);
+        waitUntilBlocked(low);
+        Waiter normal = new Waiter(scheduler, "normal", Priority.NORMAL, order);
+        waitUntilBlocked(normal);
+        Waiter critical = new Waiter(scheduler, "critical", Priority.CRITICAL, order);
+        waitUntilBlocked(critical);
+
+        slot.close();
+        for (Waiter waiter : new Waiter[] {critical, normal, low}) {
+            assertTrue(waiter.acquired.await(5, TimeUnit.SECONDS));
+            waiter.release.countDown();
+            waiter.join();
+        }
+        assertEquals("[critical, normal, low]", order.toString());
+    }
+
+    @Test
+    public void testQuota() throws Exception {
+        SlotScheduler scheduler = new SlotScheduler(3);
+        scheduler.setQuota("dx", 1);
+        scheduler.setQuota("aapt", 2);
+
+        // idle slots can be used by a tool over its quota.
+        Slot first = scheduler.acquire("dx", Priority.NORMAL);
+        Slot second = scheduler.acquire("dx", Priority.NORMAL);
+        Slot third = scheduler.acquire("dx", Priority.NORMAL);
+        assertEquals(3, scheduler.getUsedSlots());
+
+        // a tool under its quota still gets a slot when they are all used.
+        Slot aapt = scheduler.acquire("aapt", Priority.LOW);
+        assertEquals(4, scheduler.getUsedSlots());
+
+        // but idle slots are not used over quota while a tool without quota is waiting.
+        List<String> order = new CopyOnWriteArrayList<>();
+        Waiter dx = new Waiter(scheduler, "dx", Priority.CRITICAL, order);
+        waitUntilBlocked(dx);
+        Waiter lint = new Waiter(scheduler, "lint", Priority.LOW, order);
+        waitUntilBlocked(lint);
+
+        first.close();
+        assertFalse(lint.acquired.await(100, TimeUnit.MILLISECONDS));
+        second.close();
+        assertTrue(lint.acquired.await(5, TimeUnit.SECONDS));
+        assertFalse(dx.acquired.await(100, TimeUnit.MILLISECONDS));
+
+        third.close();
+        assertTrue(dx.acquired.await(5, TimeUnit.SECONDS));
+        assertEquals("[lint, dx]", order.toString());
+
+        aapt.close();
+        dx.release.countDown();
+        lint.release.countDown();
+        dx.join();
+        lint.join();
+        assertEquals(0, scheduler.getUsedSlots());
+    }
+
+    private static void waitUntilBlocked(Thread thread) throws InterruptedException {
+        while (thread.getState() != Thread.State.WAITING) {
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Thread acquiring a slot, and holding it until {@link #release} is counted down.
+     */
+    private static final class Waiter extends Thread {
+        private final SlotScheduler mScheduler;
+        private final String mTool;
+        private final Priority mPriority;
+        private final List<String> mOrder;
+        final CountDownLatch acquired = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        Waiter(SlotScheduler scheduler, String tool, Priority priority, List<String> order) {
+            mScheduler = scheduler;
+            mTool = tool;
+            mPriority = priority;
+            mOrder = order;
+            setDaemon(true);
+            start();
+        }
+
+        @Override
+        public void run() {
+            try (Slot ignored = mScheduler.acquire(mTool, mPriority)) {
+                if (mOrder != null) {
+                    mOrder.add(mTool);
+                }
+                acquired.countDown();
+                release.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
@@ -333,6 +333,37 @@ public class PositionXmlParser {
         return xml;
     }
 
+    /**
+     * Creates a deep copy of a document returned by one of the {@code parse} methods. Unlike
+     * {@link Node#cloneNode(boolean)}, the copy retains the position information of the
+     * original document, so it can be handed out to callers that mutate the DOM while the
+     * original is kept around (for instance in a cache of parsed documents).
+     *
+     * @param document a document created by this parser
+     * @return a deep copy of the document, with the same position information
+     */
+    @NonNull
+    public static Document cloneDocument(@NonNull Document document) {
+        Document copy = (Document) document.cloneNode(true);
+        copy.setUserData(CONTENT_KEY, document.getUserData(CONTENT_KEY), null);
+        copyPositions(document, copy);
+        return copy;
+    }
+
+    private static void copyPositions(@NonNull Node original, @NonNull Node copy) {
+        Object position = original.getUserData(POS_KEY);
+        if (position != null) {
+            copy.setUserData(POS_KEY, position, null);
+        }
+        Node originalChild = original.getFirstChild();
+        Node copyChild = copy.getFirstChild();
+        while (originalChild != null && copyChild != null) {
+            copyPositions(originalChild, copyChild);
+            originalChild = originalChild.getNextSibling();
+            copyChild = copyChild.getNextSibling();
+        }
+    }
+
     /**
      * Returns the position for the given node. This is the start position. The
      * end position can be obtained via {@link Position#getEnd()}.
@@ -519,4 +519,39 @@ public class PositionXmlParserTest extends TestCase {
         assertEquals("Button", subTag.getAttributeNS(NAMESPACE_URL, "text"));
         assertEquals(NAMESPACE_URL, subTag.getNamespaceURI());
     }
+
+    public void testCloneDocument() throws Exception {
+        String xml =
+                "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n" +
+                "<LinearLayout xmlns:android=\"http://schemas.android.com/apk/res/android\"\n" +
+                "    android:orientation=\"vertical\" >\n" +
+                "    <!-- comment -->\n" +
+                "    <Button\n" +
+                "        android:text=\"Button\" />\n" +
+                "</LinearLayout>\n";
+        Document document = PositionXmlParser.parse(xml);
+        Document copy = PositionXmlParser.cloneDocument(document);
+        assertNotSame(document, copy);
+
+        Element button = (Element) document.getElementsByTagName("Button").item(0);
+        Element buttonCopy = (Element) copy.getElementsByTagName("Button").item(0);
+        assertNotSame(button, buttonCopy);
+        assertSame(copy, buttonCopy.getOwnerDocument());
+
+        SourcePosition position = PositionXmlParser.getPosition(button);
+        SourcePosition copyPosition = PositionXmlParser.getPosition(buttonCopy);
+        assertEquals(position, copyPosition);
+        assertEquals(xml.indexOf("<Button"), copyPosition.getStartOffset());
+
+        Attr attr = buttonCopy.getAttributeNodeNS(
+                "http://schemas.android.com/apk/res/android", "text");
+        assertNotNull(attr);
+        assertEquals("android:text=\"Button\"", xml.substring(
+                PositionXmlParser.getPosition(attr).getStartOffset(),
+                PositionXmlParser.getPosition(attr).getEndOffset()));
+
+        // Mutating the copy must not affect the original document.
+        buttonCopy.setAttribute("foo", "bar");
+        assertEquals("", button.getAttribute("foo"));
+    }
 }
@@ -275,13 +275,30 @@ final class AdbHelper {
      */
     static RawImage getFrameBuffer(InetSocketAddress adbSockAddr, Device device, long timeout, TimeUnit unit)
             throws TimeoutException, AdbCommandRejectedException, IOException {
+        return getFrameBuffer(adbSockAddr, device, null, timeout, unit);
+    }
+
+    /**
+     * Retrieve the frame buffer from the device with the given timeout, into an existing image.
+     * The data array of the image is reused if it has the size of the frame, so that capturing
+     * frames in a loop does not allocate.
+     *
+     * @param image the image to fill, or null to create one.
+     * @return the image, or null if the protocol of the frame buffer is not supported.
+     * @throws TimeoutException in case of timeout on the connection.
+     * @throws AdbCommandRejectedException if adb rejects the command
+     * @throws IOException in case of I/O error on the connection.
+     */
+    @Nullable
+    static RawImage getFrameBuffer(InetSocketAddress adbSockAddr, @Nullable IDevice device,
+            @Nullable RawImage image, long timeout, TimeUnit unit)
+            throws TimeoutException, AdbCommandRejectedException, IOException {
 
-        RawImage imageParams = new RawImage();
+        RawImage imageParams = image != null ? image : new RawImage();
         byte[] request = formAdbRequest("framebuffer:"); //$NON-NLS-1$
         byte[] nudge = {
             0
         };
-        byte[] reply;
 
         SocketChannel adbChan = null;
         try {
@@ -299,9 +316,9 @@ final class AdbHelper {
                 throw new AdbCommandRejectedException(resp.message);
             }
 
-            // first the protocol version.
-            reply = new byte[4];
-            read(adbChan, reply);
+            // first the protocol version, then the header, which is at most 12 ints.
+            byte[] reply = new byte[RawImage.getHeaderSize(1) * 4];
+            read(adbChan, reply, 4, DdmPreferences.getTimeOut());
 
             ByteBuffer buf = ByteBuffer.wrap(reply);
             buf.order(ByteOrder.LITTLE_ENDIAN);
@@ -312,28 +329,28 @@ final class AdbHelper {
             int headerSize = RawImage.getHeaderSize(version);
 
             // read the header
-            reply = new byte[headerSize * 4];
-            read(adbChan, reply);
+            read(adbChan, reply, headerSize * 4, DdmPreferences.getTimeOut());
 
-            buf = ByteBuffer.wrap(reply);
-            buf.order(ByteOrder.LITTLE_ENDIAN);
+            buf.clear();
 
             // fill the RawImage with the header
-            if (!imageParams.readHeader(version, buf)) {
+            if (headerSize == 0 || !imageParams.readHeader(version, buf)) {
                 Log.e("Screenshot", "Unsupported protocol: " + version);
                 return null;
             }
 
-            Log.d("ddms", "image params: bpp=" + imageParams.bpp + ", size="
-                    + imageParams.size + ", width=" + imageParams.width
-                    + ", height=" + imageParams.height);
+            if (image == null) {
+                Log.d("ddms", "image params: bpp=" + imageParams.bpp + ", size="
+                        + imageParams.size + ", width=" + imageParams.width
+                        + ", height=" + imageParams.height);
+            }
 
             write(adbChan, nudge);
 
-            reply = new byte[imageParams.size];
-            read(adbChan, reply, imageParams.size, unit.toMillis(timeout));
-
-            imageParams.data = reply;
+            if (imageParams.data == null || imageParams.data.length != imageParams.size) {
+                imageParams.data = new byte[imageParams.size];
+            }
+            read(adbChan, imageParams.data, imageParams.size, unit.toMillis(timeout));
         } finally {
             if (adbChan != null) {
                 adbChan.close();
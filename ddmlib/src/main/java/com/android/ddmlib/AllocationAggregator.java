@@ -0,0 +1,470 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.annotations.NonNull;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Aggregates the allocations of the allocation tracker per allocation site, instead of keeping
+ * one {@link AllocationInfo} per allocation like {@link AllocationsParser#parse(ByteBuffer)}.
+ * <p>
+ * A site is a stack trace and an allocated class. The stack traces are interned into a trie,
+ * from the innermost frame outward, whose nodes are keyed by frame ids: each distinct frame,
+ * that is a class, method, file and line, gets one id, and each distinct string is kept once.
+ * Within a message, the frames are first looked up by their indexes in the string tables of the
+ * message, so that most frames are resolved without decoding or hashing strings. The memory used
+ * grows with the number of distinct sites, and not with the number of allocations.
+ * <p>
+ * The messages of successive fetches can be added to the same aggregator, and aggregators can be
+ * merged. The allocation tracker sends all the allocations it still holds with each fetch, without
+ * numbering them, so the allocations of two fetches are only counted once if the tracking is
+ * restarted between the fetches, with {@link Client#enableAllocationTracker(boolean)}.
+ * <p>
+ * The thread ids of the allocations are not kept.
+ * <p>
+ * This class is thread-safe.
+ */
+public final class AllocationAggregator {
+
+    /**
+     * The allocations of one class.
+     */
+    public static class ClassTotal {
+        @NonNull private final String mAllocatedClass;
+        private final int mCount;
+        private final long mTotalSize;
+
+        ClassTotal(@NonNull String allocatedClass, int count, long totalSize) {
+            mAllocatedClass = allocatedClass;
+            mCount = count;
+            mTotalSize = totalSize;
+        }
+
+        /**
+         * Returns the name of the allocated class.
+         */
+        @NonNull
+        public String getAllocatedClass() {
+            return mAllocatedClass;
+        }
+
+        /**
+         * Returns the number of allocations.
+         */
+        public int getCount() {
+            return mCount;
+        }
+
+        /**
+         * Returns the total size of the allocations, in bytes.
+         */
+        public long getTotalSize() {
+            return mTotalSize;
+        }
+    }
+
+    /**
+     * The allocations of one class from one stack trace.
+     */
+    public static final class Site extends ClassTotal implements IStackTraceInfo {
+        @NonNull private final StackTraceElement[] mStackTrace;
+
+        Site(@NonNull String allocatedClass, int count, long totalSize,
+                @NonNull StackTraceElement[] stackTrace) {
+            super(allocatedClass, count, totalSize);
+            mStackTrace = stackTrace;
+        }
+
+        /**
+         * Returns the stack trace of the allocations, innermost frame first.
+         */
+        @NonNull
+        @Override
+        public StackTraceElement[] getStackTrace() {
+            return mStackTrace;
+        }
+    }
+
+    /** Sorts by total size, largest first */
+    private static final Comparator<ClassTotal> SIZE_ORDER = new Comparator<ClassTotal>() {
+        @Override
+        public int compare(ClassTotal o1, ClassTotal o2) {
+            if (o1.getTotalSize() != o2.getTotalSize()) {
+                return o1.getTotalSize() > o2.getTotalSize() ? -1 : 1;
+            }
+            return o2.getCount() - o1.getCount();
+        }
+    };
+
+    /** Number of children a node searches linearly, before it indexes them in a map */
+    private static final int MAX_LINEAR_CHILDREN = 8;
+
+    /** Ids of the strings, of all kinds */
+    private final Map<String, Integer> mStringIds = new HashMap<String, Integer>();
+    private final List<String> mStrings = new ArrayList<String>();
+
+    /** Ids of the frames, and the frames by id */
+    private final Map<Frame, Integer> mFrameIds = new HashMap<Frame, Integer>();
+    private final List<Frame> mFrames = new ArrayList<Frame>();
+
+    /** The root of the trie, for the empty stack trace */
+    private final Node mRoot = new Node(null, -1);
+
+    /** Count and size of the allocations per class, indexed by string id */
+    private int[] mClassCounts = new int[16];
+    private long[] mClassSizes = new long[16];
+
+    private int mSiteCount = 0;
+    private int mAllocationCount = 0;
+    private long mTotalSize = 0;
+
+    /**
+     * Adds the allocations of a message of the allocation tracker, in the format read by
+     * {@link AllocationsParser#parse(ByteBuffer)}.
+     */
+    public synchronized void add(@NonNull ByteBuffer data) {
+        int messageHdrLen = (data.get() & 0xff);
+        int entryHdrLen = (data.get() & 0xff);
+        int stackFrameLen = (data.get() & 0xff);
+        int numEntries = (data.getShort() & 0xffff);
+        int offsetToStrings = data.getInt();
+        int numClassNames = (data.getShort() & 0xffff);
+        int numMethodNames = (data.getShort() & 0xffff);
+        int numFileNames = (data.getShort() & 0xffff);
+
+        data.position(offsetToStrings);
+        int[] classIds = readStringIds(data, numClassNames);
+        int[] methodIds = readStringIds(data, numMethodNames);
+        int[] fileIds = readStringIds(data, numFileNames);
+
+        // frame ids by the string indexes and line of the frames in this message
+        Map<Long, Integer> localFrameIds = new HashMap<Long, Integer>();
+
+        data.position(messageHdrLen);
+        for (int i = 0; i < numEntries; i++) {
+            int totalSize = data.getInt();
+            data.getShort(); // thread id
+            int classNameIndex = (data.getShort() & 0xffff);
+            int stackDepth = (data.get() & 0xff);
+            /* we've consumed 9 bytes; gobble up any extra */
+            data.position(data.position() + entryHdrLen - 9);
+
+            Node node = mRoot;
+            for (int sti = 0; sti < stackDepth; sti++) {
+                long key = data.getLong();
+                /* we've consumed 8 bytes; gobble up any extra */
+                data.position(data.position() + stackFrameLen - 8);
+
+                Integer frameId = localFrameIds.get(key);
+                if (frameId == null) {
+                    int methodClassNameIndex = (int) (key >>> 48);
+                    int methodNameIndex = (int) (key >>> 32) & 0xffff;
+                    int methodSourceFileIndex = (int) (key >>> 16) & 0xffff;
+                    short lineNumber = (short) key;
+                    frameId = getFrameId(new Frame(classIds[methodClassNameIndex],
+                            methodIds[methodNameIndex], fileIds[methodSourceFileIndex],
+                            lineNumber));
+                    localFrameIds.put(key, frameId);
+                }
+                node = node.getChild(frameId);
+            }
+
+            addAllocations(node, classIds[classNameIndex], 1, totalSize);
+        }
+    }
+
+    /**
+     * Adds the allocations of another aggregator.
+     */
+    public void merge(@NonNull AllocationAggregator other) {
+        if (other == this) {
+            throw new IllegalArgumentException("Cannot merge an aggregator with itself");
+        }
+        // copy the other aggregator first, so that both locks are never held at once
+        List<Site> sites = other.getSites();
+        synchronized (this) {
+            for (Site site : sites) {
+                Node node = mRoot;
+                for (StackTraceElement element : site.getStackTrace()) {
+                    node = node.getChild(getFrameId(new Frame(
+                            getStringId(element.getClassName()),
+                            getStringId(element.getMethodName()),
+                            getStringId(element.getFileName()),
+                            (short) element.getLineNumber())));
+                }
+                addAllocations(node, getStringId(site.getAllocatedClass()), site.getCount(),
+                        site.getTotalSize());
+            }
+        }
+    }
+
+    /**
+     * Returns the number of allocations.
+     */
+    public synchronized int getAllocationCount() {
+        return mAllocationCount;
+    }
+
+    /**
+     * Returns the total size of the allocations, in bytes.
+     */
+    public synchronized long getTotalSize() {
+        return mTotalSize;
+    }
+
+    /**
+     * Returns the number of distinct allocation sites.
+     */
+    public synchronized int getSiteCount() {
+        return mSiteCount;
+    }
+
+    /**
+     * Returns the allocation sites, by decreasing total size.
+     */
+    @NonNull
+    public synchronized List<Site> getSites() {
+        List<Site> sites = new ArrayList<Site>(mSiteCount);
+        collectSites(mRoot, 0, sites);
+        Collections.sort(sites, SIZE_ORDER);
+        return sites;
+    }
+
+    /**
+     * Returns the allocations of each class, by decreasing total size.
+     */
+    @NonNull
+    public synchronized List<ClassTotal> getClassTotals() {
+        List<ClassTotal> totals = new ArrayList<ClassTotal>();
+        int count = Math.min(mClassCounts.length, mStrings.size());
+        for (int i = 0; i < count; i++) {
+            if (mClassCounts[i] > 0) {
+                totals.add(new ClassTotal(mStrings.get(i), mClassCounts[i], mClassSizes[i]));
+            }
+        }
+        Collections.sort(totals, SIZE_ORDER);
+        return totals;
+    }
+
+    /**
+     * Reads a string table, and returns the ids of its strings.
+     */
+    @NonNull
+    private int[] readStringIds(@NonNull ByteBuffer data, int count) {
+        String[] strings = new String[count];
+        AllocationsParser.readStringTable(data, strings);
+        int[] ids = new int[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = getStringId(strings[i]);
+        }
+        return ids;
+    }
+
+    private int getStringId(@NonNull String string) {
+        Integer id = mStringIds.get(string);
+        if (id == null) {
+            id = mStrings.size();
+            mStrings.add(string);
+            mStringIds.put(string, id);
+        }
+        return id;
+    }
+
+    private int getFrameId(@NonNull Frame frame) {
+        Integer id = mFrameIds.get(frame);
+        if (id == null) {
+            id = mFrames.size();
+            mFrames.add(frame);
+            mFrameIds.put(frame, id);
+        }
+        return id;
+    }
+
+    private void addAllocations(@NonNull Node node, int classId, int count, long size) {
+        if (node.addAllocations(classId, count, size)) {
+            mSiteCount++;
+        }
+        if (classId >= mClassCounts.length) {
+            int length = Math.max(classId + 1, mClassCounts.length * 2);
+            mClassCounts = Arrays.copyOf(mClassCounts, length);
+            mClassSizes = Arrays.copyOf(mClassSizes, length);
+        }
+        mClassCounts[classId] += count;
+        mClassSizes[classId] += size;
+        mAllocationCount += count;
+        mTotalSize += size;
+    }
+
+    private void collectSites(@NonNull Node node, int depth, @NonNull List<Site> sites) {
+        if (node.mSiteCount > 0) {
+            StackTraceElement[] stackTrace = new StackTraceElement[depth];
+            Node frameNode = node;
+            for (int i = depth - 1; i >= 0; i--) {
+                Frame frame = mFrames.get(frameNode.mFrameId);
+                stackTrace[i] = new StackTraceElement(mStrings.get(frame.mClassId),
+                        mStrings.get(frame.mMethodId), mStrings.get(frame.mFileId),
+                        frame.mLineNumber);
+                frameNode = frameNode.mParent;
+            }
+            for (int i = 0; i < node.mSiteCount; i++) {
+                sites.add(new Site(mStrings.get(node.mSiteClassIds[i]), node.mSiteCounts[i],
+                        node.mSiteSizes[i], stackTrace));
+            }
+        }
+        for (int i = 0; i < node.mChildCount; i++) {
+            collectSites(node.mChildren[i], depth + 1, sites);
+        }
+    }
+
+    /**
+     * A stack frame, as string ids.
+     */
+    private static final class Frame {
+        final int mClassId;
+        final int mMethodId;
+        final int mFileId;
+        final short mLineNumber;
+
+        Frame(int classId, int methodId, int fileId, short lineNumber) {
+            mClassId = classId;
+            mMethodId = methodId;
+            mFileId = fileId;
+            mLineNumber = lineNumber;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Frame)) {
+                return false;
+            }
+            Frame frame = (Frame) o;
+            return mClassId == frame.mClassId && mMethodId == frame.mMethodId
+                    && mFileId == frame.mFileId && mLineNumber == frame.mLineNumber;
+        }
+
+        @Override
+        public int hashCode() {
+            return ((mClassId * 31 + mMethodId) * 31 + mFileId) * 31 + mLineNumber;
+        }
+    }
+
+    /**
+     * A node of the trie, for the stack trace made of the frames from the root to the node.
+     * <p>
+     * The children and the sites of a node are kept in arrays, since most nodes have few of
+     * them. The children are also indexed in a map once there are many of them.
+     */
+    private static final class Node {
+        final Node mParent;
+        final int mFrameId;
+
+        int[] mChildFrameIds;
+        Node[] mChildren;
+        int mChildCount = 0;
+        Map<Integer, Node> mChildMap;
+
+        int[] mSiteClassIds;
+        int[] mSiteCounts;
+        long[] mSiteSizes;
+        int mSiteCount = 0;
+
+        Node(Node parent, int frameId) {
+            mParent = parent;
+            mFrameId = frameId;
+        }
+
+        /**
+         * Returns the child for a frame, adding it if needed.
+         */
+        @NonNull
+        Node getChild(int frameId) {
+            if (mChildMap != null) {
+                Node child = mChildMap.get(frameId);
+                if (child != null) {
+                    return child;
+                }
+            } else {
+                for (int i = 0; i < mChildCount; i++) {
+                    if (mChildFrameIds[i] == frameId) {
+                        return mChildren[i];
+                    }
+                }
+            }
+
+            Node child = new Node(this, frameId);
+            if (mChildren == null) {
+                mChildFrameIds = new int[2];
+                mChildren = new Node[2];
+            } else if (mChildCount == mChildren.length) {
+                mChildFrameIds = Arrays.copyOf(mChildFrameIds, mChildCount * 2);
+                mChildren = Arrays.copyOf(mChildren, mChildCount * 2);
+            }
+            mChildFrameIds[mChildCount] = frameId;
+            mChildren[mChildCount] = child;
+            mChildCount++;
+
+            if (mChildMap != null) {
+                mChildMap.put(frameId, child);
+            } else if (mChildCount > MAX_LINEAR_CHILDREN) {
+                mChildMap = new HashMap<Integer, Node>();
+                for (int i = 0; i < mChildCount; i++) {
+                    mChildMap.put(mChildFrameIds[i], mChildren[i]);
+                }
+            }
+            return child;
+        }
+
+        /**
+         * Adds allocations of a class from this stack trace.
+         *
+         * @return true if this is a new site.
+         */
+        boolean addAllocations(int classId, int count, long size) {
+            for (int i = 0; i < mSiteCount; i++) {
+                if (mSiteClassIds[i] == classId) {
+                    mSiteCounts[i] += count;
+                    mSiteSizes[i] += size;
+                    return false;
+                }
+            }
+
+            if (mSiteClassIds == null) {
+                mSiteClassIds = new int[1];
+                mSiteCounts = new int[1];
+                mSiteSizes = new long[1];
+            } else if (mSiteCount == mSiteClassIds.length) {
+                mSiteClassIds = Arrays.copyOf(mSiteClassIds, mSiteCount * 2);
+                mSiteCounts = Arrays.copyOf(mSiteCounts, mSiteCount * 2);
+                mSiteSizes = Arrays.copyOf(mSiteSizes, mSiteCount * 2);
+            }
+            mSiteClassIds[mSiteCount] = classId;
+            mSiteCounts[mSiteCount] = count;
+            mSiteSizes[mSiteCount] = size;
+            mSiteCount++;
+            return true;
+        }
+    }
+}
@@ -73,7 +73,7 @@ public class AllocationsParser {
    * This is just a serial collection of strings, each of which is a
    * four-byte length followed by UTF-16 data.
    */
-  private static void readStringTable(ByteBuffer data, String[] strings) {
+  static void readStringTable(ByteBuffer data, String[] strings) {
     int count = strings.length;
     int i;
 
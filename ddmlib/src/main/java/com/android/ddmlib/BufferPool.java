@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.annotations.NonNull;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A pool of direct byte buffers, whose sizes are powers of two, for the connections to read
+ * into.
+ * <p>
+ * A connection takes a buffer of the size it needs, and gives it back once it does not need it
+ * anymore, so that the large buffers needed for large packets are shared by the connections
+ * over time instead of being allocated again, or kept by each connection. The buffers are
+ * direct so that the channels read into them without copying through a temporary buffer.
+ * Buffers larger than {@link #MAX_POOLED_SIZE} are heap buffers, which are not pooled.
+ */
+final class BufferPool {
+
+    static final int MIN_SIZE = 1024;
+    static final int MAX_POOLED_SIZE = 8 * 1024 * 1024;
+
+    /** Maximum size of the free buffers of one size, in bytes, past the first one */
+    private static final int MAX_FREE_BYTES = 1024 * 1024;
+    /** Maximum number of free buffers of one size */
+    private static final int MAX_FREE_COUNT = 64;
+
+    private static final BufferPool sInstance = new BufferPool();
+
+    /** Free buffers of each size. Indexed by the log2 of the size relative to MIN_SIZE. */
+    private final List<ArrayDeque<ByteBuffer>> mFreeBuffers =
+            new ArrayList<ArrayDeque<ByteBuffer>>();
+
+    private int mAllocationCount = 0;
+
+    BufferPool() {
+        for (int size = MIN_SIZE; size <= MAX_POOLED_SIZE; size <<= 1) {
+            mFreeBuffers.add(new ArrayDeque<ByteBuffer>());
+        }
+    }
+
+    /**
+     * Returns the pool shared by the connections.
+     */
+    @NonNull
+    static BufferPool getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Returns an empty buffer of at least the given size, in big endian order.
+     */
+    @NonNull
+    synchronized ByteBuffer acquire(int minSize) {
+        int size = MIN_SIZE;
+        int index = 0;
+        while (size < minSize && size <= MAX_POOLED_SIZE) {
+            size <<= 1;
+            index++;
+        }
+
+        ByteBuffer buffer;
+        if (size > MAX_POOLED_SIZE) {
+            buffer = ByteBuffer.allocate(minSize);
+            mAllocationCount++;
+        } else {
+            buffer = mFreeBuffers.get(index).poll();
+            if (buffer == null) {
+                buffer = ByteBuffer.allocateDirect(size);
+                mAllocationCount++;
+            }
+        }
+        buffer.clear();
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        return buffer;
+    }
+
+    /**
+     * Gives back a buffer from {@link #acquire(int)}. The buffer must not be used anymore.
+     */
+    synchronized void release(@NonNull ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        if (!buffer.isDirect() || Integer.bitCount(capacity) != 1 || capacity < MIN_SIZE
+                || capacity > MAX_POOLED_SIZE) {
+            return;
+        }
+        int index = Integer.numberOfTrailingZeros(capacity / MIN_SIZE);
+        ArrayDeque<ByteBuffer> free = mFreeBuffers.get(index);
+        if (free.isEmpty() || (free.size() < MAX_FREE_COUNT
+                && (free.size() + 1) * capacity <= MAX_FREE_BYTES)) {
+            free.add(buffer);
+        }
+    }
+
+    /**
+     * Returns the number of buffers allocated so far, rather than taken from the pool.
+     */
+    synchronized int getAllocationCount() {
+        return mAllocationCount;
+    }
+}
@@ -18,6 +18,7 @@ package com.android.ddmlib;
 
 import com.android.annotations.NonNull;
 import com.android.ddmlib.DebugPortManager.IDebugPortProvider;
+import com.android.ddmlib.Log.LogLevel;
 import com.android.ddmlib.jdwp.JdwpAgent;
 import com.android.ddmlib.jdwp.JdwpInterceptor;
 
@@ -67,7 +68,9 @@ abstract class ChunkHandler extends JdwpInterceptor {
      * client for this event.  Note that it's possible to receive chunks
      * in reply packets for which we are not registered.
      *
-     * The handler may not modify the contents of "data".
+     * The handler may not modify the contents of "data", and must copy what
+     * it keeps: "data" is a view of the read buffer of the client, which is
+     * reused once the handler returns.
      */
     abstract void handleChunk(Client client, int type,
         ByteBuffer data, boolean isReply, int msgId);
@@ -210,14 +213,13 @@ abstract class ChunkHandler extends JdwpInterceptor {
     }
 
     void handlePacket(Client client, JdwpPacket packet) {
-        ByteBuffer buf = packet.getPayload();
-        int type = buf.getInt();
-        int length = buf.getInt();
-        Log.d("ddms", "Calling handler for " + name(type)
-                + " [" + this + "] (len=" + length + ")");
-        ByteBuffer ibuf = buf.slice();
-        ByteBuffer roBuf = ibuf.asReadOnlyBuffer(); // enforce R/O
-        roBuf.order(CHUNK_ORDER);
+        int type = packet.getChunkType();
+        if (DdmPreferences.getLogLevel().getPriority() <= LogLevel.DEBUG.getPriority()) {
+            Log.d("ddms", "Calling handler for " + name(type)
+                    + " [" + this + "] (len=" + packet.getChunkLength() + ")");
+        }
+        // the chunk is parsed in place, in the read buffer of the client
+        ByteBuffer roBuf = packet.getChunkData(); // enforce R/O
 
         handleChunk(client, type, roBuf, packet.isReply(), packet.getId());
     }
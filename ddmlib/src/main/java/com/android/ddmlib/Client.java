@@ -96,11 +96,13 @@ public class Client extends JdwpAgent {
      * are much smaller.
      *
      * Pass-through debugger traffic is sent without copying.  "mWriteBuffer"
-     * is only used for data generated within Client.
+     * is only used for data generated within Client.  The read buffer comes
+     * from the shared BufferPool, and the chunk handlers parse the packets in
+     * place.
      */
     private static final int INITIAL_BUF_SIZE = 2*1024;
     private static final int MAX_BUF_SIZE = 800*1024*1024;
-    private ByteBuffer mReadBuffer;
+    private JdwpReadBuffer mReadBuffer;
 
     private Device mDevice;
 
@@ -128,7 +130,8 @@ public class Client extends JdwpAgent {
         mDevice = device;
         mChan = chan;
 
-        mReadBuffer = ByteBuffer.allocate(INITIAL_BUF_SIZE);
+        mReadBuffer = new JdwpReadBuffer(BufferPool.getInstance(), INITIAL_BUF_SIZE,
+                MAX_BUF_SIZE);
 
         mConnState = ST_INIT;
 
@@ -664,38 +667,15 @@ public class Client extends JdwpAgent {
      * Read data from our channel.
      *
      * This is called when data is known to be available, and we don't yet
-     * have a full packet in the buffer.  If the buffer is at capacity,
-     * expand it.
+     * have a full packet in the buffer.  If the buffer cannot hold the
+     * packet being read, it is replaced with a larger one from the pool.
      */
     void read()
         throws IOException, BufferOverflowException {
 
-        int count;
-
-        if (mReadBuffer.position() == mReadBuffer.capacity()) {
-            if (mReadBuffer.capacity() * 2 > MAX_BUF_SIZE) {
-                Log.e("ddms", "Exceeded MAX_BUF_SIZE!");
-                throw new BufferOverflowException();
-            }
-            Log.d("ddms", "Expanding read buffer to "
-                + mReadBuffer.capacity() * 2);
-
-            ByteBuffer newBuffer = ByteBuffer.allocate(mReadBuffer.capacity() * 2);
-
-            // copy entire buffer to new buffer
-            mReadBuffer.position(0);
-            newBuffer.put(mReadBuffer);  // leaves "position" at end of copied
-
-            mReadBuffer = newBuffer;
-        }
-
-        count = mChan.read(mReadBuffer);
-        if (count < 0)
-            throw new IOException("read failed");
+        int count = mReadBuffer.read(mChan);
 
         if (Log.Config.LOGV) Log.v("ddms", "Read " + count + " bytes from " + this);
-        //Log.hexDump("ddms", Log.DEBUG, mReadBuffer.array(),
-        //    mReadBuffer.arrayOffset(), mReadBuffer.position());
     }
 
     /**
@@ -722,13 +702,13 @@ public class Client extends JdwpAgent {
              */
             int result;
 
-            result = JdwpHandshake.findHandshake(mReadBuffer);
+            result = JdwpHandshake.findHandshake(mReadBuffer.getBuffer());
             //Log.v("ddms", "findHand: " + result);
             switch (result) {
                 case JdwpHandshake.HANDSHAKE_GOOD:
                     Log.d("ddms",
                         "Good handshake from client, sending HELO to " + mClientData.getPid());
-                    JdwpHandshake.consumeHandshake(mReadBuffer);
+                    JdwpHandshake.consumeHandshake(mReadBuffer.getBuffer());
                     mConnState = ST_NEED_DDM_PKT;
                     HandleHello.sendHelloCommands(this, SERVER_PROTOCOL_VERSION);
                     // see if we have another packet in the buffer
@@ -759,11 +739,11 @@ public class Client extends JdwpAgent {
             /*
              * Normal packet traffic.
              */
-            if (mReadBuffer.position() != 0) {
+            if (mReadBuffer.getLength() != 0) {
                 if (Log.Config.LOGV) Log.v("ddms",
-                    "Checking " + mReadBuffer.position() + " bytes");
+                    "Checking " + mReadBuffer.getLength() + " bytes");
             }
-            return JdwpPacket.findPacket(mReadBuffer);
+            return mReadBuffer.findPacket();
         } else {
             /*
              * Not expecting data when in this state.
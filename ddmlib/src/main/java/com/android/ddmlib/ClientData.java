@@ -206,6 +206,7 @@ public class ClientData {
 
     private byte[] mAllocationsData;
     private AllocationInfo[] mAllocations;
+    private AllocationAggregator mAllocationAggregator;
     private AllocationTrackingStatus mAllocationStatus = AllocationTrackingStatus.UNKNOWN;
 
     @Deprecated
@@ -792,6 +793,25 @@ public class ClientData {
         return mAllocationsData;
     }
 
+    /**
+     * Sets the aggregator the tracked allocations are added to, as they are received, or null to
+     * stop aggregating them.
+     * <p>The aggregator only counts the allocations of successive requests once if the allocation
+     * tracker is restarted between the requests.
+     * @see Client#requestAllocationDetails()
+     */
+    public synchronized void setAllocationAggregator(@Nullable AllocationAggregator aggregator) {
+        mAllocationAggregator = aggregator;
+    }
+
+    /**
+     * Returns the aggregator the tracked allocations are added to, or null.
+     */
+    @Nullable
+    public synchronized AllocationAggregator getAllocationAggregator() {
+        return mAllocationAggregator;
+    }
+
     @Deprecated
     synchronized void setAllocations(AllocationInfo[] allocs) {
         mAllocations = allocs;
@@ -21,7 +21,6 @@ import com.android.ddmlib.jdwp.JdwpExtension;
 import com.android.ddmlib.jdwp.JdwpInterceptor;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.util.HashSet;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
@@ -117,8 +116,7 @@ public class DdmJdwpExtension extends JdwpExtension {
         public JdwpPacket intercept(@NonNull JdwpAgent agent, @NonNull JdwpPacket packet) {
             if (isDdmPacket(packet)) {
                 ddmSeen(mClient);
-                ByteBuffer buf = packet.getPayload();
-                int type = buf.getInt(buf.position());
+                int type = packet.getChunkType();
                 ChunkHandler handler = mHandlerMap.get(type);
 
                 if (handler == null) {
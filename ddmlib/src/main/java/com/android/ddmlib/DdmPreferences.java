@@ -47,6 +47,8 @@ public final class DdmPreferences {
     /** Default values for the use of the ADBHOST environment variable. */
     public static final boolean DEFAULT_USE_ADBHOST = false;
     public static final String DEFAULT_ADBHOST_VALUE = "127.0.0.1";
+    /** Default value for the use of pipelined file transfers by {@link SyncService}. */
+    public static final boolean DEFAULT_PIPELINED_SYNC = true;
 
     private static boolean sThreadUpdate = DEFAULT_INITIAL_THREAD_UPDATE;
     private static boolean sInitialHeapUpdate = DEFAULT_INITIAL_HEAP_UPDATE;
@@ -60,6 +62,8 @@ public final class DdmPreferences {
     private static boolean sUseAdbHost = DEFAULT_USE_ADBHOST;
     private static String sAdbHostValue = DEFAULT_ADBHOST_VALUE;
 
+    private static boolean sPipelinedSync = DEFAULT_PIPELINED_SYNC;
+
     /**
      * Returns the initial {@link Client} flag for thread updates.
      * @see #setInitialThreadUpdate(boolean)
@@ -211,6 +215,24 @@ public final class DdmPreferences {
         sAdbHostValue = adbHostValue;
     }
 
+    /**
+     * Returns whether {@link SyncService} overlaps the local file I/O of transfers with the
+     * socket I/O.
+     */
+    public static boolean getPipelinedSync() {
+        return sPipelinedSync;
+    }
+
+    /**
+     * Sets whether {@link SyncService} overlaps the local file I/O of transfers with the socket
+     * I/O, by reading or writing the local file from another thread.
+     * <p>This change takes effect for new transfers only.
+     * @param pipelinedSync true to pipeline the transfers
+     */
+    public static void setPipelinedSync(boolean pipelinedSync) {
+        sPipelinedSync = pipelinedSync;
+    }
+
     /**
      * Non accessible constructor.
      */
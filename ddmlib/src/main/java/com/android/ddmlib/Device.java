@@ -546,6 +546,14 @@ final class Device implements IDevice {
         return AdbHelper.getFrameBuffer(AndroidDebugBridge.getSocketAddress(), this, timeout, unit);
     }
 
+    @NonNull
+    @Override
+    public ScreenCapture startScreenCapture(int framesPerSecond,
+            @NonNull ScreenCapture.IFrameReceiver receiver) {
+        return ScreenCapture.start(AndroidDebugBridge.getSocketAddress(), this, framesPerSecond,
+                receiver);
+    }
+
     @Override
     public void startScreenRecorder(
             @NonNull String remoteFilePath,
@@ -19,54 +19,72 @@ package com.android.ddmlib;
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.annotations.VisibleForTesting;
-import com.android.ddmlib.AdbHelper.AdbResponse;
 import com.android.ddmlib.ClientData.DebuggerStatus;
 import com.android.ddmlib.DebugPortManager.IDebugPortProvider;
 import com.android.ddmlib.IDevice.DeviceState;
 import com.android.ddmlib.utils.DebuggerPorts;
-import com.android.utils.Pair;
+import com.google.common.base.Charsets;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.google.common.collect.Queues;
-import com.google.common.util.concurrent.Uninterruptibles;
 
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
-import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
 import java.util.Set;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * The {@link DeviceMonitor} monitors devices attached to adb.
  *
- * On one thread, it runs the {@link com.android.ddmlib.DeviceMonitor.DeviceListMonitorTask}.
- * This  establishes a socket connection to the adb host, and issues a
+ * A single thread runs an event loop over a {@link Selector}, on which all the connections of the
+ * monitor to the adb host are multiplexed. None of these connections block the loop: they are
+ * opened, send their requests and read their responses as the selector reports them ready.
+ *
+ * The {@link com.android.ddmlib.DeviceMonitor.DeviceListMonitorTask} connection issues a
  * {@link #ADB_TRACK_DEVICES_COMMAND}. It then monitors that socket for all changes about device
  * connection and device state.
  *
- * For each device that is detected to be online, it then opens a new socket connection to adb,
- * and issues a "track-jdwp" command to that device. On this connection, it monitors active
- * clients on the device. Note: a single thread monitors jdwp connections from all devices.
- * The different socket connections to adb (one per device) are multiplexed over a single selector.
+ * For each device that is detected to be online, a new connection to adb issues a "track-jdwp"
+ * command to that device. On this connection, it monitors active clients on the device, and opens
+ * a connection to each new client.
+ *
+ * Lost connections are reopened after a delay that grows with the number of failed attempts,
+ * using the timers of the same loop, so the number of threads does not depend on the number of
+ * devices.
+ *
+ * The loop itself never blocks outside of its selector: the listener callbacks, the queries to
+ * the emulator consoles and the restarts of adb run on a second thread, in the order in which
+ * the loop posts them.
  */
 final class DeviceMonitor {
     private static final String ADB_TRACK_DEVICES_COMMAND = "host:track-devices";
     private static final String ADB_TRACK_JDWP_COMMAND = "track-jdwp";
 
-    private final byte[] mLengthBuffer2 = new byte[4];
+    /** Delay before the first reconnection attempt, doubled at each following attempt */
+    private static final long INITIAL_RECONNECT_DELAY_MS = 50;
+    private static final long MAX_DEVICE_LIST_RECONNECT_DELAY_MS = 1000;
+    private static final long MAX_JDWP_RECONNECT_DELAY_MS = 5000;
+
+    /**
+     * Delay before reopening a client that was dropped: if we don't wait a bit, the client will
+     * never answer the second handshake!
+     */
+    private static final long CLIENT_REOPEN_DELAY_MS = 1000;
 
     private volatile boolean mQuit = false;
 
@@ -79,8 +97,27 @@ final class DeviceMonitor {
     private final DebuggerPorts mDebuggerPorts =
             new DebuggerPorts(DdmPreferences.getDebugPortBase());
     private final Map<Client, Integer> mClientsToReopen = new HashMap<Client, Integer>();
-    private final BlockingQueue<Pair<SocketChannel,Device>> mChannelsToRegister =
-            Queues.newLinkedBlockingQueue();
+
+    /** The track-jdwp connections of the devices. Only accessed by the monitor loop. */
+    private final Map<Device, JdwpMonitorTask> mJdwpMonitors =
+            new HashMap<Device, JdwpMonitorTask>();
+
+    /** The pending timers of the monitor loop. Only accessed by the monitor loop. */
+    private final PriorityQueue<ScheduledTask> mScheduledTasks = new PriorityQueue<ScheduledTask>();
+
+    /** The tasks posted to the monitor loop by other threads. */
+    private final Queue<Runnable> mLoopTasks = new ConcurrentLinkedQueue<Runnable>();
+
+    /** Runs the listener callbacks and the blocking calls posted by the monitor loop. */
+    private final ExecutorService mEventExecutor = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull Runnable runnable) {
+                    Thread thread = new Thread(runnable, "Device Monitor Events"); //$NON-NLS-1$
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
 
     /**
      * Creates a new {@link DeviceMonitor} object and links it to the running
@@ -95,8 +132,21 @@ final class DeviceMonitor {
      * Starts the monitoring.
      */
     void start() {
-        mDeviceListMonitorTask = new DeviceListMonitorTask(mServer, new DeviceListUpdateListener());
-        new Thread(mDeviceListMonitorTask, "Device List Monitor").start(); //$NON-NLS-1$
+        try {
+            mSelector = Selector.open();
+        } catch (IOException e) {
+            Log.e("DeviceMonitor", "Unable to open the device monitor selector: " + e.getMessage());
+            return;
+        }
+
+        mDeviceListMonitorTask = new DeviceListMonitorTask(this, mServer,
+                new DeviceListUpdateListener());
+        new Thread("Device Monitor") { //$NON-NLS-1$
+            @Override
+            public void run() {
+                monitorLoop();
+            }
+        }.start();
     }
 
     /**
@@ -105,11 +155,7 @@ final class DeviceMonitor {
     void stop() {
         mQuit = true;
 
-        if (mDeviceListMonitorTask != null) {
-            mDeviceListMonitorTask.stop();
-        }
-
-        // wake up the secondary loop by closing the selector.
+        // wake up the loop, which closes all the connections before exiting.
         if (mSelector != null) {
             mSelector.wakeup();
         }
@@ -159,21 +205,171 @@ final class DeviceMonitor {
                 mClientsToReopen.put(client, port);
             }
         }
-        mSelector.wakeup();
+        if (mSelector != null) {
+            mSelector.wakeup();
+        }
+    }
+
+    private void monitorLoop() {
+        mDeviceListMonitorTask.open();
+
+        try {
+            while (!mQuit) {
+                runLoopTasks();
+                long timeout = runScheduledTasks();
+                reopenClients();
+
+                mSelector.select(timeout);
+                if (mQuit) {
+                    break;
+                }
+
+                Iterator<SelectionKey> iter = mSelector.selectedKeys().iterator();
+                while (iter.hasNext()) {
+                    SelectionKey key = iter.next();
+                    iter.remove();
+
+                    if (key.isValid()) {
+                        ((AdbServiceConnection) key.attachment()).handleSelection();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.e("DeviceMonitor", "Connection error while monitoring devices.");
+        } finally {
+            mDeviceListMonitorTask.close();
+            for (JdwpMonitorTask task : mJdwpMonitors.values()) {
+                task.close();
+            }
+            mJdwpMonitors.clear();
+            for (SelectionKey key : mSelector.keys()) {
+                ((AdbServiceConnection) key.attachment()).close();
+            }
+            try {
+                mSelector.close();
+            } catch (IOException ignored) {
+            }
+            // the events already posted are still delivered
+            mEventExecutor.shutdown();
+        }
+    }
+
+    /** Runs the tasks posted by {@link #runOnLoop(Runnable)}. */
+    private void runLoopTasks() {
+        Runnable task;
+        while ((task = mLoopTasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    /** Runs a task on the monitor loop. Can be called from any thread. */
+    private void runOnLoop(@NonNull Runnable runnable) {
+        mLoopTasks.add(runnable);
+        if (mSelector != null) {
+            mSelector.wakeup();
+        }
     }
 
     /**
-     * Attempts to connect to the debug bridge server.
-     * @return a connect socket if success, null otherwise
+     * Runs a listener callback or a blocking call off the monitor loop, after the ones posted
+     * before it.
      */
-    @Nullable
-    private static SocketChannel openAdbConnection() {
+    private void postEvent(@NonNull Runnable event) {
         try {
-            SocketChannel adbChannel = SocketChannel.open(AndroidDebugBridge.getSocketAddress());
-            adbChannel.socket().setTcpNoDelay(true);
-            return adbChannel;
-        } catch (IOException e) {
-            return null;
+            mEventExecutor.execute(event);
+        } catch (RejectedExecutionException e) {
+            // the monitor was stopped.
+        }
+    }
+
+    private void notifyDeviceConnected(@NonNull final Device device) {
+        postEvent(new Runnable() {
+            @Override
+            public void run() {
+                AndroidDebugBridge.deviceConnected(device);
+            }
+        });
+    }
+
+    private void notifyDeviceDisconnected(@NonNull final Device device) {
+        postEvent(new Runnable() {
+            @Override
+            public void run() {
+                AndroidDebugBridge.deviceDisconnected(device);
+            }
+        });
+    }
+
+    private void notifyDeviceChanged(@NonNull final Device device, final int changeMask) {
+        postEvent(new Runnable() {
+            @Override
+            public void run() {
+                device.update(changeMask);
+            }
+        });
+    }
+
+    /**
+     * Runs the scheduled tasks that are due.
+     * @return the time until the next task is due, in ms, or 0 if there are none.
+     */
+    private long runScheduledTasks() {
+        while (!mScheduledTasks.isEmpty()) {
+            ScheduledTask task = mScheduledTasks.peek();
+            if (task.mCancelled) {
+                mScheduledTasks.poll();
+                continue;
+            }
+            long delay = task.mTime - System.currentTimeMillis();
+            if (delay > 0) {
+                return delay;
+            }
+            mScheduledTasks.poll();
+            task.mRunnable.run();
+        }
+        return 0;
+    }
+
+    /** Schedules a task on the monitor loop. Must be called from the monitor loop. */
+    @NonNull
+    private ScheduledTask schedule(@NonNull Runnable runnable, long delayMs) {
+        ScheduledTask task = new ScheduledTask(System.currentTimeMillis() + delayMs, runnable);
+        mScheduledTasks.add(task);
+        return task;
+    }
+
+    private static long getReconnectDelay(int attempt, long maxDelayMs) {
+        return Math.min(maxDelayMs, INITIAL_RECONNECT_DELAY_MS << Math.min(attempt, 16));
+    }
+
+    /** Drops the clients to reopen, and schedules their reopening. */
+    private void reopenClients() {
+        synchronized (mClientsToReopen) {
+            if (mClientsToReopen.isEmpty()) {
+                return;
+            }
+
+            MonitorThread monitorThread = MonitorThread.getInstance();
+            for (Map.Entry<Client, Integer> entry : mClientsToReopen.entrySet()) {
+                final Client client = entry.getKey();
+                final Device device = client.getDeviceImpl();
+                final int pid = client.getClientData().getPid();
+                int port = entry.getValue();
+
+                monitorThread.dropClient(client, false /* notify */);
+
+                final int debuggerPort = port == IDebugPortProvider.NO_STATIC_PORT
+                        ? getNextDebuggerPort() : port;
+                schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        Log.d("DeviceMonitor", "Reopening " + client);
+                        openClient(device, pid, debuggerPort, new ClientListUpdate(device, 1));
+                    }
+                }, CLIENT_REOPEN_DELAY_MS);
+            }
+
+            mClientsToReopen.clear();
         }
     }
 
@@ -184,7 +380,7 @@ final class DeviceMonitor {
         DeviceListComparisonResult result = DeviceListComparisonResult.compare(mDevices, newList);
         for (IDevice device : result.removed) {
             removeDevice((Device) device);
-            AndroidDebugBridge.deviceDisconnected(device);
+            notifyDeviceDisconnected((Device) device);
         }
 
         List<Device> newlyOnline = Lists.newArrayListWithExpectedSize(mDevices.size());
@@ -192,7 +388,7 @@ final class DeviceMonitor {
         for (Map.Entry<IDevice, DeviceState> entry : result.updated.entrySet()) {
             Device device = (Device) entry.getKey();
             device.setState(entry.getValue());
-            device.update(Device.CHANGE_STATE);
+            notifyDeviceChanged(device, Device.CHANGE_STATE);
 
             if (device.isOnline()) {
                 newlyOnline.add(device);
@@ -201,7 +397,7 @@ final class DeviceMonitor {
 
         for (IDevice device : result.added) {
             mDevices.add((Device) device);
-            AndroidDebugBridge.deviceConnected(device);
+            notifyDeviceConnected((Device) device);
             if (device.isOnline()) {
                 newlyOnline.add((Device) device);
             }
@@ -209,19 +405,21 @@ final class DeviceMonitor {
 
         if (AndroidDebugBridge.getClientSupport()) {
             for (Device device : newlyOnline) {
-                if (!startMonitoringDevice(device)) {
-                    Log.e("DeviceMonitor", "Failed to start monitoring "
-                            + device.getSerialNumber());
-                }
+                startMonitoringDevice(device);
             }
         }
 
-        for (Device device : newlyOnline) {
-            queryAvdName(device);
+        for (final Device device : newlyOnline) {
+            postEvent(new Runnable() {
+                @Override
+                public void run() {
+                    queryAvdName(device);
 
-            // Initiate a property fetch so that future requests can be served out of this cache.
-            // This is necessary for backwards compatibility
-            device.getSystemProperty(IDevice.PROP_BUILD_API_LEVEL);
+                    // Initiate a property fetch so that future requests can be served out of
+                    // this cache. This is necessary for backwards compatibility
+                    device.getSystemProperty(IDevice.PROP_BUILD_API_LEVEL);
+                }
+            });
         }
     }
 
@@ -230,13 +428,9 @@ final class DeviceMonitor {
         device.clearClientList();
         mDevices.remove(device);
 
-        SocketChannel channel = device.getClientMonitoringSocket();
-        if (channel != null) {
-            try {
-                channel.close();
-            } catch (IOException e) {
-                // doesn't really matter if the close fails.
-            }
+        JdwpMonitorTask task = mJdwpMonitors.remove(device);
+        if (task != null) {
+            task.close();
         }
     }
 
@@ -253,296 +447,81 @@ final class DeviceMonitor {
     }
 
     /**
-     * Starts a monitoring service for a device.
+     * Starts a monitoring service for a device, replacing the previous one if any.
      * @param device the device to monitor.
-     * @return true if success.
      */
-    private boolean startMonitoringDevice(@NonNull Device device) {
-        SocketChannel socketChannel = openAdbConnection();
-
-        if (socketChannel != null) {
-            try {
-                boolean result = sendDeviceMonitoringRequest(socketChannel, device);
-                if (result) {
-
-                    if (mSelector == null) {
-                        startDeviceMonitorThread();
-                    }
-
-                    device.setClientMonitoringSocket(socketChannel);
-
-                    socketChannel.configureBlocking(false);
-
-                    try {
-                        mChannelsToRegister.put(Pair.of(socketChannel, device));
-                    } catch (InterruptedException e) {
-                        // the queue is unbounded, and isn't going to block
-                    }
-                    mSelector.wakeup();
-
-                    return true;
-                }
-            } catch (TimeoutException e) {
-                try {
-                    // attempt to close the socket if needed.
-                    socketChannel.close();
-                } catch (IOException e1) {
-                    // we can ignore that one. It may already have been closed.
-                }
-                Log.d("DeviceMonitor",
-                        "Connection Failure when starting to monitor device '"
-                        + device + "' : timeout");
-            } catch (AdbCommandRejectedException e) {
-                try {
-                    // attempt to close the socket if needed.
-                    socketChannel.close();
-                } catch (IOException e1) {
-                    // we can ignore that one. It may already have been closed.
-                }
-                Log.d("DeviceMonitor",
-                        "Adb refused to start monitoring device '"
-                        + device + "' : " + e.getMessage());
-            } catch (IOException e) {
-                try {
-                    // attempt to close the socket if needed.
-                    socketChannel.close();
-                } catch (IOException e1) {
-                    // we can ignore that one. It may already have been closed.
-                }
-                Log.d("DeviceMonitor",
-                        "Connection Failure when starting to monitor device '"
-                        + device + "' : " + e.getMessage());
-            }
+    private void startMonitoringDevice(@NonNull Device device) {
+        JdwpMonitorTask task = new JdwpMonitorTask(device);
+        JdwpMonitorTask previous = mJdwpMonitors.put(device, task);
+        if (previous != null) {
+            previous.close();
         }
-
-        return false;
-    }
-
-    private void startDeviceMonitorThread() throws IOException {
-        mSelector = Selector.open();
-        new Thread("Device Client Monitor") { //$NON-NLS-1$
-            @Override
-            public void run() {
-                deviceClientMonitorLoop();
-            }
-        }.start();
+        task.open();
     }
 
-    private void deviceClientMonitorLoop() {
-        do {
-            try {
-                int count = mSelector.select();
-
-                if (mQuit) {
-                    return;
-                }
-
-                synchronized (mClientsToReopen) {
-                    if (!mClientsToReopen.isEmpty()) {
-                        Set<Client> clients = mClientsToReopen.keySet();
-                        MonitorThread monitorThread = MonitorThread.getInstance();
-
-                        for (Client client : clients) {
-                            Device device = client.getDeviceImpl();
-                            int pid = client.getClientData().getPid();
+    private void processIncomingJdwpData(@NonNull Device device, @NonNull String result) {
 
-                            monitorThread.dropClient(client, false /* notify */);
-
-                            // This is kinda bad, but if we don't wait a bit, the client
-                            // will never answer the second handshake!
-                            Uninterruptibles.sleepUninterruptibly(1, TimeUnit.SECONDS);
-
-                            int port = mClientsToReopen.get(client);
-
-                            if (port == IDebugPortProvider.NO_STATIC_PORT) {
-                                port = getNextDebuggerPort();
-                            }
-                            Log.d("DeviceMonitor", "Reopening " + client);
-                            openClient(device, pid, port, monitorThread);
-                            device.update(Device.CHANGE_CLIENT_LIST);
-                        }
-
-                        mClientsToReopen.clear();
-                    }
-                }
-
-                // register any new channels
-                while (!mChannelsToRegister.isEmpty()) {
-                    try {
-                        Pair<SocketChannel, Device> data = mChannelsToRegister.take();
-                        data.getFirst().register(mSelector, SelectionKey.OP_READ, data.getSecond());
-                    } catch (InterruptedException e) {
-                        // doesn't block: this thread is the only reader and it reads only when
-                        // there is data
-                    }
-                }
-
-                if (count == 0) {
-                    continue;
-                }
-
-                Set<SelectionKey> keys = mSelector.selectedKeys();
-                Iterator<SelectionKey> iter = keys.iterator();
-
-                while (iter.hasNext()) {
-                    SelectionKey key = iter.next();
-                    iter.remove();
-
-                    if (key.isValid() && key.isReadable()) {
-                        Object attachment = key.attachment();
-
-                        if (attachment instanceof Device) {
-                            Device device = (Device)attachment;
-
-                            SocketChannel socket = device.getClientMonitoringSocket();
-
-                            if (socket != null) {
-                                try {
-                                    int length = readLength(socket, mLengthBuffer2);
-
-                                    processIncomingJdwpData(device, socket, length);
-                                } catch (IOException ioe) {
-                                    Log.d("DeviceMonitor",
-                                            "Error reading jdwp list: " + ioe.getMessage());
-                                    socket.close();
-
-                                    // restart the monitoring of that device
-                                    if (mDevices.contains(device)) {
-                                        Log.d("DeviceMonitor",
-                                                "Restarting monitoring service for " + device);
-                                        startMonitoringDevice(device);
-                                    }
-                                }
-                            }
-                        }
-                    }
-                }
-            } catch (IOException e) {
-                Log.e("DeviceMonitor", "Connection error while monitoring clients.");
-            }
-
-        } while (!mQuit);
-    }
-
-    private static boolean sendDeviceMonitoringRequest(@NonNull SocketChannel socket,
-            @NonNull Device device)
-            throws TimeoutException, AdbCommandRejectedException, IOException {
-
-        try {
-            AdbHelper.setDevice(socket, device);
-            AdbHelper.write(socket, AdbHelper.formAdbRequest(ADB_TRACK_JDWP_COMMAND));
-            AdbResponse resp = AdbHelper.readAdbResponse(socket, false);
-
-            if (!resp.okay) {
-                // request was refused by adb!
-                Log.e("DeviceMonitor", "adb refused request: " + resp.message);
-            }
-
-            return resp.okay;
-        } catch (TimeoutException e) {
-            Log.e("DeviceMonitor", "Sending jdwp tracking request timed out!");
-            throw e;
-        } catch (IOException e) {
-            Log.e("DeviceMonitor", "Sending jdwp tracking request failed!");
-            throw e;
-        }
-    }
-
-    private void processIncomingJdwpData(@NonNull Device device,
-            @NonNull SocketChannel monitorSocket, int length) throws IOException {
-
-        // This methods reads @length bytes from the @monitorSocket channel.
-        // These bytes correspond to the pids of the current set of processes on the device.
+        // The message contains the pids of the current set of processes on the device.
         // It takes this set of pids and compares them with the existing set of clients
         // for the device. Clients that correspond to pids that are not alive anymore are
         // dropped, and new clients are created for pids that don't have a corresponding Client.
 
-        if (length >= 0) {
-            // array for the current pids.
-            Set<Integer> newPids = new HashSet<Integer>();
-
-            // get the string data if there are any
-            if (length > 0) {
-                byte[] buffer = new byte[length];
-                String result = read(monitorSocket, buffer);
+        // array for the current pids.
+        Set<Integer> newPids = new HashSet<Integer>();
 
-                // split each line in its own list and create an array of integer pid
-                String[] pids = result == null ? new String[0] : result.split("\n"); //$NON-NLS-1$
+        // split each line in its own list and create an array of integer pid
+        if (!result.isEmpty()) {
+            String[] pids = result.split("\n"); //$NON-NLS-1$
 
-                for (String pid : pids) {
-                    try {
-                        newPids.add(Integer.valueOf(pid));
-                    } catch (NumberFormatException nfe) {
-                        // looks like this pid is not really a number. Lets ignore it.
-                        continue;
-                    }
+            for (String pid : pids) {
+                try {
+                    newPids.add(Integer.valueOf(pid));
+                } catch (NumberFormatException nfe) {
+                    // looks like this pid is not really a number. Lets ignore it.
+                    continue;
                 }
             }
+        }
 
-            MonitorThread monitorThread = MonitorThread.getInstance();
+        MonitorThread monitorThread = MonitorThread.getInstance();
 
-            List<Client> clients = device.getClientList();
-            Map<Integer, Client> existingClients = new HashMap<Integer, Client>();
+        List<Client> clients = device.getClientList();
+        Map<Integer, Client> existingClients = new HashMap<Integer, Client>();
 
-            synchronized (clients) {
-                for (Client c : clients) {
-                    existingClients.put(c.getClientData().getPid(), c);
-                }
+        synchronized (clients) {
+            for (Client c : clients) {
+                existingClients.put(c.getClientData().getPid(), c);
             }
+        }
 
-            Set<Client> clientsToRemove = new HashSet<Client>();
-            for (Integer pid : existingClients.keySet()) {
-                if (!newPids.contains(pid)) {
-                    clientsToRemove.add(existingClients.get(pid));
-                }
+        Set<Client> clientsToRemove = new HashSet<Client>();
+        for (Integer pid : existingClients.keySet()) {
+            if (!newPids.contains(pid)) {
+                clientsToRemove.add(existingClients.get(pid));
             }
+        }
 
-            Set<Integer> pidsToAdd = new HashSet<Integer>(newPids);
-            pidsToAdd.removeAll(existingClients.keySet());
+        Set<Integer> pidsToAdd = new HashSet<Integer>(newPids);
+        pidsToAdd.removeAll(existingClients.keySet());
 
-            monitorThread.dropClients(clientsToRemove, false);
+        monitorThread.dropClients(clientsToRemove, false);
 
-            // at this point whatever pid is left in the list needs to be converted into Clients.
+        // at this point whatever pid is left in the list needs to be converted into Clients.
+        // The client list change is notified once all of them are opened.
+        if (!pidsToAdd.isEmpty()) {
+            ClientListUpdate update = new ClientListUpdate(device, pidsToAdd.size());
             for (int newPid : pidsToAdd) {
-                openClient(device, newPid, getNextDebuggerPort(), monitorThread);
-            }
-
-            if (!pidsToAdd.isEmpty() || !clientsToRemove.isEmpty()) {
-                AndroidDebugBridge.deviceChanged(device, Device.CHANGE_CLIENT_LIST);
+                openClient(device, newPid, getNextDebuggerPort(), update);
             }
+        } else if (!clientsToRemove.isEmpty()) {
+            notifyDeviceChanged(device, Device.CHANGE_CLIENT_LIST);
         }
     }
 
-    /** Opens and creates a new client. */
-    private static void openClient(@NonNull Device device, int pid, int port,
-            @NonNull MonitorThread monitorThread) {
-
-        SocketChannel clientSocket;
-        try {
-            clientSocket = AdbHelper.createPassThroughConnection(
-                    AndroidDebugBridge.getSocketAddress(), device, pid);
-
-            // required for Selector
-            clientSocket.configureBlocking(false);
-        } catch (UnknownHostException uhe) {
-            Log.d("DeviceMonitor", "Unknown Jdwp pid: " + pid);
-            return;
-        } catch (TimeoutException e) {
-            Log.w("DeviceMonitor",
-                    "Failed to connect to client '" + pid + "': timeout");
-            return;
-        } catch (AdbCommandRejectedException e) {
-            Log.w("DeviceMonitor",
-                    "Adb rejected connection to client '" + pid + "': " + e.getMessage());
-            return;
-
-        } catch (IOException ioe) {
-            Log.w("DeviceMonitor",
-                    "Failed to connect to client '" + pid + "': " + ioe.getMessage());
-            return ;
-        }
-
-        createClient(device, pid, clientSocket, port, monitorThread);
+    /** Opens a connection to a client, which is created once the connection is established. */
+    private void openClient(@NonNull Device device, int pid, int port,
+            @NonNull ClientListUpdate update) {
+        new ClientConnection(device, pid, port, update).open();
     }
 
     /** Creates a client and register it to the monitor thread */
@@ -595,71 +574,412 @@ final class DeviceMonitor {
         mDebuggerPorts.free(port);
     }
 
-    /**
-     * Reads the length of the next message from a socket.
-     * @param socket The {@link SocketChannel} to read from.
-     * @return the length, or 0 (zero) if no data is available from the socket.
-     * @throws IOException if the connection failed.
-     */
-    private static int readLength(@NonNull SocketChannel socket, @NonNull byte[] buffer)
-            throws IOException {
-        String msg = read(socket, buffer);
+    private class DeviceListUpdateListener implements DeviceListMonitorTask.UpdateListener {
+        @Override
+        public void connectionError(@NonNull Exception e) {
+            for (Device device : mDevices) {
+                removeDevice(device);
+                notifyDeviceDisconnected(device);
+            }
+        }
 
-        if (msg != null) {
-            try {
-                return Integer.parseInt(msg, 16);
-            } catch (NumberFormatException nfe) {
-                // we'll throw an exception below.
+        @Override
+        public void deviceListUpdate(@NonNull Map<String, DeviceState> devices) {
+            List<Device> l = Lists.newArrayListWithExpectedSize(devices.size());
+            for (Map.Entry<String, DeviceState> entry : devices.entrySet()) {
+                l.add(new Device(DeviceMonitor.this, entry.getKey(), entry.getValue()));
             }
+            // now merge the new devices with the old ones.
+            updateDevices(l);
+        }
+    }
+
+    /** A task to run on the monitor loop at a given time. */
+    private static final class ScheduledTask implements Comparable<ScheduledTask> {
+        private final long mTime;
+        private final Runnable mRunnable;
+        private boolean mCancelled;
+
+        ScheduledTask(long time, @NonNull Runnable runnable) {
+            mTime = time;
+            mRunnable = runnable;
         }
 
-        // we receive something we can't read. It's better to reset the connection at this point.
-        throw new IOException("Unable to read length");
+        void cancel() {
+            mCancelled = true;
+        }
+
+        @Override
+        public int compareTo(@NonNull ScheduledTask other) {
+            return mTime < other.mTime ? -1 : (mTime == other.mTime ? 0 : 1);
+        }
     }
 
     /**
-     * Fills a buffer by reading data from a socket.
-     * @return the content of the buffer as a string, or null if it failed to convert the buffer.
-     * @throws IOException if there was not enough data to fill the buffer
+     * A connection to an adb host service, driven by the selector of the monitor loop.
+     * <p>
+     * The connection is established without blocking, then each request is sent once the previous
+     * one was accepted by adb. Once all of them are accepted, the length prefixed messages sent by
+     * the service, if any, are passed to {@link #onMessage(String)}. Any failure, including a
+     * timeout before all requests are accepted, closes the connection and is passed to
+     * {@link #onFailure(Exception, boolean)}. A closed connection can be opened again.
+     * <p>
+     * All the methods must be called from the monitor loop.
      */
-    @Nullable
-    private static String read(@NonNull SocketChannel socket, @NonNull byte[] buffer)
-            throws IOException {
-        ByteBuffer buf = ByteBuffer.wrap(buffer, 0, buffer.length);
+    private abstract static class AdbServiceConnection {
+        @NonNull final DeviceMonitor mMonitor;
+        @NonNull private final String[] mRequests;
+
+        private boolean mOpen;
+        private SocketChannel mChannel;
+        private SelectionKey mKey;
+        private ScheduledTask mTimeout;
+        private int mRequest;
+        private boolean mConnected;
+        private boolean mReady;
+        private ByteBuffer mWriteBuffer;
+        private ByteBuffer mReadBuffer;
+
+        AdbServiceConnection(@NonNull DeviceMonitor monitor, @NonNull String... requests) {
+            mMonitor = monitor;
+            mRequests = requests;
+        }
+
+        /** Called once all the requests have been accepted by adb. */
+        abstract void onReady();
+
+        /** Called for each message received once the connection is ready. */
+        void onMessage(@NonNull String message) {
+            // do nothing.
+        }
+
+        /**
+         * Called when the connection fails, once it has been closed.
+         * @param connected whether the connection to adb had been established
+         */
+        abstract void onFailure(@NonNull Exception e, boolean connected);
+
+        void open() {
+            close();
+            mOpen = true;
+            mRequest = 0;
+            mConnected = false;
+            mReady = false;
+            mReadBuffer = ByteBuffer.allocate(1024);
+
+            int timeOut = DdmPreferences.getTimeOut();
+            if (timeOut > 0) {
+                mTimeout = mMonitor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        fail(new TimeoutException());
+                    }
+                }, timeOut);
+            }
 
-        while (buf.position() != buf.limit()) {
-            int count;
+            try {
+                mChannel = SocketChannel.open();
+                mChannel.configureBlocking(false);
+                mChannel.socket().setTcpNoDelay(true);
+                mKey = mChannel.register(mMonitor.mSelector, 0, this);
+                if (mChannel.connect(AndroidDebugBridge.getSocketAddress())) {
+                    connected();
+                } else {
+                    mKey.interestOps(SelectionKey.OP_CONNECT);
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
 
-            count = socket.read(buf);
-            if (count < 0) {
+        /** Closes the connection, without calling {@link #onFailure(Exception, boolean)}. */
+        void close() {
+            SocketChannel channel = detach();
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // doesn't really matter if the close fails.
+                }
+            }
+        }
+
+        /**
+         * Stops monitoring the channel of a ready connection, and returns it, still
+         * non-blocking, leaving this connection closed.
+         */
+        @Nullable
+        SocketChannel detach() {
+            mOpen = false;
+            if (mTimeout != null) {
+                mTimeout.cancel();
+                mTimeout = null;
+            }
+            if (mKey != null) {
+                mKey.cancel();
+                mKey = null;
+            }
+            SocketChannel channel = mChannel;
+            mChannel = null;
+            mWriteBuffer = null;
+            mReadBuffer = null;
+            return channel;
+        }
+
+        @Nullable
+        SocketChannel getChannel() {
+            return mChannel;
+        }
+
+        final void handleSelection() {
+            try {
+                if (mKey.isConnectable()) {
+                    mChannel.finishConnect();
+                    connected();
+                } else if (mKey.isWritable()) {
+                    write();
+                } else if (mKey.isReadable()) {
+                    read();
+                }
+            } catch (CancelledKeyException e) {
+                // the connection was closed by a callback.
+            } catch (IOException e) {
+                fail(e);
+            } catch (AdbCommandRejectedException e) {
+                fail(e);
+            }
+        }
+
+        private void fail(@NonNull Exception e) {
+            if (mOpen) {
+                close();
+                onFailure(e, mConnected);
+            }
+        }
+
+        private void connected() throws IOException {
+            mConnected = true;
+            sendRequest();
+        }
+
+        private void sendRequest() throws IOException {
+            mWriteBuffer = ByteBuffer.wrap(AdbHelper.formAdbRequest(mRequests[mRequest]));
+            write();
+        }
+
+        private void write() throws IOException {
+            mChannel.write(mWriteBuffer);
+            mKey.interestOps(mWriteBuffer.hasRemaining()
+                    ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+
+        private void read() throws IOException, AdbCommandRejectedException {
+            if (!mReadBuffer.hasRemaining()) {
+                // a message larger than the buffer
+                ByteBuffer buffer = ByteBuffer.allocate(mReadBuffer.capacity() * 2);
+                mReadBuffer.flip();
+                buffer.put(mReadBuffer);
+                mReadBuffer = buffer;
+            }
+            if (mChannel.read(mReadBuffer) < 0) {
                 throw new IOException("EOF");
             }
+
+            mReadBuffer.flip();
+            try {
+                processInput();
+            } finally {
+                // the connection may have been closed or detached by a callback
+                if (mReadBuffer != null) {
+                    mReadBuffer.compact();
+                }
+            }
         }
 
-        try {
-            return new String(buffer, 0, buf.position(), AdbHelper.DEFAULT_ENCODING);
-        } catch (UnsupportedEncodingException e) {
-            return null;
+        private void processInput() throws IOException, AdbCommandRejectedException {
+            while (mReadBuffer != null) {
+                if (!mReady) {
+                    if (mReadBuffer.remaining() < 4) {
+                        return;
+                    }
+                    int position = mReadBuffer.position();
+                    if (mReadBuffer.get(position) != 'O' || mReadBuffer.get(position + 1) != 'K'
+                            || mReadBuffer.get(position + 2) != 'A'
+                            || mReadBuffer.get(position + 3) != 'Y') {
+                        // FAIL, followed by the reason
+                        String message = readMessage(4);
+                        if (message != null) {
+                            throw new AdbCommandRejectedException(message, mRequest == 0
+                                    && mRequests[0].startsWith("host:transport:"));
+                        }
+                        return;
+                    }
+                    mReadBuffer.position(position + 4);
+
+                    mRequest++;
+                    if (mRequest < mRequests.length) {
+                        sendRequest();
+                    } else {
+                        mReady = true;
+                        if (mTimeout != null) {
+                            mTimeout.cancel();
+                            mTimeout = null;
+                        }
+                        onReady();
+                    }
+                } else {
+                    String message = readMessage(0);
+                    if (message == null) {
+                        return;
+                    }
+                    onMessage(message);
+                }
+            }
+        }
+
+        /**
+         * Reads a message made of 4 hex digits for its length followed by its content, after
+         * skipping some bytes.
+         * @return the message, or null if it is not complete yet.
+         */
+        @Nullable
+        private String readMessage(int skip) throws IOException {
+            if (mReadBuffer.remaining() < skip + 4) {
+                return null;
+            }
+            int position = mReadBuffer.position();
+            byte[] lengthBytes = new byte[4];
+            for (int i = 0; i < 4; i++) {
+                lengthBytes[i] = mReadBuffer.get(position + skip + i);
+            }
+            int length;
+            try {
+                length = Integer.parseInt(new String(lengthBytes, Charsets.ISO_8859_1), 16);
+            } catch (NumberFormatException nfe) {
+                // we receive something we can't read. It's better to reset the connection.
+                throw new IOException("Unable to read length");
+            }
+            if (mReadBuffer.remaining() < skip + 4 + length) {
+                return null;
+            }
+            String message = new String(mReadBuffer.array(),
+                    mReadBuffer.arrayOffset() + position + skip + 4, length, Charsets.ISO_8859_1);
+            mReadBuffer.position(position + skip + 4 + length);
+            return message;
         }
     }
 
-    private class DeviceListUpdateListener implements DeviceListMonitorTask.UpdateListener {
+    /** The track-jdwp connection of a device. */
+    private final class JdwpMonitorTask extends AdbServiceConnection {
+        @NonNull private final Device mDevice;
+        private int mAttempt;
+
+        JdwpMonitorTask(@NonNull Device device) {
+            super(DeviceMonitor.this, "host:transport:" + device.getSerialNumber(), //$NON-NLS-1$
+                    ADB_TRACK_JDWP_COMMAND);
+            mDevice = device;
+        }
+
         @Override
-        public void connectionError(@NonNull Exception e) {
-            for (Device device : mDevices) {
-                removeDevice(device);
-                AndroidDebugBridge.deviceDisconnected(device);
+        void onReady() {
+            mAttempt = 0;
+            //noinspection ConstantConditions
+            mDevice.setClientMonitoringSocket(getChannel());
+        }
+
+        @Override
+        void onMessage(@NonNull String message) {
+            processIncomingJdwpData(mDevice, message);
+        }
+
+        @Override
+        void onFailure(@NonNull Exception e, boolean connected) {
+            if (e instanceof TimeoutException) {
+                Log.d("DeviceMonitor", "Monitoring of jdwp for '" + mDevice + "' timed out");
+            } else {
+                Log.d("DeviceMonitor", "Error monitoring jdwp for '" + mDevice + "' : "
+                        + e.getMessage());
             }
+
+            // restart the monitoring of that device
+            if (mQuit || mJdwpMonitors.get(mDevice) != this || !mDevice.isOnline()) {
+                return;
+            }
+            long delay = getReconnectDelay(mAttempt++, MAX_JDWP_RECONNECT_DELAY_MS);
+            Log.d("DeviceMonitor", "Restarting monitoring service for " + mDevice + " in "
+                    + delay + "ms");
+            schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (mJdwpMonitors.get(mDevice) == JdwpMonitorTask.this) {
+                        open();
+                    }
+                }
+            }, delay);
+        }
+    }
+
+    /** A jdwp connection to a client, handed to a new {@link Client} once established. */
+    private final class ClientConnection extends AdbServiceConnection {
+        @NonNull private final Device mDevice;
+        private final int mPid;
+        private final int mDebuggerPort;
+        @NonNull private final ClientListUpdate mUpdate;
+
+        ClientConnection(@NonNull Device device, int pid, int debuggerPort,
+                @NonNull ClientListUpdate update) {
+            super(DeviceMonitor.this, "host:transport:" + device.getSerialNumber(), //$NON-NLS-1$
+                    String.format(Locale.US, "jdwp:%1$d", pid)); //$NON-NLS-1$
+            mDevice = device;
+            mPid = pid;
+            mDebuggerPort = debuggerPort;
+            mUpdate = update;
         }
 
         @Override
-        public void deviceListUpdate(@NonNull Map<String, DeviceState> devices) {
-            List<Device> l = Lists.newArrayListWithExpectedSize(devices.size());
-            for (Map.Entry<String, DeviceState> entry : devices.entrySet()) {
-                l.add(new Device(DeviceMonitor.this, entry.getKey(), entry.getValue()));
+        void onReady() {
+            SocketChannel channel = detach();
+            //noinspection ConstantConditions
+            if (!mQuit && mDevices.contains(mDevice)) {
+                createClient(mDevice, mPid, channel, mDebuggerPort, MonitorThread.getInstance());
+            } else {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+            mUpdate.clientOpened();
+        }
+
+        @Override
+        void onFailure(@NonNull Exception e, boolean connected) {
+            if (e instanceof TimeoutException) {
+                Log.w("DeviceMonitor", "Failed to connect to client '" + mPid + "': timeout");
+            } else if (e instanceof AdbCommandRejectedException) {
+                Log.w("DeviceMonitor",
+                        "Adb rejected connection to client '" + mPid + "': " + e.getMessage());
+            } else {
+                Log.w("DeviceMonitor",
+                        "Failed to connect to client '" + mPid + "': " + e.getMessage());
+            }
+            mUpdate.clientOpened();
+        }
+    }
+
+    /** Notifies the change of the client list of a device once the new clients are opened. */
+    private final class ClientListUpdate {
+        @NonNull private final Device mDevice;
+        private int mPending;
+
+        ClientListUpdate(@NonNull Device device, int pending) {
+            mDevice = device;
+            mPending = pending;
+        }
+
+        void clientOpened() {
+            if (--mPending == 0 && mDevice.getState() != DeviceState.DISCONNECTED) {
+                notifyDeviceChanged(mDevice, Device.CHANGE_CLIENT_LIST);
             }
-            // now merge the new devices with the old ones.
-            updateDevices(l);
         }
     }
 
@@ -716,135 +1036,114 @@ final class DeviceMonitor {
         }
     }
 
+    /**
+     * The track-devices connection of the monitor, which reports the device list updates to its
+     * listener.
+     */
     @VisibleForTesting
-    static class DeviceListMonitorTask implements Runnable {
-        private final byte[] mLengthBuffer = new byte[4];
-
+    static class DeviceListMonitorTask extends AdbServiceConnection {
         private final AndroidDebugBridge mBridge;
         private final UpdateListener mListener;
 
-        private SocketChannel mAdbConnection = null;
-        private boolean mMonitoring = false;
-        private int mConnectionAttempt = 0;
-        private int mRestartAttemptCount = 0;
-        private boolean mInitialDeviceListDone = false;
-
-        private volatile boolean mQuit;
+        private volatile boolean mMonitoring = false;
+        private volatile int mConnectionAttempt = 0;
+        private volatile int mRestartAttemptCount = 0;
+        private volatile boolean mInitialDeviceListDone = false;
 
         private interface UpdateListener {
             void connectionError(@NonNull Exception e);
             void deviceListUpdate(@NonNull Map<String,DeviceState> devices);
         }
 
-        public DeviceListMonitorTask(@NonNull AndroidDebugBridge bridge,
+        DeviceListMonitorTask(@NonNull DeviceMonitor monitor, @NonNull AndroidDebugBridge bridge,
                 @NonNull UpdateListener listener) {
+            super(monitor, ADB_TRACK_DEVICES_COMMAND);
             mBridge = bridge;
             mListener = listener;
         }
 
         @Override
-        public void run() {
-            do {
-                if (mAdbConnection == null) {
-                    Log.d("DeviceMonitor", "Opening adb connection");
-                    mAdbConnection = openAdbConnection();
-                    if (mAdbConnection == null) {
-                        mConnectionAttempt++;
-                        Log.e("DeviceMonitor", "Connection attempts: " + mConnectionAttempt);
-                        if (mConnectionAttempt > 10) {
-                            if (!mBridge.startAdb()) {
-                                mRestartAttemptCount++;
-                                Log.e("DeviceMonitor",
-                                        "adb restart attempts: " + mRestartAttemptCount);
-                            } else {
-                                Log.i("DeviceMonitor", "adb restarted");
-                                mRestartAttemptCount = 0;
-                            }
-                        }
-                        Uninterruptibles.sleepUninterruptibly(1, TimeUnit.SECONDS);
-                    } else {
-                        Log.d("DeviceMonitor", "Connected to adb for device monitoring");
-                        mConnectionAttempt = 0;
-                    }
-                }
-
-                try {
-                    if (mAdbConnection != null && !mMonitoring) {
-                        mMonitoring = sendDeviceListMonitoringRequest();
-                    }
-
-                    if (mMonitoring) {
-                        int length = readLength(mAdbConnection, mLengthBuffer);
-
-                        if (length >= 0) {
-                            // read the incoming message
-                            processIncomingDeviceData(length);
+        void open() {
+            Log.d("DeviceMonitor", "Opening adb connection");
+            super.open();
+        }
 
-                            // flag the fact that we have build the list at least once.
-                            mInitialDeviceListDone = true;
-                        }
-                    }
-                } catch (AsynchronousCloseException ace) {
-                    // this happens because of a call to Quit. We do nothing, and the loop will break.
-                } catch (TimeoutException ioe) {
-                    handleExceptionInMonitorLoop(ioe);
-                } catch (IOException ioe) {
-                    handleExceptionInMonitorLoop(ioe);
-                }
-            } while (!mQuit);
+        @Override
+        void onReady() {
+            Log.d("DeviceMonitor", "Connected to adb for device monitoring");
+            mConnectionAttempt = 0;
+            mMonitoring = true;
         }
 
-        private boolean sendDeviceListMonitoringRequest() throws TimeoutException, IOException {
-            byte[] request = AdbHelper.formAdbRequest(ADB_TRACK_DEVICES_COMMAND);
+        @Override
+        void onMessage(@NonNull String message) {
+            mListener.deviceListUpdate(parseDeviceListResponse(message));
 
-            try {
-                AdbHelper.write(mAdbConnection, request);
-                AdbResponse resp = AdbHelper.readAdbResponse(mAdbConnection, false);
-                if (!resp.okay) {
-                    // request was refused by adb!
-                    Log.e("DeviceMonitor", "adb refused request: " + resp.message);
-                }
+            // flag the fact that we have build the list at least once.
+            mInitialDeviceListDone = true;
+        }
 
-                return resp.okay;
-            } catch (IOException e) {
-                Log.e("DeviceMonitor", "Sending Tracking request failed!");
-                mAdbConnection.close();
-                throw e;
+        @Override
+        void onFailure(@NonNull Exception e, boolean connected) {
+            if (mMonitor.mQuit) {
+                return;
             }
-        }
 
-        private void handleExceptionInMonitorLoop(@NonNull Exception e) {
-            if (!mQuit) {
+            final long delay;
+            if (connected) {
                 if (e instanceof TimeoutException) {
                     Log.e("DeviceMonitor", "Adb connection Error: timeout");
                 } else {
                     Log.e("DeviceMonitor", "Adb connection Error:" + e.getMessage());
                 }
                 mMonitoring = false;
-                if (mAdbConnection != null) {
-                    try {
-                        mAdbConnection.close();
-                    } catch (IOException ioe) {
-                        // we can safely ignore that one.
-                    }
-                    mAdbConnection = null;
-
-                    mListener.connectionError(e);
+                mListener.connectionError(e);
+                delay = INITIAL_RECONNECT_DELAY_MS;
+            } else {
+                mConnectionAttempt++;
+                Log.e("DeviceMonitor", "Connection attempts: " + mConnectionAttempt);
+                delay = getReconnectDelay(mConnectionAttempt, MAX_DEVICE_LIST_RECONNECT_DELAY_MS);
+                if (mConnectionAttempt > 10) {
+                    // starting adb blocks: the connection is reopened once it is done.
+                    mMonitor.postEvent(new Runnable() {
+                        @Override
+                        public void run() {
+                            restartAdb();
+                            mMonitor.runOnLoop(new Runnable() {
+                                @Override
+                                public void run() {
+                                    scheduleOpen(delay);
+                                }
+                            });
+                        }
+                    });
+                    return;
                 }
             }
+
+            scheduleOpen(delay);
         }
 
-        /** Processes an incoming device message from the socket */
-        private void processIncomingDeviceData(int length) throws IOException {
-            Map<String, DeviceState> result;
-            if (length <= 0) {
-                result = Collections.emptyMap();
+        private void restartAdb() {
+            if (!mBridge.startAdb()) {
+                mRestartAttemptCount++;
+                Log.e("DeviceMonitor", "adb restart attempts: " + mRestartAttemptCount);
             } else {
-                String response = read(mAdbConnection, new byte[length]);
-                result = parseDeviceListResponse(response);
+                Log.i("DeviceMonitor", "adb restarted");
+                mRestartAttemptCount = 0;
             }
+        }
 
-            mListener.deviceListUpdate(result);
+        private void scheduleOpen(long delay) {
+            if (mMonitor.mQuit) {
+                return;
+            }
+            mMonitor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    open();
+                }
+            }, delay);
         }
 
         @VisibleForTesting
@@ -877,17 +1176,5 @@ final class DeviceMonitor {
         int getRestartAttemptCount() {
             return mRestartAttemptCount;
         }
-
-        public void stop() {
-            mQuit = true;
-
-            // wakeup the main loop thread by closing the main connection to adb.
-            if (mAdbConnection != null) {
-                try {
-                    mAdbConnection.close();
-                } catch (IOException ignored) {
-                }
-            }
-        }
     }
 }
@@ -16,11 +16,23 @@
 
 package com.android.ddmlib;
 
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ddmlib.SyncService.FileStat;
+import com.android.ddmlib.SyncService.IDirectoryEntryReceiver;
+
 import java.io.IOException;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -84,6 +96,9 @@ public final class FileListingService {
 
     private static final String FILE_ROOT = "/"; //$NON-NLS-1$
 
+    /** Maximum number of directories listed with one batch of pipelined sync requests. */
+    private static final int SYNC_BATCH_SIZE = 64;
+
 
     /**
      * Regexp pattern to parse the result from ls.
@@ -153,6 +168,12 @@ public final class FileListingService {
          */
         long fetchTime = 0;
 
+        /**
+         * The last modification time in seconds, when the entry was listed through the sync
+         * service, or -1.
+         */
+        int lastModifiedSecs = -1;
+
         final ArrayList<FileEntry> mChildren = new ArrayList<FileEntry>();
 
         /**
@@ -857,4 +878,284 @@ public final class FileListingService {
         }
     }
 
+    /**
+     * Returns an iterator over all the entries of a device directory tree, listed through the
+     * sync protocol.
+     * <p>
+     * The directories are listed breadth first, with the LIST requests of up to
+     * {@link #SYNC_BATCH_SIZE} directories pipelined on the given connection, which is much
+     * faster than running <code>ls</code> in each directory. Only the entries of the current
+     * batch are held in memory, so trees of any size can be walked. The returned entries are not
+     * added to the cached children of their parent.
+     * <p>
+     * Symbolic links are returned as {@link #TYPE_LINK} entries, and are not followed. The
+     * entries have no owner and group.
+     *
+     * @param root the directory to walk. It is not returned by the iterator.
+     * @param sync an open sync connection to the device, used by the iterator.
+     */
+    @NonNull
+    public TreeIterator walkTree(@NonNull FileEntry root, @NonNull SyncService sync) {
+        return new TreeIterator(root, sync);
+    }
+
+    /**
+     * Fetches the children of all the directories of a device tree through the sync protocol,
+     * and caches them as {@link #getChildren(FileEntry, boolean, IListingReceiver)} does.
+     * <p>
+     * The directories are listed as by {@link #walkTree(FileEntry, SyncService)}. When the tree
+     * was already fetched by this method, the directories are checked with pipelined STAT
+     * requests instead, and only the ones whose modification time changed are listed again,
+     * with the new directories they contain. Existing entries are kept when they are still there.
+     * <p>
+     * A directory's modification time only changes when entries are added, removed or renamed,
+     * so the sizes and dates of the files in an unchanged directory may be out of date. It also
+     * has a granularity of a second, so the changes made in the second of the last fetch may be
+     * missed.
+     *
+     * @param root the directory to fetch.
+     * @param sync an open sync connection to the device.
+     * @throws TimeoutException in case of a timeout reading responses from the device.
+     * @throws IOException in case of I/O error on the connection.
+     */
+    public void fetchTree(@NonNull FileEntry root, @NonNull SyncService sync)
+            throws TimeoutException, IOException {
+        long now = System.currentTimeMillis();
+
+        // Only the directories listed by a previous call, which have changed since, need to be
+        // listed again.
+        List<FileEntry> listed = new ArrayList<FileEntry>();
+        ArrayDeque<FileEntry> pending = new ArrayDeque<FileEntry>();
+        collectDirectories(root, listed, pending);
+        if (!listed.isEmpty()) {
+            String[] paths = new String[listed.size()];
+            for (int i = 0; i < paths.length; i++) {
+                paths[i] = getDirectoryPath(listed.get(i));
+            }
+            FileStat[] stats = sync.statFiles(paths);
+            for (int i = 0; i < paths.length; i++) {
+                FileEntry directory = listed.get(i);
+                if (stats[i] != null && directory.lastModifiedSecs
+                        == (int) (stats[i].getLastModified().getTime() / 1000)) {
+                    directory.fetchTime = now;
+                } else {
+                    pending.add(directory);
+                }
+            }
+        }
+
+        SyncEntryFactory factory = new SyncEntryFactory();
+        while (!pending.isEmpty()) {
+            final Map<String, DirectoryListing> listings = new HashMap<String, DirectoryListing>();
+            int count = Math.min(pending.size(), SYNC_BATCH_SIZE);
+            String[] paths = new String[count];
+            for (int i = 0; i < count; i++) {
+                FileEntry directory = pending.poll();
+                paths[i] = getDirectoryPath(directory);
+                listings.put(paths[i], new DirectoryListing(directory, factory));
+            }
+
+            sync.listDirectories(paths, new IDirectoryEntryReceiver() {
+                @Override
+                public void addEntry(@NonNull String directory, @NonNull String name, int mode,
+                        int size, int lastModifiedSecs) {
+                    listings.get(directory).addEntry(name, mode, size, lastModifiedSecs);
+                }
+            });
+
+            for (String path : paths) {
+                DirectoryListing listing = listings.get(path);
+                Collections.sort(listing.mChildren, FileEntry.sEntryComparator);
+                listing.mDirectory.setChildren(listing.mChildren);
+                listing.mDirectory.fetchTime = now;
+                pending.addAll(listing.mNewDirectories);
+            }
+        }
+    }
+
+    /**
+     * Collects the directories of a tree fetched by {@link #fetchTree(FileEntry, SyncService)}
+     * in <var>listed</var>, and the ones that were not in <var>unlisted</var>.
+     */
+    private static void collectDirectories(@NonNull FileEntry directory,
+            @NonNull List<FileEntry> listed, @NonNull ArrayDeque<FileEntry> unlisted) {
+        if (directory.fetchTime == 0 || directory.lastModifiedSecs == -1) {
+            unlisted.add(directory);
+            return;
+        }
+        listed.add(directory);
+        for (FileEntry child : directory.mChildren) {
+            if (child.type == TYPE_DIRECTORY) {
+                collectDirectories(child, listed, unlisted);
+            }
+        }
+    }
+
+    /**
+     * Returns the path of a directory for the sync service, with a trailing separator so that a
+     * link to a directory is followed.
+     */
+    @NonNull
+    private static String getDirectoryPath(@NonNull FileEntry directory) {
+        String path = directory.getFullPath();
+        return path.endsWith(FILE_SEPARATOR) ? path : path + FILE_SEPARATOR;
+    }
+
+    /**
+     * Creates and updates the entries listed by the sync service, with the same information as
+     * <code>ls -l</code> gives, except the owner and group.
+     */
+    private static final class SyncEntryFactory {
+        private final DateFormat mDateFormat = new SimpleDateFormat("yyyy-MM-dd", Locale.US); //$NON-NLS-1$
+        private final DateFormat mTimeFormat = new SimpleDateFormat("HH:mm", Locale.US); //$NON-NLS-1$
+
+        @NonNull
+        FileEntry createEntry(@NonNull FileEntry parent, @NonNull String name, int mode) {
+            return new FileEntry(parent, name, SyncService.getFileType(mode), false /* isRoot */);
+        }
+
+        void updateEntry(@NonNull FileEntry entry, int mode, int size, int lastModifiedSecs) {
+            Date date = new Date(lastModifiedSecs * 1000L);
+            entry.type = SyncService.getFileType(mode);
+            entry.permissions = getPermissions(mode);
+            entry.size = Integer.toString(size);
+            entry.date = mDateFormat.format(date);
+            entry.time = mTimeFormat.format(date);
+            entry.lastModifiedSecs = lastModifiedSecs;
+        }
+
+        /** Returns the permission string of a mode, as printed by <code>ls -l</code>. */
+        @NonNull
+        private static String getPermissions(int mode) {
+            char[] permissions = new char[10];
+            switch (mode & 0xF000) {
+                case 0x4000: permissions[0] = 'd'; break;
+                case 0xA000: permissions[0] = 'l'; break;
+                case 0x6000: permissions[0] = 'b'; break;
+                case 0x2000: permissions[0] = 'c'; break;
+                case 0xC000: permissions[0] = 's'; break;
+                case 0x1000: permissions[0] = 'p'; break;
+                default: permissions[0] = '-'; break;
+            }
+            for (int i = 0; i < 3; i++) {
+                int bits = mode >> (6 - 3 * i);
+                permissions[1 + 3 * i] = (bits & 4) != 0 ? 'r' : '-';
+                permissions[2 + 3 * i] = (bits & 2) != 0 ? 'w' : '-';
+                permissions[3 + 3 * i] = (bits & 1) != 0 ? 'x' : '-';
+            }
+            if ((mode & 0x800) != 0) {
+                permissions[3] = permissions[3] == 'x' ? 's' : 'S';
+            }
+            if ((mode & 0x400) != 0) {
+                permissions[6] = permissions[6] == 'x' ? 's' : 'S';
+            }
+            if ((mode & 0x200) != 0) {
+                permissions[9] = permissions[9] == 'x' ? 't' : 'T';
+            }
+            return new String(permissions);
+        }
+    }
+
+    /** The new children of a directory listed by {@link #fetchTree(FileEntry, SyncService)}. */
+    private static final class DirectoryListing {
+        final FileEntry mDirectory;
+        final ArrayList<FileEntry> mChildren = new ArrayList<FileEntry>();
+        /** The directories that were not children of the directory before this listing */
+        final List<FileEntry> mNewDirectories = new ArrayList<FileEntry>();
+        private final Map<String, FileEntry> mPreviousChildren = new HashMap<String, FileEntry>();
+        private final SyncEntryFactory mFactory;
+
+        DirectoryListing(@NonNull FileEntry directory, @NonNull SyncEntryFactory factory) {
+            mDirectory = directory;
+            mFactory = factory;
+            // To prevent collapse during update, the entries of the files that were already
+            // there are reused.
+            for (FileEntry child : directory.mChildren) {
+                mPreviousChildren.put(child.name, child);
+            }
+        }
+
+        void addEntry(@NonNull String name, int mode, int size, int lastModifiedSecs) {
+            if (name.equals(".")) { //$NON-NLS-1$
+                mDirectory.lastModifiedSecs = lastModifiedSecs;
+                return;
+            } else if (name.equals("..")) { //$NON-NLS-1$
+                return;
+            }
+
+            FileEntry entry = mPreviousChildren.remove(name);
+            boolean isNew = entry == null;
+            if (isNew) {
+                entry = mFactory.createEntry(mDirectory, name, mode);
+            }
+            mFactory.updateEntry(entry, mode, size, lastModifiedSecs);
+            mChildren.add(entry);
+            if (entry.type == TYPE_DIRECTORY && (isNew || entry.fetchTime == 0)) {
+                mNewDirectories.add(entry);
+            }
+        }
+    }
+
+    /**
+     * Iterator over the entries of a device directory tree, returned by
+     * {@link FileListingService#walkTree(FileEntry, SyncService)}.
+     */
+    public static final class TreeIterator {
+        private final SyncService mSync;
+        private final SyncEntryFactory mFactory = new SyncEntryFactory();
+        /** The directories left to list */
+        private final ArrayDeque<FileEntry> mDirectories = new ArrayDeque<FileEntry>();
+        /** The listed entries not returned yet */
+        private final ArrayDeque<FileEntry> mEntries = new ArrayDeque<FileEntry>();
+
+        private TreeIterator(@NonNull FileEntry root, @NonNull SyncService sync) {
+            mSync = sync;
+            mDirectories.add(root);
+        }
+
+        /**
+         * Returns the next entry of the tree, listing the next directories if needed. A
+         * directory is returned before its content.
+         * @return the next entry, or null when all the entries were returned.
+         * @throws TimeoutException in case of a timeout reading responses from the device.
+         * @throws IOException in case of I/O error on the connection.
+         */
+        @Nullable
+        public FileEntry next() throws TimeoutException, IOException {
+            while (mEntries.isEmpty()) {
+                if (mDirectories.isEmpty()) {
+                    return null;
+                }
+                listDirectories();
+            }
+            return mEntries.poll();
+        }
+
+        private void listDirectories() throws TimeoutException, IOException {
+            int count = Math.min(mDirectories.size(), SYNC_BATCH_SIZE);
+            final Map<String, FileEntry> directories = new HashMap<String, FileEntry>();
+            String[] paths = new String[count];
+            for (int i = 0; i < count; i++) {
+                FileEntry directory = mDirectories.poll();
+                paths[i] = getDirectoryPath(directory);
+                directories.put(paths[i], directory);
+            }
+
+            mSync.listDirectories(paths, new IDirectoryEntryReceiver() {
+                @Override
+                public void addEntry(@NonNull String directory, @NonNull String name, int mode,
+                        int size, int lastModifiedSecs) {
+                    if (name.equals(".") || name.equals("..")) { //$NON-NLS-1$ //$NON-NLS-2$
+                        return;
+                    }
+                    FileEntry entry = mFactory.createEntry(directories.get(directory), name, mode);
+                    mFactory.updateEntry(entry, mode, size, lastModifiedSecs);
+                    mEntries.add(entry);
+                    if (entry.type == TYPE_DIRECTORY) {
+                        mDirectories.add(entry);
+                    }
+                }
+            });
+        }
+    }
 }
@@ -395,6 +395,11 @@ final class HandleHeap extends ChunkHandler {
             handler.onSuccess(stuff, client);
         }
 
+        AllocationAggregator aggregator = client.getClientData().getAllocationAggregator();
+        if (aggregator != null) {
+            aggregator.add(ByteBuffer.wrap(stuff));
+        }
+
         client.getClientData().setAllocationsData(stuff);
         client.update(Client.CHANGE_HEAP_ALLOCATIONS);
 
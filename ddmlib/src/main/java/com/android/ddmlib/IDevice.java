@@ -331,6 +331,19 @@ public interface IDevice extends IShellEnabledDevice {
     RawImage getScreenshot(long timeout, TimeUnit unit)
             throws TimeoutException, AdbCommandRejectedException, IOException;
 
+    /**
+     * Starts capturing frames of the screen of the device continuously, at up to a target rate.
+     * The frames are sent to the receiver on a thread of the capture, until
+     * {@link ScreenCapture#stop()} is called or the capture fails.
+     *
+     * @param framesPerSecond the target frame rate, or 0 to capture as fast as possible.
+     * @param receiver the receiver of the frames.
+     * @return the running capture.
+     */
+    @NonNull
+    ScreenCapture startScreenCapture(int framesPerSecond,
+            @NonNull ScreenCapture.IFrameReceiver receiver);
+
     /**
      * Initiates screen recording on the device if the device supports {@link Feature#SCREEN_RECORD}.
      */
@@ -32,7 +32,8 @@ import java.nio.channels.SocketChannel;
  * be accessing the same ByteBuffers, external sync will be required.
  *
  * Use the constructor to create an empty packet, or "findPacket()" to
- * wrap a JdwpPacket around existing data.
+ * wrap a JdwpPacket around existing data.  Packets found by a
+ * JdwpReadBuffer sit at an offset in its buffer, and are consumed by it.
  */
 public final class JdwpPacket {
     public static final int JDWP_HEADER_LEN = 11;
@@ -40,6 +41,9 @@ public final class JdwpPacket {
     private static final int REPLY_PACKET = 0x80;
 
     private ByteBuffer mBuffer;
+    /** Offset of the packet in mBuffer, for packets found in a JdwpReadBuffer */
+    private int mOffset;
+    private JdwpReadBuffer mReadBuffer;
     private int mLength;
     private int mId;
     private int mFlags;
@@ -115,7 +119,7 @@ public final class JdwpPacket {
         ByteBuffer buf;
         int oldPosn = mBuffer.position();
 
-        mBuffer.position(JDWP_HEADER_LEN);
+        mBuffer.position(mOffset + JDWP_HEADER_LEN);
         buf = mBuffer.slice();     // goes from position to limit
         mBuffer.position(oldPosn);
 
@@ -125,6 +129,44 @@ public final class JdwpPacket {
         return buf;
     }
 
+    /**
+     * Return the type of the first chunk of the payload.
+     */
+    int getChunkType() {
+        ByteOrder oldOrder = mBuffer.order();
+        mBuffer.order(ChunkHandler.CHUNK_ORDER);
+        int type = mBuffer.getInt(mOffset + JDWP_HEADER_LEN);
+        mBuffer.order(oldOrder);
+        return type;
+    }
+
+    /**
+     * Return the length of the first chunk of the payload, not including
+     * the chunk header.
+     */
+    int getChunkLength() {
+        ByteOrder oldOrder = mBuffer.order();
+        mBuffer.order(ChunkHandler.CHUNK_ORDER);
+        int length = mBuffer.getInt(mOffset + JDWP_HEADER_LEN + 4);
+        mBuffer.order(oldOrder);
+        return length;
+    }
+
+    /**
+     * Return a read-only slice of the data of the first chunk of the
+     * payload, past the chunk header to the end of the packet.  The chunk
+     * is not copied: the slice is only valid until the packet is consumed.
+     */
+    ByteBuffer getChunkData() {
+        ByteBuffer buf = mBuffer.asReadOnlyBuffer();
+
+        buf.limit(mOffset + mLength);
+        buf.position(mOffset + JDWP_HEADER_LEN + ChunkHandler.CHUNK_HEADER_LEN);
+        buf = buf.slice();
+        buf.order(ChunkHandler.CHUNK_ORDER);
+        return buf;
+    }
+
     /**
      * Returns "true" if this JDWP packet is tagged as a reply.
      */
@@ -166,20 +208,21 @@ public final class JdwpPacket {
     /**
      * Write our packet to "chan".
      *
-     * The JDWP packet starts at offset 0 and ends at mBuffer.position().
+     * The JDWP packet starts at offset 0 and ends at mBuffer.position(),
+     * or sits at its offset in the buffer of a JdwpReadBuffer.
      */
     void write(SocketChannel chan) throws IOException {
         assert mLength > 0;
 
         int oldPosn = mBuffer.position();
-        mBuffer.position(0);
-        mBuffer.limit(mLength);
+        mBuffer.position(mOffset);
+        mBuffer.limit(mOffset + mLength);
 
         while (mBuffer.position() != mBuffer.limit()) {
             chan.write(mBuffer);
         }
         // position should now be at end of packet
-        assert mBuffer.position() == mLength;
+        assert mBuffer.position() == mOffset + mLength;
 
         mBuffer.limit(mBuffer.capacity());
         mBuffer.position(oldPosn);
@@ -192,8 +235,8 @@ public final class JdwpPacket {
     void move(ByteBuffer buf) {
         int oldPosn = mBuffer.position();
 
-        mBuffer.position(0);
-        mBuffer.limit(mLength);
+        mBuffer.position(mOffset);
+        mBuffer.limit(mOffset + mLength);
         buf.put(mBuffer);
 
         mBuffer.limit(mBuffer.capacity());
@@ -207,6 +250,12 @@ public final class JdwpPacket {
      */
     void consume()
     {
+        if (mReadBuffer != null) {
+            // the packet sits in a read buffer, which skips it without copying
+            mReadBuffer.consume(this);
+            return;
+        }
+
         /*
          * The "flip" call sets "limit" equal to the position (usually the
          * end of data) and "position" equal to zero.
@@ -239,7 +288,16 @@ public final class JdwpPacket {
      * a valid JDWP packet.
      */
     static JdwpPacket findPacket(ByteBuffer buf) {
-        int count = buf.position();
+        return findPacket(buf, 0, null);
+    }
+
+    /**
+     * Find the JDWP packet at "offset" in the buffer of a JdwpReadBuffer.
+     * The packet data ends at "position".  The packet is consumed by the
+     * read buffer rather than by compacting the buffer.
+     */
+    static JdwpPacket findPacket(ByteBuffer buf, int offset, JdwpReadBuffer readBuffer) {
+        int count = buf.position() - offset;
         int length, id, flags, cmdSet, cmd;
 
         if (count < JDWP_HEADER_LEN)
@@ -248,11 +306,11 @@ public final class JdwpPacket {
         ByteOrder oldOrder = buf.order();
         buf.order(ChunkHandler.CHUNK_ORDER);
 
-        length = buf.getInt(0x00);
-        id = buf.getInt(0x04);
-        flags = buf.get(0x08) & 0xff;
-        cmdSet = buf.get(0x09) & 0xff;
-        cmd = buf.get(0x0a) & 0xff;
+        length = buf.getInt(offset + 0x00);
+        id = buf.getInt(offset + 0x04);
+        flags = buf.get(offset + 0x08) & 0xff;
+        cmdSet = buf.get(offset + 0x09) & 0xff;
+        cmd = buf.get(offset + 0x0a) & 0xff;
 
         buf.order(oldOrder);
 
@@ -263,6 +321,8 @@ public final class JdwpPacket {
 
         JdwpPacket pkt = new JdwpPacket(buf);
         //pkt.mBuffer = buf;
+        pkt.mOffset = offset;
+        pkt.mReadBuffer = readBuffer;
         pkt.mLength = length;
         pkt.mId = id;
         pkt.mFlags = flags;
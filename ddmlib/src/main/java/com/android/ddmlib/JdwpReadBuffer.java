@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * The buffer a JDWP connection reads packets into, from a {@link BufferPool}.
+ * <p>
+ * The packets are found in place, one after the other, and consuming a packet only skips it:
+ * the data left is moved to the start of the buffer only when the buffer is full, instead of
+ * after each packet. When the header of a packet larger than the buffer has been read, the
+ * buffer is replaced with one of the size of the packet, instead of growing in steps. A buffer
+ * larger than {@link #KEEP_SIZE} goes back to the pool once its packets are consumed, so that
+ * a connection only holds a large buffer while it receives a large packet.
+ * <p>
+ * This is only used from the monitor thread, and is not synchronized.
+ */
+final class JdwpReadBuffer {
+
+    /** Largest buffer kept by a connection between packets */
+    static final int KEEP_SIZE = 64 * 1024;
+
+    @NonNull private final BufferPool mPool;
+    private final int mInitialSize;
+    private final int mMaxSize;
+
+    /** The data starts at mStart, and ends at the position of the buffer */
+    @NonNull private ByteBuffer mBuffer;
+    private int mStart = 0;
+
+    JdwpReadBuffer(@NonNull BufferPool pool, int initialSize, int maxSize) {
+        mPool = pool;
+        mInitialSize = initialSize;
+        mMaxSize = maxSize;
+        mBuffer = pool.acquire(initialSize);
+    }
+
+    /**
+     * Reads data from a channel, making room for it first.
+     *
+     * @return the number of bytes read.
+     * @throws IOException if the channel is closed, or in case of I/O error.
+     * @throws BufferOverflowException if a packet is larger than the maximum size.
+     */
+    int read(@NonNull ReadableByteChannel chan) throws IOException {
+        int packetLength = getPendingPacketLength();
+        if (!mBuffer.hasRemaining() || mStart + packetLength > mBuffer.capacity()) {
+            makeRoom(packetLength);
+        }
+
+        int count = chan.read(mBuffer);
+        if (count < 0) {
+            throw new IOException("read failed");
+        }
+        return count;
+    }
+
+    /**
+     * Returns the buffer, whose data starts at offset 0 while nothing has been consumed, for the
+     * JDWP handshake to be found at the start of a connection.
+     */
+    @NonNull
+    ByteBuffer getBuffer() {
+        return mBuffer;
+    }
+
+    /**
+     * Returns the number of bytes read and not consumed.
+     */
+    int getLength() {
+        return mBuffer.position() - mStart;
+    }
+
+    /**
+     * Returns the first full packet of the buffer, or null if there is none yet.
+     */
+    @Nullable
+    JdwpPacket findPacket() {
+        return JdwpPacket.findPacket(mBuffer, mStart, this);
+    }
+
+    /**
+     * Skips a packet found with {@link #findPacket()}.
+     */
+    void consume(@NonNull JdwpPacket packet) {
+        mStart += packet.getLength();
+        if (mStart == mBuffer.position()) {
+            // empty, start over at the beginning of the buffer
+            mStart = 0;
+            mBuffer.clear();
+            if (mBuffer.capacity() > KEEP_SIZE) {
+                mPool.release(mBuffer);
+                mBuffer = mPool.acquire(mInitialSize);
+            }
+        }
+    }
+
+    /**
+     * Returns the length of the packet partially read at the start of the data, or 0 if its
+     * header is not read yet.
+     */
+    private int getPendingPacketLength() {
+        if (getLength() < JdwpPacket.JDWP_HEADER_LEN) {
+            return 0;
+        }
+        // the buffer is big endian, like JDWP
+        return mBuffer.getInt(mStart);
+    }
+
+    /**
+     * Moves the data to the start of the buffer, or to a larger buffer if the buffer cannot hold
+     * the pending packet.
+     */
+    private void makeRoom(int packetLength) {
+        int length = getLength();
+        int size = Math.max(packetLength, length + 1);
+        if (size > mMaxSize) {
+            Log.e("ddms", "Exceeded MAX_BUF_SIZE!");
+            throw new BufferOverflowException();
+        }
+
+        mBuffer.flip();
+        mBuffer.position(mStart);
+        if (size <= mBuffer.capacity()) {
+            mBuffer.compact();
+        } else {
+            if (Log.Config.LOGV) Log.v("ddms", "Reading a packet of " + size + " bytes");
+            ByteBuffer buffer = mPool.acquire(size);
+            buffer.put(mBuffer);
+            mPool.release(mBuffer);
+            mBuffer = buffer;
+        }
+        mStart = 0;
+    }
+}
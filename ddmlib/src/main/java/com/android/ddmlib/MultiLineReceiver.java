@@ -49,7 +49,7 @@ public abstract class MultiLineReceiver implements IShellOutputReceiver {
      *      byte[], int, int)
      */
     @Override
-    public final void addOutput(byte[] data, int offset, int length) {
+    public void addOutput(byte[] data, int offset, int length) {
         if (!isCancelled()) {
             String s = new String(data, offset, length, Charsets.UTF_8);
 
@@ -106,7 +106,7 @@ public abstract class MultiLineReceiver implements IShellOutputReceiver {
      * @see com.android.ddmlib.adb.IShellOutputReceiver#flush()
      */
     @Override
-    public final void flush() {
+    public void flush() {
         if (mUnfinishedLine != null) {
             processNewLines(new String[] { mUnfinishedLine });
         }
@@ -0,0 +1,500 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ddmlib.SyncService.ISyncProgressMonitor;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Pushes a file to, or installs a package on, several devices concurrently.
+ * <p>
+ * Each device is handled by its own task, with at most {@link #getMaxConcurrentDevices()}
+ * devices being worked on at a time. Since ddmlib talks to a single adb server, this bounds the
+ * number of concurrent transfers going through it, whatever the number of devices.
+ * <p>
+ * Before pushing a file to a device, its MD5 is compared with the one of the remote file, if
+ * any, computed with {@code md5sum} (or {@code md5} on older devices). Devices which already
+ * have the same file are skipped.
+ * <p>
+ * A device which fails with an I/O error, a timeout or a rejected adb command is retried, up to
+ * {@link #getMaxAttempts()} attempts, after a delay doubling with each attempt. Other errors, such
+ * as a package failing to install, are not retried.
+ * <p>
+ * An instance can be used for several deployments.
+ */
+public class ParallelDeployer {
+    private static final String LOG_TAG = "ParallelDeployer"; //$NON-NLS-1$
+
+    /** Default number of devices deployed to at a time */
+    public static final int DEFAULT_MAX_CONCURRENT_DEVICES = 8;
+    /** Default number of attempts per device */
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+    /** Default delay before the first retry of a device, in ms */
+    public static final long DEFAULT_INITIAL_BACKOFF_MS = 1000;
+    /** Maximum delay before a retry, in ms */
+    private static final long MAX_BACKOFF_MS = 60 * 1000;
+
+    /** Directory where packages are pushed before being installed, like {@link Device} does */
+    private static final String REMOTE_PACKAGE_DIR = "/data/local/tmp/"; //$NON-NLS-1$
+
+    private static final Pattern MD5_PATTERN = Pattern.compile("\\b([0-9a-fA-F]{32})\\b");
+
+    /** The outcome of a deployment to one device */
+    public enum Status {
+        /** The file was pushed, and the package installed if requested */
+        DEPLOYED,
+        /** The device already had the same file, it was not pushed again */
+        SKIPPED,
+        /** All the attempts failed, see {@link Result#getError()} */
+        FAILED,
+        /** The deployment was canceled before this device completed */
+        CANCELED
+    }
+
+    /** The result of a deployment to one device */
+    public static final class Result {
+        @NonNull private final Status mStatus;
+        private final int mAttempts;
+        @Nullable private final Exception mError;
+
+        Result(@NonNull Status status, int attempts, @Nullable Exception error) {
+            mStatus = status;
+            mAttempts = attempts;
+            mError = error;
+        }
+
+        @NonNull
+        public Status getStatus() {
+            return mStatus;
+        }
+
+        /** Returns the number of attempts made on this device */
+        public int getAttempts() {
+            return mAttempts;
+        }
+
+        /** Returns the error of the last attempt, if the deployment failed */
+        @Nullable
+        public Exception getError() {
+            return mError;
+        }
+
+        @Override
+        public String toString() {
+            return mStatus + " after " + mAttempts + " attempt(s)"
+                    + (mError != null ? ": " + mError.getMessage() : "");
+        }
+    }
+
+    /**
+     * Receives the progress of a deployment. Methods are called from the threads of the
+     * deployment, possibly concurrently for different devices.
+     */
+    public interface IDeploymentListener {
+        /** Called when an attempt on a device starts */
+        void deviceStarted(@NonNull IDevice device, int attempt);
+
+        /**
+         * Called as the file is pushed to a device.
+         * @param transferred the number of bytes pushed so far
+         * @param total the size of the file
+         */
+        void deviceProgress(@NonNull IDevice device, long transferred, long total);
+
+        /** Called when an attempt on a device failed, and will be retried after a delay */
+        void deviceRetrying(@NonNull IDevice device, int attempt, @NonNull Exception error,
+                long delayMs);
+
+        /** Called when a device is done, with its final result */
+        void deviceCompleted(@NonNull IDevice device, @NonNull Result result);
+    }
+
+    /** A listener that does nothing */
+    private static final IDeploymentListener sNullListener = new IDeploymentListener() {
+        @Override
+        public void deviceStarted(@NonNull IDevice device, int attempt) {
+        }
+
+        @Override
+        public void deviceProgress(@NonNull IDevice device, long transferred, long total) {
+        }
+
+        @Override
+        public void deviceRetrying(@NonNull IDevice device, int attempt,
+                @NonNull Exception error, long delayMs) {
+        }
+
+        @Override
+        public void deviceCompleted(@NonNull IDevice device, @NonNull Result result) {
+        }
+    };
+
+    private final int mMaxConcurrentDevices;
+    private int mMaxAttempts = DEFAULT_MAX_ATTEMPTS;
+    private long mInitialBackoffMs = DEFAULT_INITIAL_BACKOFF_MS;
+    private boolean mSkipIdenticalFiles = true;
+    private long mShellTimeoutMs = DdmPreferences.getTimeOut();
+
+    /** Creates a deployer working on {@link #DEFAULT_MAX_CONCURRENT_DEVICES} devices at a time */
+    public ParallelDeployer() {
+        this(DEFAULT_MAX_CONCURRENT_DEVICES);
+    }
+
+    /**
+     * Creates a deployer.
+     * @param maxConcurrentDevices the maximum number of devices deployed to at a time
+     */
+    public ParallelDeployer(int maxConcurrentDevices) {
+        if (maxConcurrentDevices < 1) {
+            throw new IllegalArgumentException("maxConcurrentDevices must be at least 1");
+        }
+        mMaxConcurrentDevices = maxConcurrentDevices;
+    }
+
+    public int getMaxConcurrentDevices() {
+        return mMaxConcurrentDevices;
+    }
+
+    public int getMaxAttempts() {
+        return mMaxAttempts;
+    }
+
+    /** Sets the number of attempts per device. 1 disables retries. */
+    public void setMaxAttempts(int maxAttempts) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be at least 1");
+        }
+        mMaxAttempts = maxAttempts;
+    }
+
+    /** Sets the delay before the first retry of a device. Later retries double it. */
+    public void setInitialBackoff(long backoff, @NonNull TimeUnit unit) {
+        mInitialBackoffMs = unit.toMillis(backoff);
+    }
+
+    /** Sets whether devices which already have an identical file are skipped. */
+    public void setSkipIdenticalFiles(boolean skipIdenticalFiles) {
+        mSkipIdenticalFiles = skipIdenticalFiles;
+    }
+
+    /** Sets the timeout of the shell commands run to hash remote files. */
+    public void setShellTimeout(long timeout, @NonNull TimeUnit unit) {
+        mShellTimeoutMs = unit.toMillis(timeout);
+    }
+
+    /**
+     * Pushes a file to several devices, and waits for all of them to complete.
+     *
+     * @param devices the devices to push the file to
+     * @param localPath the local file
+     * @param remotePath the remote path of the file on each device
+     * @param listener the listener to notify of the progress, or null
+     * @return the result for each device, in the order of <var>devices</var>
+     * @throws IOException if the local file cannot be read
+     * @throws InterruptedException if the calling thread is interrupted. The deployment is
+     *            canceled.
+     */
+    @NonNull
+    public Map<IDevice, Result> pushFile(@NonNull Collection<? extends IDevice> devices,
+            @NonNull String localPath, @NonNull String remotePath,
+            @Nullable IDeploymentListener listener) throws IOException, InterruptedException {
+        return deploy(devices, localPath, remotePath, null, listener);
+    }
+
+    /**
+     * Installs a package on several devices, and waits for all of them to complete.
+     * <p>
+     * The package is pushed to {@code /data/local/tmp} and installed from there, like
+     * {@link IDevice#installPackage(String, boolean, String...)} does. Unlike it, the pushed
+     * package is left on the device, such that deploying the same package again skips the push.
+     *
+     * @param devices the devices to install the package on
+     * @param packageFilePath the local path of the package
+     * @param reinstall set to <code>true</code> if re-install of app should be performed
+     * @param listener the listener to notify of the progress, or null
+     * @param extraArgs optional extra arguments to pass. See 'adb shell pm install --help' for
+     *            available options.
+     * @return the result for each device, in the order of <var>devices</var>
+     * @throws IOException if the local file cannot be read
+     * @throws InterruptedException if the calling thread is interrupted. The deployment is
+     *            canceled.
+     */
+    @NonNull
+    public Map<IDevice, Result> installPackage(@NonNull Collection<? extends IDevice> devices,
+            @NonNull String packageFilePath, boolean reinstall,
+            @Nullable IDeploymentListener listener, String... extraArgs)
+            throws IOException, InterruptedException {
+        String remotePath = REMOTE_PACKAGE_DIR + new File(packageFilePath).getName();
+        return deploy(devices, packageFilePath, remotePath, new Install(reinstall, extraArgs),
+                listener);
+    }
+
+    @NonNull
+    private Map<IDevice, Result> deploy(@NonNull Collection<? extends IDevice> devices,
+            @NonNull String localPath, @NonNull String remotePath, @Nullable Install install,
+            @Nullable IDeploymentListener listener) throws IOException, InterruptedException {
+        File localFile = new File(localPath);
+        if (!localFile.isFile()) {
+            throw new IOException("Not a file: " + localPath);
+        }
+        String md5 = mSkipIdenticalFiles
+                ? Files.hash(localFile, Hashing.md5()).toString() : null;
+
+        Deployment deployment = new Deployment(localFile, remotePath, md5, install,
+                listener != null ? listener : sNullListener, devices.size());
+        try {
+            for (IDevice device : devices) {
+                deployment.submit(new DeviceTask(deployment, device), 0);
+            }
+            deployment.await();
+        } finally {
+            deployment.shutdown();
+        }
+
+        Map<IDevice, Result> results = new LinkedHashMap<IDevice, Result>();
+        for (IDevice device : devices) {
+            Result result = deployment.mResults.get(device);
+            results.put(device, result != null ? result : new Result(Status.CANCELED, 0, null));
+        }
+        return Collections.unmodifiableMap(results);
+    }
+
+    /** The package installation done after the push, when deploying a package */
+    private static final class Install {
+        final boolean reinstall;
+        final String[] extraArgs;
+
+        Install(boolean reinstall, String[] extraArgs) {
+            this.reinstall = reinstall;
+            this.extraArgs = extraArgs;
+        }
+    }
+
+    /** The state of one call to {@link #deploy} */
+    private final class Deployment {
+        @NonNull final File mLocalFile;
+        @NonNull final String mRemotePath;
+        @Nullable final String mMd5;
+        @Nullable final Install mInstall;
+        @NonNull final IDeploymentListener mListener;
+        final Map<IDevice, Result> mResults = new ConcurrentHashMap<IDevice, Result>();
+        private final CountDownLatch mRemaining;
+        private final ScheduledExecutorService mExecutor;
+        private volatile boolean mCanceled;
+
+        Deployment(@NonNull File localFile, @NonNull String remotePath, @Nullable String md5,
+                @Nullable Install install, @NonNull IDeploymentListener listener,
+                int deviceCount) {
+            mLocalFile = localFile;
+            mRemotePath = remotePath;
+            mMd5 = md5;
+            mInstall = install;
+            mListener = listener;
+            mRemaining = new CountDownLatch(deviceCount);
+            mExecutor = new ScheduledThreadPoolExecutor(
+                    Math.max(1, Math.min(mMaxConcurrentDevices, deviceCount)),
+                    new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(@NonNull Runnable runnable) {
+                            Thread thread = new Thread(runnable,
+                                    "Deployer " + mCount.incrementAndGet()); //$NON-NLS-1$
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+
+        void submit(@NonNull Runnable task, long delayMs) {
+            try {
+                mExecutor.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // the deployment was canceled, and is over
+            }
+        }
+
+        void complete(@NonNull IDevice device, @NonNull Result result) {
+            mResults.put(device, result);
+            mListener.deviceCompleted(device, result);
+            mRemaining.countDown();
+        }
+
+        boolean isCanceled() {
+            return mCanceled;
+        }
+
+        void await() throws InterruptedException {
+            try {
+                mRemaining.await();
+            } catch (InterruptedException e) {
+                mCanceled = true;
+                throw e;
+            }
+        }
+
+        void shutdown() {
+            mExecutor.shutdownNow();
+        }
+    }
+
+    /** Deploys to one device, and schedules a new attempt of itself when it fails */
+    private final class DeviceTask implements Runnable {
+        @NonNull private final Deployment mDeployment;
+        @NonNull private final IDevice mDevice;
+        private int mAttempts;
+
+        DeviceTask(@NonNull Deployment deployment, @NonNull IDevice device) {
+            mDeployment = deployment;
+            mDevice = device;
+        }
+
+        @Override
+        public void run() {
+            if (mDeployment.isCanceled()) {
+                mDeployment.complete(mDevice, new Result(Status.CANCELED, mAttempts, null));
+                return;
+            }
+
+            mAttempts++;
+            mDeployment.mListener.deviceStarted(mDevice, mAttempts);
+            try {
+                Status status = deploy();
+                mDeployment.complete(mDevice, new Result(status, mAttempts, null));
+            } catch (Exception e) {
+                if (mDeployment.isCanceled() || isCancellation(e)) {
+                    mDeployment.complete(mDevice, new Result(Status.CANCELED, mAttempts, e));
+                } else if (mAttempts < mMaxAttempts && isTransient(e)) {
+                    long delay = Math.min(MAX_BACKOFF_MS, mInitialBackoffMs << (mAttempts - 1));
+                    Log.w(LOG_TAG, String.format(
+                            "Deploying to %1$s failed (%2$s), retrying in %3$d ms",
+                            mDevice.getSerialNumber(), e.getMessage(), delay));
+                    mDeployment.mListener.deviceRetrying(mDevice, mAttempts, e, delay);
+                    mDeployment.submit(this, delay);
+                } else {
+                    Log.e(LOG_TAG, String.format("Deploying to %1$s failed: %2$s",
+                            mDevice.getSerialNumber(), e.getMessage()));
+                    mDeployment.complete(mDevice, new Result(Status.FAILED, mAttempts, e));
+                }
+            }
+        }
+
+        @NonNull
+        private Status deploy() throws Exception {
+            Status status = Status.DEPLOYED;
+            if (mDeployment.mMd5 != null && mDeployment.mMd5.equals(getRemoteMd5())) {
+                status = Status.SKIPPED;
+            } else {
+                push();
+            }
+            if (mDeployment.mInstall != null) {
+                mDevice.installRemotePackage(mDeployment.mRemotePath,
+                        mDeployment.mInstall.reinstall, mDeployment.mInstall.extraArgs);
+            }
+            return status;
+        }
+
+        /** Returns the MD5 of the remote file, or null if it does not exist or can't be hashed */
+        @Nullable
+        private String getRemoteMd5() throws Exception {
+            CollectingOutputReceiver receiver = new CollectingOutputReceiver();
+            String path = "'" + mDeployment.mRemotePath.replace("'", "'\\''") + "'";
+            mDevice.executeShellCommand(
+                    "md5sum " + path + " 2>/dev/null || md5 " + path + " 2>/dev/null",
+                    receiver, mShellTimeoutMs, TimeUnit.MILLISECONDS);
+            Matcher matcher = MD5_PATTERN.matcher(receiver.getOutput());
+            return matcher.find() ? matcher.group(1).toLowerCase(Locale.US) : null;
+        }
+
+        private void push() throws Exception {
+            SyncService sync = mDevice.getSyncService();
+            if (sync == null) {
+                throw new IOException("Unable to open sync connection!");
+            }
+            try {
+                final long total = mDeployment.mLocalFile.length();
+                sync.pushFile(mDeployment.mLocalFile.getPath(), mDeployment.mRemotePath,
+                        new ISyncProgressMonitor() {
+                            private long mTransferred;
+
+                            @Override
+                            public void start(int totalWork) {
+                            }
+
+                            @Override
+                            public void stop() {
+                            }
+
+                            @Override
+                            public boolean isCanceled() {
+                                return mDeployment.isCanceled();
+                            }
+
+                            @Override
+                            public void startSubTask(String name) {
+                            }
+
+                            @Override
+                            public void advance(int work) {
+                                mTransferred += work;
+                                mDeployment.mListener.deviceProgress(mDevice, mTransferred,
+                                        total);
+                            }
+                        });
+            } finally {
+                sync.close();
+            }
+        }
+    }
+
+    private static boolean isCancellation(@NonNull Exception e) {
+        return e instanceof CanceledException && ((CanceledException) e).wasCanceled();
+    }
+
+    /** Returns true if the error may go away when retrying */
+    private static boolean isTransient(@NonNull Throwable e) {
+        if (e instanceof InstallException) {
+            return e.getCause() != null && e.getCause() != e && isTransient(e.getCause());
+        }
+        return e instanceof IOException
+                || e instanceof TimeoutException
+                || e instanceof AdbCommandRejectedException
+                || e instanceof ShellCommandUnresponsiveException
+                || e instanceof SyncException;
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Captures the screen of a device continuously, and sends the frames to a receiver.
+ * <p>
+ * The frames are read from the frame buffer of the device, like {@link IDevice#getScreenshot()},
+ * at up to a target rate. They are read into a small pool of images, which are reused for the
+ * next frames instead of allocating a new image for each frame.
+ * <p>
+ * The receiver is called on its own thread, so that the next frame is read while the receiver
+ * processes the current one. When the receiver is slower than the capture, the frames it could
+ * not take are dropped, and it is given the latest frame: the frames never queue up, and the
+ * receiver sees the screen with the delay of at most one frame.
+ */
+public final class ScreenCapture {
+
+    /**
+     * Classes which implement this interface receive the frames of a {@link ScreenCapture}.
+     */
+    public interface IFrameReceiver {
+        /**
+         * Called with each frame. The image is reused for later frames once this method returns,
+         * and must be copied to be kept.
+         *
+         * @param image the frame.
+         * @param index the index of the frame among the captured frames, starting at 0. The
+         *            dropped frames are gaps between the indexes.
+         */
+        void frameReceived(@NonNull RawImage image, int index);
+
+        /**
+         * Called once when the capture stops, after the last frame.
+         *
+         * @param error the error which stopped the capture, or null if it was stopped with
+         *            {@link ScreenCapture#stop()}.
+         */
+        void captureStopped(@Nullable Exception error);
+    }
+
+    private static final String LOG_TAG = "ScreenCapture";
+
+    /** One image being captured, one waiting for the receiver, and one given to the receiver */
+    private static final int POOL_SIZE = 3;
+
+    private final InetSocketAddress mAdbSockAddr;
+    private final IDevice mDevice;
+    private final IFrameReceiver mReceiver;
+    /** Minimum time between the start of two captures, in ns, or 0 */
+    private final long mFrameInterval;
+
+    /** Guards all the fields below */
+    private final Object mLock = new Object();
+    private final ArrayDeque<RawImage> mFreeImages = new ArrayDeque<RawImage>(POOL_SIZE);
+    /** The latest frame, waiting for the receiver */
+    private RawImage mPendingImage = null;
+    private int mPendingIndex = 0;
+    private int mFrameCount = 0;
+    private int mDroppedFrameCount = 0;
+    private boolean mStopped = false;
+    private Exception mError = null;
+
+    private ScreenCapture(@NonNull InetSocketAddress adbSockAddr, @Nullable IDevice device,
+            int framesPerSecond, @NonNull IFrameReceiver receiver) {
+        mAdbSockAddr = adbSockAddr;
+        mDevice = device;
+        mReceiver = receiver;
+        mFrameInterval = framesPerSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / framesPerSecond : 0;
+        for (int i = 0; i < POOL_SIZE; i++) {
+            mFreeImages.add(new RawImage());
+        }
+    }
+
+    /**
+     * Starts capturing the screen of a device.
+     *
+     * @param adbSockAddr the address of adb.
+     * @param device the device, or null to capture the device adb is already connected to.
+     * @param framesPerSecond the target frame rate, or 0 to capture as fast as possible.
+     * @param receiver the receiver of the frames.
+     */
+    @NonNull
+    static ScreenCapture start(@NonNull InetSocketAddress adbSockAddr, @Nullable IDevice device,
+            int framesPerSecond, @NonNull IFrameReceiver receiver) {
+        final ScreenCapture capture =
+                new ScreenCapture(adbSockAddr, device, framesPerSecond, receiver);
+        String name = device != null ? device.getSerialNumber() : adbSockAddr.toString();
+
+        Thread captureThread = new Thread("Screen capture " + name) { //$NON-NLS-1$
+            @Override
+            public void run() {
+                capture.captureFrames();
+            }
+        };
+        captureThread.setDaemon(true);
+        Thread deliveryThread = new Thread("Screen capture receiver " + name) { //$NON-NLS-1$
+            @Override
+            public void run() {
+                capture.deliverFrames();
+            }
+        };
+        deliveryThread.setDaemon(true);
+
+        captureThread.start();
+        deliveryThread.start();
+        return capture;
+    }
+
+    /**
+     * Stops the capture. The receiver is not called with frames anymore once its current frame,
+     * if any, returns.
+     */
+    public void stop() {
+        stop(null);
+    }
+
+    /**
+     * Returns whether the capture is stopped.
+     */
+    public boolean isStopped() {
+        synchronized (mLock) {
+            return mStopped;
+        }
+    }
+
+    /**
+     * Returns the number of frames captured so far, including the dropped frames.
+     */
+    public int getFrameCount() {
+        synchronized (mLock) {
+            return mFrameCount;
+        }
+    }
+
+    /**
+     * Returns the number of frames dropped so far, because the receiver was still busy with a
+     * previous frame.
+     */
+    public int getDroppedFrameCount() {
+        synchronized (mLock) {
+            return mDroppedFrameCount;
+        }
+    }
+
+    private void stop(@Nullable Exception error) {
+        synchronized (mLock) {
+            if (!mStopped) {
+                mStopped = true;
+                mError = error;
+                mLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Reads frames into the free images until the capture stops, and makes each frame the
+     * pending frame, recycling the previous one if the receiver did not take it.
+     */
+    private void captureFrames() {
+        long nextCapture = System.nanoTime();
+        while (true) {
+            RawImage image;
+            synchronized (mLock) {
+                if (mStopped) {
+                    return;
+                }
+                // there is always a free image, since at most one is pending and one received
+                image = mFreeImages.poll();
+            }
+
+            try {
+                if (AdbHelper.getFrameBuffer(mAdbSockAddr, mDevice, image,
+                        DdmPreferences.getTimeOut(), TimeUnit.MILLISECONDS) == null) {
+                    throw new IOException("Unsupported frame buffer protocol");
+                }
+            } catch (Exception e) {
+                Log.w(LOG_TAG, "Failed to capture the screen: " + e.toString());
+                synchronized (mLock) {
+                    mFreeImages.add(image);
+                }
+                stop(e);
+                return;
+            }
+
+            synchronized (mLock) {
+                if (mPendingImage != null) {
+                    mFreeImages.add(mPendingImage);
+                    mDroppedFrameCount++;
+                }
+                mPendingImage = image;
+                mPendingIndex = mFrameCount++;
+                mLock.notifyAll();
+
+                if (mFrameInterval > 0) {
+                    nextCapture += mFrameInterval;
+                    long now = System.nanoTime();
+                    if (nextCapture < now) {
+                        // behind the target rate, don't try to catch up with a burst of frames
+                        nextCapture = now;
+                    }
+                    try {
+                        long wait;
+                        while (!mStopped && (wait = nextCapture - System.nanoTime()) > 0) {
+                            TimeUnit.NANOSECONDS.timedWait(mLock, wait);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Gives the pending frames to the receiver until the capture stops.
+     */
+    private void deliverFrames() {
+        Exception error;
+        try {
+            while (true) {
+                RawImage image;
+                int index;
+                synchronized (mLock) {
+                    while (!mStopped && mPendingImage == null) {
+                        mLock.wait();
+                    }
+                    if (mStopped) {
+                        break;
+                    }
+                    image = mPendingImage;
+                    index = mPendingIndex;
+                    mPendingImage = null;
+                }
+
+                try {
+                    mReceiver.frameReceived(image, index);
+                } catch (RuntimeException e) {
+                    stop(e);
+                } finally {
+                    synchronized (mLock) {
+                        mFreeImages.add(image);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            synchronized (mLock) {
+                error = mError;
+            }
+            mReceiver.captureStopped(error);
+        }
+    }
+}
@@ -22,6 +22,7 @@ import com.android.ddmlib.AdbHelper.AdbResponse;
 import com.android.ddmlib.FileListingService.FileEntry;
 import com.android.ddmlib.SyncException.SyncError;
 import com.android.ddmlib.utils.ArrayHelper;
+import com.google.common.base.Charsets;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -29,9 +30,26 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.Deque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Sync service class to push/pull to/from devices/emulators, through the debug bridge.
@@ -47,8 +65,8 @@ public class SyncService {
     private static final byte[] ID_DATA = { 'D', 'A', 'T', 'A' };
     private static final byte[] ID_DONE = { 'D', 'O', 'N', 'E' };
     private static final byte[] ID_SEND = { 'S', 'E', 'N', 'D' };
-//    private final static byte[] ID_LIST = { 'L', 'I', 'S', 'T' };
-//    private final static byte[] ID_DENT = { 'D', 'E', 'N', 'T' };
+    private static final byte[] ID_LIST = { 'L', 'I', 'S', 'T' };
+    private static final byte[] ID_DENT = { 'D', 'E', 'N', 'T' };
 
     private static final NullSyncProgressMonitor sNullSyncProgressMonitor =
             new NullSyncProgressMonitor();
@@ -81,6 +99,42 @@ public class SyncService {
     private static final int SYNC_DATA_MAX = 64*1024;
     private static final int REMOTE_PATH_MAX_LENGTH = 1024;
 
+    /**
+     * Number of data buffers of a pipelined transfer: one is filled from the file or the socket
+     * while the other one is drained to the other end.
+     */
+    private static final int PIPELINE_BUFFERS = 2;
+
+    /**
+     * Default number of files sent by {@link #pushFiles(String[], String[], ISyncProgressMonitor)}
+     * before waiting for the device to acknowledge the oldest one.
+     */
+    public static final int DEFAULT_PUSH_WINDOW = 8;
+
+    /**
+     * Number of LIST or STAT requests sent by {@link #listDirectories} and {@link #statFiles}
+     * before reading the response of the oldest one. This stays small enough for the requests
+     * to fit in the socket buffers while adbd writes the responses.
+     */
+    private static final int LIST_WINDOW = 32;
+
+    /** Marks the end of the data going through the buffers of a transfer. */
+    private static final ByteBuffer END_OF_DATA = ByteBuffer.allocate(0);
+
+    /** Threads reading or writing the local files of pipelined transfers. */
+    private static final ExecutorService sFileExecutor = Executors.newCachedThreadPool(
+            new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(@NonNull Runnable runnable) {
+                    Thread thread = new Thread(runnable,
+                            "Sync file I/O " + mCount.incrementAndGet()); //$NON-NLS-1$
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
     /**
      * Classes which implement this interface provide methods that deal
      * with displaying transfer progress.
@@ -136,6 +190,24 @@ public class SyncService {
       }
     }
 
+    /**
+     * Classes which implement this interface receive the entries of the directories listed by
+     * {@link SyncService#listDirectories(String[], IDirectoryEntryReceiver)}.
+     */
+    public interface IDirectoryEntryReceiver {
+        /**
+         * Called for each entry of a listed directory, including "." and "..", directory after
+         * directory in the order they were requested. Symbolic links are not followed.
+         * @param directory the listed directory, as requested
+         * @param name the name of the entry
+         * @param mode the mode of the entry
+         * @param size the size of the entry
+         * @param lastModifiedSecs the last modification time of the entry, in seconds
+         */
+        void addEntry(@NonNull String directory, @NonNull String name, int mode, int size,
+                int lastModifiedSecs);
+    }
+
     /**
      * A Sync progress monitor that does nothing
      */
@@ -168,6 +240,17 @@ public class SyncService {
      */
     private byte[] mBuffer;
 
+    /**
+     * Direct buffers used to transfer file data, with room for a DATA header in front of the
+     * data. Allocated when needed and reused afterward, unless a transfer is aborted while the
+     * file thread may still use them.
+     */
+    private ByteBuffer[] mDataBuffers;
+
+    /** Selector used to wait for the channel to be readable or writable. */
+    private Selector mSelector;
+    private SelectionKey mSelectionKey;
+
     /**
      * Creates a Sync service object.
      * @param address The address to connect to
@@ -236,6 +319,15 @@ public class SyncService {
      * Closes the connection.
      */
     public void close() {
+        if (mSelector != null) {
+            try {
+                mSelector.close();
+            } catch (IOException e) {
+                // nothing to be done really...
+            }
+            mSelector = null;
+            mSelectionKey = null;
+        }
         if (mChannel != null) {
             try {
                 mChannel.close();
@@ -409,6 +501,102 @@ public class SyncService {
         monitor.stop();
     }
 
+    /**
+     * Pushes several files in a single sync session, each to its own remote path, with up to
+     * {@link #DEFAULT_PUSH_WINDOW} files sent before the device acknowledged them.
+     * @param local the local filepaths.
+     * @param remote the remote filepaths, in the same order.
+     * @param monitor The progress monitor. Cannot be null.
+     *
+     * @throws SyncException if a file could not be pushed
+     * @throws IOException in case of I/O error on the connection.
+     * @throws TimeoutException in case of a timeout reading responses from the device.
+     *
+     * @see #pushFiles(String[], String[], int, ISyncProgressMonitor)
+     */
+    public void pushFiles(@NonNull String[] local, @NonNull String[] remote,
+            @NonNull ISyncProgressMonitor monitor)
+            throws SyncException, IOException, TimeoutException {
+        pushFiles(local, remote, DEFAULT_PUSH_WINDOW, monitor);
+    }
+
+    /**
+     * Pushes several files in a single sync session, each to its own remote path.
+     * <p>The device acknowledges each file once it is written. Instead of waiting for this after
+     * each file, up to <var>window</var> files are sent before the acknowledgement of the oldest
+     * one is read, so that the connection does not go idle between files. If a file fails, the
+     * files sent after it are not written on the device either.
+     * @param local the local filepaths.
+     * @param remote the remote filepaths, in the same order.
+     * @param window the maximum number of files sent but not acknowledged yet. 1 waits for each
+     *      file to be acknowledged before sending the next one.
+     * @param monitor The progress monitor. Cannot be null.
+     *
+     * @throws SyncException if a file could not be pushed
+     * @throws IOException in case of I/O error on the connection.
+     * @throws TimeoutException in case of a timeout reading responses from the device.
+     */
+    public void pushFiles(@NonNull String[] local, @NonNull String[] remote, int window,
+            @NonNull ISyncProgressMonitor monitor)
+            throws SyncException, IOException, TimeoutException {
+        if (local.length != remote.length) {
+            throw new IllegalArgumentException("local and remote paths differ in count");
+        }
+        if (window < 1) {
+            throw new IllegalArgumentException("window must be at least 1");
+        }
+
+        long total = 0;
+        for (String path : local) {
+            File f = new File(path);
+            if (!f.exists()) {
+                throw new SyncException(SyncError.NO_LOCAL_FILE, path + ": "
+                        + SyncError.NO_LOCAL_FILE.getMessage());
+            }
+            if (f.isDirectory()) {
+                throw new SyncException(SyncError.LOCAL_IS_DIRECTORY, path + ": "
+                        + SyncError.LOCAL_IS_DIRECTORY.getMessage());
+            }
+            total += f.length();
+        }
+
+        monitor.start((int) total);
+
+        final int timeOut = DdmPreferences.getTimeOut();
+        Deque<String> unacknowledged = new ArrayDeque<String>();
+        for (int i = 0; i < local.length; i++) {
+            // check if we're canceled
+            if (monitor.isCanceled()) {
+                throw new SyncException(SyncError.CANCELED);
+            }
+            monitor.startSubTask(remote[i]);
+            try {
+                sendFile(local[i], remote[i], monitor);
+            } catch (IOException e) {
+                // adbd closes the connection after failing to write a file: report its error
+                // rather than the broken connection, if it was for a file sent earlier.
+                try {
+                    while (!unacknowledged.isEmpty()) {
+                        readSendResult(unacknowledged.removeFirst(), timeOut);
+                    }
+                } catch (IOException ignored) {
+                } catch (TimeoutException ignored) {
+                }
+                throw e;
+            }
+            unacknowledged.addLast(remote[i]);
+
+            if (unacknowledged.size() >= window) {
+                readSendResult(unacknowledged.removeFirst(), timeOut);
+            }
+        }
+        while (!unacknowledged.isEmpty()) {
+            readSendResult(unacknowledged.removeFirst(), timeOut);
+        }
+
+        monitor.stop();
+    }
+
     /**
      * compute the recursive file size of all the files in the list. Folder
      * have a weight of 1.
@@ -550,10 +738,66 @@ public class SyncService {
         FileOutputStream fos = null;
         try {
             fos = new FileOutputStream(f);
+            receiveFileData(pullResult, fos.getChannel(), monitor, timeOut);
+        } catch (IOException e) {
+            Log.e("ddms", String.format("Failed to open local file %s for writing, Reason: %s",
+                    f.getAbsolutePath(), e.toString()));
+            throw new SyncException(SyncError.FILE_WRITE_ERROR);
+        } finally {
+            if (fos != null) {
+                fos.close();
+            }
+        }
+    }
 
-            // the buffer to read the data
-            byte[] data = new byte[SYNC_DATA_MAX];
 
+    /**
+     * Receives the DATA packets of a file being pulled, up to the DONE packet, and writes them
+     * to the local file.
+     * <p>When transfers are pipelined, the data is written to the file from another thread,
+     * while the next packet is read from the socket.
+     * @param pullResult the header of the first packet, also used to read the next headers.
+     * @param file the local file
+     * @param monitor the monitor. The monitor must be started already.
+     * @param timeOut the timeout of socket reads
+     *
+     * @throws SyncException if the device reported an error, or the transfer was canceled.
+     * @throws IOException in case of I/O error on the connection or on the local file.
+     * @throws TimeoutException in case of a timeout reading data from the device.
+     */
+    private void receiveFileData(byte[] pullResult, final FileChannel file,
+            ISyncProgressMonitor monitor, int timeOut)
+            throws SyncException, IOException, TimeoutException {
+        ByteBuffer[] buffers = getDataBuffers();
+        ByteBuffer header = ByteBuffer.wrap(pullResult);
+
+        Future<Void> writer = null;
+        final BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<ByteBuffer>(PIPELINE_BUFFERS);
+        final BlockingQueue<ByteBuffer> filled =
+                new ArrayBlockingQueue<ByteBuffer>(PIPELINE_BUFFERS + 1);
+        if (DdmPreferences.getPipelinedSync()) {
+            for (ByteBuffer buffer : buffers) {
+                free.add(buffer);
+            }
+            writer = sFileExecutor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    while (true) {
+                        ByteBuffer buffer = filled.take();
+                        if (buffer == END_OF_DATA) {
+                            return null;
+                        }
+                        while (buffer.hasRemaining()) {
+                            file.write(buffer);
+                        }
+                        free.put(buffer);
+                    }
+                }
+            });
+        }
+
+        boolean completed = false;
+        try {
             // loop to get data until we're done.
             while (true) {
                 // check if we're cancelled
@@ -578,30 +822,46 @@ public class SyncService {
                 }
 
                 // now read the length we received
-                AdbHelper.read(mChannel, data, length, timeOut);
+                ByteBuffer buffer = writer != null ? takeBuffer(free, writer) : buffers[0];
+                buffer.clear();
+                buffer.limit(length);
+                read(buffer, timeOut);
+                buffer.flip();
+
+                // write the content in the file, or hand it over to the writer
+                if (writer != null) {
+                    filled.put(buffer);
+                } else {
+                    while (buffer.hasRemaining()) {
+                        file.write(buffer);
+                    }
+                }
 
                 // get the header for the next packet.
-                AdbHelper.read(mChannel, pullResult, -1, timeOut);
-
-                // write the content in the file
-                fos.write(data, 0, length);
+                header.clear();
+                read(header, timeOut);
 
                 monitor.advance(length);
             }
 
-            fos.flush();
-        } catch (IOException e) {
-            Log.e("ddms", String.format("Failed to open local file %s for writing, Reason: %s",
-                    f.getAbsolutePath(), e.toString()));
-            throw new SyncException(SyncError.FILE_WRITE_ERROR);
+            if (writer != null) {
+                filled.put(END_OF_DATA);
+                getResult(writer);
+            }
+            completed = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            // Throw a timeout exception in place of interrupted exception to avoid API changes.
+            throw new TimeoutException("Pull interrupted with immediate timeout via interruption.");
         } finally {
-            if (fos != null) {
-                fos.close();
+            if (writer != null && !completed) {
+                writer.cancel(true);
+                // the writer may still be using them
+                mDataBuffers = null;
             }
         }
     }
 
-
     /**
      * Push multiple files
      * @param fileArray
@@ -649,6 +909,23 @@ public class SyncService {
      */
     private void doPushFile(String localPath, String remotePath,
             ISyncProgressMonitor monitor) throws SyncException, IOException, TimeoutException {
+        sendFile(localPath, remotePath, monitor);
+        readSendResult(null, DdmPreferences.getTimeOut());
+    }
+
+    /**
+     * Sends a file to the device, without waiting for the device to acknowledge it.
+     * @param localPath the local file to push
+     * @param remotePath the remote file (length max is 1024)
+     * @param monitor the monitor. The monitor must be started already.
+     *
+     * @throws SyncException if file could not be pushed
+     * @throws IOException in case of I/O error on the connection.
+     * @throws TimeoutException in case of a timeout writing to the device.
+     * @see #readSendResult(String, int)
+     */
+    private void sendFile(String localPath, String remotePath,
+            ISyncProgressMonitor monitor) throws SyncException, IOException, TimeoutException {
         FileInputStream fis = null;
         byte[] msg;
 
@@ -672,57 +949,246 @@ public class SyncService {
             // file and network IO exceptions.
             AdbHelper.write(mChannel, msg, -1, timeOut);
 
-            System.arraycopy(ID_DATA, 0, getBuffer(), 0, ID_DATA.length);
+            sendFileData(fis.getChannel(), monitor, timeOut);
+        } catch (UnsupportedEncodingException e) {
+            throw new SyncException(SyncError.REMOTE_PATH_ENCODING, e);
+        } finally {
+            // close the local file
+            if (fis != null) {
+                fis.close();
+            }
+        }
+
+        // create the DONE message
+        long time = f.lastModified() / 1000;
+        msg = createReq(ID_DONE, (int)time);
+
+        // and send it.
+        AdbHelper.write(mChannel, msg, -1, timeOut);
+    }
+
+    /**
+     * Sends the content of a local file as DATA packets.
+     * <p>When transfers are pipelined, and the file does not fit in a single packet, the file
+     * is read from another thread, while the previous packet is written to the socket.
+     * @param file the local file
+     * @param monitor the monitor. The monitor must be started already.
+     * @param timeOut the timeout of socket writes
+     *
+     * @throws SyncException if the transfer was canceled.
+     * @throws IOException in case of I/O error on the connection or on the local file.
+     * @throws TimeoutException in case of a timeout writing to the device.
+     */
+    private void sendFileData(final FileChannel file, ISyncProgressMonitor monitor, int timeOut)
+            throws SyncException, IOException, TimeoutException {
+        ByteBuffer[] buffers = getDataBuffers();
+
+        Future<Void> reader = null;
+        final BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<ByteBuffer>(PIPELINE_BUFFERS);
+        final BlockingQueue<ByteBuffer> filled =
+                new ArrayBlockingQueue<ByteBuffer>(PIPELINE_BUFFERS + 1);
+        if (DdmPreferences.getPipelinedSync() && file.size() > SYNC_DATA_MAX) {
+            for (ByteBuffer buffer : buffers) {
+                free.add(buffer);
+            }
+            reader = sFileExecutor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    try {
+                        while (true) {
+                            ByteBuffer buffer = fillDataBuffer(file, free.take());
+                            if (buffer == END_OF_DATA) {
+                                return null;
+                            }
+                            filled.put(buffer);
+                        }
+                    } finally {
+                        // never blocks: the queue has room for all the buffers, and this marker
+                        filled.offer(END_OF_DATA);
+                    }
+                }
+            });
+        }
 
-            // look while there is something to read
+        boolean completed = false;
+        try {
+            // loop while there is something to read
             while (true) {
                 // check if we're canceled
                 if (monitor.isCanceled()) {
                     throw new SyncException(SyncError.CANCELED);
                 }
 
-                // read up to SYNC_DATA_MAX
-                int readCount = fis.read(getBuffer(), 8, SYNC_DATA_MAX);
-
-                if (readCount == -1) {
+                ByteBuffer buffer = reader != null
+                        ? filled.take() : fillDataBuffer(file, buffers[0]);
+                if (buffer == END_OF_DATA) {
                     // we reached the end of the file
                     break;
                 }
 
                 // now send the data to the device
-                // first write the amount read
-                ArrayHelper.swap32bitsToArray(readCount, getBuffer(), 4);
-
-                // now write it
-                AdbHelper.write(mChannel, getBuffer(), readCount+8, timeOut);
+                int length = buffer.remaining() - 8;
+                write(buffer, timeOut);
 
                 // and advance the monitor
-                monitor.advance(readCount);
+                monitor.advance(length);
+
+                if (reader != null) {
+                    free.put(buffer);
+                }
             }
-        } catch (UnsupportedEncodingException e) {
-            throw new SyncException(SyncError.REMOTE_PATH_ENCODING, e);
+
+            if (reader != null) {
+                getResult(reader);
+            }
+            completed = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            // Throw a timeout exception in place of interrupted exception to avoid API changes.
+            throw new TimeoutException("Push interrupted with immediate timeout via interruption.");
         } finally {
-            // close the local file
-            if (fis != null) {
-                fis.close();
+            if (reader != null && !completed) {
+                reader.cancel(true);
+                // the reader may still be using them
+                mDataBuffers = null;
             }
         }
+    }
 
-        // create the DONE message
-        long time = f.lastModified() / 1000;
-        msg = createReq(ID_DONE, (int)time);
-
-        // and send it.
-        AdbHelper.write(mChannel, msg, -1, timeOut);
+    /**
+     * Fills a buffer with the next DATA packet read from a local file.
+     * @return the buffer, ready to be written, or {@link #END_OF_DATA} at the end of the file.
+     */
+    private static ByteBuffer fillDataBuffer(FileChannel file, ByteBuffer buffer)
+            throws IOException {
+        buffer.clear();
+        buffer.position(8);
+        while (buffer.hasRemaining()) {
+            if (file.read(buffer) < 0) {
+                break;
+            }
+        }
+        int length = buffer.position() - 8;
+        if (length == 0) {
+            return END_OF_DATA;
+        }
+        buffer.flip();
+        buffer.put(0, ID_DATA[0]).put(1, ID_DATA[1]).put(2, ID_DATA[2]).put(3, ID_DATA[3]);
+        buffer.putInt(4, length);
+        return buffer;
+    }
 
+    /**
+     * Reads the acknowledgement of a file sent by {@link #sendFile}.
+     * @param remotePath the remote path of the file, added to the error message, or null.
+     * @param timeOut the timeout of the socket read
+     *
+     * @throws SyncException if the device failed to write the file.
+     * @throws IOException in case of I/O error on the connection.
+     * @throws TimeoutException in case of a timeout reading the response from the device.
+     */
+    private void readSendResult(@Nullable String remotePath, int timeOut)
+            throws SyncException, IOException, TimeoutException {
         // read the result, in a byte array containing 2 ints
         // (id, size)
         byte[] result = new byte[8];
         AdbHelper.read(mChannel, result, -1 /* full length */, timeOut);
 
         if (!checkResult(result, ID_OKAY)) {
-            throw new SyncException(SyncError.TRANSFER_PROTOCOL_ERROR,
-                    readErrorMessage(result, timeOut));
+            String message = readErrorMessage(result, timeOut);
+            if (remotePath != null) {
+                message = remotePath + ": " + message;
+            }
+            throw new SyncException(SyncError.TRANSFER_PROTOCOL_ERROR, message);
+        }
+    }
+
+    /**
+     * Returns the next free buffer of a pipelined pull, or throws the error of the file writer
+     * if it stopped.
+     */
+    private static ByteBuffer takeBuffer(BlockingQueue<ByteBuffer> free, Future<Void> writer)
+            throws IOException, InterruptedException {
+        while (true) {
+            ByteBuffer buffer = free.poll(AdbHelper.WAIT_TIME, TimeUnit.MILLISECONDS);
+            if (buffer != null) {
+                return buffer;
+            }
+            if (writer.isDone()) {
+                getResult(writer);
+                throw new IOException("File writer stopped");
+            }
+        }
+    }
+
+    /** Waits for a file task, and rethrows its I/O error if it failed. */
+    private static void getResult(Future<Void> task) throws IOException, InterruptedException {
+        try {
+            task.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * Writes a buffer to the channel, waiting for it to become writable when the socket buffer
+     * is full.
+     * @throws TimeoutException if nothing could be written for <var>timeOut</var> ms.
+     * @throws IOException in case of I/O error on the connection.
+     */
+    private void write(ByteBuffer buffer, int timeOut) throws TimeoutException, IOException {
+        while (buffer.hasRemaining()) {
+            if (mChannel.write(buffer) == 0) {
+                waitFor(SelectionKey.OP_WRITE, timeOut);
+            }
+        }
+    }
+
+    /**
+     * Fills a buffer from the channel, waiting for data when none is available.
+     * @throws TimeoutException if nothing could be read for <var>timeOut</var> ms.
+     * @throws IOException in case of I/O error on the connection.
+     */
+    private void read(ByteBuffer buffer, int timeOut) throws TimeoutException, IOException {
+        while (buffer.hasRemaining()) {
+            int count = mChannel.read(buffer);
+            if (count < 0) {
+                Log.d("ddms", "read: channel EOF");
+                throw new IOException("EOF");
+            } else if (count == 0) {
+                waitFor(SelectionKey.OP_READ, timeOut);
+            }
+        }
+    }
+
+    /**
+     * Waits for the channel to be ready for the given operation, instead of polling it like
+     * {@link AdbHelper} does.
+     * @param ops the {@link SelectionKey} operation to wait for
+     * @param timeOut The timeout value in ms. A timeout of zero means "wait forever".
+     */
+    private void waitFor(int ops, int timeOut) throws TimeoutException, IOException {
+        if (mSelector == null) {
+            mSelector = Selector.open();
+            mSelectionKey = mChannel.register(mSelector, 0);
+        }
+        mSelectionKey.interestOps(ops);
+        int ready = mSelector.select(timeOut);
+        mSelector.selectedKeys().clear();
+        if (ready == 0) {
+            if (Thread.currentThread().isInterrupted()) {
+                // Throw a timeout exception in place of interrupted exception to avoid API changes.
+                throw new TimeoutException(
+                        "Sync interrupted with immediate timeout via interruption.");
+            }
+            if (timeOut != 0) {
+                Log.d("ddms", "sync: timeout");
+                throw new TimeoutException();
+            }
         }
     }
 
@@ -783,6 +1249,113 @@ public class SyncService {
         return new FileStat(mode, size, lastModifiedSecs);
     }
 
+    /**
+     * Lists remote directories. The requests are pipelined on this connection, so listing many
+     * directories takes about as many round trips as listing one.
+     * <p>Paths are sent as UTF-8. A path that does not exist, or is not a directory, is listed as
+     * empty.
+     * @param paths the remote directories
+     * @param receiver the receiver of the entries
+     * @throws TimeoutException in case of a timeout reading responses from the device.
+     * @throws IOException in case of I/O error on the connection.
+     */
+    public void listDirectories(@NonNull String[] paths,
+            @NonNull IDirectoryEntryReceiver receiver) throws TimeoutException, IOException {
+        int timeOut = DdmPreferences.getTimeOut();
+        ByteBuffer header = ByteBuffer.allocate(20).order(ByteOrder.LITTLE_ENDIAN);
+        byte[] name = getBuffer();
+
+        int sent = 0;
+        for (int received = 0; received < paths.length; received++) {
+            sent = sendFileRequests(ID_LIST, paths, sent, received, timeOut);
+
+            // each entry is (DENT, mode, size, time, name length) followed by the name, and the
+            // list ends with a DONE entry.
+            while (true) {
+                header.clear();
+                read(header, timeOut);
+                byte[] id = header.array();
+                if (checkResult(id, ID_DONE)) {
+                    break;
+                }
+                if (!checkResult(id, ID_DENT)) {
+                    throw new IOException("Unexpected listing response");
+                }
+                int nameLength = header.getInt(16);
+                if (nameLength < 0 || nameLength > REMOTE_PATH_MAX_LENGTH) {
+                    throw new IOException("Invalid file name length: " + nameLength);
+                }
+                read(ByteBuffer.wrap(name, 0, nameLength), timeOut);
+                receiver.addEntry(paths[received], new String(name, 0, nameLength, Charsets.UTF_8),
+                        header.getInt(4), header.getInt(8), header.getInt(12));
+            }
+        }
+    }
+
+    /**
+     * Returns the stat info of remote files. The requests are pipelined on this connection, so
+     * this takes about as many round trips as {@link #statFile(String)}.
+     * <p>Like {@link #statFile(String)}, symbolic links are not followed, unless the path ends
+     * with a '/'. Paths are sent as UTF-8.
+     * @param paths the remote files
+     * @return the stat info of each file, or null for the files that do not exist.
+     * @throws TimeoutException in case of a timeout reading responses from the device.
+     * @throws IOException in case of I/O error on the connection.
+     */
+    @NonNull
+    public FileStat[] statFiles(@NonNull String[] paths) throws TimeoutException, IOException {
+        int timeOut = DdmPreferences.getTimeOut();
+        ByteBuffer result = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+        FileStat[] stats = new FileStat[paths.length];
+
+        int sent = 0;
+        for (int received = 0; received < paths.length; received++) {
+            sent = sendFileRequests(ID_STAT, paths, sent, received, timeOut);
+
+            result.clear();
+            read(result, timeOut);
+            if (!checkResult(result.array(), ID_STAT)) {
+                throw new IOException("Unexpected stat response");
+            }
+            int mode = result.getInt(4);
+            if (mode != 0) {
+                stats[received] = new FileStat(mode, result.getInt(8), result.getInt(12));
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Once all the requests sent so far have been answered, sends the requests of up to
+     * {@link #LIST_WINDOW} following paths in a single write.
+     * @return the number of requests sent so far
+     */
+    private int sendFileRequests(byte[] command, String[] paths, int sent, int received,
+            int timeOut) throws TimeoutException, IOException {
+        if (sent > received) {
+            return sent;
+        }
+        int count = Math.min(paths.length - sent, LIST_WINDOW);
+        byte[][] requests = new byte[count][];
+        int length = 0;
+        for (int i = 0; i < count; i++) {
+            byte[] path = paths[sent + i].getBytes(Charsets.UTF_8);
+            if (path.length > REMOTE_PATH_MAX_LENGTH) {
+                throw new IOException("Remote path is too long: " + paths[sent + i]);
+            }
+            requests[i] = createFileReq(command, path);
+            length += requests[i].length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        for (byte[] request : requests) {
+            buffer.put(request);
+        }
+        buffer.flip();
+        write(buffer, timeOut);
+        return sent + count;
+    }
+
     /**
      * Create a command with a code and an int values
      * @param command
@@ -869,7 +1442,7 @@ public class SyncService {
 
     }
 
-    private static int getFileType(int mode) {
+    static int getFileType(int mode) {
         if ((mode & S_ISOCK) == S_ISOCK) {
             return FileListingService.TYPE_SOCKET;
         }
@@ -901,6 +1474,21 @@ public class SyncService {
         return FileListingService.TYPE_OTHER;
     }
 
+    /**
+     * Retrieves the direct buffers of file transfers, allocating them if necessary.
+     */
+    private ByteBuffer[] getDataBuffers() {
+        if (mDataBuffers == null) {
+            // we transfer max SYNC_DATA_MAX, plus the DATA header of pushed packets.
+            mDataBuffers = new ByteBuffer[PIPELINE_BUFFERS];
+            for (int i = 0; i < PIPELINE_BUFFERS; i++) {
+                mDataBuffers[i] = ByteBuffer.allocateDirect(SYNC_DATA_MAX + 8)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+            }
+        }
+        return mDataBuffers;
+    }
+
     /**
      * Retrieve the buffer, allocating if necessary
      * @return
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ddmlib.logcat;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.Log.LogLevel;
+import com.google.common.base.Charsets;
+
+/**
+ * A view of the log message being parsed by a {@link LogCatStreamReceiver}.
+ * <p>
+ * The same instance is reused for all the messages of a receiver, and is only valid during the
+ * call to {@link LogCatStreamReceiver#processEntry(LogCatEntry)}. The message text is kept as
+ * bytes, and only decoded into a {@link String} when asked for. Use {@link #toMessage()} to keep
+ * a message around.
+ */
+public final class LogCatEntry {
+    @Nullable
+    private final IDevice mDevice;
+
+    // Header fields
+    private LogLevel mLogLevel;
+    private int mPid;
+    private int mTid;
+    private String mTag;
+    private int mMonth;
+    private int mDay;
+    private int mHour;
+    private int mMinute;
+    private int mSecond;
+    private int mMilli;
+
+    /** Created on demand, and shared by the messages of the same header */
+    @Nullable
+    private LogCatHeader mHeader;
+
+    // Message fields
+    private byte[] mMessageBytes;
+    private int mMessageOffset;
+    private int mMessageLength;
+    @Nullable
+    private String mMessage;
+
+    LogCatEntry(@Nullable IDevice device) {
+        mDevice = device;
+    }
+
+    void setHeader(@NonNull LogLevel logLevel, int pid, int tid, @NonNull String tag,
+            int month, int day, int hour, int minute, int second, int milli) {
+        mLogLevel = logLevel;
+        mPid = pid;
+        mTid = tid;
+        mTag = tag;
+        mMonth = month;
+        mDay = day;
+        mHour = hour;
+        mMinute = minute;
+        mSecond = second;
+        mMilli = milli;
+        mHeader = null;
+    }
+
+    void setMessage(@NonNull byte[] bytes, int offset, int length) {
+        mMessageBytes = bytes;
+        mMessageOffset = offset;
+        mMessageLength = length;
+        mMessage = null;
+    }
+
+    @NonNull
+    public LogLevel getLogLevel() {
+        return mLogLevel;
+    }
+
+    public int getPid() {
+        return mPid;
+    }
+
+    public int getTid() {
+        return mTid;
+    }
+
+    /** Returns the tag. Tags are cached by the receiver, so this does not allocate. */
+    @NonNull
+    public String getTag() {
+        return mTag;
+    }
+
+    /**
+     * Returns the header of the message, shared by all the messages following the same header
+     * line.
+     */
+    @NonNull
+    public LogCatHeader getHeader() {
+        if (mHeader == null) {
+            String appName = null;
+            if (mDevice != null && mPid != -1) {
+                appName = mDevice.getClientName(mPid);
+            }
+            if (appName == null || appName.isEmpty()) {
+                appName = "?"; //$NON-NLS-1$
+            }
+            mHeader = new LogCatHeader(mLogLevel, mPid, mTid, appName, mTag,
+                    new LogCatTimestamp(mMonth, mDay, mHour, mMinute, mSecond, mMilli));
+        }
+        return mHeader;
+    }
+
+    /** Returns the buffer holding the UTF-8 bytes of the message text. Do not modify it. */
+    @NonNull
+    public byte[] getMessageBytes() {
+        return mMessageBytes;
+    }
+
+    public int getMessageOffset() {
+        return mMessageOffset;
+    }
+
+    public int getMessageLength() {
+        return mMessageLength;
+    }
+
+    /** Returns the message text, decoding it on the first call for this message. */
+    @NonNull
+    public String getMessage() {
+        if (mMessage == null) {
+            mMessage = new String(mMessageBytes, mMessageOffset, mMessageLength, Charsets.UTF_8);
+        }
+        return mMessage;
+    }
+
+    /** Returns an immutable copy of this message. */
+    @NonNull
+    public LogCatMessage toMessage() {
+        return new LogCatMessage(getHeader(), getMessage());
+    }
+
+    @Override
+    public String toString() {
+        return toMessage().toString();
+    }
+}
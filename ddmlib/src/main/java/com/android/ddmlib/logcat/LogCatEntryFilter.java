@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ddmlib.logcat;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ddmlib.Log.LogLevel;
+import com.google.common.base.Charsets;
+
+import java.util.Arrays;
+
+/**
+ * A filter applied by a {@link LogCatStreamReceiver} to the header of each message, before the
+ * tag or the text of the message are decoded. Messages whose header is rejected are skipped
+ * without allocating anything.
+ * <p>
+ * Unlike {@link LogCatFilter}, the tags and pids are matched exactly, and there is no filtering
+ * on the message text or the application name.
+ */
+public final class LogCatEntryFilter {
+    @NonNull
+    private final LogLevel mMinLevel;
+
+    /** Sorted pids to accept, or null to accept all */
+    private final int[] mPids;
+
+    /** UTF-8 bytes of the tags to accept, or null to accept all */
+    private final byte[][] mTags;
+
+    /**
+     * Creates a filter.
+     * @param minLevel the minimum level of the accepted messages
+     * @param pids the pids of the accepted messages, or null to accept all pids
+     * @param tags the tags of the accepted messages, or null to accept all tags
+     */
+    public LogCatEntryFilter(@NonNull LogLevel minLevel, @Nullable int[] pids,
+            @Nullable String[] tags) {
+        mMinLevel = minLevel;
+        if (pids != null) {
+            mPids = pids.clone();
+            Arrays.sort(mPids);
+        } else {
+            mPids = null;
+        }
+        if (tags != null) {
+            mTags = new byte[tags.length][];
+            for (int i = 0; i < tags.length; i++) {
+                mTags[i] = tags[i].getBytes(Charsets.UTF_8);
+            }
+        } else {
+            mTags = null;
+        }
+    }
+
+    boolean acceptsLevel(@NonNull LogLevel level) {
+        return level.getPriority() >= mMinLevel.getPriority();
+    }
+
+    boolean acceptsPid(int pid) {
+        return mPids == null || Arrays.binarySearch(mPids, pid) >= 0;
+    }
+
+    boolean acceptsTag(@NonNull byte[] bytes, int offset, int length) {
+        if (mTags == null) {
+            return true;
+        }
+        for (byte[] tag : mTags) {
+            if (tag.length == length && LogCatStreamReceiver.regionEquals(tag, bytes, offset)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
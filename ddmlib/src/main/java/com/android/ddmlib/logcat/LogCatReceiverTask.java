@@ -17,16 +17,17 @@
 package com.android.ddmlib.logcat;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
 import com.android.annotations.concurrency.GuardedBy;
 import com.android.ddmlib.AdbCommandRejectedException;
 import com.android.ddmlib.IDevice;
 import com.android.ddmlib.IShellOutputReceiver;
 import com.android.ddmlib.Log.LogLevel;
-import com.android.ddmlib.MultiLineReceiver;
 import com.android.ddmlib.ShellCommandUnresponsiveException;
 import com.android.ddmlib.TimeoutException;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
@@ -46,7 +47,6 @@ public class LogCatReceiverTask implements Runnable {
 
     private final IDevice mDevice;
     private final LogCatOutputReceiver mReceiver;
-    private final LogCatMessageParser mParser;
     private final AtomicBoolean mCancelled;
 
     @GuardedBy("this")
@@ -56,7 +56,6 @@ public class LogCatReceiverTask implements Runnable {
         mDevice = device;
 
         mReceiver = new LogCatOutputReceiver();
-        mParser = new LogCatMessageParser();
         mCancelled = new AtomicBoolean();
     }
 
@@ -90,9 +89,19 @@ public class LogCatReceiverTask implements Runnable {
         mCancelled.set(true);
     }
 
-    private class LogCatOutputReceiver extends MultiLineReceiver {
+    /**
+     * Sets a filter applied to the messages before they are decoded and sent to the listeners.
+     * @param filter the filter, or null to send all the messages
+     */
+    public void setFilter(@Nullable LogCatEntryFilter filter) {
+        mReceiver.setFilter(filter);
+    }
+
+    private class LogCatOutputReceiver extends LogCatStreamReceiver {
+        private List<LogCatMessage> mNewMessages = new ArrayList<LogCatMessage>();
+
         public LogCatOutputReceiver() {
-            setTrimLine(false);
+            super(mDevice);
         }
 
         /** Implements {@link IShellOutputReceiver#isCancelled() }. */
@@ -102,15 +111,18 @@ public class LogCatReceiverTask implements Runnable {
         }
 
         @Override
-        public void processNewLines(String[] lines) {
+        protected void processEntry(@NonNull LogCatEntry entry) {
             if (!mCancelled.get()) {
-                processLogLines(lines);
+                mNewMessages.add(entry.toMessage());
             }
         }
 
-        private void processLogLines(String[] lines) {
-            List<LogCatMessage> newMessages = mParser.processLogLines(lines, mDevice);
-            if (!newMessages.isEmpty()) {
+        @Override
+        protected void processedOutput() {
+            if (!mNewMessages.isEmpty()) {
+                // the listeners may keep the list
+                List<LogCatMessage> newMessages = mNewMessages;
+                mNewMessages = new ArrayList<LogCatMessage>();
                 notifyListeners(newMessages);
             }
         }
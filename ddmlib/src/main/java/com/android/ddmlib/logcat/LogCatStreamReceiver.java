@@ -0,0 +1,396 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ddmlib.logcat;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.IShellOutputReceiver;
+import com.android.ddmlib.Log.LogLevel;
+import com.google.common.base.Charsets;
+
+/**
+ * Receiver of the raw output of {@code adb logcat -v long}, parsing it directly from the bytes
+ * received.
+ * <p>
+ * Unlike a {@link com.android.ddmlib.MultiLineReceiver} feeding a {@link LogCatMessageParser},
+ * this does not decode the output into lines, and parses the headers without regular
+ * expressions. Each message is handed to {@link #processEntry(LogCatEntry)} through the same
+ * {@link LogCatEntry}, whose text is only decoded when asked for. Tags are cached, and the
+ * messages rejected by the {@link LogCatEntryFilter}, if any, are skipped right after their header
+ * is parsed.
+ * <p>
+ * Like {@link LogCatMessageParser}, each non empty line following a header is a message.
+ */
+public abstract class LogCatStreamReceiver implements IShellOutputReceiver {
+    /** Number of cached tags, must be a power of 2 */
+    private static final int TAG_CACHE_SIZE = 512;
+
+    @NonNull
+    private final LogCatEntry mEntry;
+
+    @Nullable
+    private LogCatEntryFilter mFilter;
+
+    /** Whether a header was parsed, and the messages following it should be skipped */
+    private boolean mHasHeader;
+    private boolean mSkipMessages;
+
+    /** The bytes of the unfinished line, stored for the next output */
+    @NonNull
+    private byte[] mPending = new byte[256];
+    private int mPendingLength;
+
+    /** Read position of the header being parsed */
+    private int mPos;
+
+    private final byte[][] mTagCacheBytes = new byte[TAG_CACHE_SIZE][];
+    private final String[] mTagCacheStrings = new String[TAG_CACHE_SIZE];
+
+    /**
+     * @param device device from which the log messages are received, used to look up the name
+     *            of the application of a message, or null
+     */
+    protected LogCatStreamReceiver(@Nullable IDevice device) {
+        mEntry = new LogCatEntry(device);
+    }
+
+    /**
+     * Sets the filter applied to the headers of the following messages.
+     * @param filter the filter, or null to process all the messages
+     */
+    public void setFilter(@Nullable LogCatEntryFilter filter) {
+        mFilter = filter;
+    }
+
+    /**
+     * Called for each message. The entry, and the bytes of its message, are only valid during
+     * the call.
+     */
+    protected abstract void processEntry(@NonNull LogCatEntry entry);
+
+    /**
+     * Called after the messages of each output received were processed, to process them as a
+     * batch.
+     */
+    protected void processedOutput() {
+        // do nothing.
+    }
+
+    /**
+     * Terminates the process. This is called after the last messages have been through
+     * {@link #processEntry(LogCatEntry)}.
+     */
+    public void done() {
+        // do nothing.
+    }
+
+    @Override
+    public final void addOutput(byte[] data, int offset, int length) {
+        if (isCancelled()) {
+            return;
+        }
+
+        int end = offset + length;
+        int start = offset;
+        for (int i = offset; i < end; i++) {
+            if (data[i] != '\n') {
+                continue;
+            }
+            if (mPendingLength > 0) {
+                appendPending(data, start, i - start);
+                processLine(mPending, 0, mPendingLength);
+                mPendingLength = 0;
+            } else {
+                processLine(data, start, i - start);
+            }
+            start = i + 1;
+        }
+        if (start < end) {
+            appendPending(data, start, end - start);
+        }
+
+        processedOutput();
+    }
+
+    @Override
+    public final void flush() {
+        if (mPendingLength > 0) {
+            processLine(mPending, 0, mPendingLength);
+            mPendingLength = 0;
+            processedOutput();
+        }
+
+        done();
+    }
+
+    private void appendPending(@NonNull byte[] data, int offset, int length) {
+        if (mPendingLength + length > mPending.length) {
+            byte[] pending = new byte[Math.max(mPending.length * 2, mPendingLength + length)];
+            System.arraycopy(mPending, 0, pending, 0, mPendingLength);
+            mPending = pending;
+        }
+        System.arraycopy(data, offset, mPending, mPendingLength, length);
+        mPendingLength += length;
+    }
+
+    private void processLine(@NonNull byte[] line, int offset, int length) {
+        // in older devices, the \n is preceded by a \r
+        if (length > 0 && line[offset + length - 1] == '\r') {
+            length--;
+        }
+        if (length == 0) {
+            return;
+        }
+
+        if (line[offset] == '[' && parseHeader(line, offset, offset + length)) {
+            return;
+        }
+
+        if (!mHasHeader || mSkipMessages) {
+            // Either a message without a header, which we can't do anything with (this should
+            // rarely happen, for example if some earlier lines have been truncated), or a message
+            // rejected by the filter.
+            return;
+        }
+        mEntry.setMessage(line, offset, length);
+        processEntry(mEntry);
+    }
+
+    /**
+     * Parses a logcat -v long header ([ MM-DD HH:MM:SS.mmm PID:TID LEVEL/TAG ]), matching the
+     * same lines as the pattern of {@link LogCatMessageParser}.
+     * Ex: [ 08-18 16:39:11.760  2977: 2988 D/PhoneInterfaceManager ]
+     *
+     * @return true if the line is a header
+     */
+    private boolean parseHeader(@NonNull byte[] b, int start, int end) {
+        mPos = start + 1;
+        if (!skipSpace(b, end, 1, 1)) {
+            return false;
+        }
+
+        // Date + Time
+        int month = parseDigits(b, end, 2, 2);
+        if (month < 1 || month > 12 || !skip(b, end, '-')) {
+            return false;
+        }
+        int day = parseDigits(b, end, 2, 2);
+        if (day < 1 || day > 31 || !skipSpace(b, end, 1, 1)) {
+            return false;
+        }
+        int hour = parseDigits(b, end, 2, 2);
+        if (hour < 0 || hour > 23 || !skip(b, end, ':')) {
+            return false;
+        }
+        int minute = parseDigits(b, end, 2, 2);
+        if (minute < 0 || minute > 59 || !skip(b, end, ':')) {
+            return false;
+        }
+        int second = parseDigits(b, end, 2, 2);
+        if (second < 0 || second > 59 || !skip(b, end, '.')) {
+            return false;
+        }
+        int milli = parseDigits(b, end, 1, Integer.MAX_VALUE);
+        if (milli < 0 || !skipSpace(b, end, 1, Integer.MAX_VALUE)) {
+            return false;
+        }
+        // ms is 3 digits max, as in LogCatTimestamp#fromString
+        while (milli >= 1000) {
+            milli /= 10;
+        }
+
+        // PID, which may be empty
+        int pidStart = mPos;
+        int pid = parseDigits(b, end, 0, Integer.MAX_VALUE);
+        if (mPos == pidStart || pid == Integer.MAX_VALUE) {
+            pid = -1;
+        }
+        if (!skip(b, end, ':')) {
+            return false;
+        }
+        skipSpace(b, end, 0, Integer.MAX_VALUE);
+
+        // TID, in hex on some systems
+        int tidStart = mPos;
+        while (mPos < end && !isSpace(b[mPos])) {
+            mPos++;
+        }
+        if (mPos == tidStart) {
+            return false;
+        }
+        int tid = decodeInt(b, tidStart, mPos);
+        if (!skipSpace(b, end, 1, 1) || mPos + 2 > end || b[mPos + 1] != '/') {
+            return false;
+        }
+
+        LogLevel level;
+        switch (b[mPos]) {
+            case 'V': level = LogLevel.VERBOSE; break;
+            case 'D': level = LogLevel.DEBUG; break;
+            case 'I': level = LogLevel.INFO; break;
+            case 'W': level = LogLevel.WARN; break;
+            case 'E': level = LogLevel.ERROR; break;
+            case 'A':
+            case 'F': level = LogLevel.ASSERT; break;
+            default: return false;
+        }
+        mPos += 2;
+
+        // Tag, up to the spaces before the closing bracket
+        int tagStart = mPos;
+        if (b[end - 1] != ']') {
+            return false;
+        }
+        int tagEnd = end - 1;
+        if (tagEnd <= tagStart || !isSpace(b[tagEnd - 1])) {
+            return false;
+        }
+        while (tagEnd > tagStart && isSpace(b[tagEnd - 1])) {
+            tagEnd--;
+        }
+        if (tagEnd == tagStart) {
+            return false;
+        }
+
+        mHasHeader = true;
+        LogCatEntryFilter filter = mFilter;
+        mSkipMessages = filter != null && !(filter.acceptsLevel(level)
+                && filter.acceptsPid(pid)
+                && filter.acceptsTag(b, tagStart, tagEnd - tagStart));
+        if (!mSkipMessages) {
+            String tag = getTag(b, tagStart, tagEnd - tagStart);
+            mEntry.setHeader(level, pid, tid, tag, month, day, hour, minute, second, milli);
+        }
+        return true;
+    }
+
+    /** Skips between min and max whitespace characters, returns false if there were less */
+    private boolean skipSpace(@NonNull byte[] b, int end, int min, int max) {
+        int count = 0;
+        while (count < max && mPos < end && isSpace(b[mPos])) {
+            mPos++;
+            count++;
+        }
+        return count >= min;
+    }
+
+    private boolean skip(@NonNull byte[] b, int end, char c) {
+        if (mPos < end && b[mPos] == c) {
+            mPos++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Parses between min and max decimal digits. Returns -1 if there were less, and
+     * {@link Integer#MAX_VALUE} if the value overflows.
+     */
+    private int parseDigits(@NonNull byte[] b, int end, int min, int max) {
+        long value = 0;
+        int count = 0;
+        while (count < max && mPos < end && b[mPos] >= '0' && b[mPos] <= '9') {
+            if (value < Integer.MAX_VALUE) {
+                value = value * 10 + (b[mPos] - '0');
+            }
+            mPos++;
+            count++;
+        }
+        if (count < min) {
+            return -1;
+        }
+        return (int) Math.min(value, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Decodes an integer like {@link Integer#decode(String)}, from ASCII bytes. Returns -1 if
+     * the bytes are not a valid integer.
+     */
+    private static int decodeInt(@NonNull byte[] b, int start, int end) {
+        int pos = start;
+        boolean negative = false;
+        if (b[pos] == '-' || b[pos] == '+') {
+            negative = b[pos] == '-';
+            pos++;
+        }
+        int radix = 10;
+        if (pos + 1 < end && b[pos] == '0' && (b[pos + 1] == 'x' || b[pos + 1] == 'X')) {
+            radix = 16;
+            pos += 2;
+        } else if (pos < end && b[pos] == '#') {
+            radix = 16;
+            pos++;
+        } else if (pos + 1 < end && b[pos] == '0') {
+            radix = 8;
+            pos++;
+        }
+        if (pos == end) {
+            return -1;
+        }
+
+        long value = 0;
+        for (; pos < end; pos++) {
+            int digit = Character.digit(b[pos], radix);
+            if (digit < 0) {
+                return -1;
+            }
+            value = value * radix + digit;
+            if (value > (long) Integer.MAX_VALUE + 1) {
+                return -1;
+            }
+        }
+        value = negative ? -value : value;
+        return value > Integer.MAX_VALUE ? -1 : (int) value;
+    }
+
+    private static boolean isSpace(byte b) {
+        // the characters matched by \s in a Java regular expression
+        return b == ' ' || b == '\t' || b == '\n' || b == 0x0B || b == '\f' || b == '\r';
+    }
+
+    /** Returns the tag with the given UTF-8 bytes, from the cache if possible */
+    @NonNull
+    private String getTag(@NonNull byte[] b, int offset, int length) {
+        int hash = 0;
+        for (int i = offset; i < offset + length; i++) {
+            hash = 31 * hash + b[i];
+        }
+        int slot = (hash ^ (hash >>> 16)) & (TAG_CACHE_SIZE - 1);
+
+        byte[] cached = mTagCacheBytes[slot];
+        if (cached != null && cached.length == length && regionEquals(cached, b, offset)) {
+            return mTagCacheStrings[slot];
+        }
+
+        String tag = new String(b, offset, length, Charsets.UTF_8);
+        byte[] bytes = new byte[length];
+        System.arraycopy(b, offset, bytes, 0, length);
+        mTagCacheBytes[slot] = bytes;
+        mTagCacheStrings[slot] = tag;
+        return tag;
+    }
+
+    /** Returns true if <var>a</var> is equal to the bytes of <var>b</var> from offset */
+    static boolean regionEquals(@NonNull byte[] a, @NonNull byte[] b, int offset) {
+        for (int i = 0; i < a.length; i++) {
+            if (a[i] != b[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
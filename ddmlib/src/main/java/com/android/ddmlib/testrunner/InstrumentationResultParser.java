@@ -16,11 +16,15 @@
 
 package com.android.ddmlib.testrunner;
 
+import com.android.ddmlib.DdmPreferences;
 import com.android.ddmlib.IShellOutputReceiver;
 import com.android.ddmlib.Log;
+import com.android.ddmlib.Log.LogLevel;
 import com.android.ddmlib.MultiLineReceiver;
+import com.google.common.base.Charsets;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -64,6 +68,10 @@ import java.util.regex.Pattern;
  * Time: X
  * </pre>
  * <p>Note that the "value" portion of the key-value pair may wrap over several text lines
+ *
+ * <p>The output is parsed as UTF-8 bytes, line after line, and the values of the status keys
+ * are only decoded when they are reported. Nothing is kept once a test result is reported to
+ * the listeners, so the memory used does not grow with the number of tests.
  */
 public class InstrumentationResultParser extends MultiLineReceiver {
 
@@ -105,16 +113,22 @@ public class InstrumentationResultParser extends MultiLineReceiver {
         private static final int OK = 0;
     }
 
-    /** Prefixes used to identify output. */
+    /** Prefixes used to identify output, as UTF-8 bytes. */
     private static class Prefixes {
-        private static final String STATUS = "INSTRUMENTATION_STATUS: ";
-        private static final String STATUS_CODE = "INSTRUMENTATION_STATUS_CODE: ";
-        private static final String STATUS_FAILED = "INSTRUMENTATION_FAILED: ";
-        private static final String CODE = "INSTRUMENTATION_CODE: ";
-        private static final String RESULT = "INSTRUMENTATION_RESULT: ";
-        private static final String TIME_REPORT = "Time: ";
+        private static final byte[] STATUS = getBytes("INSTRUMENTATION_STATUS: ");
+        private static final byte[] STATUS_CODE = getBytes("INSTRUMENTATION_STATUS_CODE: ");
+        private static final byte[] STATUS_FAILED = getBytes("INSTRUMENTATION_FAILED: ");
+        private static final byte[] CODE = getBytes("INSTRUMENTATION_CODE: ");
+        private static final byte[] RESULT = getBytes("INSTRUMENTATION_RESULT: ");
+        private static final byte[] TIME_REPORT = getBytes("Time: ");
     }
 
+    /** Pattern of the line reporting the elapsed time of the test run. */
+    private static final Pattern TIME_PATTERN = Pattern.compile("Time: \\s*([\\d\\.]+)");
+
+    /** The line break put back between the lines of a wrapped value. */
+    private static final byte[] LINE_BREAK = getBytes("\r\n");
+
     private final Collection<ITestRunListener> mTestListeners;
 
     /**
@@ -162,8 +176,14 @@ public class InstrumentationResultParser extends MultiLineReceiver {
     /** Stores the current "key" portion of the status key-value being parsed. */
     private String mCurrentKey = null;
 
-    /** Stores the current "value" portion of the status key-value being parsed. */
-    private StringBuilder mCurrentValue = null;
+    /**
+     * Stores the current "value" portion of the status key-value being parsed, when
+     * {@link #mCurrentKey} is not null.
+     */
+    private final ByteArray mCurrentValue = new ByteArray();
+
+    /** Stores the start of a line received without its line break. */
+    private final ByteArray mPartialLine = new ByteArray();
 
     /** True if start of test has already been reported to listener. */
     private boolean mTestStartReported = false;
@@ -237,16 +257,59 @@ public class InstrumentationResultParser extends MultiLineReceiver {
     }
 
     /**
-     * Processes the instrumentation test output from shell.
+     * Processes the instrumentation test output from shell, splitting it into lines without
+     * decoding it.
+     *
+     * @see IShellOutputReceiver#addOutput
+     */
+    @Override
+    public void addOutput(byte[] data, int offset, int length) {
+        if (isCancelled()) {
+            return;
+        }
+        int end = offset + length;
+        int lineStart = offset;
+        for (int i = offset; i < end; i++) {
+            if (data[i] == '\n') {
+                if (mPartialLine.mLength > 0) {
+                    mPartialLine.append(data, lineStart, i - lineStart);
+                    parse(mPartialLine.mBytes, 0, mPartialLine.mLength);
+                    mPartialLine.clear();
+                } else {
+                    parse(data, lineStart, i);
+                }
+                lineStart = i + 1;
+            }
+        }
+        // keep the unfinished line for the next output
+        mPartialLine.append(data, lineStart, end - lineStart);
+    }
+
+    /**
+     * Processes the last unfinished line of output, and reports the end of the test run.
+     *
+     * @see IShellOutputReceiver#flush
+     */
+    @Override
+    public void flush() {
+        if (mPartialLine.mLength > 0) {
+            parse(mPartialLine.mBytes, 0, mPartialLine.mLength);
+            mPartialLine.clear();
+        }
+        done();
+    }
+
+    /**
+     * Processes lines of the instrumentation test output. The output received by
+     * {@link #addOutput(byte[], int, int)} is parsed without going through this method.
      *
      * @see MultiLineReceiver#processNewLines
      */
     @Override
     public void processNewLines(String[] lines) {
         for (String line : lines) {
-            parse(line);
-            // in verbose mode, dump all adb output to log
-            Log.v(LOG_TAG, line);
+            byte[] bytes = line.getBytes(Charsets.UTF_8);
+            parse(bytes, 0, bytes.length);
         }
     }
 
@@ -266,86 +329,102 @@ public class InstrumentationResultParser extends MultiLineReceiver {
      * <li> A line reporting the total elapsed time of the test run. (Prefixes.TIME_REPORT) </li>
      * </ul>
      *
-     * @param line  Text output line
+     * @param line  buffer holding the UTF-8 bytes of the line, without its line break
+     * @param start the index of the first byte of the line
+     * @param end the index after the last byte of the line
      */
-    private void parse(String line) {
-        if (line.startsWith(Prefixes.STATUS_CODE)) {
+    private void parse(byte[] line, int start, int end) {
+        // the lines are trimmed, as a MultiLineReceiver does
+        while (start < end && (line[start] & 0xFF) <= ' ') {
+            start++;
+        }
+        while (end > start && (line[end - 1] & 0xFF) <= ' ') {
+            end--;
+        }
+
+        if (startsWith(line, start, end, Prefixes.STATUS_CODE)) {
             // Previous status key-value has been collected. Store it.
             submitCurrentKeyValue();
             mInInstrumentationResultKey = false;
-            parseStatusCode(line);
-        } else if (line.startsWith(Prefixes.STATUS)) {
+            parseStatusCode(line, start + Prefixes.STATUS_CODE.length, end);
+        } else if (startsWith(line, start, end, Prefixes.STATUS)) {
             // Previous status key-value has been collected. Store it.
             submitCurrentKeyValue();
             mInInstrumentationResultKey = false;
-            parseKey(line, Prefixes.STATUS.length());
-        } else if (line.startsWith(Prefixes.RESULT)) {
+            parseKey(line, start + Prefixes.STATUS.length, end);
+        } else if (startsWith(line, start, end, Prefixes.RESULT)) {
             // Previous status key-value has been collected. Store it.
             submitCurrentKeyValue();
             mInInstrumentationResultKey = true;
-            parseKey(line, Prefixes.RESULT.length());
-        } else if (line.startsWith(Prefixes.STATUS_FAILED) ||
-                   line.startsWith(Prefixes.CODE)) {
+            parseKey(line, start + Prefixes.RESULT.length, end);
+        } else if (startsWith(line, start, end, Prefixes.STATUS_FAILED) ||
+                   startsWith(line, start, end, Prefixes.CODE)) {
             // Previous status key-value has been collected. Store it.
             submitCurrentKeyValue();
             mInInstrumentationResultKey = false;
             // these codes signal the end of the instrumentation run
             mTestRunFinished = true;
             // just ignore the remaining data on this line
-        } else if (line.startsWith(Prefixes.TIME_REPORT)) {
-            parseTime(line);
+        } else if (startsWith(line, start, end, Prefixes.TIME_REPORT)) {
+            parseTime(decode(line, start, end));
         } else {
-            if (mCurrentValue != null) {
+            if (mCurrentKey != null) {
                 // this is a value that has wrapped to next line.
-                mCurrentValue.append("\r\n");
-                mCurrentValue.append(line);
-            } else if (!line.trim().isEmpty()) {
-                Log.d(LOG_TAG, "unrecognized line " + line);
+                mCurrentValue.append(LINE_BREAK, 0, LINE_BREAK.length);
+                mCurrentValue.append(line, start, end - start);
+            } else if (end > start) {
+                Log.d(LOG_TAG, "unrecognized line " + decode(line, start, end));
             }
         }
+
+        if (DdmPreferences.getLogLevel() == LogLevel.VERBOSE) {
+            // in verbose mode, dump all adb output to log
+            Log.v(LOG_TAG, decode(line, start, end));
+        }
     }
 
     /**
      * Stores the currently parsed key-value pair in the appropriate place.
      */
     private void submitCurrentKeyValue() {
-        if (mCurrentKey != null && mCurrentValue != null) {
-            String statusValue = mCurrentValue.toString();
+        if (mCurrentKey != null) {
+            // the value is only decoded if it is used
             if (mInInstrumentationResultKey) {
                 if (!KNOWN_KEYS.contains(mCurrentKey)) {
-                    mInstrumentationResultBundle.put(mCurrentKey, statusValue);
+                    mInstrumentationResultBundle.put(mCurrentKey, mCurrentValue.decode());
                 } else if (mCurrentKey.equals(StatusKeys.SHORTMSG)) {
                     // test run must have failed
                     handleTestRunFailed(String.format("Instrumentation run failed due to '%1$s'",
-                            statusValue));
+                            mCurrentValue.decode()));
                 }
             } else {
                 TestResult testInfo = getCurrentTestInfo();
 
                 if (mCurrentKey.equals(StatusKeys.CLASS)) {
-                    testInfo.mTestClass = statusValue.trim();
+                    testInfo.mTestClass = mCurrentValue.decode().trim();
                 } else if (mCurrentKey.equals(StatusKeys.TEST)) {
-                    testInfo.mTestName = statusValue.trim();
+                    testInfo.mTestName = mCurrentValue.decode().trim();
                 } else if (mCurrentKey.equals(StatusKeys.NUMTESTS)) {
                     try {
-                        testInfo.mNumTests = Integer.parseInt(statusValue);
+                        testInfo.mNumTests = parseInt(mCurrentValue.mBytes, 0,
+                                mCurrentValue.mLength);
                     } catch (NumberFormatException e) {
                         Log.w(LOG_TAG, "Unexpected integer number of tests, received "
-                                + statusValue);
+                                + mCurrentValue.decode());
                     }
                 } else if (mCurrentKey.equals(StatusKeys.ERROR)) {
                     // test run must have failed
-                    handleTestRunFailed(statusValue);
+                    handleTestRunFailed(mCurrentValue.decode());
                 } else if (mCurrentKey.equals(StatusKeys.STACK)) {
-                    testInfo.mStackTrace = statusValue;
+                    testInfo.mStackTrace = mCurrentValue.decode();
                 } else if (!KNOWN_KEYS.contains(mCurrentKey)) {
                     // Not one of the recognized key/value pairs, so dump it in mTestMetrics
-                    mTestMetrics.put(mCurrentKey, statusValue);
+                    mTestMetrics.put(mCurrentKey, mCurrentValue.decode());
                 }
             }
 
             mCurrentKey = null;
-            mCurrentValue = null;
+            mCurrentValue.clear();
         }
     }
 
@@ -372,42 +451,54 @@ public class InstrumentationResultParser extends MultiLineReceiver {
     }
 
     /**
-     * Parses the key from the current line.
+     * Parses the key from the current line, and stores the start of the value.
      * Expects format of "key=value".
      *
-     * @param line full line of text to parse
+     * @param line buffer holding the line to parse
      * @param keyStartPos the starting position of the key in the given line
+     * @param end the end of the line
      */
-    private void parseKey(String line, int keyStartPos) {
-        int endKeyPos = line.indexOf('=', keyStartPos);
-        if (endKeyPos != -1) {
-            mCurrentKey = line.substring(keyStartPos, endKeyPos).trim();
-            parseValue(line, endKeyPos + 1);
+    private void parseKey(byte[] line, int keyStartPos, int end) {
+        for (int i = keyStartPos; i < end; i++) {
+            if (line[i] == '=') {
+                mCurrentKey = decodeKey(line, keyStartPos, i);
+                mCurrentValue.clear();
+                mCurrentValue.append(line, i + 1, end - i - 1);
+                return;
+            }
         }
     }
 
     /**
-     * Parses the start of a key=value pair.
-     *
-     * @param line - full line of text to parse
-     * @param valueStartPos - the starting position of the value in the given line
+     * Returns the trimmed key between the given positions, without allocating it for the known
+     * keys.
      */
-    private void parseValue(String line, int valueStartPos) {
-        mCurrentValue = new StringBuilder();
-        mCurrentValue.append(line.substring(valueStartPos));
+    private static String decodeKey(byte[] line, int start, int end) {
+        while (start < end && (line[start] & 0xFF) <= ' ') {
+            start++;
+        }
+        while (end > start && (line[end - 1] & 0xFF) <= ' ') {
+            end--;
+        }
+        for (String key : KNOWN_KEYS) {
+            if (key.length() == end - start && startsWith(line, start, end, key)) {
+                return key;
+            }
+        }
+        return decode(line, start, end);
     }
 
     /**
      * Parses out a status code result.
      */
-    private void parseStatusCode(String line) {
-        String value = line.substring(Prefixes.STATUS_CODE.length()).trim();
+    private void parseStatusCode(byte[] line, int start, int end) {
         TestResult testInfo = getCurrentTestInfo();
         testInfo.mCode = StatusCodes.ERROR;
         try {
-            testInfo.mCode = Integer.parseInt(value);
+            testInfo.mCode = parseInt(line, start, end);
         } catch (NumberFormatException e) {
-            Log.w(LOG_TAG, "Expected integer status code, received: " + value);
+            Log.w(LOG_TAG, "Expected integer status code, received: "
+                    + decode(line, start, end).trim());
             testInfo.mCode = StatusCodes.ERROR;
         }
         if (testInfo.mCode != StatusCodes.IN_PROGRESS) {
@@ -542,9 +633,7 @@ public class InstrumentationResultParser extends MultiLineReceiver {
      * Parses out and store the elapsed time.
      */
     private void parseTime(String line) {
-        final Pattern timePattern = Pattern.compile(String.format("%s\\s*([\\d\\.]+)",
-                Prefixes.TIME_REPORT));
-        Matcher timeMatcher = timePattern.matcher(line);
+        Matcher timeMatcher = TIME_PATTERN.matcher(line);
         if (timeMatcher.find()) {
             String timeString = timeMatcher.group(1);
             try {
@@ -626,4 +715,93 @@ public class InstrumentationResultParser extends MultiLineReceiver {
             }
         }
     }
+
+    /**
+     * Parses a decimal integer, as {@link Integer#parseInt(String)} does for the trimmed text.
+     *
+     * @throws NumberFormatException if the text is not a valid integer
+     */
+    private static int parseInt(byte[] bytes, int start, int end) {
+        while (start < end && (bytes[start] & 0xFF) <= ' ') {
+            start++;
+        }
+        while (end > start && (bytes[end - 1] & 0xFF) <= ' ') {
+            end--;
+        }
+        boolean negative = start < end && bytes[start] == '-';
+        if (negative || (start < end && bytes[start] == '+')) {
+            start++;
+        }
+        if (start == end) {
+            throw new NumberFormatException();
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9 || value > Integer.MAX_VALUE) {
+                throw new NumberFormatException();
+            }
+            value = value * 10 + digit;
+        }
+        value = negative ? -value : value;
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw new NumberFormatException();
+        }
+        return (int) value;
+    }
+
+    private static boolean startsWith(byte[] line, int start, int end, byte[] prefix) {
+        if (end - start < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (line[start + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Returns true if the line starts with the given ASCII text. */
+    private static boolean startsWith(byte[] line, int start, int end, String prefix) {
+        if (end - start < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (line[start + i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String decode(byte[] bytes, int start, int end) {
+        return new String(bytes, start, end - start, Charsets.UTF_8);
+    }
+
+    private static byte[] getBytes(String text) {
+        return text.getBytes(Charsets.UTF_8);
+    }
+
+    /** A growable array of bytes, reused from line to line. */
+    private static final class ByteArray {
+        private byte[] mBytes = new byte[256];
+        private int mLength = 0;
+
+        void append(byte[] bytes, int offset, int length) {
+            if (mLength + length > mBytes.length) {
+                mBytes = Arrays.copyOf(mBytes, Math.max(mBytes.length * 2, mLength + length));
+            }
+            System.arraycopy(bytes, offset, mBytes, mLength, length);
+            mLength += length;
+        }
+
+        void clear() {
+            mLength = 0;
+        }
+
+        String decode() {
+            return InstrumentationResultParser.decode(mBytes, 0, mLength);
+        }
+    }
 }
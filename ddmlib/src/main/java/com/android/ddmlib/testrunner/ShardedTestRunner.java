@@ -0,0 +1,600 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib.testrunner;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ddmlib.IShellEnabledDevice;
+import com.android.ddmlib.Log;
+import com.android.ddmlib.ShellCommandUnresponsiveException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the tests of an instrumentation across several devices, each device running a share of
+ * the tests, and reports their results as a single test run.
+ * <p>
+ * The tests are split into batches from the durations of a {@link TestDurationStore}, the tests
+ * which never ran being assumed to last as long as the average test. The batches are assigned to
+ * the devices longest first, so that each device has about the same expected run time, and each
+ * batch is run with one instrumentation command. A device done with its batches takes the
+ * smallest batch left to the device with the most expected run time, so that the devices finish
+ * at about the same time even if the durations are off or some devices are slower.
+ * <p>
+ * The tests of a batch that did not run, because the instrumentation crashed, are run once more
+ * in a new batch. A device failing to run a batch, e.g. because it went offline, is not used
+ * anymore, and its batches are run by the other devices.
+ * <p>
+ * The listeners are called from one thread at a time, but the events of the tests running on
+ * different devices are interleaved. The duration store is one of the listeners, so that it
+ * learns the durations of the tests for the next runs.
+ */
+public class ShardedTestRunner {
+
+    private static final String LOG_TAG = "ShardedTestRunner";
+
+    /** Number of batches planned per device, for the devices to be able to even out */
+    private static final int BATCHES_PER_DEVICE = 4;
+    /** Minimum expected duration of a batch, to amortize the start of the instrumentation */
+    private static final long MIN_BATCH_DURATION_MS = 10 * 1000;
+    /** Maximum length of the test names of a batch, to keep the command short enough for adb */
+    private static final int MAX_BATCH_ARG_LENGTH = 2000;
+    /** Duration assumed for the tests when no test has a duration */
+    private static final long DEFAULT_TEST_DURATION_MS = 1000;
+    /** Maximum number of times a test is run, when the instrumentation crashes before it */
+    private static final int MAX_ATTEMPTS = 2;
+
+    private final String mPackageName;
+    private final String mRunnerName;
+    /** map of name-value instrumentation argument pairs */
+    private final Map<String, String> mArgMap = new LinkedHashMap<String, String>();
+    private TestDurationStore mDurationStore = new TestDurationStore();
+    private long mMaxTimeToOutputResponse = 0;
+    private TimeUnit mMaxTimeUnits = TimeUnit.MILLISECONDS;
+    private String mRunName = null;
+
+    /**
+     * Creates a sharded test runner.
+     *
+     * @param packageName the Android application package that contains the tests to run
+     * @param runnerName the instrumentation test runner to execute. If null, will use default
+     *   runner
+     */
+    public ShardedTestRunner(@NonNull String packageName, @Nullable String runnerName) {
+        mPackageName = packageName;
+        mRunnerName = runnerName;
+    }
+
+    /**
+     * Sets the store of the test durations used to plan the runs, and updated by them.
+     */
+    public void setDurationStore(@NonNull TestDurationStore durationStore) {
+        mDurationStore = durationStore;
+    }
+
+    @NonNull
+    public TestDurationStore getDurationStore() {
+        return mDurationStore;
+    }
+
+    /**
+     * Adds an argument to the instrumentation of each batch.
+     * @see IRemoteAndroidTestRunner#addInstrumentationArg(String, String)
+     */
+    public void addInstrumentationArg(@NonNull String name, @NonNull String value) {
+        mArgMap.put(name, value);
+    }
+
+    /**
+     * Sets the maximum time allowed between the outputs of the instrumentation of a batch.
+     * @see IRemoteAndroidTestRunner#setMaxTimeToOutputResponse(long, TimeUnit)
+     */
+    public void setMaxTimeToOutputResponse(long maxTimeToOutputResponse,
+            @NonNull TimeUnit maxTimeUnits) {
+        mMaxTimeToOutputResponse = maxTimeToOutputResponse;
+        mMaxTimeUnits = maxTimeUnits;
+    }
+
+    /**
+     * Sets the name of the run reported to the listeners. Defaults to the package name.
+     */
+    public void setRunName(@Nullable String runName) {
+        mRunName = runName;
+    }
+
+    /**
+     * Runs tests on several devices, and waits for all of them to complete.
+     *
+     * @param devices the devices to run the tests on
+     * @param tests the tests to run, as collected with
+     *            {@link IRemoteAndroidTestRunner#setTestCollection(boolean)}
+     * @param listeners the listeners of the merged run
+     * @return the results of all the tests
+     * @throws InterruptedException if the calling thread is interrupted. The run is canceled,
+     *            and reported as failed to the listeners.
+     */
+    @NonNull
+    public TestRunResult run(@NonNull Collection<? extends IShellEnabledDevice> devices,
+            @NonNull Collection<TestIdentifier> tests, ITestRunListener... listeners)
+            throws InterruptedException {
+        if (devices.isEmpty()) {
+            throw new IllegalArgumentException("devices cannot be empty");
+        }
+        TestRunResult result = new TestRunResult();
+        List<ITestRunListener> allListeners = new ArrayList<ITestRunListener>();
+        allListeners.add(result);
+        allListeners.add(mDurationStore);
+        allListeners.addAll(Arrays.asList(listeners));
+
+        List<ArrayDeque<Batch>> plan = planBatches(tests, mDurationStore, devices.size());
+        ShardedRun run = new ShardedRun(allListeners);
+        int index = 0;
+        for (IShellEnabledDevice device : devices) {
+            run.mShards.add(new Shard(device, plan.get(index++)));
+        }
+        run.run(mRunName == null ? mPackageName : mRunName, tests.size());
+        return result;
+    }
+
+    /**
+     * Splits tests into batches, and assigns them to devices such that each device has about
+     * the same expected run time.
+     *
+     * @return the batches of each device, longest first
+     */
+    @NonNull
+    static List<ArrayDeque<Batch>> planBatches(@NonNull Collection<TestIdentifier> tests,
+            @NonNull TestDurationStore durationStore, int deviceCount) {
+        // the tests which never ran are assumed to last as long as the average test
+        long knownDuration = 0;
+        int knownCount = 0;
+        for (TestIdentifier test : tests) {
+            long duration = durationStore.getDuration(test);
+            if (duration >= 0) {
+                knownDuration += duration;
+                knownCount++;
+            }
+        }
+        long defaultDuration = knownCount > 0 ? knownDuration / knownCount
+                : DEFAULT_TEST_DURATION_MS;
+
+        final Map<TestIdentifier, Long> durations = new HashMap<TestIdentifier, Long>();
+        long totalDuration = 0;
+        for (TestIdentifier test : tests) {
+            long duration = durationStore.getDuration(test);
+            durations.put(test, duration >= 0 ? duration : defaultDuration);
+            totalDuration += durations.get(test);
+        }
+        List<TestIdentifier> sortedTests = new ArrayList<TestIdentifier>(durations.keySet());
+        Collections.sort(sortedTests, new Comparator<TestIdentifier>() {
+            @Override
+            public int compare(TestIdentifier test1, TestIdentifier test2) {
+                long duration1 = durations.get(test1);
+                long duration2 = durations.get(test2);
+                return duration1 > duration2 ? -1 : (duration1 < duration2 ? 1 : 0);
+            }
+        });
+
+        // fill batches up to a target duration, longest tests first
+        long targetDuration = Math.max(MIN_BATCH_DURATION_MS,
+                totalDuration / (deviceCount * BATCHES_PER_DEVICE));
+        List<Batch> batches = new ArrayList<Batch>();
+        Batch batch = null;
+        for (TestIdentifier test : sortedTests) {
+            long duration = durations.get(test);
+            int argLength = test.toString().length() + 1;
+            if (batch == null || (!batch.mTests.isEmpty()
+                    && (batch.mExpectedDuration + duration > targetDuration
+                            || batch.mArgLength + argLength > MAX_BATCH_ARG_LENGTH))) {
+                batch = new Batch(1);
+                batches.add(batch);
+            }
+            batch.add(test, duration, argLength);
+        }
+
+        // give each batch, longest first, to the device with the least expected run time
+        Collections.sort(batches, new Comparator<Batch>() {
+            @Override
+            public int compare(Batch batch1, Batch batch2) {
+                return batch1.mExpectedDuration > batch2.mExpectedDuration ? -1
+                        : (batch1.mExpectedDuration < batch2.mExpectedDuration ? 1 : 0);
+            }
+        });
+        List<ArrayDeque<Batch>> plan = new ArrayList<ArrayDeque<Batch>>();
+        long[] planDurations = new long[deviceCount];
+        for (int i = 0; i < deviceCount; i++) {
+            plan.add(new ArrayDeque<Batch>());
+        }
+        for (Batch b : batches) {
+            int shortest = 0;
+            for (int i = 1; i < deviceCount; i++) {
+                if (planDurations[i] < planDurations[shortest]) {
+                    shortest = i;
+                }
+            }
+            plan.get(shortest).add(b);
+            planDurations[shortest] += b.mExpectedDuration;
+        }
+        return plan;
+    }
+
+    /** Tests run by a single instrumentation command */
+    static final class Batch {
+        final List<TestIdentifier> mTests = new ArrayList<TestIdentifier>();
+        /** Number of times these tests have been run, including this batch */
+        final int mAttempt;
+        long mExpectedDuration = 0;
+        int mArgLength = 0;
+
+        Batch(int attempt) {
+            mAttempt = attempt;
+        }
+
+        void add(@NonNull TestIdentifier test, long expectedDuration, int argLength) {
+            mTests.add(test);
+            mExpectedDuration += expectedDuration;
+            mArgLength += argLength;
+        }
+    }
+
+    /** The batches left to a device */
+    private static final class Shard {
+        @NonNull final IShellEnabledDevice mDevice;
+        @NonNull final ArrayDeque<Batch> mBatches;
+        /** Expected duration of the batches left */
+        long mExpectedDuration = 0;
+        /** Whether the device failed, and should not run batches anymore */
+        boolean mFailed = false;
+
+        Shard(@NonNull IShellEnabledDevice device, @NonNull ArrayDeque<Batch> batches) {
+            mDevice = device;
+            mBatches = batches;
+            for (Batch batch : batches) {
+                mExpectedDuration += batch.mExpectedDuration;
+            }
+        }
+    }
+
+    /** The state of one call to {@link #run} */
+    private final class ShardedRun {
+        final List<Shard> mShards = new ArrayList<Shard>();
+        @NonNull private final List<ITestRunListener> mListeners;
+        /** Guards the shards, and the calls to the listeners */
+        private final Object mLock = new Object();
+        private final Map<String, String> mRunMetrics = new HashMap<String, String>();
+        private final Set<IRemoteAndroidTestRunner> mRunners =
+                new HashSet<IRemoteAndroidTestRunner>();
+        private final List<TestIdentifier> mNotRun = new ArrayList<TestIdentifier>();
+        /** Number of batches being run */
+        private int mRunning = 0;
+        private boolean mCanceled = false;
+        /** Whether the end of the run has been reported, and other events should be dropped */
+        private boolean mRunEnded = false;
+
+        ShardedRun(@NonNull List<ITestRunListener> listeners) {
+            mListeners = listeners;
+        }
+
+        void run(@NonNull String runName, int testCount) throws InterruptedException {
+            long startTime = System.currentTimeMillis();
+            for (ITestRunListener listener : mListeners) {
+                listener.testRunStarted(runName, testCount);
+            }
+
+            ExecutorService executor = Executors.newFixedThreadPool(mShards.size(),
+                    new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(@NonNull Runnable runnable) {
+                            Thread thread = new Thread(runnable,
+                                    "Test shard " + mCount.incrementAndGet()); //$NON-NLS-1$
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            try {
+                List<Future<?>> futures = new ArrayList<Future<?>>();
+                for (final Shard shard : mShards) {
+                    futures.add(executor.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            runShard(shard);
+                        }
+                    }));
+                }
+                for (Future<?> future : futures) {
+                    try {
+                        future.get();
+                    } catch (ExecutionException e) {
+                        Log.e(LOG_TAG, e.getCause());
+                    }
+                }
+            } catch (InterruptedException e) {
+                cancel();
+                reportEnd(startTime, "Test run canceled");
+                throw e;
+            } finally {
+                executor.shutdownNow();
+            }
+
+            synchronized (mLock) {
+                for (Shard shard : mShards) {
+                    for (Batch batch : shard.mBatches) {
+                        mNotRun.addAll(batch.mTests);
+                    }
+                }
+            }
+            reportEnd(startTime, mNotRun.isEmpty() ? null
+                    : String.format("%1$d tests were not run, the devices failed",
+                            mNotRun.size()));
+        }
+
+        private void reportEnd(long startTime, @Nullable String failure) {
+            synchronized (mLock) {
+                if (mRunEnded) {
+                    return;
+                }
+                mRunEnded = true;
+                for (ITestRunListener listener : mListeners) {
+                    if (failure != null) {
+                        listener.testRunFailed(failure);
+                    }
+                    listener.testRunEnded(System.currentTimeMillis() - startTime, mRunMetrics);
+                }
+            }
+        }
+
+        private void cancel() {
+            synchronized (mLock) {
+                mCanceled = true;
+                for (IRemoteAndroidTestRunner runner : mRunners) {
+                    runner.cancel();
+                }
+                mLock.notifyAll();
+            }
+        }
+
+        /** Runs batches on the device of a shard, until there is none left */
+        private void runShard(@NonNull Shard shard) {
+            Batch batch;
+            while ((batch = nextBatch(shard)) != null) {
+                BatchListener listener = new BatchListener();
+                IRemoteAndroidTestRunner runner = createRunner(shard.mDevice, batch);
+                boolean failed = false;
+                try {
+                    synchronized (mLock) {
+                        if (mCanceled) {
+                            return;
+                        }
+                        mRunners.add(runner);
+                    }
+                    runner.run(listener);
+                } catch (ShellCommandUnresponsiveException e) {
+                    // the test which hung is reported as failed, the device can go on
+                    Log.w(LOG_TAG, String.format("Tests unresponsive on %1$s",
+                            shard.mDevice.getName()));
+                } catch (Exception e) {
+                    Log.w(LOG_TAG, String.format("Failed to run tests on %1$s: %2$s",
+                            shard.mDevice.getName(), e.toString()));
+                    failed = true;
+                } finally {
+                    synchronized (mLock) {
+                        mRunners.remove(runner);
+                        mRunning--;
+                        if (failed) {
+                            shard.mFailed = true;
+                        }
+                        rerun(batch, listener.mEnded);
+                        mLock.notifyAll();
+                    }
+                }
+                if (failed) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Returns the next batch for a device: its longest batch, or the shortest batch of the
+         * device with the most expected run time left. Waits for the batches being run when
+         * there is none, since they can fail and leave tests to run.
+         */
+        @Nullable
+        private Batch nextBatch(@NonNull Shard shard) {
+            synchronized (mLock) {
+                while (!mCanceled && !shard.mFailed) {
+                    Batch batch = shard.mBatches.pollFirst();
+                    Shard from = shard;
+                    if (batch == null) {
+                        for (Shard other : mShards) {
+                            if (!other.mBatches.isEmpty() && (from == shard
+                                    || other.mExpectedDuration > from.mExpectedDuration)) {
+                                from = other;
+                            }
+                        }
+                        batch = from.mBatches.pollLast();
+                        if (batch != null) {
+                            Log.d(LOG_TAG, String.format("%1$s takes %2$d tests from %3$s",
+                                    shard.mDevice.getName(), batch.mTests.size(),
+                                    from.mDevice.getName()));
+                        }
+                    }
+                    if (batch != null) {
+                        from.mExpectedDuration -= batch.mExpectedDuration;
+                        mRunning++;
+                        return batch;
+                    }
+                    if (mRunning == 0) {
+                        return null;
+                    }
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        // the run is canceled, see cancel()
+                        return null;
+                    }
+                }
+                return null;
+            }
+        }
+
+        /** Queues the tests of a batch which did not run, if they can be run again */
+        private void rerun(@NonNull Batch batch, @NonNull Set<TestIdentifier> ended) {
+            Batch rerun = new Batch(batch.mAttempt + 1);
+            for (TestIdentifier test : batch.mTests) {
+                if (!ended.contains(test)) {
+                    rerun.add(test, 0, 0);
+                }
+            }
+            if (rerun.mTests.isEmpty()) {
+                return;
+            }
+            Shard shortest = null;
+            for (Shard shard : mShards) {
+                if (!shard.mFailed && (shortest == null
+                        || shard.mExpectedDuration < shortest.mExpectedDuration)) {
+                    shortest = shard;
+                }
+            }
+            if (rerun.mAttempt > MAX_ATTEMPTS || shortest == null || mCanceled) {
+                mNotRun.addAll(rerun.mTests);
+            } else {
+                shortest.mBatches.addFirst(rerun);
+            }
+        }
+
+        @NonNull
+        private IRemoteAndroidTestRunner createRunner(@NonNull IShellEnabledDevice device,
+                @NonNull Batch batch) {
+            RemoteAndroidTestRunner runner =
+                    new RemoteAndroidTestRunner(mPackageName, mRunnerName, device);
+            for (Map.Entry<String, String> arg : mArgMap.entrySet()) {
+                runner.addInstrumentationArg(arg.getKey(), arg.getValue());
+            }
+            String[] classNames = new String[batch.mTests.size()];
+            for (int i = 0; i < classNames.length; i++) {
+                classNames[i] = batch.mTests.get(i).toString();
+            }
+            runner.setClassNames(classNames);
+            runner.setMaxTimeToOutputResponse(mMaxTimeToOutputResponse, mMaxTimeUnits);
+            return runner;
+        }
+
+        /**
+         * Forwards the test events of a batch to the listeners of the run, and records the
+         * tests which ran.
+         */
+        private final class BatchListener implements ITestRunListener {
+            final Set<TestIdentifier> mEnded = new HashSet<TestIdentifier>();
+
+            @Override
+            public void testRunStarted(String runName, int testCount) {
+            }
+
+            @Override
+            public void testStarted(TestIdentifier test) {
+                synchronized (mLock) {
+                    if (!mRunEnded) {
+                        for (ITestRunListener listener : mListeners) {
+                            listener.testStarted(test);
+                        }
+                    }
+                }
+            }
+
+            @Override
+            public void testFailed(TestIdentifier test, String trace) {
+                synchronized (mLock) {
+                    if (!mRunEnded) {
+                        for (ITestRunListener listener : mListeners) {
+                            listener.testFailed(test, trace);
+                        }
+                    }
+                }
+            }
+
+            @Override
+            public void testAssumptionFailure(TestIdentifier test, String trace) {
+                synchronized (mLock) {
+                    if (!mRunEnded) {
+                        for (ITestRunListener listener : mListeners) {
+                            listener.testAssumptionFailure(test, trace);
+                        }
+                    }
+                }
+            }
+
+            @Override
+            public void testIgnored(TestIdentifier test) {
+                synchronized (mLock) {
+                    if (!mRunEnded) {
+                        for (ITestRunListener listener : mListeners) {
+                            listener.testIgnored(test);
+                        }
+                    }
+                }
+            }
+
+            @Override
+            public void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
+                synchronized (mLock) {
+                    mEnded.add(test);
+                    if (!mRunEnded) {
+                        for (ITestRunListener listener : mListeners) {
+                            listener.testEnded(test, testMetrics);
+                        }
+                    }
+                }
+            }
+
+            @Override
+            public void testRunFailed(String errorMessage) {
+                Log.w(LOG_TAG, "Test batch failed: " + errorMessage);
+            }
+
+            @Override
+            public void testRunStopped(long elapsedTime) {
+            }
+
+            @Override
+            public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
+                synchronized (mLock) {
+                    mRunMetrics.putAll(runMetrics);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib.testrunner;
+
+import com.android.SdkConstants;
+import com.android.ddmlib.Log;
+import com.android.ddmlib.testrunner.TestResult.TestStatus;
+import com.google.common.io.Files;
+
+import org.kxml2.io.KXmlSerializer;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An {@link XmlTestRunListener} that writes each test case as soon as the test ends, instead of
+ * keeping the results of all the tests until the end of the run.
+ * <p>
+ * The test cases are written to a temporary file, which is copied into the report when the run
+ * ends and the number of tests and failures to put at the top of the report is known. Only these
+ * counts are kept in memory, so the memory used does not grow with the number of tests.
+ * <p>
+ * As a consequence, {@link #getRunResult()} holds no test results, the test metrics are dropped,
+ * and a test reported twice appears twice in the report. The tests may run concurrently, as with
+ * {@link ShardedTestRunner}, the tests which never end being written when the run ends.
+ */
+public class StreamingXmlTestRunListener extends XmlTestRunListener {
+
+    private static final String LOG_TAG = "StreamingXmlResultReporter";
+
+    private static final String TEST_CASES_FILE_PREFIX = "test_cases_";
+    private static final String TEST_CASES_FILE_SUFFIX = ".xml";
+
+    /** Number of written tests in each TestStatus state. Indexed by TestStatus.ordinal() */
+    private final int[] mStatusCounts = new int[TestStatus.values().length];
+
+    private int mNumTests = 0;
+
+    /** The started tests, not written yet, and their results */
+    private final Map<TestIdentifier, TestResult> mRunningTests =
+            new LinkedHashMap<TestIdentifier, TestResult>();
+
+    /** The file the test cases are written to, and its stream and serializer */
+    private File mTestCasesFile = null;
+    private OutputStream mTestCasesStream = null;
+    private KXmlSerializer mTestCasesSerializer = null;
+
+    @Override
+    public void testRunStarted(String runName, int numTests) {
+        super.testRunStarted(runName, numTests);
+        Arrays.fill(mStatusCounts, 0);
+        mNumTests = 0;
+        mRunningTests.clear();
+        closeTestCases();
+        deleteTestCases();
+
+        try {
+            mTestCasesFile = File.createTempFile(TEST_CASES_FILE_PREFIX, TEST_CASES_FILE_SUFFIX);
+            mTestCasesStream = new BufferedOutputStream(new FileOutputStream(mTestCasesFile));
+            mTestCasesSerializer = new KXmlSerializer();
+            mTestCasesSerializer.setOutput(mTestCasesStream, SdkConstants.UTF_8);
+            mTestCasesSerializer.setFeature(
+                    "http://xmlpull.org/v1/doc/features.html#indent-output", true);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to create the test cases file");
+            closeTestCases();
+            deleteTestCases();
+        }
+    }
+
+    @Override
+    public void testStarted(TestIdentifier test) {
+        TestResult previous = mRunningTests.put(test, new TestResult());
+        if (previous != null) {
+            // the test started again before it ended
+            writeTest(test, previous);
+        }
+    }
+
+    @Override
+    public void testFailed(TestIdentifier test, String trace) {
+        getResult(test).setStatus(TestStatus.FAILURE).setStackTrace(trace);
+    }
+
+    @Override
+    public void testAssumptionFailure(TestIdentifier test, String trace) {
+        getResult(test).setStatus(TestStatus.ASSUMPTION_FAILURE).setStackTrace(trace);
+    }
+
+    @Override
+    public void testIgnored(TestIdentifier test) {
+        getResult(test).setStatus(TestStatus.IGNORED).setStackTrace(null);
+    }
+
+    @Override
+    public void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
+        TestResult result = getResult(test);
+        if (result.getStatus().equals(TestStatus.INCOMPLETE)) {
+            result.setStatus(TestStatus.PASSED);
+        }
+        result.setEndTime(System.currentTimeMillis());
+        writeTest(test, mRunningTests.remove(test));
+    }
+
+    @Override
+    public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
+        // the tests which never ended
+        for (Map.Entry<TestIdentifier, TestResult> entry : mRunningTests.entrySet()) {
+            writeTest(entry.getKey(), entry.getValue());
+        }
+        mRunningTests.clear();
+        closeTestCases();
+        try {
+            super.testRunEnded(elapsedTime, runMetrics);
+        } finally {
+            deleteTestCases();
+        }
+    }
+
+    @Override
+    void printTestCases(KXmlSerializer serializer, OutputStream stream) throws IOException {
+        if (mTestCasesFile != null) {
+            // the test cases are copied as is, after what the serializer wrote so far
+            serializer.flush();
+            Files.copy(mTestCasesFile, stream);
+        }
+    }
+
+    @Override
+    int getNumTests() {
+        return mNumTests;
+    }
+
+    @Override
+    int getNumTestsInState(TestStatus status) {
+        return mStatusCounts[status.ordinal()];
+    }
+
+    @Override
+    String getTextSummary() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format("Total tests %d, ", mNumTests));
+        for (TestStatus status : TestStatus.values()) {
+            int count = mStatusCounts[status.ordinal()];
+            if (count > 0) {
+                builder.append(String.format("%s %d, ", status.toString().toLowerCase(), count));
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Returns the result of the given test, which becomes a running test if it was not.
+     */
+    private TestResult getResult(TestIdentifier test) {
+        TestResult result = mRunningTests.get(test);
+        if (result == null) {
+            Log.d(LOG_TAG, String.format("received test event without test start for %s", test));
+            result = new TestResult();
+            mRunningTests.put(test, result);
+        }
+        return result;
+    }
+
+    /**
+     * Counts a test, and writes it to the test cases file.
+     */
+    private void writeTest(TestIdentifier test, TestResult result) {
+        mNumTests++;
+        mStatusCounts[result.getStatus().ordinal()]++;
+        if (mTestCasesSerializer != null) {
+            try {
+                print(mTestCasesSerializer, test, result);
+                mTestCasesSerializer.flush();
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Failed to write to the test cases file");
+                closeTestCases();
+                deleteTestCases();
+            }
+        }
+    }
+
+    private void closeTestCases() {
+        mTestCasesSerializer = null;
+        if (mTestCasesStream != null) {
+            try {
+                mTestCasesStream.close();
+            } catch (IOException ignored) {
+            }
+            mTestCasesStream = null;
+        }
+    }
+
+    private void deleteTestCases() {
+        if (mTestCasesFile != null) {
+            mTestCasesFile.delete();
+            mTestCasesFile = null;
+        }
+    }
+}
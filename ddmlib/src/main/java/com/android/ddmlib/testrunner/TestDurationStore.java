@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib.testrunner;
+
+import com.android.annotations.NonNull;
+import com.android.ddmlib.Log;
+import com.google.common.base.Charsets;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Stores the duration of tests, as measured by the host, to plan later runs.
+ * <p>
+ * As a {@link ITestRunListener}, it measures the time between {@link #testStarted} and
+ * {@link #testEnded} of each test. The stored duration of a test is the average of its last
+ * measure and of its previous duration, so that it follows changes without jumping on a single
+ * slow run.
+ * <p>
+ * The durations can be saved to, and loaded from, a text file with one test per line. Unlike the
+ * other listeners, it can receive the events of tests running concurrently on several devices.
+ */
+public class TestDurationStore implements ITestRunListener {
+
+    private static final String LOG_TAG = "TestDurationStore";
+
+    private static final char SEPARATOR = '\t';
+
+    /** Duration of each test, in ms */
+    private final Map<TestIdentifier, Long> mDurations =
+            new ConcurrentHashMap<TestIdentifier, Long>();
+
+    /** Start time of the running tests, in ms */
+    private final Map<TestIdentifier, Long> mStartTimes =
+            new ConcurrentHashMap<TestIdentifier, Long>();
+
+    /**
+     * Returns the stored duration of a test, in ms, or -1 if the test never ran.
+     */
+    public long getDuration(@NonNull TestIdentifier test) {
+        Long duration = mDurations.get(test);
+        return duration != null ? duration : -1;
+    }
+
+    /**
+     * Records a measured duration of a test.
+     */
+    public void addDuration(@NonNull TestIdentifier test, long durationMs) {
+        Long previous = mDurations.get(test);
+        mDurations.put(test, previous != null ? (previous + durationMs) / 2 : durationMs);
+    }
+
+    /**
+     * Returns the number of tests with a stored duration.
+     */
+    public int size() {
+        return mDurations.size();
+    }
+
+    /**
+     * Loads the durations saved in a file, replacing the durations of the same tests. Does
+     * nothing if the file does not exist.
+     *
+     * @throws IOException if the file cannot be read
+     */
+    public void load(@NonNull File file) throws IOException {
+        if (!file.isFile()) {
+            return;
+        }
+        Reader reader = new InputStreamReader(new FileInputStream(file), Charsets.UTF_8);
+        try {
+            BufferedReader lines = new BufferedReader(reader);
+            String line;
+            while ((line = lines.readLine()) != null) {
+                // <duration>\t<class>#<test>
+                int separator = line.indexOf(SEPARATOR);
+                int hash = line.lastIndexOf('#');
+                if (separator == -1 || hash < separator) {
+                    continue;
+                }
+                try {
+                    long duration = Long.parseLong(line.substring(0, separator));
+                    mDurations.put(new TestIdentifier(line.substring(separator + 1, hash),
+                            line.substring(hash + 1)), duration);
+                } catch (NumberFormatException e) {
+                    Log.w(LOG_TAG, "Invalid duration line: " + line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Saves the durations to a file.
+     *
+     * @throws IOException if the file cannot be written
+     */
+    public void save(@NonNull File file) throws IOException {
+        Writer writer = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(file), Charsets.UTF_8));
+        try {
+            for (Map.Entry<TestIdentifier, Long> entry : mDurations.entrySet()) {
+                writer.write(Long.toString(entry.getValue()));
+                writer.write(SEPARATOR);
+                writer.write(entry.getKey().toString());
+                writer.write('\n');
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    @Override
+    public void testRunStarted(String runName, int testCount) {
+    }
+
+    @Override
+    public void testStarted(TestIdentifier test) {
+        mStartTimes.put(test, System.currentTimeMillis());
+    }
+
+    @Override
+    public void testFailed(TestIdentifier test, String trace) {
+    }
+
+    @Override
+    public void testAssumptionFailure(TestIdentifier test, String trace) {
+    }
+
+    @Override
+    public void testIgnored(TestIdentifier test) {
+    }
+
+    @Override
+    public void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
+        Long startTime = mStartTimes.remove(test);
+        if (startTime != null) {
+            addDuration(test, System.currentTimeMillis() - startTime);
+        }
+    }
+
+    @Override
+    public void testRunFailed(String errorMessage) {
+    }
+
+    @Override
+    public void testRunStopped(long elapsedTime) {
+    }
+
+    @Override
+    public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
+    }
+}
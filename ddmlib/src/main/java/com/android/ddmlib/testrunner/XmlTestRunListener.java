@@ -162,10 +162,10 @@ public class XmlTestRunListener implements ITestRunListener {
             serializer.setFeature(
                     "http://xmlpull.org/v1/doc/features.html#indent-output", true);
             // TODO: insert build info
-            printTestResults(serializer, timestamp, elapsedTime);
+            printTestResults(serializer, stream, timestamp, elapsedTime);
             serializer.endDocument();
             String msg = String.format("XML test result file generated at %s. %s" ,
-                    getAbsoluteReportPath(), mRunResult.getTextSummary());
+                    getAbsoluteReportPath(), getTextSummary());
             Log.logAndDisplay(LogLevel.INFO, LOG_TAG, msg);
         } catch (IOException e) {
             Log.e(LOG_TAG, "Failed to generate report data");
@@ -225,19 +225,19 @@ public class XmlTestRunListener implements ITestRunListener {
         return mRunResult.getName();
     }
 
-    void printTestResults(KXmlSerializer serializer, String timestamp, long elapsedTime)
-            throws IOException {
+    void printTestResults(KXmlSerializer serializer, OutputStream stream, String timestamp,
+            long elapsedTime) throws IOException {
         serializer.startTag(ns, TESTSUITE);
         String name = getTestSuiteName();
         if (name != null) {
             serializer.attribute(ns, ATTR_NAME, name);
         }
-        serializer.attribute(ns, ATTR_TESTS, Integer.toString(mRunResult.getNumTests()));
+        serializer.attribute(ns, ATTR_TESTS, Integer.toString(getNumTests()));
         serializer.attribute(ns, ATTR_FAILURES, Integer.toString(
-                mRunResult.getNumAllFailedTests()));
+                getNumTestsInState(TestStatus.FAILURE)));
         // legacy - there are no errors in JUnit4
         serializer.attribute(ns, ATTR_ERRORS, "0");
-        serializer.attribute(ns, ATTR_SKIPPED, Integer.toString(mRunResult.getNumTestsInState(
+        serializer.attribute(ns, ATTR_SKIPPED, Integer.toString(getNumTestsInState(
                 TestStatus.IGNORED)));
 
         serializer.attribute(ns, ATTR_TIME, Double.toString((double) elapsedTime / 1000.f));
@@ -253,12 +253,36 @@ public class XmlTestRunListener implements ITestRunListener {
         }
         serializer.endTag(ns, PROPERTIES);
 
+        printTestCases(serializer, stream);
+
+        serializer.endTag(ns, TESTSUITE);
+    }
+
+    /**
+     * Prints the test cases of the test suite.
+     * @param serializer the serializer of the report
+     * @param stream the stream the serializer writes the report to
+     */
+    void printTestCases(KXmlSerializer serializer, OutputStream stream) throws IOException {
         Map<TestIdentifier, TestResult> testResults = mRunResult.getTestResults();
         for (Map.Entry<TestIdentifier, TestResult> testEntry : testResults.entrySet()) {
             print(serializer, testEntry.getKey(), testEntry.getValue());
         }
+    }
 
-        serializer.endTag(ns, TESTSUITE);
+    /** Returns the number of tests in the report. */
+    int getNumTests() {
+        return mRunResult.getNumTests();
+    }
+
+    /** Returns the number of tests in the report in the given state. */
+    int getNumTestsInState(TestStatus status) {
+        return mRunResult.getNumTestsInState(status);
+    }
+
+    /** Returns a user friendly string describing the results in the report. */
+    String getTextSummary() {
+        return mRunResult.getTextSummary();
     }
 
     /**
@@ -16,16 +16,176 @@
 package com.android.ddmlib;
 
 import com.android.annotations.NonNull;
+import com.android.ddmlib.AndroidDebugBridge.IDeviceChangeListener;
 
 import junit.framework.TestCase;
 
 import org.easymock.EasyMock;
 
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 public class DeviceMonitorTest extends TestCase {
+    private static final String ADB_SERVER_PORT_PROPERTY = "ANDROID_ADB_SERVER_PORT";
+    private static final long WAIT_TIMEOUT_MS = 10000;
+
+    private FakeAdbServer mServer;
+    private int mTimeOut;
+    private final BlockingQueue<String> mEvents = new LinkedBlockingQueue<String>();
+    private volatile String mCallbackThread;
+
+    private final IDeviceChangeListener mListener = new IDeviceChangeListener() {
+        @Override
+        public void deviceConnected(@NonNull IDevice device) {
+            record("connected " + device.getSerialNumber());
+        }
+
+        @Override
+        public void deviceDisconnected(@NonNull IDevice device) {
+            record("disconnected " + device.getSerialNumber());
+        }
+
+        @Override
+        public void deviceChanged(@NonNull IDevice device, int changeMask) {
+            record("changed " + device.getSerialNumber() + " " + changeMask);
+        }
+
+        private void record(String event) {
+            if (Thread.currentThread().getName().equals("Device Monitor")) {
+                mCallbackThread = Thread.currentThread().getName();
+            }
+            mEvents.add(event);
+        }
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new FakeAdbServer();
+        mTimeOut = DdmPreferences.getTimeOut();
+        AndroidDebugBridge.addDeviceChangeListener(mListener);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        AndroidDebugBridge.removeDeviceChangeListener(mListener);
+        AndroidDebugBridge.disconnectBridge();
+        AndroidDebugBridge.terminate();
+        System.clearProperty(ADB_SERVER_PORT_PROPERTY);
+        DdmPreferences.setTimeOut(mTimeOut);
+        mServer.close();
+        super.tearDown();
+    }
+
+    public void testTrackDevices() throws Exception {
+        AndroidDebugBridge bridge = createBridge(false);
+
+        mServer.setDevice("device1", "device");
+        waitForEvent("connected device1");
+        assertEquals(1, bridge.getDevices().length);
+        IDevice device = bridge.getDevices()[0];
+        assertEquals(IDevice.DeviceState.ONLINE, device.getState());
+
+        mServer.setDevice("device1", "offline");
+        waitForEvent("changed device1 " + IDevice.CHANGE_STATE);
+        assertEquals(IDevice.DeviceState.OFFLINE, device.getState());
+
+        mServer.setDevice("device2", "device");
+        waitForEvent("connected device2");
+        assertEquals(2, bridge.getDevices().length);
+
+        mServer.removeDevice("device1");
+        waitForEvent("disconnected device1");
+        assertEquals(1, bridge.getDevices().length);
+        assertEquals("device2", bridge.getDevices()[0].getSerialNumber());
+        assertEquals(IDevice.DeviceState.DISCONNECTED, device.getState());
+
+        // the listeners are not called from the selector thread
+        assertNull(mCallbackThread);
+    }
+
+    public void testTrackJdwp() throws Exception {
+        AndroidDebugBridge bridge = createBridge(true);
+
+        mServer.setPids(100, 200);
+        mServer.setDevice("device1", "device");
+        waitForEvent("connected device1");
+        waitForEvent("changed device1 " + IDevice.CHANGE_CLIENT_LIST);
+        IDevice device = bridge.getDevices()[0];
+        assertEquals(new HashSet<Integer>(Arrays.asList(100, 200)), getPids(device));
+
+        mServer.setPids(100, 200, 300);
+        waitForEvent("changed device1 " + IDevice.CHANGE_CLIENT_LIST);
+        assertEquals(new HashSet<Integer>(Arrays.asList(100, 200, 300)), getPids(device));
+
+        mServer.setPids(300);
+        waitForEvent("changed device1 " + IDevice.CHANGE_CLIENT_LIST);
+        assertEquals(new HashSet<Integer>(Arrays.asList(300)), getPids(device));
+
+        assertNull(mCallbackThread);
+    }
+
+    public void testReconnectAfterConnectionLoss() throws Exception {
+        createBridge(false);
+        mServer.setDevice("device1", "device");
+        waitForEvent("connected device1");
+
+        // adb drops the connection: the devices are lost, then found again once reconnected
+        mServer.closeTrackingConnections();
+        waitForEvent("disconnected device1");
+        waitForEvent("connected device1");
+        assertEquals(2, mServer.getTrackDevicesCount());
+    }
+
+    public void testReconnectBackoff() throws Exception {
+        final AndroidDebugBridge bridge = createBridge(false);
+        waitFor(new Condition() {
+            @Override
+            public boolean isMet() {
+                return bridge.hasInitialDeviceList();
+            }
+        });
+
+        long start = System.currentTimeMillis();
+        mServer.close();
+        waitFor(new Condition() {
+            @Override
+            public boolean isMet() {
+                return bridge.getConnectionAttemptCount() >= 3;
+            }
+        });
+        // the second and the third attempts are delayed by 100 and 200ms
+        assertTrue(System.currentTimeMillis() - start >= 300);
+        assertFalse(bridge.isConnected());
+        assertEquals(0, bridge.getRestartAttemptCount());
+    }
+
+    public void testHandshakeTimeout() throws Exception {
+        DdmPreferences.setTimeOut(200);
+        mServer.setSilent(true);
+        final AndroidDebugBridge bridge = createBridge(false);
+
+        // the unanswered request times out, and is sent again
+        waitFor(new Condition() {
+            @Override
+            public boolean isMet() {
+                return mServer.getTrackDevicesCount() >= 2;
+            }
+        });
+        assertFalse(bridge.hasInitialDeviceList());
+
+        mServer.setSilent(false);
+        mServer.setDevice("device1", "device");
+        waitForEvent("connected device1");
+        assertTrue(bridge.hasInitialDeviceList());
+    }
+
     public void testDeviceListMonitor() {
         Map<String, IDevice.DeviceState> map = DeviceMonitor.DeviceListMonitorTask
                 .parseDeviceListResponse(
@@ -68,4 +228,49 @@ public class DeviceMonitorTest extends TestCase {
         EasyMock.replay(device);
         return device;
     }
+
+    /** Creates a bridge monitoring the fake adb server */
+    private AndroidDebugBridge createBridge(boolean clientSupport) {
+        // a previous test may have left the library initialized
+        AndroidDebugBridge.disconnectBridge();
+        AndroidDebugBridge.terminate();
+        System.setProperty(ADB_SERVER_PORT_PROPERTY,
+                Integer.toString(mServer.getAddress().getPort()));
+        AndroidDebugBridge.init(clientSupport);
+        AndroidDebugBridge bridge = AndroidDebugBridge.createBridge();
+        assertNotNull(bridge);
+        return bridge;
+    }
+
+    /** Waits for the given listener event, skipping the other ones */
+    private void waitForEvent(String expected) throws InterruptedException {
+        long end = System.currentTimeMillis() + WAIT_TIMEOUT_MS;
+        while (true) {
+            String event = mEvents.poll(end - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+            assertNotNull("Timed out waiting for " + expected, event);
+            if (event.equals(expected)) {
+                return;
+            }
+        }
+    }
+
+    private interface Condition {
+        boolean isMet();
+    }
+
+    private static void waitFor(Condition condition) throws InterruptedException {
+        long end = System.currentTimeMillis() + WAIT_TIMEOUT_MS;
+        while (!condition.isMet()) {
+            assertTrue("Timed out", System.currentTimeMillis() < end);
+            Thread.sleep(10);
+        }
+    }
+
+    private static Set<Integer> getPids(IDevice device) {
+        Set<Integer> pids = new HashSet<Integer>();
+        for (Client client : device.getClients()) {
+            pids.add(client.getClientData().getPid());
+        }
+        return pids;
+    }
 }
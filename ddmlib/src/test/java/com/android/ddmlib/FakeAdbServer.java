@@ -0,0 +1,486 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ddmlib;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A minimal adb server for tests, answering on a local port like adb and the adbd of a single
+ * device would. It accepts any transport request, and implements the sync service on top of an
+ * in-memory file system. The directories of the file system are those of the files it holds, and
+ * their modification time is set from {@link #setTime(int)} when files are added to them.
+ * <p>It also implements the frame buffer service, each frame being filled with its index.
+ * <p>The track-devices and track-jdwp services report the devices set by
+ * {@link #setDevice(String, String)} and the pids set by {@link #setPids(int...)}, and send an
+ * update whenever they change. A jdwp connection to a client answers its handshake, then ignores
+ * what it is sent. Any transport request is accepted, so every device has the same pids.
+ * <p>Pushing a file whose path starts with {@link #FAILING_PATH_PREFIX} fails the way adbd does:
+ * the file is read up to the DONE packet, then a FAIL packet is sent and the connection closed.
+ */
+class FakeAdbServer {
+    static final String FAILING_PATH_PREFIX = "/fail/";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int SYNC_DATA_MAX = 64 * 1024;
+    static final int FRAME_WIDTH = 32;
+    static final int FRAME_HEIGHT = 16;
+
+    private final ServerSocket mServerSocket;
+    private final Map<String, byte[]> mFiles = new ConcurrentHashMap<String, byte[]>();
+    /** Modification time in seconds of each directory, by path */
+    private final Map<String, Integer> mDirectoryTimes = new ConcurrentHashMap<String, Integer>();
+    private final AtomicInteger mListCount = new AtomicInteger();
+    private final AtomicInteger mFrameCount = new AtomicInteger();
+    private volatile boolean mDiscardData;
+    private volatile int mTime;
+
+    /** State of each device, by serial number. Guarded by this server. */
+    private final Map<String, String> mDevices = new LinkedHashMap<String, String>();
+    /** Pids of the clients of the devices. Guarded by this server. */
+    private final Set<Integer> mPids = new TreeSet<Integer>();
+    /** The connections of the track services and of the clients, closed by {@link #close()} */
+    private final Set<Socket> mTrackingSockets =
+            Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+    private final AtomicInteger mTrackDevicesCount = new AtomicInteger();
+    private volatile boolean mSilent;
+
+    FakeAdbServer() throws IOException {
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mDirectoryTimes.put("/", 0);
+        Thread acceptThread = new Thread("FakeAdbServer") {
+            @Override
+            public void run() {
+                acceptConnections();
+            }
+        };
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    InetSocketAddress getAddress() {
+        return new InetSocketAddress(mServerSocket.getInetAddress(), mServerSocket.getLocalPort());
+    }
+
+    /** Returns the content of a pushed file, or null */
+    byte[] getFile(String path) {
+        return mFiles.get(path);
+    }
+
+    synchronized void putFile(String path, byte[] content) {
+        if (mFiles.put(path, content) == null) {
+            addToParent(path);
+        }
+    }
+
+    /** Sets the time in seconds given to the directories modified from now on */
+    void setTime(int time) {
+        mTime = time;
+    }
+
+    /** Returns the number of directories listed so far */
+    int getListCount() {
+        return mListCount.get();
+    }
+
+    /** Returns the number of frames sent so far */
+    int getFrameCount() {
+        return mFrameCount.get();
+    }
+
+    /** Sets whether pushed data is dropped instead of stored, to benchmark large transfers */
+    void setDiscardData(boolean discardData) {
+        mDiscardData = discardData;
+    }
+
+    /** Adds a device, or changes its state (e.g. "device" or "offline") */
+    synchronized void setDevice(String serial, String state) {
+        mDevices.put(serial, state);
+        notifyAll();
+    }
+
+    synchronized void removeDevice(String serial) {
+        mDevices.remove(serial);
+        notifyAll();
+    }
+
+    /** Sets the pids of the clients running on the devices */
+    synchronized void setPids(int... pids) {
+        mPids.clear();
+        for (int pid : pids) {
+            mPids.add(pid);
+        }
+        notifyAll();
+    }
+
+    /** Returns the number of track-devices requests received so far */
+    int getTrackDevicesCount() {
+        return mTrackDevicesCount.get();
+    }
+
+    /** Sets whether the track-devices requests are left unanswered, like a hung adb server */
+    void setSilent(boolean silent) {
+        mSilent = silent;
+    }
+
+    /** Closes the connections of the track services and of the clients, like a dying adb */
+    void closeTrackingConnections() throws IOException {
+        for (Socket socket : mTrackingSockets) {
+            socket.close();
+        }
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    void close() throws IOException {
+        mServerSocket.close();
+        closeTrackingConnections();
+    }
+
+    private void acceptConnections() {
+        while (!mServerSocket.isClosed()) {
+            try {
+                final Socket socket = mServerSocket.accept();
+                Thread thread = new Thread("FakeAdbServer connection") {
+                    @Override
+                    public void run() {
+                        try {
+                            handleConnection(socket);
+                        } catch (IOException e) {
+                            // the client went away
+                        } finally {
+                            try {
+                                socket.close();
+                            } catch (IOException ignored) {
+                            }
+                        }
+                    }
+                };
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void handleConnection(Socket socket) throws IOException {
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        OutputStream out = socket.getOutputStream();
+        while (true) {
+            byte[] length = new byte[4];
+            in.readFully(length);
+            byte[] request = new byte[Integer.parseInt(new String(length, UTF_8), 16)];
+            in.readFully(request);
+            String service = new String(request, UTF_8);
+            if (service.startsWith("host:transport:")) {
+                out.write("OKAY".getBytes(UTF_8));
+            } else if (service.equals("host:track-devices")) {
+                mTrackDevicesCount.incrementAndGet();
+                track(socket, in, out, true);
+                return;
+            } else if (service.equals("track-jdwp")) {
+                track(socket, in, out, false);
+                return;
+            } else if (service.startsWith("jdwp:")) {
+                out.write("OKAY".getBytes(UTF_8));
+                handleJdwp(socket, in, out);
+                return;
+            } else if (service.equals("sync:")) {
+                out.write("OKAY".getBytes(UTF_8));
+                handleSync(in, out);
+                return;
+            } else if (service.equals("framebuffer:")) {
+                out.write("OKAY".getBytes(UTF_8));
+                sendFrame(in, out);
+                return;
+            } else {
+                byte[] message = ("unknown service " + service).getBytes(UTF_8);
+                out.write(("FAIL" + String.format("%04x", message.length)).getBytes(UTF_8));
+                out.write(message);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Sends the device list or the pids, then each change of them until the connection is
+     * closed, by either side
+     */
+    private void track(Socket socket, DataInputStream in, OutputStream out, boolean devices)
+            throws IOException {
+        mTrackingSockets.add(socket);
+        try {
+            if (devices && mSilent) {
+                // wait for the client to give up
+                while (in.read() >= 0) {
+                }
+                return;
+            }
+            out.write("OKAY".getBytes(UTF_8));
+            String sent = null;
+            while (!socket.isClosed()) {
+                String message;
+                synchronized (this) {
+                    message = devices ? formatDevices() : formatPids();
+                    if (message.equals(sent)) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        continue;
+                    }
+                }
+                byte[] bytes = message.getBytes(UTF_8);
+                out.write(String.format("%04x", bytes.length).getBytes(UTF_8));
+                out.write(bytes);
+                out.flush();
+                sent = message;
+            }
+        } finally {
+            mTrackingSockets.remove(socket);
+        }
+    }
+
+    private String formatDevices() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> entry : mDevices.entrySet()) {
+            sb.append(entry.getKey()).append('\t').append(entry.getValue()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private String formatPids() {
+        StringBuilder sb = new StringBuilder();
+        for (int pid : mPids) {
+            sb.append(pid).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /** Answers the JDWP handshake of a client, then ignores its packets */
+    private void handleJdwp(Socket socket, DataInputStream in, OutputStream out)
+            throws IOException {
+        mTrackingSockets.add(socket);
+        try {
+            byte[] handshake = new byte[14];
+            in.readFully(handshake);
+            out.write(handshake);
+            byte[] buffer = new byte[1024];
+            while (in.read(buffer) >= 0) {
+            }
+        } finally {
+            mTrackingSockets.remove(socket);
+        }
+    }
+
+    private void sendFrame(DataInputStream in, OutputStream out) throws IOException {
+        int size = FRAME_WIDTH * FRAME_HEIGHT * 4;
+        // version 1, then bpp, size, width, height and the offset and length of RGBA
+        ByteBuffer header = ByteBuffer.allocate(13 * 4).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(1).putInt(32).putInt(size).putInt(FRAME_WIDTH).putInt(FRAME_HEIGHT);
+        header.putInt(0).putInt(8).putInt(16).putInt(8).putInt(8).putInt(8).putInt(24).putInt(8);
+        out.write(header.array());
+        in.readByte();
+
+        ByteBuffer frame = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        int index = mFrameCount.getAndIncrement();
+        while (frame.hasRemaining()) {
+            frame.putInt(index);
+        }
+        out.write(frame.array());
+    }
+
+    private void handleSync(DataInputStream in, OutputStream out) throws IOException {
+        byte[] header = new byte[8];
+        while (true) {
+            try {
+                in.readFully(header);
+            } catch (EOFException e) {
+                return;
+            }
+            String id = new String(header, 0, 4, UTF_8);
+            byte[] argument = new byte[getInt(header, 4)];
+            in.readFully(argument);
+            String path = new String(argument, UTF_8);
+
+            if (id.equals("STAT")) {
+                byte[] content = mFiles.get(path);
+                Integer directoryTime = mDirectoryTimes.get(getDirectoryPath(path));
+                ByteBuffer reply = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+                reply.put("STAT".getBytes(UTF_8));
+                if (directoryTime != null) {
+                    reply.putInt(040755);
+                    reply.putInt(4096);
+                    reply.putInt(directoryTime);
+                } else {
+                    reply.putInt(content != null ? 0100644 : 0);
+                    reply.putInt(content != null ? content.length : 0);
+                    reply.putInt(0);
+                }
+                out.write(reply.array());
+            } else if (id.equals("LIST")) {
+                listDirectory(out, getDirectoryPath(path));
+            } else if (id.equals("SEND")) {
+                path = path.substring(0, path.lastIndexOf(','));
+                if (!receiveFile(in, out, path)) {
+                    return;
+                }
+            } else if (id.equals("RECV")) {
+                byte[] content = mFiles.get(path);
+                if (content == null) {
+                    sendStatus(out, "FAIL", "No such file or directory");
+                    return;
+                }
+                for (int offset = 0; offset < content.length; offset += SYNC_DATA_MAX) {
+                    int count = Math.min(SYNC_DATA_MAX, content.length - offset);
+                    out.write(createPacket("DATA", count));
+                    out.write(content, offset, count);
+                }
+                out.write(createPacket("DONE", 0));
+            } else {
+                return;
+            }
+        }
+    }
+
+    /** Receives the DATA and DONE packets of a pushed file, returns false if it failed */
+    private boolean receiveFile(DataInputStream in, OutputStream out, String path)
+            throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        byte[] header = new byte[8];
+        byte[] data = new byte[SYNC_DATA_MAX];
+        while (true) {
+            in.readFully(header);
+            String id = new String(header, 0, 4, UTF_8);
+            int length = getInt(header, 4);
+            if (id.equals("DONE")) {
+                break;
+            } else if (!id.equals("DATA") || length > SYNC_DATA_MAX) {
+                sendStatus(out, "FAIL", "invalid data message");
+                return false;
+            }
+            in.readFully(data, 0, length);
+            if (!mDiscardData) {
+                content.write(data, 0, length);
+            }
+        }
+
+        if (path.startsWith(FAILING_PATH_PREFIX)) {
+            sendStatus(out, "FAIL", "Read-only file system");
+            return false;
+        }
+        putFile(path, content.toByteArray());
+        out.write(createPacket("OKAY", 0));
+        return true;
+    }
+
+    /** Sends the entries of a directory like adbd, nothing but DONE if it does not exist */
+    private void listDirectory(OutputStream out, String directory) throws IOException {
+        mListCount.incrementAndGet();
+        Integer time = mDirectoryTimes.get(directory);
+        if (time != null) {
+            sendEntry(out, "DENT", ".", 040755, 4096, time);
+            sendEntry(out, "DENT", "..", 040755, 4096, 0);
+            for (Map.Entry<String, Integer> entry : mDirectoryTimes.entrySet()) {
+                String path = entry.getKey();
+                if (!path.equals("/") && getParent(path).equals(directory)) {
+                    sendEntry(out, "DENT", getName(path), 040755, 4096, entry.getValue());
+                }
+            }
+            for (Map.Entry<String, byte[]> entry : mFiles.entrySet()) {
+                String path = entry.getKey();
+                if (getParent(path).equals(directory)) {
+                    sendEntry(out, "DENT", getName(path), 0100644, entry.getValue().length, 0);
+                }
+            }
+        }
+        sendEntry(out, "DONE", "", 0, 0, 0);
+    }
+
+    /** Records a new file or directory in its parent, creating the parent as needed */
+    private void addToParent(String path) {
+        String parent = getParent(path);
+        if (!mDirectoryTimes.containsKey(parent)) {
+            addToParent(parent);
+        }
+        mDirectoryTimes.put(parent, mTime);
+    }
+
+    private static void sendEntry(OutputStream out, String id, String name, int mode, int size,
+            int time) throws IOException {
+        byte[] bytes = name.getBytes(UTF_8);
+        ByteBuffer entry = ByteBuffer.allocate(20 + bytes.length).order(ByteOrder.LITTLE_ENDIAN);
+        entry.put(id.getBytes(UTF_8));
+        entry.putInt(mode);
+        entry.putInt(size);
+        entry.putInt(time);
+        entry.putInt(bytes.length);
+        entry.put(bytes);
+        out.write(entry.array());
+    }
+
+    private static String getDirectoryPath(String path) {
+        return path.length() > 1 && path.endsWith("/")
+                ? path.substring(0, path.length() - 1) : path;
+    }
+
+    private static String getParent(String path) {
+        int index = path.lastIndexOf('/');
+        return index > 0 ? path.substring(0, index) : "/";
+    }
+
+    private static String getName(String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    private static void sendStatus(OutputStream out, String id, String message)
+            throws IOException {
+        byte[] bytes = message.getBytes(UTF_8);
+        out.write(createPacket(id, bytes.length));
+        out.write(bytes);
+    }
+
+    private static byte[] createPacket(String id, int value) {
+        ByteBuffer packet = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        packet.put(id.getBytes(UTF_8));
+        packet.putInt(value);
+        return packet.array();
+    }
+
+    private static int getInt(byte[] bytes, int offset) {
+        return ByteBuffer.wrap(bytes, offset, 4).order(ByteOrder.LITTLE_ENDIAN).getInt();
+    }
+}
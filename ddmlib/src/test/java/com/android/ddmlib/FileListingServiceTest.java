@@ -15,6 +15,13 @@
  */
 package com.android.ddmlib;
 
+import com.android.ddmlib.FileListingService.FileEntry;
+import com.android.ddmlib.FileListingService.TreeIterator;
+import com.android.ddmlib.IDevice.DeviceState;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.regex.Matcher;
 import junit.framework.TestCase;
 
@@ -78,4 +85,97 @@ public class FileListingServiceTest extends TestCase {
                 "drwxrwx--x 12 root sdcard_r 4096 2015-07-20 23:01 /sdcard/");
         assertTrue(m.matches());
     }
+
+    public void testWalkTree() throws Exception {
+        FakeAdbServer server = createServer();
+        try {
+            FileListingService service = createService();
+            SyncService sync = openSync(server);
+            List<String> paths = new ArrayList<String>();
+            TreeIterator iterator = service.walkTree(service.getRoot(), sync);
+            FileEntry entry;
+            while ((entry = iterator.next()) != null) {
+                paths.add(entry.getFullPath() + (entry.isDirectory() ? "/" : ""));
+            }
+            sync.close();
+
+            Collections.sort(paths);
+            assertEquals("[/data/, /data/a/, /data/a/1, /data/a/2, /data/b/, /data/b/c/, "
+                    + "/data/b/c/3, /system/, /system/build.prop]", paths.toString());
+        } finally {
+            server.close();
+        }
+    }
+
+    public void testFetchTree() throws Exception {
+        FakeAdbServer server = createServer();
+        try {
+            FileListingService service = createService();
+            FileEntry root = service.getRoot();
+            SyncService sync = openSync(server);
+            service.fetchTree(root, sync);
+            assertEquals(6, server.getListCount());
+
+            FileEntry data = root.findChild("data");
+            FileEntry a = data.findChild("a");
+            assertEquals("[a, b]", getNames(data));
+            assertEquals("[1, 2]", getNames(a));
+            FileEntry file = a.findChild("1");
+            assertEquals(FileListingService.TYPE_FILE, file.getType());
+            assertEquals("-rw-r--r--", file.getPermissions());
+            assertEquals("3", file.getSize());
+            assertEquals("drwxr-xr-x", a.getPermissions());
+
+            // Nothing changed: the directories are only checked
+            service.fetchTree(root, sync);
+            assertEquals(6, server.getListCount());
+
+            // Only the modified directory is listed again, and the existing entries are kept
+            server.setTime(2000);
+            server.putFile("/data/a/4", new byte[0]);
+            service.fetchTree(root, sync);
+            assertEquals(7, server.getListCount());
+            assertEquals("[1, 2, 4]", getNames(a));
+            assertSame(a, data.findChild("a"));
+            assertSame(file, a.findChild("1"));
+
+            // New directories are listed with their content
+            server.setTime(3000);
+            server.putFile("/data/d/e/5", new byte[0]);
+            service.fetchTree(root, sync);
+            assertEquals(10, server.getListCount());
+            assertEquals("[5]", getNames(data.findChild("d").findChild("e")));
+            sync.close();
+        } finally {
+            server.close();
+        }
+    }
+
+    private static FakeAdbServer createServer() throws Exception {
+        FakeAdbServer server = new FakeAdbServer();
+        server.setTime(1000);
+        server.putFile("/system/build.prop", new byte[10]);
+        server.putFile("/data/a/1", new byte[3]);
+        server.putFile("/data/a/2", new byte[0]);
+        server.putFile("/data/b/c/3", new byte[0]);
+        return server;
+    }
+
+    private static FileListingService createService() {
+        return new FileListingService(new Device(null, "serial", DeviceState.ONLINE));
+    }
+
+    private static SyncService openSync(FakeAdbServer server) throws Exception {
+        SyncService sync = new SyncService(server.getAddress(), null);
+        assertTrue(sync.openSync());
+        return sync;
+    }
+
+    private static String getNames(FileEntry directory) {
+        List<String> names = new ArrayList<String>();
+        for (FileEntry child : directory.getCachedChildren()) {
+            names.add(child.getName());
+        }
+        return names.toString();
+    }
 }
@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ddmlib;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link JdwpReadBuffer}, and the in-place parsing of chunks of {@link JdwpPacket}.
+ * <p>When run with {@code -Dddmlib.jdwpBenchmarkMb=500}, that much synthetic DDM traffic is read
+ * from a local socket and parsed with a read buffer, and with a growing heap buffer compacted
+ * after each packet as before, and the throughputs and allocated bytes are printed.
+ */
+public class JdwpReadBufferTest extends TestCase {
+    private static final int BENCHMARK_MB = Integer.getInteger("ddmlib.jdwpBenchmarkMb", 0);
+
+    private static final int INITIAL_SIZE = 2 * 1024;
+    private static final int MAX_SIZE = 64 * 1024 * 1024;
+    private static final int THST = ChunkHandler.type("THST");
+
+    /** Sizes of chunk data: small, larger than the initial buffer, and than the pooled buffers */
+    private static final int[] SIZES = { 0, 1, 100, 2000, 5000, 70 * 1024, 9 * 1024 * 1024, 3 };
+
+    public void testFindPackets() throws Exception {
+        byte[] stream = createTraffic(SIZES);
+        for (int maxRead : new int[] { 1, 7, 1000, 100 * 1024, stream.length }) {
+            BufferPool pool = new BufferPool();
+            JdwpReadBuffer buffer = new JdwpReadBuffer(pool, INITIAL_SIZE, MAX_SIZE);
+            ReadableByteChannel channel = new ByteArrayChannel(stream, maxRead);
+            int found = 0;
+            while (found < SIZES.length) {
+                buffer.read(channel);
+                JdwpPacket packet = buffer.findPacket();
+                while (packet != null) {
+                    checkPacket(packet, found, SIZES[found]);
+                    packet.consume();
+                    found++;
+                    packet = buffer.findPacket();
+                }
+            }
+            assertEquals(0, buffer.getLength());
+            // the large buffers went back to the pool
+            assertEquals(INITIAL_SIZE, buffer.getBuffer().capacity());
+        }
+    }
+
+    public void testLargeBuffersReused() throws Exception {
+        int[] sizes = { 200 * 1024, 10, 200 * 1024, 10, 200 * 1024 };
+        BufferPool pool = new BufferPool();
+        JdwpReadBuffer buffer = new JdwpReadBuffer(pool, INITIAL_SIZE, MAX_SIZE);
+        ReadableByteChannel channel = new ByteArrayChannel(createTraffic(sizes), 4096);
+        int found = 0;
+        while (found < sizes.length) {
+            buffer.read(channel);
+            JdwpPacket packet;
+            while ((packet = buffer.findPacket()) != null) {
+                checkPacket(packet, found, sizes[found]);
+                packet.consume();
+                found++;
+            }
+        }
+        // the initial buffer and one large buffer, which are swapped through the pool
+        assertEquals(2, pool.getAllocationCount());
+    }
+
+    public void testPacketTooLarge() throws Exception {
+        JdwpReadBuffer buffer = new JdwpReadBuffer(new BufferPool(), INITIAL_SIZE, 4096);
+        ReadableByteChannel channel = new ByteArrayChannel(createTraffic(new int[] { 5000 }), 100);
+        buffer.read(channel);
+        try {
+            for (int i = 0; i < 100; i++) {
+                buffer.read(channel);
+            }
+            fail();
+        } catch (BufferOverflowException e) {
+            // expected
+        }
+    }
+
+    public void testChunkData() throws Exception {
+        BufferPool pool = new BufferPool();
+        JdwpReadBuffer buffer = new JdwpReadBuffer(pool, INITIAL_SIZE, MAX_SIZE);
+        buffer.read(new ByteArrayChannel(createTraffic(new int[] { 10, 20 }), Integer.MAX_VALUE));
+
+        JdwpPacket first = buffer.findPacket();
+        first.consume();
+        JdwpPacket second = buffer.findPacket();
+        assertEquals(THST, second.getChunkType());
+        assertEquals(20, second.getChunkLength());
+        ByteBuffer data = second.getChunkData();
+        assertEquals(0, data.position());
+        assertEquals(20, data.limit());
+        try {
+            data.put(0, (byte) 0);
+            fail();
+        } catch (ReadOnlyBufferException e) {
+            // expected
+        }
+        // the payload of a packet found after another starts at its own header
+        assertEquals(THST, second.getPayload().getInt(0));
+    }
+
+    public void testBenchmark() throws Exception {
+        if (BENCHMARK_MB <= 0) {
+            return;
+        }
+        // thread updates and heap info, with an allocation list and a method trace now and then
+        int[] sizes = new int[1000];
+        Random random = new Random(0);
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = i % 250 == 0 ? 2 * 1024 * 1024
+                    : i % 50 == 0 ? 200 * 1024 : 50 + random.nextInt(400);
+        }
+        byte[] stream = createTraffic(sizes);
+        int repeat = Math.max(1, (int) ((long) BENCHMARK_MB * 1024 * 1024 / stream.length));
+        double mb = (double) stream.length * repeat / (1024 * 1024);
+
+        for (int round = 0; round < 3; round++) {
+            for (boolean pooled : new boolean[] { true, false }) {
+                ServerSocketChannel server = ServerSocketChannel.open();
+                server.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+                Thread writer = startWriter(server.socket().getLocalPort(), stream, repeat);
+                SocketChannel channel = server.accept();
+                long allocated = getAllocatedBytes();
+                long start = System.nanoTime();
+                long checksum = pooled
+                        ? readPooled(channel, sizes.length * repeat)
+                        : readCompacting(channel, sizes.length * repeat);
+                long ns = System.nanoTime() - start;
+                allocated = getAllocatedBytes() - allocated;
+                writer.join();
+                channel.close();
+                server.close();
+
+                System.out.println(String.format(
+                        "JDWP read %1$.0f MB with %2$s: %3$.0f MB/s, %4$.1f MB allocated (%5$d)",
+                        mb, pooled ? "read buffer" : "compacting", mb * 1e9 / ns,
+                        allocated / (1024.0 * 1024), checksum));
+            }
+        }
+    }
+
+    private static Thread startWriter(final int port, final byte[] stream, final int repeat) {
+        Thread writer = new Thread("JdwpReadBufferTest writer") {
+            @Override
+            public void run() {
+                try {
+                    Socket socket = new Socket("127.0.0.1", port);
+                    try {
+                        OutputStream out = socket.getOutputStream();
+                        for (int i = 0; i < repeat; i++) {
+                            out.write(stream);
+                        }
+                    } finally {
+                        socket.close();
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        writer.setDaemon(true);
+        writer.start();
+        return writer;
+    }
+
+    /** Returns the bytes allocated by the current thread so far, if the VM tells */
+    private static long getAllocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(
+                    Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    private static long readPooled(ReadableByteChannel channel, int count) throws IOException {
+        JdwpReadBuffer buffer =
+                new JdwpReadBuffer(BufferPool.getInstance(), INITIAL_SIZE, MAX_SIZE);
+        long checksum = 0;
+        int found = 0;
+        while (found < count) {
+            buffer.read(channel);
+            JdwpPacket packet;
+            while ((packet = buffer.findPacket()) != null) {
+                checksum += parseChunk(packet.getChunkType(), packet.getChunkData());
+                packet.consume();
+                found++;
+            }
+        }
+        return checksum;
+    }
+
+    /**
+     * Reads the packets like before {@link JdwpReadBuffer}: into a heap buffer which doubles when
+     * full, and is compacted after each packet.
+     */
+    private static long readCompacting(ReadableByteChannel channel, int count)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(INITIAL_SIZE);
+        long checksum = 0;
+        int found = 0;
+        while (found < count) {
+            if (buffer.position() == buffer.capacity()) {
+                ByteBuffer newBuffer = ByteBuffer.allocate(buffer.capacity() * 2);
+                buffer.position(0);
+                newBuffer.put(buffer);
+                buffer = newBuffer;
+            }
+            if (channel.read(buffer) < 0) {
+                throw new IOException("read failed");
+            }
+            JdwpPacket packet;
+            while ((packet = JdwpPacket.findPacket(buffer)) != null) {
+                ByteBuffer payload = packet.getPayload();
+                int type = payload.getInt();
+                payload.getInt();
+                ByteBuffer data = payload.slice().asReadOnlyBuffer();
+                data.order(ChunkHandler.CHUNK_ORDER);
+                checksum += parseChunk(type, data);
+                packet.consume();
+                found++;
+            }
+        }
+        return checksum;
+    }
+
+    /** Reads the chunk data like a handler would, one int at a time */
+    private static long parseChunk(int type, ByteBuffer data) {
+        long sum = type;
+        while (data.remaining() >= 4) {
+            sum += data.getInt();
+        }
+        return sum;
+    }
+
+    private static void checkPacket(JdwpPacket packet, int index, int size) {
+        assertEquals(index, packet.getId());
+        assertEquals(JdwpPacket.JDWP_HEADER_LEN + ChunkHandler.CHUNK_HEADER_LEN + size,
+                packet.getLength());
+        assertEquals(THST, packet.getChunkType());
+        assertEquals(size, packet.getChunkLength());
+        ByteBuffer data = packet.getChunkData();
+        assertEquals(size, data.remaining());
+        for (int i = 0; i < size; i++) {
+            assertEquals((byte) (index + i), data.get(i));
+        }
+    }
+
+    /**
+     * Creates DDM packets with a single chunk of each size, numbered from 0.
+     */
+    private static byte[] createTraffic(int[] sizes) {
+        int total = 0;
+        for (int size : sizes) {
+            total += JdwpPacket.JDWP_HEADER_LEN + ChunkHandler.CHUNK_HEADER_LEN + size;
+        }
+        ByteBuffer stream = ByteBuffer.allocate(total).order(ChunkHandler.CHUNK_ORDER);
+        for (int index = 0; index < sizes.length; index++) {
+            int size = sizes[index];
+            stream.putInt(JdwpPacket.JDWP_HEADER_LEN + ChunkHandler.CHUNK_HEADER_LEN + size);
+            stream.putInt(index);
+            stream.put((byte) 0);
+            stream.put((byte) ChunkHandler.DDMS_CMD_SET);
+            stream.put((byte) ChunkHandler.DDMS_CMD);
+            stream.putInt(THST);
+            stream.putInt(size);
+            for (int i = 0; i < size; i++) {
+                stream.put((byte) (index + i));
+            }
+        }
+        return stream.array();
+    }
+
+    /** A channel returning the bytes of an array, at most a given number at a time */
+    private static class ByteArrayChannel implements ReadableByteChannel {
+        private final byte[] mData;
+        private final int mMaxRead;
+        private int mPosition = 0;
+
+        ByteArrayChannel(byte[] data, int maxRead) {
+            mData = data;
+            mMaxRead = maxRead;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            if (mPosition == mData.length) {
+                return -1;
+            }
+            int count = Math.min(Math.min(mMaxRead, dst.remaining()), mData.length - mPosition);
+            dst.put(mData, mPosition, count);
+            mPosition += count;
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ddmlib;
+
+import com.android.ddmlib.ParallelDeployer.Result;
+import com.android.ddmlib.ParallelDeployer.Status;
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+public class ParallelDeployerTest extends TestCase {
+    private static final String REMOTE_PATH = "/sdcard/artifact.bin";
+
+    private final List<FakeDevice> mDevices = new ArrayList<FakeDevice>();
+    private final AtomicInteger mActiveTransfers = new AtomicInteger();
+    private final AtomicInteger mMaxActiveTransfers = new AtomicInteger();
+    private File mLocalFile;
+    private byte[] mContent;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContent = new byte[300 * 1024];
+        new Random(1).nextBytes(mContent);
+        mLocalFile = File.createTempFile("ParallelDeployerTest", ".apk");
+        Files.write(mContent, mLocalFile);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (FakeDevice device : mDevices) {
+            device.server.close();
+        }
+        mLocalFile.delete();
+        super.tearDown();
+    }
+
+    public void testPushFile() throws Exception {
+        List<IDevice> devices = new ArrayList<IDevice>();
+        for (int i = 0; i < 10; i++) {
+            devices.add(createDevice("device" + i).device);
+        }
+        // One device already has the file, one has a stale copy
+        mDevices.get(3).server.putFile(REMOTE_PATH, mContent);
+        mDevices.get(4).server.putFile(REMOTE_PATH, new byte[10]);
+
+        ParallelDeployer deployer = new ParallelDeployer(3);
+        Map<IDevice, Result> results = deployer.pushFile(devices, mLocalFile.getPath(),
+                REMOTE_PATH, null);
+
+        assertEquals(devices, new ArrayList<IDevice>(results.keySet()));
+        for (int i = 0; i < devices.size(); i++) {
+            Result result = results.get(devices.get(i));
+            assertEquals(i == 3 ? Status.SKIPPED : Status.DEPLOYED, result.getStatus());
+            assertEquals(1, result.getAttempts());
+            assertTrue(Arrays.equals(mContent, mDevices.get(i).server.getFile(REMOTE_PATH)));
+        }
+        assertEquals(0, mDevices.get(3).syncConnections.get());
+        assertTrue(mMaxActiveTransfers.get() <= 3);
+    }
+
+    public void testRetries() throws Exception {
+        FakeDevice flaky = createDevice("flaky");
+        flaky.failingConnections.set(2);
+        FakeDevice broken = createDevice("broken");
+        broken.failingConnections.set(Integer.MAX_VALUE);
+
+        ParallelDeployer deployer = new ParallelDeployer();
+        deployer.setMaxAttempts(3);
+        deployer.setInitialBackoff(10, TimeUnit.MILLISECONDS);
+        final List<Long> delays = new CopyOnWriteArrayList<Long>();
+        Map<IDevice, Result> results = deployer.pushFile(
+                Arrays.asList(flaky.device, broken.device), mLocalFile.getPath(), REMOTE_PATH,
+                new NullListener() {
+                    @Override
+                    public void deviceRetrying(IDevice device, int attempt, Exception error,
+                            long delayMs) {
+                        delays.add(delayMs);
+                    }
+                });
+
+        assertEquals(Status.DEPLOYED, results.get(flaky.device).getStatus());
+        assertEquals(3, results.get(flaky.device).getAttempts());
+        assertTrue(Arrays.equals(mContent, flaky.server.getFile(REMOTE_PATH)));
+        assertEquals(Status.FAILED, results.get(broken.device).getStatus());
+        assertEquals(3, results.get(broken.device).getAttempts());
+        assertTrue(results.get(broken.device).getError() instanceof IOException);
+        // Two retries per device, after 10 then 20 ms
+        Collections.sort(delays);
+        assertEquals(Arrays.asList(10L, 10L, 20L, 20L), delays);
+    }
+
+    public void testInstallPackage() throws Exception {
+        final FakeDevice ok = createDevice("ok");
+        FakeDevice rejecting = createDevice("rejecting");
+        rejecting.installError = "INSTALL_FAILED_OLDER_SDK";
+
+        ParallelDeployer deployer = new ParallelDeployer();
+        final AtomicLong progress = new AtomicLong();
+        Map<IDevice, Result> results = deployer.installPackage(
+                Arrays.asList(ok.device, rejecting.device), mLocalFile.getPath(), true,
+                new NullListener() {
+                    @Override
+                    public void deviceProgress(IDevice device, long transferred, long total) {
+                        if (device == ok.device) {
+                            progress.set(transferred == total ? total : -1);
+                        }
+                    }
+                }, "-d");
+
+        String remotePath = "/data/local/tmp/" + mLocalFile.getName();
+        assertEquals(Status.DEPLOYED, results.get(ok.device).getStatus());
+        assertEquals(remotePath + " true [-d]", ok.installed);
+        assertTrue(Arrays.equals(mContent, ok.server.getFile(remotePath)));
+        // Install errors are not retried
+        assertEquals(Status.FAILED, results.get(rejecting.device).getStatus());
+        assertEquals(1, results.get(rejecting.device).getAttempts());
+        assertEquals(mContent.length, progress.get());
+
+        // The package is left on the device, and not pushed again
+        results = deployer.installPackage(Arrays.asList(ok.device), mLocalFile.getPath(), true,
+                null);
+        assertEquals(Status.SKIPPED, results.get(ok.device).getStatus());
+        assertEquals(1, ok.syncConnections.get());
+    }
+
+    /** A device backed by a {@link FakeAdbServer}, with md5sum and pm install emulated */
+    private class FakeDevice implements InvocationHandler {
+        final String serial;
+        final FakeAdbServer server = new FakeAdbServer();
+        final IDevice device;
+        final AtomicInteger syncConnections = new AtomicInteger();
+        final AtomicInteger failingConnections = new AtomicInteger();
+        volatile String installError;
+        volatile String installed;
+
+        FakeDevice(String serial) throws IOException {
+            this.serial = serial;
+            device = (IDevice) Proxy.newProxyInstance(IDevice.class.getClassLoader(),
+                    new Class<?>[] { IDevice.class }, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("getSerialNumber") || name.equals("toString")) {
+                return serial;
+            } else if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            } else if (name.equals("equals")) {
+                return proxy == args[0];
+            } else if (name.equals("getSyncService")) {
+                if (failingConnections.getAndDecrement() > 0) {
+                    throw new IOException("device offline");
+                }
+                syncConnections.incrementAndGet();
+                int active = mActiveTransfers.incrementAndGet();
+                while (true) {
+                    int max = mMaxActiveTransfers.get();
+                    if (active <= max || mMaxActiveTransfers.compareAndSet(max, active)) {
+                        break;
+                    }
+                }
+                final SyncService sync = new SyncService(server.getAddress(), null) {
+                    @Override
+                    public void close() {
+                        mActiveTransfers.decrementAndGet();
+                        super.close();
+                    }
+                };
+                if (!sync.openSync()) {
+                    throw new IOException("sync refused");
+                }
+                return sync;
+            } else if (name.equals("executeShellCommand") && args.length == 4) {
+                String command = (String) args[0];
+                if (!command.startsWith("md5sum '")) {
+                    throw new IllegalArgumentException(command);
+                }
+                String path = command.substring("md5sum '".length(), command.indexOf("' "));
+                byte[] content = server.getFile(path);
+                String output = content != null
+                        ? Hashing.md5().hashBytes(content) + "  " + path + "\n" : "";
+                IShellOutputReceiver receiver = (IShellOutputReceiver) args[1];
+                byte[] bytes = output.getBytes(Charsets.UTF_8);
+                receiver.addOutput(bytes, 0, bytes.length);
+                receiver.flush();
+                return null;
+            } else if (name.equals("installRemotePackage")) {
+                if (installError != null) {
+                    throw new InstallException(installError);
+                }
+                installed = args[0] + " " + args[1] + " " + Arrays.toString((Object[]) args[2]);
+                return null;
+            }
+            throw new UnsupportedOperationException(name);
+        }
+    }
+
+    private FakeDevice createDevice(String serial) throws IOException {
+        FakeDevice device = new FakeDevice(serial);
+        mDevices.add(device);
+        return device;
+    }
+
+    private static class NullListener implements ParallelDeployer.IDeploymentListener {
+        @Override
+        public void deviceStarted(IDevice device, int attempt) {
+        }
+
+        @Override
+        public void deviceProgress(IDevice device, long transferred, long total) {
+        }
+
+        @Override
+        public void deviceRetrying(IDevice device, int attempt, Exception error,
+                long delayMs) {
+        }
+
+        @Override
+        public void deviceCompleted(IDevice device, Result result) {
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ddmlib;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link ScreenCapture}, against a {@link FakeAdbServer}.
+ */
+public class ScreenCaptureTest extends TestCase {
+
+    private FakeAdbServer mServer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new FakeAdbServer();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.close();
+        super.tearDown();
+    }
+
+    /**
+     * Checks that the frames are received in order, into reused images.
+     */
+    public void testCapture() throws Exception {
+        FrameRecorder recorder = new FrameRecorder(20, 0);
+        ScreenCapture capture = ScreenCapture.start(mServer.getAddress(), null, 0, recorder);
+
+        assertTrue(recorder.mReceived.await(10, TimeUnit.SECONDS));
+        capture.stop();
+        assertTrue(recorder.mStopped.await(10, TimeUnit.SECONDS));
+
+        assertTrue(capture.isStopped());
+        assertNull(recorder.mError);
+        assertTrue(recorder.mIndexes.size() >= 20);
+        for (int i = 1; i < recorder.mIndexes.size(); i++) {
+            assertTrue(recorder.mIndexes.get(i) > recorder.mIndexes.get(i - 1));
+        }
+        assertTrue(recorder.mImages.size() <= 3);
+    }
+
+    /**
+     * Checks that the frames a slow receiver cannot take are dropped, and that it gets the
+     * latest frame.
+     */
+    public void testSlowReceiver() throws Exception {
+        FrameRecorder recorder = new FrameRecorder(5, 50);
+        ScreenCapture capture = ScreenCapture.start(mServer.getAddress(), null, 0, recorder);
+
+        assertTrue(recorder.mReceived.await(10, TimeUnit.SECONDS));
+        capture.stop();
+        assertTrue(recorder.mStopped.await(10, TimeUnit.SECONDS));
+
+        assertTrue(capture.getDroppedFrameCount() > 0);
+        int frameCount = capture.getFrameCount();
+        int delivered = recorder.mIndexes.size() + capture.getDroppedFrameCount();
+        // the last frame may be left pending when the capture stops
+        assertTrue(delivered == frameCount || delivered == frameCount - 1);
+        assertTrue(recorder.mIndexes.get(1) - recorder.mIndexes.get(0) > 1);
+    }
+
+    /**
+     * Checks that the frames are captured at the target rate.
+     */
+    public void testFrameRate() throws Exception {
+        FrameRecorder recorder = new FrameRecorder(Integer.MAX_VALUE, 0);
+        ScreenCapture capture = ScreenCapture.start(mServer.getAddress(), null, 20, recorder);
+
+        Thread.sleep(1000);
+        capture.stop();
+        assertTrue(recorder.mStopped.await(10, TimeUnit.SECONDS));
+
+        assertTrue(mServer.getFrameCount() > 5);
+        assertTrue(mServer.getFrameCount() <= 25);
+    }
+
+    /**
+     * Checks that a failure to read the frame buffer stops the capture.
+     */
+    public void testCaptureFailure() throws Exception {
+        mServer.close();
+        FrameRecorder recorder = new FrameRecorder(1, 0);
+        ScreenCapture capture = ScreenCapture.start(mServer.getAddress(), null, 0, recorder);
+
+        assertTrue(recorder.mStopped.await(10, TimeUnit.SECONDS));
+        assertTrue(capture.isStopped());
+        assertNotNull(recorder.mError);
+        assertTrue(recorder.mIndexes.isEmpty());
+    }
+
+    /**
+     * Records the frames it receives, and checks that their content matches their index.
+     */
+    private static class FrameRecorder implements ScreenCapture.IFrameReceiver {
+        private final long mDelayMs;
+        final CountDownLatch mReceived;
+        final CountDownLatch mStopped = new CountDownLatch(1);
+        final List<Integer> mIndexes = Collections.synchronizedList(new ArrayList<Integer>());
+        final Map<byte[], Boolean> mImages =
+                Collections.synchronizedMap(new IdentityHashMap<byte[], Boolean>());
+        volatile Exception mError;
+
+        FrameRecorder(int frameCount, long delayMs) {
+            mReceived = new CountDownLatch(frameCount);
+            mDelayMs = delayMs;
+        }
+
+        @Override
+        public void frameReceived(RawImage image, int index) {
+            assertEquals(FakeAdbServer.FRAME_WIDTH, image.width);
+            assertEquals(FakeAdbServer.FRAME_HEIGHT, image.height);
+            assertEquals(index & 0xff, image.data[0] & 0xff);
+            mImages.put(image.data, true);
+            mIndexes.add(index);
+            if (mDelayMs > 0) {
+                try {
+                    Thread.sleep(mDelayMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            mReceived.countDown();
+        }
+
+        @Override
+        public void captureStopped(Exception error) {
+            mError = error;
+            mStopped.countDown();
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ddmlib;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link SyncService}, against a {@link FakeAdbServer}.
+ * <p>When run with {@code -Dddmlib.syncBenchmarkMb=300}, pushing a file of that size is timed
+ * with and without pipelining, and the throughputs are printed.
+ */
+public class SyncServiceTest extends TestCase {
+    private static final int BENCHMARK_MB = Integer.getInteger("ddmlib.syncBenchmarkMb", 0);
+
+    private FakeAdbServer mServer;
+    private File mTempDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new FakeAdbServer();
+        mTempDir = File.createTempFile("SyncServiceTest", "dir");
+        assertTrue(mTempDir.delete());
+        assertTrue(mTempDir.mkdirs());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        DdmPreferences.setPipelinedSync(DdmPreferences.DEFAULT_PIPELINED_SYNC);
+        mServer.close();
+        File[] files = mTempDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mTempDir.delete();
+        super.tearDown();
+    }
+
+    public void testPushPullPipelined() throws Exception {
+        DdmPreferences.setPipelinedSync(true);
+        checkPushPull();
+    }
+
+    public void testPushPullSequential() throws Exception {
+        DdmPreferences.setPipelinedSync(false);
+        checkPushPull();
+    }
+
+    private void checkPushPull() throws Exception {
+        // Sizes around the packet size, and one spanning many packets
+        int[] sizes = { 0, 1, 64 * 1024 - 1, 64 * 1024, 64 * 1024 + 1, 1024 * 1024 + 17 };
+        SyncService sync = openSync();
+        try {
+            for (int size : sizes) {
+                byte[] content = createContent(size, size);
+                File local = writeFile("push" + size, content);
+                sync.pushFile(local.getPath(), "/data/local/tmp/file" + size,
+                        SyncService.getNullProgressMonitor());
+                assertTrue(Arrays.equals(content, mServer.getFile("/data/local/tmp/file" + size)));
+
+                File pulled = new File(mTempDir, "pull" + size);
+                sync.pullFile("/data/local/tmp/file" + size, pulled.getPath(),
+                        SyncService.getNullProgressMonitor());
+                assertTrue(Arrays.equals(content, readFile(pulled)));
+            }
+        } finally {
+            sync.close();
+        }
+    }
+
+    public void testPushFiles() throws Exception {
+        int count = 20;
+        String[] local = new String[count];
+        String[] remote = new String[count];
+        byte[][] contents = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            contents[i] = createContent(i, i % 3 == 0 ? 200 * 1024 + i : 100 + i);
+            local[i] = writeFile("file" + i, contents[i]).getPath();
+            remote[i] = "/sdcard/file" + i;
+        }
+
+        SyncService sync = openSync();
+        try {
+            sync.pushFiles(local, remote, 4, SyncService.getNullProgressMonitor());
+        } finally {
+            sync.close();
+        }
+
+        for (int i = 0; i < count; i++) {
+            assertTrue(Arrays.equals(contents[i], mServer.getFile(remote[i])));
+        }
+    }
+
+    public void testPushFilesFailure() throws Exception {
+        String[] local = new String[4];
+        String[] remote = new String[4];
+        for (int i = 0; i < local.length; i++) {
+            local[i] = writeFile("file" + i, createContent(i, 1000)).getPath();
+            remote[i] = (i == 1 ? FakeAdbServer.FAILING_PATH_PREFIX : "/sdcard/") + "file" + i;
+        }
+
+        SyncService sync = openSync();
+        try {
+            sync.pushFiles(local, remote, 2, SyncService.getNullProgressMonitor());
+            fail("Expected a SyncException");
+        } catch (SyncException e) {
+            assertEquals(SyncException.SyncError.TRANSFER_PROTOCOL_ERROR, e.getErrorCode());
+            assertTrue(e.getMessage(), e.getMessage().startsWith(remote[1]));
+        } finally {
+            sync.close();
+        }
+        assertNotNull(mServer.getFile(remote[0]));
+    }
+
+    public void testPushBenchmark() throws Exception {
+        if (BENCHMARK_MB <= 0) {
+            return;
+        }
+        mServer.setDiscardData(true);
+        File local = writeFile("benchmark", createContent(0, BENCHMARK_MB * 1024 * 1024));
+
+        for (boolean pipelined : new boolean[] { false, true, false, true }) {
+            DdmPreferences.setPipelinedSync(pipelined);
+            SyncService sync = openSync();
+            try {
+                long start = System.nanoTime();
+                sync.pushFile(local.getPath(), "/sdcard/benchmark",
+                        SyncService.getNullProgressMonitor());
+                long ms = (System.nanoTime() - start) / 1000000;
+                System.out.println(String.format("Pushed %1$d MB %2$s in %3$d ms (%4$.1f MB/s)",
+                        BENCHMARK_MB, pipelined ? "pipelined" : "sequentially", ms,
+                        BENCHMARK_MB * 1000.0 / Math.max(1, ms)));
+            } finally {
+                sync.close();
+            }
+        }
+    }
+
+    private SyncService openSync() throws Exception {
+        SyncService sync = new SyncService(mServer.getAddress(), null);
+        assertTrue(sync.openSync());
+        return sync;
+    }
+
+    private static byte[] createContent(long seed, int size) {
+        byte[] content = new byte[size];
+        new Random(seed).nextBytes(content);
+        return content;
+    }
+
+    private File writeFile(String name, byte[] content) throws IOException {
+        File file = new File(mTempDir, name);
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] content = new byte[(int) file.length()];
+        InputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < content.length) {
+                int count = in.read(content, offset, content.length - offset);
+                if (count < 0) {
+                    break;
+                }
+                offset += count;
+            }
+        } finally {
+            in.close();
+        }
+        return content;
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ddmlib.allocations;
+
+import com.android.ddmlib.AllocationAggregator;
+import com.android.ddmlib.AllocationInfo;
+import com.android.ddmlib.AllocationsParser;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.android.ddmlib.allocations.AllocationsParserTest.putAllocationInfo;
+
+public class AllocationAggregatorTest extends TestCase {
+
+  public void testAggregationOnNoAllocations() throws IOException {
+    AllocationAggregator aggregator = new AllocationAggregator();
+    aggregator.add(putAllocationInfo(new String[0], new String[0], new String[0], new int[0][], new short[0][][]));
+    assertEquals(0, aggregator.getAllocationCount());
+    assertEquals(0, aggregator.getSiteCount());
+    assertTrue(aggregator.getSites().isEmpty());
+    assertTrue(aggregator.getClassTotals().isEmpty());
+  }
+
+  public void testAggregationPerSite() throws IOException {
+    AllocationAggregator aggregator = new AllocationAggregator();
+    aggregator.add(createMessage());
+
+    assertEquals(5, aggregator.getAllocationCount());
+    assertEquals(16 + 24 + 32 + 100 + 8, aggregator.getTotalSize());
+    assertEquals(3, aggregator.getSiteCount());
+
+    List<AllocationAggregator.Site> sites = aggregator.getSites();
+    assertEquals(3, sites.size());
+    // same stack trace and class, from different threads
+    checkTotal("path.Green", 2, 132, sites.get(0));
+    checkStackFrame("path.Red", "passGo", "Red.java", 12, sites.get(0).getStackTrace()[0]);
+    checkStackFrame("path.Blue", "findWaldo", "Blue.java", -2, sites.get(0).getStackTrace()[1]);
+    // same stack trace as above, another class
+    checkTotal("path.Blue", 2, 40, sites.get(1));
+    assertTrue(Arrays.equals(sites.get(0).getStackTrace(), sites.get(1).getStackTrace()));
+    // prefix of the stack trace above
+    checkTotal("path.Green", 1, 8, sites.get(2));
+    assertEquals(1, sites.get(2).getStackTrace().length);
+    checkStackFrame("path.Red", "passGo", "Red.java", 12, sites.get(2).getStackTrace()[0]);
+
+    List<AllocationAggregator.ClassTotal> totals = aggregator.getClassTotals();
+    assertEquals(2, totals.size());
+    checkTotal("path.Green", 3, 140, totals.get(0));
+    checkTotal("path.Blue", 2, 40, totals.get(1));
+  }
+
+  public void testAggregationMatchesParser() throws IOException {
+    ByteBuffer data = createMessage();
+    AllocationAggregator aggregator = new AllocationAggregator();
+    aggregator.add(data);
+    data.rewind();
+
+    for (AllocationInfo info : AllocationsParser.parse(data)) {
+      boolean found = false;
+      for (AllocationAggregator.Site site : aggregator.getSites()) {
+        if (site.getAllocatedClass().equals(info.getAllocatedClass())
+            && Arrays.equals(site.getStackTrace(), info.getStackTrace())) {
+          found = true;
+        }
+      }
+      assertTrue(found);
+    }
+  }
+
+  public void testSuccessiveFetches() throws IOException {
+    AllocationAggregator aggregator = new AllocationAggregator();
+    aggregator.add(createMessage());
+    // the same strings, in another order in the string tables
+    aggregator.add(putAllocationInfo(new String[]{"path.Red", "path.Blue", "path.Green"}, new String[]{"passGo", "findWaldo"},
+                                     new String[]{"Red.java", "Blue.java"}, new int[][]{{10, 1, 2, 1}, {20, 1, 1, 1}},
+                                     new short[][][]{{{0, 0, 0, 12}}, {{0, 0, 0, 13}}}));
+
+    assertEquals(7, aggregator.getAllocationCount());
+    assertEquals(4, aggregator.getSiteCount());
+    List<AllocationAggregator.Site> sites = aggregator.getSites();
+    checkTotal("path.Blue", 1, 20, sites.get(2));
+    checkStackFrame("path.Red", "passGo", "Red.java", 13, sites.get(2).getStackTrace()[0]);
+    checkTotal("path.Green", 2, 18, sites.get(3));
+    assertEquals(1, sites.get(3).getStackTrace().length);
+  }
+
+  public void testMerge() throws IOException {
+    AllocationAggregator first = new AllocationAggregator();
+    first.add(createMessage());
+    AllocationAggregator second = new AllocationAggregator();
+    second.add(createMessage());
+    first.merge(second);
+
+    assertEquals(10, first.getAllocationCount());
+    assertEquals(2 * (16 + 24 + 32 + 100 + 8), first.getTotalSize());
+    assertEquals(3, first.getSiteCount());
+    checkTotal("path.Green", 4, 264, first.getSites().get(0));
+    checkTotal("path.Blue", 4, 80, first.getClassTotals().get(1));
+  }
+
+  /**
+   * Creates a message with 3 sites: 2 classes allocated from one stack trace, and one class from
+   * a prefix of that stack trace.
+   */
+  private static ByteBuffer createMessage() throws IOException {
+    short[][] trace = {{1, 0, 1, 12}, {0, 1, 0, -2}};
+    return putAllocationInfo(new String[]{"path.Blue", "path.Red", "path.Green"}, new String[]{"passGo", "findWaldo"},
+                             new String[]{"Blue.java", "Red.java"},
+                             new int[][]{{16, 1, 0, 2}, {24, 2, 0, 2}, {32, 1, 2, 2}, {100, 3, 2, 2}, {8, 1, 2, 1}},
+                             new short[][][]{trace, trace, trace, trace, {trace[0]}});
+  }
+
+  private static void checkTotal(String className, int count, long size, AllocationAggregator.ClassTotal total) {
+    assertEquals(className, total.getAllocatedClass());
+    assertEquals(count, total.getCount());
+    assertEquals(size, total.getTotalSize());
+  }
+
+  private static void checkStackFrame(String className, String methodName, String fileName, int lineNumber, StackTraceElement elem) {
+    assertEquals(className, elem.getClassName());
+    assertEquals(methodName, elem.getMethodName());
+    assertEquals(fileName, elem.getFileName());
+    assertEquals(lineNumber, elem.getLineNumber());
+  }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ddmlib.logcat;
+
+import com.android.ddmlib.Log.LogLevel;
+import com.google.common.base.Charsets;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Unit tests for {@link LogCatStreamReceiver}.
+ */
+public final class LogCatStreamReceiverTest extends TestCase {
+    private static final String[] MESSAGES = new String[] {
+            "garbage before the first header",                //$NON-NLS-1$
+            "[ 08-11 19:11:07.132   495:0x1ef D/dtag     ]",  //$NON-NLS-1$
+            "debug message",                                  //$NON-NLS-1$
+            "",                                               //$NON-NLS-1$
+            "[ 08-11 19:11:07.132   495:  234 E/etag     ]",  //$NON-NLS-1$
+            "error message",                                  //$NON-NLS-1$
+            "second line of the error",                       //$NON-NLS-1$
+            "[ 08-11 19:11:07.132   495:0x1ef I/itag     ]",  //$NON-NLS-1$
+            "info message \u00e9\u4e2d",                      //$NON-NLS-1$
+            "[ 08-11 19:11:07.132   495:#1ef V/vtag     ]",   //$NON-NLS-1$
+            "verbose message",                                //$NON-NLS-1$
+            "[ 08-11 19:11:07.132   495:0x1ef W/w tag     ]", //$NON-NLS-1$
+            "warning message",                                //$NON-NLS-1$
+            "[ 08-11 19:11:07.132   495:0x1ef F/wtftag   ]",  //$NON-NLS-1$
+            "wtf message",                                    //$NON-NLS-1$
+            "[ 08-11 21:15:35.754123   540:0x21c D/dtag     ]", //$NON-NLS-1$
+            "debug message",                                  //$NON-NLS-1$
+            "[ 08-11 21:15:35.754    :017 A/atag ]",          //$NON-NLS-1$
+            "assert message",                                 //$NON-NLS-1$
+            "[ not a header ]",                               //$NON-NLS-1$
+            "[ 08-11 21:15:35.754   540:12 X/xtag ]",         //$NON-NLS-1$
+    };
+
+    /** Checks that the messages match those of {@link LogCatMessageParser}. */
+    public void testSameAsMessageParser() {
+        List<String> expected = describe(
+                new LogCatMessageParser().processLogLines(MESSAGES, null));
+        assertEquals(11, expected.size());
+
+        byte[] output = join(MESSAGES, "\n");
+        assertEquals(expected, receive(output, output.length, null));
+    }
+
+    /** Checks that lines split across outputs are parsed, whatever the split. */
+    public void testSplitOutput() {
+        List<String> expected = describe(
+                new LogCatMessageParser().processLogLines(MESSAGES, null));
+
+        byte[] output = join(MESSAGES, "\r\n");
+        for (int chunk = 1; chunk < 80; chunk++) {
+            assertEquals("chunk " + chunk, expected, receive(output, chunk, null));
+        }
+    }
+
+    public void testEntryFields() {
+        final List<LogCatEntry> entries = new ArrayList<LogCatEntry>();
+        LogCatStreamReceiver receiver = new LogCatStreamReceiver(null) {
+            @Override
+            protected void processEntry(LogCatEntry entry) {
+                assertEquals("dtag", entry.getTag());
+                assertEquals(LogLevel.DEBUG, entry.getLogLevel());
+                assertEquals(495, entry.getPid());
+                assertEquals(0x1ef, entry.getTid());
+                assertEquals("debug message", new String(entry.getMessageBytes(),
+                        entry.getMessageOffset(), entry.getMessageLength(), Charsets.UTF_8));
+                assertEquals("08-11 19:11:07.132", entry.getHeader().getTimestamp().toString());
+                assertEquals("?", entry.getHeader().getAppName());
+                entries.add(entry);
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return false;
+            }
+        };
+        byte[] output = join(new String[] { MESSAGES[1], MESSAGES[2], MESSAGES[1], MESSAGES[2] },
+                "\n");
+        receiver.addOutput(output, 0, output.length);
+        receiver.flush();
+
+        // the same entry is reused
+        assertEquals(2, entries.size());
+        assertSame(entries.get(0), entries.get(1));
+    }
+
+    public void testFilter() {
+        byte[] output = join(MESSAGES, "\n");
+
+        List<String> messages = receive(output, output.length,
+                new LogCatEntryFilter(LogLevel.WARN, null, null));
+        assertEquals(7, messages.size());
+        assertTrue(messages.get(0).contains("error message"));
+
+        messages = receive(output, output.length,
+                new LogCatEntryFilter(LogLevel.VERBOSE, new int[] { 540, 1 }, null));
+        assertEquals(1, messages.size());
+        assertTrue(messages.get(0).contains("540"));
+
+        messages = receive(output, output.length,
+                new LogCatEntryFilter(LogLevel.VERBOSE, null, new String[] { "dtag", "w tag" }));
+        assertEquals(3, messages.size());
+        assertTrue(messages.get(1).contains("warning message"));
+
+        messages = receive(output, output.length,
+                new LogCatEntryFilter(LogLevel.INFO, new int[] { 495 }, new String[] { "dtag" }));
+        assertEquals(0, messages.size());
+    }
+
+    private static List<String> receive(byte[] output, int chunk, LogCatEntryFilter filter) {
+        final List<String> messages = new ArrayList<String>();
+        LogCatStreamReceiver receiver = new LogCatStreamReceiver(null) {
+            @Override
+            protected void processEntry(LogCatEntry entry) {
+                messages.add(describe(entry.toMessage()));
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return false;
+            }
+        };
+        receiver.setFilter(filter);
+        for (int offset = 0; offset < output.length; offset += chunk) {
+            // copy the chunk, since the receiver must not rely on the previous buffers
+            int length = Math.min(chunk, output.length - offset);
+            byte[] buffer = new byte[length + 2];
+            System.arraycopy(output, offset, buffer, 1, length);
+            receiver.addOutput(buffer, 1, length);
+        }
+        receiver.flush();
+        return messages;
+    }
+
+    private static byte[] join(String[] lines, String separator) {
+        StringBuilder sb = new StringBuilder();
+        for (String line : lines) {
+            sb.append(line).append(separator);
+        }
+        // the last line is not terminated
+        sb.setLength(sb.length() - separator.length());
+        return sb.toString().getBytes(Charsets.UTF_8);
+    }
+
+    private static List<String> describe(List<LogCatMessage> messages) {
+        List<String> descriptions = new ArrayList<String>();
+        for (LogCatMessage message : messages) {
+            descriptions.add(describe(message));
+        }
+        return descriptions;
+    }
+
+    private static String describe(LogCatMessage message) {
+        return message.getLogLevel() + " " + message.getPid() + " " + message.getTid() + " "
+                + message.getAppName() + " " + message.getTag() + " " + message.getTimestamp()
+                + " " + message.getMessage();
+    }
+}
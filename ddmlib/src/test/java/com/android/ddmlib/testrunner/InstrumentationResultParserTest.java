@@ -16,6 +16,8 @@
 
 package com.android.ddmlib.testrunner;
 
+import com.google.common.base.Charsets;
+
 import junit.framework.TestCase;
 
 import org.easymock.Capture;
@@ -420,6 +422,31 @@ public class InstrumentationResultParserTest extends TestCase {
         injectAndVerifyTestString(output.toString());
 }
 
+    /**
+     * Tests parsing output received one byte at a time, with multi-byte characters in the values.
+     */
+    public void testParse_splitOutput() {
+        StringBuilder output = buildCommonResult();
+        addStatusKey(output, "m\u00e9tric", "\u4e2d");
+        addSuccessCode(output);
+
+        final Capture<Map<String, String>> captureMetrics = new Capture<Map<String, String>>();
+        mMockListener.testRunStarted(RUN_NAME, 1);
+        mMockListener.testStarted(TEST_ID);
+        mMockListener.testEnded(EasyMock.eq(TEST_ID), EasyMock.capture(captureMetrics));
+        mMockListener.testRunEnded(0, Collections.EMPTY_MAP);
+
+        EasyMock.replay(mMockListener);
+        byte[] data = output.toString().getBytes(Charsets.UTF_8);
+        for (int i = 0; i < data.length; i++) {
+            mParser.addOutput(data, i, 1);
+        }
+        mParser.flush();
+        EasyMock.verify(mMockListener);
+
+        assertEquals("\u4e2d", captureMetrics.getValue().get("m\u00e9tric"));
+    }
+
     /**
      * Builds a common test result using TEST_NAME and TEST_CLASS.
      */
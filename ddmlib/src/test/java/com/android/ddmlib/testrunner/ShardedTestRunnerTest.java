@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ddmlib.testrunner;
+
+import com.android.annotations.NonNull;
+import com.android.ddmlib.IShellEnabledDevice;
+import com.android.ddmlib.IShellOutputReceiver;
+import com.android.ddmlib.testrunner.TestResult.TestStatus;
+import com.google.common.base.Charsets;
+import com.google.common.util.concurrent.Futures;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for {@link ShardedTestRunner}.
+ */
+public class ShardedTestRunnerTest extends TestCase {
+
+    private static final String CLASS_NAME = "com.foo.FooTest";
+
+    private final List<TestIdentifier> mTests = new ArrayList<TestIdentifier>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        for (int i = 0; i < 50; i++) {
+            mTests.add(new TestIdentifier(CLASS_NAME, "test" + i));
+        }
+    }
+
+    /**
+     * Checks that each test is planned once, and that the devices have about the same run time.
+     */
+    public void testPlanBatches() {
+        TestDurationStore store = new TestDurationStore();
+        for (int i = 0; i < mTests.size(); i++) {
+            store.addDuration(mTests.get(i), 1000 * (i % 7 + 1));
+        }
+        List<ArrayDeque<ShardedTestRunner.Batch>> plan =
+                ShardedTestRunner.planBatches(mTests, store, 3);
+        assertEquals(3, plan.size());
+
+        Set<TestIdentifier> planned = new HashSet<TestIdentifier>();
+        long minDuration = Long.MAX_VALUE;
+        long maxDuration = 0;
+        long maxBatchDuration = 0;
+        for (ArrayDeque<ShardedTestRunner.Batch> batches : plan) {
+            long duration = 0;
+            for (ShardedTestRunner.Batch batch : batches) {
+                for (TestIdentifier test : batch.mTests) {
+                    assertTrue(planned.add(test));
+                }
+                duration += batch.mExpectedDuration;
+                maxBatchDuration = Math.max(maxBatchDuration, batch.mExpectedDuration);
+            }
+            minDuration = Math.min(minDuration, duration);
+            maxDuration = Math.max(maxDuration, duration);
+        }
+        assertEquals(mTests.size(), planned.size());
+        assertTrue(maxDuration - minDuration <= maxBatchDuration);
+    }
+
+    /**
+     * Checks that the tests are run across the devices, and reported as a single run.
+     */
+    public void testRun() throws Exception {
+        FakeDevice device1 = new FakeDevice("device1");
+        FakeDevice device2 = new FakeDevice("device2");
+        CountingListener listener = new CountingListener();
+        ShardedTestRunner runner = new ShardedTestRunner("com.foo", null);
+
+        TestRunResult result = runner.run(Arrays.asList(device1, device2), mTests, listener);
+
+        assertEquals(mTests.size(), result.getNumTests());
+        assertEquals(mTests.size(), result.getNumTestsInState(TestStatus.PASSED));
+        assertFalse(result.isRunFailure());
+        assertFalse(device1.mRunTests.isEmpty());
+        assertFalse(device2.mRunTests.isEmpty());
+        assertEquals(mTests.size(), device1.mRunTests.size() + device2.mRunTests.size());
+        assertEquals(1, listener.mRunStarted);
+        assertEquals(1, listener.mRunEnded);
+        assertEquals(mTests.size(), listener.getNumTests());
+        assertEquals(mTests.size(), runner.getDurationStore().size());
+    }
+
+    /**
+     * Checks that the tests which did not run because the instrumentation crashed are run
+     * again.
+     */
+    public void testRun_crash() throws Exception {
+        FakeDevice device = new FakeDevice("device");
+        TestIdentifier crashing = mTests.get(10);
+        device.mCrashingTests.add(crashing);
+
+        TestRunResult result = new ShardedTestRunner("com.foo", null).run(
+                Collections.singletonList(device), mTests);
+
+        assertEquals(mTests.size(), result.getNumTests());
+        assertEquals(TestStatus.FAILURE, result.getTestResults().get(crashing).getStatus());
+        assertEquals(mTests.size() - 1, result.getNumTestsInState(TestStatus.PASSED));
+        assertEquals(1, Collections.frequency(device.mRunTests, crashing));
+        assertEquals(mTests.size(), new HashSet<TestIdentifier>(device.mRunTests).size());
+    }
+
+    /**
+     * Checks that the tests of a failed device are run by the other devices.
+     */
+    public void testRun_deviceFailure() throws Exception {
+        FakeDevice device1 = new FakeDevice("device1");
+        FakeDevice device2 = new FakeDevice("device2");
+        device2.mOffline = true;
+
+        TestRunResult result = new ShardedTestRunner("com.foo", null).run(
+                Arrays.asList(device1, device2), mTests);
+
+        assertEquals(mTests.size(), result.getNumTestsInState(TestStatus.PASSED));
+        assertEquals(mTests.size(), device1.mRunTests.size());
+        assertFalse(result.isRunFailure());
+    }
+
+    /**
+     * Checks that the run fails when no device can run the tests.
+     */
+    public void testRun_allDevicesFail() throws Exception {
+        FakeDevice device = new FakeDevice("device");
+        device.mOffline = true;
+        CountingListener listener = new CountingListener();
+
+        TestRunResult result = new ShardedTestRunner("com.foo", null).run(
+                Collections.singletonList(device), mTests, listener);
+
+        assertTrue(result.isRunFailure());
+        assertEquals(0, result.getNumTests());
+        assertEquals(1, listener.mRunEnded);
+    }
+
+    /**
+     * Checks that the durations can be saved and loaded.
+     */
+    public void testDurationStore_saveLoad() throws Exception {
+        TestDurationStore store = new TestDurationStore();
+        store.addDuration(mTests.get(0), 100);
+        store.addDuration(mTests.get(0), 300);
+        store.addDuration(mTests.get(1), 50);
+
+        File file = File.createTempFile("durations", ".txt");
+        try {
+            store.save(file);
+            TestDurationStore loaded = new TestDurationStore();
+            loaded.load(file);
+            assertEquals(2, loaded.size());
+            assertEquals(200, loaded.getDuration(mTests.get(0)));
+            assertEquals(50, loaded.getDuration(mTests.get(1)));
+            assertEquals(-1, loaded.getDuration(mTests.get(2)));
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * A device which runs the tests of the "class" argument of an instrumentation, and outputs
+     * their results like the instrumentation test runner.
+     */
+    private static class FakeDevice implements IShellEnabledDevice {
+        private final String mName;
+        /** Tests which crash the instrumentation, the first time they run */
+        final Set<TestIdentifier> mCrashingTests =
+                Collections.synchronizedSet(new HashSet<TestIdentifier>());
+        final List<TestIdentifier> mRunTests =
+                Collections.synchronizedList(new ArrayList<TestIdentifier>());
+        volatile boolean mOffline = false;
+
+        FakeDevice(String name) {
+            mName = name;
+        }
+
+        @Override
+        public String getName() {
+            return mName;
+        }
+
+        @Override
+        public void executeShellCommand(String command, IShellOutputReceiver receiver,
+                long maxTimeToOutputResponse, TimeUnit maxTimeUnits) throws IOException {
+            if (mOffline) {
+                throw new IOException("device offline");
+            }
+            String classArg = command.substring(command.indexOf("-e class ") + 9);
+            String[] names = classArg.substring(0, classArg.indexOf(' ')).split(",");
+
+            StringBuilder output = new StringBuilder();
+            for (int i = 0; i < names.length; i++) {
+                TestIdentifier test = new TestIdentifier(
+                        names[i].substring(0, names[i].indexOf('#')),
+                        names[i].substring(names[i].indexOf('#') + 1));
+                mRunTests.add(test);
+                appendStatus(output, test, names.length, i + 1, 1);
+                if (mCrashingTests.remove(test)) {
+                    output.append("INSTRUMENTATION_RESULT: shortMsg=Process crashed.\r\n");
+                    output.append("INSTRUMENTATION_CODE: 0\r\n");
+                    send(receiver, output);
+                    return;
+                }
+                appendStatus(output, test, names.length, i + 1, 0);
+            }
+            output.append("INSTRUMENTATION_RESULT: stream=\r\n");
+            output.append("OK (").append(names.length).append(" tests)\r\n");
+            output.append("INSTRUMENTATION_CODE: -1\r\n");
+            send(receiver, output);
+        }
+
+        @NonNull
+        @Override
+        public Future<String> getSystemProperty(@NonNull String name) {
+            return Futures.immediateFuture(null);
+        }
+
+        private static void appendStatus(StringBuilder output, TestIdentifier test,
+                int numTests, int current, int code) {
+            output.append("INSTRUMENTATION_STATUS: id=AndroidJUnitRunner\r\n");
+            output.append("INSTRUMENTATION_STATUS: class=").append(test.getClassName())
+                    .append("\r\n");
+            output.append("INSTRUMENTATION_STATUS: test=").append(test.getTestName())
+                    .append("\r\n");
+            output.append("INSTRUMENTATION_STATUS: numtests=").append(numTests).append("\r\n");
+            output.append("INSTRUMENTATION_STATUS: current=").append(current).append("\r\n");
+            output.append("INSTRUMENTATION_STATUS_CODE: ").append(code).append("\r\n");
+        }
+
+        private static void send(IShellOutputReceiver receiver, StringBuilder output) {
+            byte[] bytes = output.toString().getBytes(Charsets.UTF_8);
+            receiver.addOutput(bytes, 0, bytes.length);
+            receiver.flush();
+        }
+    }
+
+    /** Counts the run events */
+    private static class CountingListener extends TestRunResult {
+        int mRunStarted = 0;
+        int mRunEnded = 0;
+
+        @Override
+        public void testRunStarted(String runName, int testCount) {
+            super.testRunStarted(runName, testCount);
+            mRunStarted++;
+        }
+
+        @Override
+        public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
+            super.testRunEnded(elapsedTime, runMetrics);
+            mRunEnded++;
+        }
+    }
+}
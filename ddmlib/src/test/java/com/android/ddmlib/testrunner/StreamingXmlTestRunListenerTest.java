@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ddmlib.testrunner;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Unit tests for {@link StreamingXmlTestRunListener}.
+ */
+public class StreamingXmlTestRunListenerTest extends TestCase {
+
+    private static final Map<String, String> EMPTY_MAP = Collections.emptyMap();
+
+    private ByteArrayOutputStream mOutputStream;
+    private StreamingXmlTestRunListener mResultReporter;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mOutputStream = new ByteArrayOutputStream();
+        mResultReporter = new StreamingXmlTestRunListener() {
+            @Override
+            OutputStream createOutputResultStream(File reportDir) throws IOException {
+                return mOutputStream;
+            }
+
+            @Override
+            String getTimestamp() {
+                return "ignore";
+            }
+        };
+    }
+
+    /**
+     * Checks that the report has the same content as the one of {@link XmlTestRunListener}.
+     */
+    public void testSameAsXmlTestRunListener() {
+        final ByteArrayOutputStream expectedStream = new ByteArrayOutputStream();
+        XmlTestRunListener expectedReporter = new XmlTestRunListener() {
+            @Override
+            OutputStream createOutputResultStream(File reportDir) throws IOException {
+                return expectedStream;
+            }
+
+            @Override
+            String getTimestamp() {
+                return "ignore";
+            }
+        };
+        runTests(expectedReporter);
+        runTests(mResultReporter);
+
+        String expected = normalize(expectedStream.toString());
+        assertTrue(expected.contains(
+                "tests=\"5\" failures=\"2\" errors=\"0\" skipped=\"1\""));
+        assertEquals(expected, normalize(mOutputStream.toString()));
+        assertEquals(0, mResultReporter.getRunResult().getNumTests());
+    }
+
+    /**
+     * Checks that a test started but never ended is reported, like the other tests.
+     */
+    public void testIncompleteTest() {
+        TestIdentifier incomplete = new TestIdentifier("FooTest", "testIncomplete");
+        mResultReporter.testRunStarted("run", 2);
+        mResultReporter.testStarted(incomplete);
+        mResultReporter.testRunFailed("crashed");
+        mResultReporter.testRunEnded(3, EMPTY_MAP);
+
+        String output = normalize(mOutputStream.toString());
+        assertTrue(output.contains("tests=\"1\" failures=\"0\" errors=\"0\""));
+        assertTrue(output.contains("<testcase name=\"testIncomplete\" classname=\"FooTest\""));
+    }
+
+    private static void runTests(XmlTestRunListener reporter) {
+        TestIdentifier passed = new TestIdentifier("FooTest", "testPassed");
+        TestIdentifier failed = new TestIdentifier("FooTest", "testFailed");
+        TestIdentifier ignored = new TestIdentifier("FooTest", "testIgnored");
+        TestIdentifier assumption = new TestIdentifier("BarTest", "testAssumption");
+        TestIdentifier notStarted = new TestIdentifier("BarTest", "testNotStarted");
+
+        reporter.testRunStarted("run", 5);
+        reporter.testStarted(passed);
+        reporter.testEnded(passed, Collections.singletonMap("metric", "1"));
+        reporter.testStarted(failed);
+        reporter.testFailed(failed, "this is a trace");
+        reporter.testEnded(failed, EMPTY_MAP);
+        reporter.testStarted(ignored);
+        reporter.testIgnored(ignored);
+        reporter.testEnded(ignored, EMPTY_MAP);
+        reporter.testStarted(assumption);
+        reporter.testAssumptionFailure(assumption, "assumption trace");
+        reporter.testEnded(assumption, EMPTY_MAP);
+        reporter.testFailed(notStarted, "failed without start");
+        reporter.testEnded(notStarted, EMPTY_MAP);
+        reporter.testRunEnded(3, EMPTY_MAP);
+    }
+
+    /**
+     * Removes the whitespace between elements, and the test times which depend on the clock.
+     */
+    private static String normalize(String output) {
+        return output.replaceAll(">\\s+<", "><").replaceAll("time=\"[^\"]*\"", "time=\"\"");
+    }
+}
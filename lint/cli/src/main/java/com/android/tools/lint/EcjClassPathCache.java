@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import org.eclipse.jdt.core.compiler.CharOperation;
+import org.eclipse.jdt.internal.compiler.batch.FileSystem;
+import org.eclipse.jdt.internal.compiler.env.INameEnvironment;
+import org.eclipse.jdt.internal.compiler.env.NameEnvironmentAnswer;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A cache of the class path entries (jars and class folders) used by {@link EcjParser},
+ * shared by all the projects checked in a lint run.
+ * <p>
+ * Without it, each project creates its own ECJ {@link FileSystem}, which opens and reads the
+ * same jars (the android.jar of the compile target, support libraries, library projects...)
+ * and parses the same class files again. With it, each class path entry is opened once per
+ * run, and the binary types found in it are reused by the {@link INameEnvironment}s of all
+ * the projects using that entry, whatever the rest of their class path. ECJ only reads these
+ * binary types, so sharing them between compilations is safe; the bindings created from
+ * them still belong to the compilation of each project.
+ * <p>
+ * Jars are checked for changes (length and modification time) when a new environment is
+ * created, and {@link #dispose()} closes all the entries at the end of the run. A class folder
+ * cannot be checked that way, since recompiling the class files in it changes neither, so
+ * clients keeping the cache from one run to the next call {@link #disposeClassFolders()}
+ * between runs instead.
+ */
+public class EcjClassPathCache {
+    private static EcjClassPathCache sSingleton;
+
+    /** Class path entries, keyed by path */
+    private final Map<String, Entry> mEntries = Maps.newHashMap();
+
+    /** Returns the cache for the current lint run, creating it if necessary */
+    @NonNull
+    public static synchronized EcjClassPathCache get() {
+        if (sSingleton == null) {
+            sSingleton = new EcjClassPathCache();
+        }
+        return sSingleton;
+    }
+
+    /** Closes all the cached class path entries, at the end of a lint run */
+    public static synchronized void dispose() {
+        if (sSingleton != null) {
+            synchronized (sSingleton.mEntries) {
+                for (Entry entry : sSingleton.mEntries.values()) {
+                    entry.cleanup();
+                }
+                sSingleton.mEntries.clear();
+            }
+            sSingleton = null;
+        }
+    }
+
+    /**
+     * Closes the cached class folders, keeping the jars, at the end of a lint run of a client
+     * which keeps the cache for its next runs, such as {@link LintServer}. The types and
+     * packages looked up in a class folder, found or not, are only valid for the run which
+     * looked them up.
+     */
+    public static synchronized void disposeClassFolders() {
+        if (sSingleton != null) {
+            synchronized (sSingleton.mEntries) {
+                Iterator<Entry> iterator = sSingleton.mEntries.values().iterator();
+                while (iterator.hasNext()) {
+                    Entry entry = iterator.next();
+                    if (entry.isClassFolder()) {
+                        entry.cleanup();
+                        iterator.remove();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates a name environment looking up types in the given class path, in order, like
+     * {@link FileSystem} does.
+     *
+     * @param classPath the paths of the jars and class folders
+     * @param encoding the default encoding of the source files
+     * @return the name environment, whose {@link INameEnvironment#cleanup()} leaves the shared
+     *     entries open
+     */
+    @NonNull
+    public INameEnvironment createEnvironment(@NonNull List<String> classPath,
+            @Nullable String encoding) {
+        List<Entry> entries = Lists.newArrayListWithExpectedSize(classPath.size());
+        synchronized (mEntries) {
+            for (String path : classPath) {
+                File file = new File(path);
+                Entry entry = mEntries.get(path);
+                if (entry != null && !entry.isUpToDate(file)) {
+                    entry.cleanup();
+                    entry = null;
+                }
+                if (entry == null) {
+                    entry = new Entry(file, encoding);
+                    mEntries.put(path, entry);
+                }
+                entries.add(entry);
+            }
+        }
+        return new ClassPathEnvironment(entries);
+    }
+
+    /** A name environment made of shared class path entries */
+    private static class ClassPathEnvironment implements INameEnvironment {
+        private final List<Entry> mEntries;
+
+        ClassPathEnvironment(@NonNull List<Entry> entries) {
+            mEntries = entries;
+        }
+
+        @Override
+        public NameEnvironmentAnswer findType(char[][] compoundTypeName) {
+            if (compoundTypeName == null) {
+                return null;
+            }
+            String name = CharOperation.toString(compoundTypeName);
+            for (Entry entry : mEntries) {
+                NameEnvironmentAnswer answer = entry.findType(name, compoundTypeName);
+                if (answer != null) {
+                    return answer;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public NameEnvironmentAnswer findType(char[] typeName, char[][] packageName) {
+            if (typeName == null) {
+                return null;
+            }
+            return findType(CharOperation.arrayConcat(packageName, typeName));
+        }
+
+        @Override
+        public boolean isPackage(char[][] parentPackageName, char[] packageName) {
+            String name = parentPackageName != null && parentPackageName.length > 0
+                    ? CharOperation.toString(parentPackageName) + '.' + new String(packageName)
+                    : new String(packageName);
+            for (Entry entry : mEntries) {
+                if (entry.isPackage(name, parentPackageName, packageName)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void cleanup() {
+            // The entries are shared with the other projects: closed by dispose()
+        }
+    }
+
+    /** A single jar or class folder, and the lookups made in it so far */
+    private static class Entry {
+        private final boolean mClassFolder;
+        private final long mLength;
+        private final long mLastModified;
+        private FileSystem mFileSystem;
+        /** Binary types found, or null for types not in this entry, keyed by name */
+        private final Map<String, NameEnvironmentAnswer> mTypes = Maps.newHashMap();
+        private final Map<String, Boolean> mPackages = Maps.newHashMap();
+
+        Entry(@NonNull File file, @Nullable String encoding) {
+            mClassFolder = file.isDirectory();
+            mLength = file.length();
+            mLastModified = file.lastModified();
+            mFileSystem = new FileSystem(new String[] { file.getPath() }, new String[0],
+                    encoding);
+        }
+
+        /**
+         * Returns whether a jar is unchanged. For a class folder, this only checks the folder
+         * itself: see {@link #disposeClassFolders()}.
+         */
+        boolean isUpToDate(@NonNull File file) {
+            return file.isDirectory() == mClassFolder && file.length() == mLength
+                    && file.lastModified() == mLastModified;
+        }
+
+        boolean isClassFolder() {
+            return mClassFolder;
+        }
+
+        @Nullable
+        synchronized NameEnvironmentAnswer findType(@NonNull String name,
+                @NonNull char[][] compoundTypeName) {
+            if (mTypes.containsKey(name)) {
+                return mTypes.get(name);
+            }
+            NameEnvironmentAnswer answer = mFileSystem.findType(compoundTypeName);
+            if (answer == null || answer.isBinaryType()) {
+                mTypes.put(name, answer);
+            }
+            return answer;
+        }
+
+        synchronized boolean isPackage(@NonNull String name,
+                @Nullable char[][] parentPackageName, @NonNull char[] packageName) {
+            Boolean isPackage = mPackages.get(name);
+            if (isPackage == null) {
+                isPackage = mFileSystem.isPackage(parentPackageName, packageName);
+                mPackages.put(name, isPackage);
+            }
+            return isPackage;
+        }
+
+        synchronized void cleanup() {
+            mFileSystem.cleanup();
+            mTypes.clear();
+            mPackages.clear();
+        }
+    }
+}
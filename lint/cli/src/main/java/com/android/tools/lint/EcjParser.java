@@ -84,7 +84,6 @@ import org.eclipse.jdt.internal.compiler.ast.TryStatement;
 import org.eclipse.jdt.internal.compiler.ast.TypeDeclaration;
 import org.eclipse.jdt.internal.compiler.ast.TypeReference;
 import org.eclipse.jdt.internal.compiler.ast.UnionTypeReference;
-import org.eclipse.jdt.internal.compiler.batch.FileSystem;
 import org.eclipse.jdt.internal.compiler.classfmt.ClassFileConstants;
 import org.eclipse.jdt.internal.compiler.env.ICompilationUnit;
 import org.eclipse.jdt.internal.compiler.env.INameEnvironment;
@@ -466,8 +465,7 @@ public class EcjParser extends JavaParser {
         Map<EcjSourceFile, CompilationUnitDeclaration> outputMap =
                 Maps.newHashMapWithExpectedSize(sourceUnits.size());
 
-        INameEnvironment environment = new FileSystem(
-                classPath.toArray(new String[classPath.size()]), new String[0],
+        INameEnvironment environment = EcjClassPathCache.get().createEnvironment(classPath,
                 options.defaultEncoding);
         IErrorHandlingPolicy policy = DefaultErrorHandlingPolicies.proceedWithAllProblems();
         IProblemFactory problemFactory = new DefaultProblemFactory(Locale.getDefault());
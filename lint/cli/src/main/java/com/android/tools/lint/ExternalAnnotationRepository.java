@@ -56,9 +56,11 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
 import com.google.common.io.ByteStreams;
 import com.google.common.io.Closeables;
 import com.google.common.io.Files;
+import com.google.common.primitives.UnsignedBytes;
 import com.intellij.psi.PsiAnnotation;
 import com.intellij.psi.PsiAnnotationMemberValue;
 import com.intellij.psi.PsiArrayInitializerMemberValue;
@@ -77,11 +79,20 @@ import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
@@ -106,6 +117,10 @@ public class ExternalAnnotationRepository {
 
     private static final boolean DEBUG = false;
 
+    /** Header of the binary index files of annotations zips, see {@link AnnotationsDatabase} */
+    private static final String FILE_HEADER = "External annotations database used by Android lint\000";
+    private static final int BINARY_FORMAT_VERSION = 1;
+
     private static ExternalAnnotationRepository sSingleton;
 
     private final List<AnnotationsDatabase> mDatabases;
@@ -175,10 +190,11 @@ public class ExternalAnnotationRepository {
             begin = System.currentTimeMillis();
         }
 
+        File cacheDir = client != null ? client.getCacheDir(true) : null;
         List<AnnotationsDatabase> databases = Lists.newArrayListWithExpectedSize(files.size());
         for (File file : files) {
             try {
-                AnnotationsDatabase database = getDatabase(file);
+                AnnotationsDatabase database = getDatabase(cacheDir, file);
                 if (database != null) {
                     databases.add(database);
                 }
@@ -229,7 +245,8 @@ public class ExternalAnnotationRepository {
             @NonNull LintClient client,
             @NonNull File file) {
         try {
-            return file.isFile() ? new AnnotationsDatabase(file) : null;
+            return file.isFile()
+                    ? new AnnotationsDatabase(client.getCacheDir(true), file) : null;
         } catch (IOException ioe) {
             client.log(ioe, "Could not read %1$s", file.getPath());
             return null;
@@ -238,8 +255,9 @@ public class ExternalAnnotationRepository {
 
     @VisibleForTesting
     @Nullable
-    static AnnotationsDatabase getDatabase(@NonNull File file) throws IOException {
-        return file.exists() ? new AnnotationsDatabase(file) : null;
+    static AnnotationsDatabase getDatabase(@Nullable File cacheDir, @NonNull File file)
+            throws IOException {
+        return file.exists() ? new AnnotationsDatabase(cacheDir, file) : null;
     }
 
     @Nullable
@@ -589,12 +607,21 @@ public class ExternalAnnotationRepository {
      * The SDK has an annotations database, and AAR libraries can also supply individual databases.
      * The {@linkplain ExternalAnnotationRepository} class manages all of these and performs lookup
      * into the various databases through a single entrypoint.
+     * <p>
+     * The XML of an annotations .zip file is only parsed the first time the file is seen: its
+     * items are then grouped by class and written to a binary index in the lint cache directory,
+     * named after the hash of the file (see {@link #writeIndex(File, File)} for the format, and
+     * {@link #getIndexFileName(File, File)} for how the hash is kept). The index is memory
+     * mapped, and the annotations of a class are only read, by binary search among the sorted
+     * class names, the first time the class is looked up.
      * */
     static class AnnotationsDatabase {
-        AnnotationsDatabase(@NonNull File file) throws IOException {
+        AnnotationsDatabase(@Nullable File cacheDir, @NonNull File file) throws IOException {
             String path = file.getPath();
             if (path.endsWith(DOT_JAR) || path.endsWith(FN_ANNOTATIONS_ZIP)) {
-                initializeFromJar(file);
+                if (cacheDir == null || !initializeFromIndex(cacheDir, file)) {
+                    initializeFromJar(file);
+                }
             } else {
                 assert file.isDirectory() : file;
                 initializeFromDirectory(file);
@@ -873,46 +900,458 @@ public class ExternalAnnotationRepository {
                 assert rootTag.equals("root") : rootTag;
 
                 for (Element item : LintUtils.getChildren(root)) {
-                    String signature = item.getAttribute(ATTR_NAME);
-                    if (signature == null || signature.equals("null")) {
-                        continue; // malformed item
+                    String signature = getSignature(item);
+                    if (signature != null) {
+                        mergeItem(signature, createAnnotations(item));
+                    }
+                }
+            } catch (Exception e) {
+                throw new IOException("Could not parse XML from " + path);
+            }
+        }
+
+        /**
+         * Returns the signature of an item element of an annotations.xml file, or null if
+         * the item is malformed
+         */
+        @Nullable
+        private static String getSignature(@NonNull Element item) {
+            String signature = item.getAttribute(ATTR_NAME);
+            if (signature == null || signature.equals("null")) {
+                return null;
+            }
+            return XmlUtils.fromXmlAttributeValue(signature);
+        }
+
+        /**
+         * Returns the fully qualified name of the class the item with the given signature
+         * belongs to (or of the package-info class for packages), or null if the signature
+         * is malformed
+         */
+        @Nullable
+        private static String getContainingClass(@NonNull String signature) {
+            Matcher matcher = XML_SIGNATURE.matcher(signature);
+            if (matcher.matches()) {
+                return matcher.group(1);
+            } else if (signature.indexOf(' ') == -1 && signature.indexOf('.') != -1) {
+                return signature;
+            }
+            return null;
+        }
+
+        private void mergeItem(@NonNull String signature,
+                @NonNull List<PsiAnnotation> annotations) throws IOException {
+            Matcher matcher = XML_SIGNATURE.matcher(signature);
+            if (matcher.matches()) {
+                String containingClass = matcher.group(1);
+                if (containingClass == null) {
+                    throw new IOException("Could not find class for " + signature);
+                }
+                String methodName = matcher.group(5);
+                if (methodName != null) {
+                    String type = matcher.group(4);
+                    boolean isConstructor = type == null;
+                    String parameters = matcher.group(6);
+                    mergeMethodOrParameter(annotations, matcher, containingClass, methodName,
+                            isConstructor, parameters);
+                } else {
+                    String fieldName = matcher.group(2);
+                    mergeField(annotations, containingClass, fieldName);
+                }
+            } else if (signature.indexOf(' ') == -1 && signature.indexOf('.') != -1) {
+                mergeClass(annotations, signature);
+            } else {
+                throw new IOException("No merge match for signature " + signature);
+            }
+        }
+
+        // ---- Binary index ----
+
+        /** The memory mapped binary index, or null if the annotations were read from XML */
+        @Nullable
+        private ByteBuffer mIndex;
+
+        /** The number of classes in {@link #mIndex} */
+        private int mIndexClassCount;
+
+        /** The offset of the table of class entry offsets in {@link #mIndex} */
+        private int mIndexTableOffset;
+
+        /**
+         * Returns the name of the binary index of the given annotations file, which is named
+         * after the hash of its contents. To avoid reading the whole file on each run, the
+         * hash is kept in a stamp file along with the length and modification time of the
+         * file, and is only computed again when those change.
+         */
+        @VisibleForTesting
+        @NonNull
+        static String getIndexFileName(@NonNull File cacheDir, @NonNull File file)
+                throws IOException {
+            // Incorporate the format version in the name, like ApiLookup, such that a
+            // newer lint never has to replace a file which may still be mapped
+            return "annotations-" + BINARY_FORMAT_VERSION + '-'
+                    + getHash(cacheDir, file) + ".bin"; //$NON-NLS-1$
+        }
+
+        @VisibleForTesting
+        @NonNull
+        static File getStampFile(@NonNull File cacheDir, @NonNull File file) {
+            String path = file.getAbsolutePath();
+            return new File(cacheDir, "annotations-" + BINARY_FORMAT_VERSION + '-'
+                    + Hashing.sha1().hashString(path, Charsets.UTF_8) + ".stamp"); //$NON-NLS-1$
+        }
+
+        /**
+         * Returns the hash of the contents of the given annotations file, from its stamp file
+         * if the length and modification time of the file did not change since it was written
+         */
+        @NonNull
+        private static String getHash(@NonNull File cacheDir, @NonNull File file)
+                throws IOException {
+            long length = file.length();
+            long lastModified = file.lastModified();
+            File stampFile = getStampFile(cacheDir, file);
+            if (stampFile.isFile()) {
+                DataInputStream in = null;
+                try {
+                    in = new DataInputStream(new FileInputStream(stampFile));
+                    if (in.readLong() == length && in.readLong() == lastModified) {
+                        return in.readUTF();
                     }
+                } catch (IOException ignore) {
+                    // Truncated by an interrupted lint run: hash the file again
+                } finally {
+                    Closeables.closeQuietly(in);
+                }
+            }
+
+            String hash = Files.hash(file, Hashing.sha1()).toString();
+            try {
+                // Write to a temporary file first, such that a concurrent lint run never
+                // sees a partially written stamp
+                File tempFile = File.createTempFile("annotations", ".tmp", //$NON-NLS-1$
+                        cacheDir);
+                try {
+                    DataOutputStream out = new DataOutputStream(new FileOutputStream(tempFile));
+                    try {
+                        out.writeLong(length);
+                        out.writeLong(lastModified);
+                        out.writeUTF(hash);
+                    } finally {
+                        Closeables.close(out, false);
+                    }
+                    if (stampFile.exists() && !stampFile.delete()
+                            || !tempFile.renameTo(stampFile)) {
+                        throw new IOException("Could not write " + stampFile);
+                    }
+                } finally {
+                    if (tempFile.exists()) {
+                        //noinspection ResultOfMethodCallIgnored
+                        tempFile.delete();
+                    }
+                }
+            } catch (IOException ignore) {
+                // The file is hashed again on the next run
+            }
+            return hash;
+        }
+
+        /**
+         * Maps the binary index of the given annotations file, writing it first if the file
+         * has not been indexed yet.
+         *
+         * @return false if the index could not be written, in which case the XML should be
+         *     read instead
+         */
+        private boolean initializeFromIndex(@NonNull File cacheDir, @NonNull File file)
+                throws IOException {
+            File indexFile = new File(cacheDir, getIndexFileName(cacheDir, file));
+            if (indexFile.isFile() && mapIndex(indexFile)) {
+                return true;
+            }
+
+            // Missing, or a corrupt file left by an interrupted lint run
+            if (indexFile.exists() && !indexFile.delete()) {
+                return false;
+            }
+            try {
+                writeIndex(file, indexFile);
+            } catch (IOException ignore) {
+                // Not writable cache directory or unexpected contents: parse the XML instead,
+                // which reports the error if the file is malformed
+                return false;
+            }
+            return mapIndex(indexFile);
+        }
+
+        /** Maps the given index file, and returns false if it is not a valid index */
+        private boolean mapIndex(@NonNull File indexFile) throws IOException {
+            RandomAccessFile file = new RandomAccessFile(indexFile, "r"); //$NON-NLS-1$
+            try {
+                byte[] expectedHeader = FILE_HEADER.getBytes(Charsets.US_ASCII);
+                int tableOffset = expectedHeader.length + 5;
+                if (file.length() < tableOffset) {
+                    return false;
+                }
+                byte[] header = new byte[expectedHeader.length];
+                file.readFully(header);
+                if (!Arrays.equals(header, expectedHeader)
+                        || file.readByte() != BINARY_FORMAT_VERSION) {
+                    return false;
+                }
+                int classCount = file.readInt();
+                if (classCount < 0 || file.length() < tableOffset + 4L * classCount) {
+                    return false;
+                }
+
+                // The mapping stays valid once the file is closed
+                mIndex = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+                mIndexClassCount = classCount;
+                mIndexTableOffset = tableOffset;
+                return true;
+            } finally {
+                Closeables.close(file, true);
+            }
+        }
 
-                    signature = XmlUtils.fromXmlAttributeValue(signature);
-                    Matcher matcher = XML_SIGNATURE.matcher(signature);
-                    if (matcher.matches()) {
-                        String containingClass = matcher.group(1);
-                        if (containingClass == null) {
-                            throw new IOException("Could not find class for " + signature);
+        /**
+         * Writes the binary index of the given annotations file.
+         * <pre>
+         * (Note: all numbers are big endian. Strings are written as their length in bytes
+         * [a 2 byte integer] followed by their UTF-8 bytes.)
+         *
+         * 1. A file header, which is the exact contents of {@link #FILE_HEADER} encoded
+         *    as ASCII characters.
+         * 2. A file version number, {@link #BINARY_FORMAT_VERSION} [1 byte].
+         * 3. The number of classes [a 4 byte integer].
+         * 4. The offsets of the class entries, one for each class, sorted by the UTF-8 bytes of
+         *    the class names such that they can be binary searched [4 byte integers].
+         * 5. The class entries -- one for each class (or package-info class of a package).
+         *    a. The fully qualified name of the class [string].
+         *    b. The number of items of the class [a 4 byte integer].
+         *    c. For each item,
+         *       I. The signature of the item, as in the XML name attribute [string].
+         *       II. The number of annotations of the item [a 2 byte integer].
+         *       III. For each annotation, its name [string], its number of values [a 2 byte
+         *            integer], and the name and the value of each [2 strings].
+         * </pre>
+         */
+        private static void writeIndex(@NonNull File file, @NonNull File indexFile)
+                throws IOException {
+            // Group the items of all the XML files by class
+            Map<String, List<Element>> classes = Maps.newHashMap();
+            JarInputStream zis = null;
+            try {
+                @SuppressWarnings("IOResourceOpenedButNotSafelyClosed")
+                FileInputStream fis = new FileInputStream(file);
+                zis = new JarInputStream(fis);
+                ZipEntry entry = zis.getNextEntry();
+                while (entry != null) {
+                    if (entry.getName().endsWith(".xml")) {
+                        byte[] bytes = ByteStreams.toByteArray(zis);
+                        String xml = new String(bytes, Charsets.UTF_8);
+                        Document document = XmlUtils.parseDocumentSilently(xml, false);
+                        if (document == null) {
+                            throw new IOException("Could not parse XML from " + entry.getName());
                         }
-                        String methodName = matcher.group(5);
-                        if (methodName != null) {
-                            String type = matcher.group(4);
-                            boolean isConstructor = type == null;
-                            String parameters = matcher.group(6);
-                            mergeMethodOrParameter(item, matcher, containingClass, methodName,
-                                    isConstructor, parameters);
-                        } else {
-                            String fieldName = matcher.group(2);
-                            mergeField(item, containingClass, fieldName);
+                        for (Element item : getChildren(document.getDocumentElement())) {
+                            String signature = getSignature(item);
+                            if (signature == null) {
+                                continue;
+                            }
+                            String containingClass = getContainingClass(signature);
+                            if (containingClass == null) {
+                                throw new IOException("No merge match for signature "
+                                        + signature);
+                            }
+                            List<Element> items = classes.get(containingClass);
+                            if (items == null) {
+                                items = Lists.newArrayList();
+                                classes.put(containingClass, items);
+                            }
+                            items.add(item);
                         }
-                    } else if (signature.indexOf(' ') == -1 && signature.indexOf('.') != -1) {
-                        mergeClass(item, signature);
-                    } else {
-                        throw new IOException("No merge match for signature " + signature);
                     }
+                    entry = zis.getNextEntry();
+                }
+            } finally {
+                Closeables.close(zis, true);
+            }
+
+            List<byte[]> names = Lists.newArrayListWithExpectedSize(classes.size());
+            for (String name : classes.keySet()) {
+                names.add(name.getBytes(Charsets.UTF_8));
+            }
+            Collections.sort(names, UnsignedBytes.lexicographicalComparator());
+
+            ByteArrayOutputStream entries = new ByteArrayOutputStream(64 * 1024);
+            DataOutputStream out = new DataOutputStream(entries);
+            int[] offsets = new int[names.size()];
+            int base = FILE_HEADER.length() + 5 + 4 * names.size();
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = base + out.size();
+                byte[] name = names.get(i);
+                writeBytes(out, name);
+                List<Element> items = classes.get(new String(name, Charsets.UTF_8));
+                out.writeInt(items.size());
+                for (Element item : items) {
+                    String signature = getSignature(item);
+                    assert signature != null;
+                    writeString(out, signature);
+                    List<Element> annotations = getChildren(item);
+                    out.writeShort(annotations.size());
+                    for (Element annotation : annotations) {
+                        writeString(out, annotation.getAttribute(ATTR_NAME));
+                        String[] values = getValues(annotation);
+                        out.writeShort(values.length / 2);
+                        for (String value : values) {
+                            writeString(out, value);
+                        }
+                    }
+                }
+            }
+            out.flush();
+
+            // Write to a temporary file first, such that a concurrent lint run never sees
+            // a partially written index
+            File tempFile = File.createTempFile("annotations", ".tmp", //$NON-NLS-1$
+                    indexFile.getParentFile());
+            try {
+                DataOutputStream output = new DataOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(tempFile)));
+                try {
+                    output.write(FILE_HEADER.getBytes(Charsets.US_ASCII));
+                    output.writeByte(BINARY_FORMAT_VERSION);
+                    output.writeInt(offsets.length);
+                    for (int offset : offsets) {
+                        output.writeInt(offset);
+                    }
+                    entries.writeTo(output);
+                } finally {
+                    Closeables.close(output, false);
+                }
+                if (!tempFile.renameTo(indexFile) && !indexFile.isFile()) {
+                    throw new IOException("Could not write " + indexFile);
+                }
+            } finally {
+                if (tempFile.exists()) {
+                    //noinspection ResultOfMethodCallIgnored
+                    tempFile.delete();
+                }
+            }
+        }
+
+        private static void writeString(@NonNull DataOutputStream out, @NonNull String string)
+                throws IOException {
+            writeBytes(out, string.getBytes(Charsets.UTF_8));
+        }
+
+        private static void writeBytes(@NonNull DataOutputStream out, @NonNull byte[] bytes)
+                throws IOException {
+            if (bytes.length > 0xFFFF) {
+                throw new IOException("String too long for the annotations index");
+            }
+            out.writeShort(bytes.length);
+            out.write(bytes);
+        }
+
+        @NonNull
+        private static String readString(@NonNull ByteBuffer buffer) {
+            byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+            buffer.get(bytes);
+            return new String(bytes, Charsets.UTF_8);
+        }
+
+        /**
+         * Returns the offset of the entry of the given class in {@link #mIndex}, or -1 if
+         * the class has no annotations
+         */
+        private int findIndexEntry(@NonNull ByteBuffer index, @NonNull String name) {
+            byte[] key = name.getBytes(Charsets.UTF_8);
+            int low = 0;
+            int high = mIndexClassCount - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                int offset = index.getInt(mIndexTableOffset + 4 * middle);
+                int compare = compare(index, offset, key);
+                if (compare < 0) {
+                    low = middle + 1;
+                } else if (compare > 0) {
+                    high = middle - 1;
+                } else {
+                    return offset;
                 }
-            } catch (Exception e) {
-                throw new IOException("Could not parse XML from " + path);
             }
+            return -1;
         }
 
-        // SDK annotations
-        private Map<String,ClassInfo> mClassMap = Maps.newHashMapWithExpectedSize(800);
+        /** Compares the string at the given offset with the given UTF-8 bytes */
+        private static int compare(@NonNull ByteBuffer buffer, int offset, @NonNull byte[] key) {
+            int length = buffer.getShort(offset) & 0xFFFF;
+            offset += 2;
+            for (int i = 0, n = Math.min(length, key.length); i < n; i++) {
+                int delta = (buffer.get(offset + i) & 0xFF) - (key[i] & 0xFF);
+                if (delta != 0) {
+                    return delta;
+                }
+            }
+            return length - key.length;
+        }
+
+        /** Reads the class entry at the given offset of the index into {@link #mClassMap} */
+        private void readClass(@NonNull ByteBuffer index, int offset) throws IOException {
+            ByteBuffer buffer = index.duplicate();
+            buffer.position(offset);
+            readString(buffer); // class name
+            int itemCount = buffer.getInt();
+            for (int i = 0; i < itemCount; i++) {
+                String signature = readString(buffer);
+                int annotationCount = buffer.getShort() & 0xFFFF;
+                List<PsiAnnotation> annotations =
+                        Lists.newArrayListWithExpectedSize(annotationCount);
+                for (int j = 0; j < annotationCount; j++) {
+                    String name = readString(buffer);
+                    String[] values = new String[2 * (buffer.getShort() & 0xFFFF)];
+                    for (int k = 0; k < values.length; k++) {
+                        values[k] = readString(buffer);
+                    }
+                    annotations.add(createAnnotation(name, values));
+                }
+                mergeItem(signature, annotations);
+            }
+        }
+
+        // SDK annotations. When reading from the index, classes are added as they are
+        // looked up, with a null value for the classes without annotations.
+        private final Map<String,ClassInfo> mClassMap = Maps.newHashMapWithExpectedSize(800);
+
+        @Nullable
+        private ClassInfo getClassInfo(@NonNull String name) {
+            ByteBuffer index = mIndex;
+            if (index == null) {
+                return mClassMap.get(name);
+            }
+            synchronized (mClassMap) {
+                if (!mClassMap.containsKey(name)) {
+                    int offset = findIndexEntry(index, name);
+                    if (offset != -1) {
+                        try {
+                            readClass(index, offset);
+                        } catch (IOException ignore) {
+                            // Cannot happen: the signatures were checked when indexing
+                        }
+                    }
+                    if (!mClassMap.containsKey(name)) {
+                        mClassMap.put(name, null);
+                    }
+                }
+                return mClassMap.get(name);
+            }
+        }
 
         @Nullable
         private ClassInfo findClass(@NonNull ResolvedClass cls) {
-            return mClassMap.get(cls.getName());
+            return getClassInfo(cls.getName());
         }
 
         @Nullable
@@ -920,22 +1359,22 @@ public class ExternalAnnotationRepository {
             if (cls == null || cls.compoundName == null) {
                 return null;
             }
-            return mClassMap.get(getTypeName(cls.compoundName));
+            return getClassInfo(getTypeName(cls.compoundName));
         }
 
         @Nullable
         private ClassInfo findPackage(@NonNull PackageBinding pkg) {
             return pkg.compoundName != null
-                    ? mClassMap.get(getTypeName(pkg.compoundName) + ".package-info") : null;
+                    ? getClassInfo(getTypeName(pkg.compoundName) + ".package-info") : null;
         }
 
         @Nullable
         private ClassInfo findClass(@NonNull ResolvedAnnotation cls) {
-            return mClassMap.get(cls.getName());
+            return getClassInfo(cls.getName());
         }
 
         private ClassInfo findPackage(@NonNull ResolvedPackage pkg) {
-            return mClassMap.get(pkg.getName() +".package-info");
+            return getClassInfo(pkg.getName() +".package-info");
         }
 
         @Nullable
@@ -1199,12 +1638,12 @@ public class ExternalAnnotationRepository {
             return field;
         }
 
-        private void mergeMethodOrParameter(Element item, Matcher matcher, String containingClass,
-                String methodName, boolean constructor, String parameters) {
+        private void mergeMethodOrParameter(List<PsiAnnotation> annotations, Matcher matcher,
+                String containingClass, String methodName, boolean constructor,
+                String parameters) {
             parameters = fixParameterString(parameters);
 
             MethodInfo method = createMethod(containingClass, methodName, constructor, parameters);
-            List<PsiAnnotation> annotations = createAnnotations(item);
 
             String argNum = matcher.group(7);
             if (argNum != null) {
@@ -1227,18 +1666,17 @@ public class ExternalAnnotationRepository {
             }
         }
 
-        private void mergeField(Element item, String containingClass, String fieldName) {
+        private void mergeField(List<PsiAnnotation> annotations, String containingClass,
+                String fieldName) {
             FieldInfo field = createField(containingClass, fieldName);
-            List<PsiAnnotation> annotations = createAnnotations(item);
             if (field.psiAnnotations == null) {
                 field.psiAnnotations = Lists.newArrayListWithExpectedSize(annotations.size());
             }
             field.psiAnnotations.addAll(annotations);
         }
 
-        private void mergeClass(Element item, String containingClass) {
+        private void mergeClass(List<PsiAnnotation> annotations, String containingClass) {
             ClassInfo cls = createClass(containingClass);
-            List<PsiAnnotation> annotations = createAnnotations(item);
             if (cls.psiAnnotations == null) {
                 cls.psiAnnotations = Lists.newArrayListWithExpectedSize(annotations.size());
             }
@@ -1328,8 +1766,32 @@ public class ExternalAnnotationRepository {
         private PsiAnnotation createAnnotation(Element annotationElement) {
             String tagName = annotationElement.getTagName();
             assert tagName.equals("annotation") : tagName;
-            String name = annotationElement.getAttribute(ATTR_NAME);
-            assert name != null && !name.isEmpty();
+            return createAnnotation(annotationElement.getAttribute(ATTR_NAME),
+                    getValues(annotationElement));
+        }
+
+        /**
+         * Returns the names and values of the val children of the given annotation element,
+         * interleaved
+         */
+        @NonNull
+        private static String[] getValues(@NonNull Element annotationElement) {
+            List<String> values = Lists.newArrayList();
+            for (Element valueElement : getChildren(annotationElement)) {
+                if (valueElement.getTagName().equals("val")) {
+                    values.add(valueElement.getAttribute(ATTR_NAME));
+                    values.add(valueElement.getAttribute("val"));
+                }
+            }
+            return values.toArray(new String[values.size()]);
+        }
+
+        /**
+         * Creates an annotation from its name and the names and values of its attributes, as
+         * returned by {@link #getValues(Element)}
+         */
+        private PsiAnnotation createAnnotation(@NonNull String name, @NonNull String[] values) {
+            assert !name.isEmpty();
 
             ExternalPsiAnnotation annotation = mMarkerAnnotations.get(name);
             if (annotation != null) {
@@ -1338,8 +1800,7 @@ public class ExternalAnnotationRepository {
 
             annotation = new ExternalPsiAnnotation(name);
 
-            List<Element> valueElements = getChildren(annotationElement);
-            if (valueElements.isEmpty()
+            if (values.length == 0
                     // Permission annotations are sometimes used as marker annotations (on
                     // parameters) but that shouldn't let us conclude that any future
                     // permission annotations are. Ditto for @CheckResult, where we sometimes
@@ -1350,66 +1811,64 @@ public class ExternalAnnotationRepository {
                 return annotation;
             }
 
-            List<PsiNameValuePair> pairs = Lists.newArrayListWithCapacity(valueElements.size());
-            for (Element valueElement : valueElements) {
-                if (valueElement.getTagName().equals("val")) {
-                    String valueName = valueElement.getAttribute(ATTR_NAME);
-                    String valueString = valueElement.getAttribute("val");
-                    if (!valueName.isEmpty() && !valueString.isEmpty()) {
-                        // Guess type
-                        if (valueString.equals(VALUE_TRUE)) {
-                            pairs.add(new ExternalPsiNameValuePair(valueName, valueString,
-                                    new ExternalPsiAnnotationLiteralMemberValue(true)));
-                        } else if (valueString.equals(VALUE_FALSE)) {
-                            pairs.add(new ExternalPsiNameValuePair(valueName, valueString,
-                                    new ExternalPsiAnnotationLiteralMemberValue(false)));
-                        } else if (valueString.startsWith("\"") && valueString.endsWith("\"") &&
-                                valueString.length() >= 2) {
-                            String s = valueString.substring(1, valueString.length() - 1);
-                            pairs.add(new ExternalPsiNameValuePair(valueName, valueString,
-                                    new ExternalPsiAnnotationLiteralMemberValue(s)));
-                        } else if (valueString.startsWith("{") && valueString.endsWith("}")) {
-                            // Array of values
-                            String listString = valueString.substring(1, valueString.length() - 1);
-                            // We don't know the types, but we'll assume that they're either
-                            // all strings (the most common array type in our annotations), or
-                            // field references. We can't know the types of the fields; it's
-                            // not part of the annotation metadata. We'll place them in an Object[]
-                            // for now.
-                            Splitter splitter = Splitter.on(',').omitEmptyStrings().trimResults();
-                            List<PsiAnnotationMemberValue> result = Lists.newArrayList();
-                            for (String reference : splitter.split(listString)) {
-                                if (reference.startsWith("\"")) {
-                                    String s = reference.substring(1, reference.length() - 1);
-                                    result.add(new ExternalPsiAnnotationLiteralMemberValue(s));
-                                } else {
-                                    result.add(new ExternalPsiReferenceExpressionMemberValue(reference));
-                                }
+            List<PsiNameValuePair> pairs = Lists.newArrayListWithCapacity(values.length / 2);
+            for (int i = 0; i < values.length; i += 2) {
+                String valueName = values[i];
+                String valueString = values[i + 1];
+                if (!valueName.isEmpty() && !valueString.isEmpty()) {
+                    // Guess type
+                    if (valueString.equals(VALUE_TRUE)) {
+                        pairs.add(new ExternalPsiNameValuePair(valueName, valueString,
+                                new ExternalPsiAnnotationLiteralMemberValue(true)));
+                    } else if (valueString.equals(VALUE_FALSE)) {
+                        pairs.add(new ExternalPsiNameValuePair(valueName, valueString,
+                                new ExternalPsiAnnotationLiteralMemberValue(false)));
+                    } else if (valueString.startsWith("\"") && valueString.endsWith("\"") &&
+                            valueString.length() >= 2) {
+                        String s = valueString.substring(1, valueString.length() - 1);
+                        pairs.add(new ExternalPsiNameValuePair(valueName, valueString,
+                                new ExternalPsiAnnotationLiteralMemberValue(s)));
+                    } else if (valueString.startsWith("{") && valueString.endsWith("}")) {
+                        // Array of values
+                        String listString = valueString.substring(1, valueString.length() - 1);
+                        // We don't know the types, but we'll assume that they're either
+                        // all strings (the most common array type in our annotations), or
+                        // field references. We can't know the types of the fields; it's
+                        // not part of the annotation metadata. We'll place them in an Object[]
+                        // for now.
+                        Splitter splitter = Splitter.on(',').omitEmptyStrings().trimResults();
+                        List<PsiAnnotationMemberValue> result = Lists.newArrayList();
+                        for (String reference : splitter.split(listString)) {
+                            if (reference.startsWith("\"")) {
+                                String s = reference.substring(1, reference.length() - 1);
+                                result.add(new ExternalPsiAnnotationLiteralMemberValue(s));
+                            } else {
+                                result.add(new ExternalPsiReferenceExpressionMemberValue(reference));
                             }
-                            PsiAnnotationMemberValue[] initializers = result.toArray(
-                                    PsiAnnotationMemberValue.EMPTY_ARRAY);
-                            pairs.add(new ExternalPsiNameValuePair(valueName, valueString,
-                                    new ExternalPsiArrayInitializerMemberValue(initializers)));
-
-                            // We don't know the actual type of these fields; we'll assume they're
-                            // a special form of
-                        } else if (Character.isDigit(valueString.charAt(0))) {
-                            Object value;
-                            try {
-                                if (valueString.contains(".")) {
-                                    value = Double.parseDouble(valueString);
-                                } else {
-                                    value = Long.parseLong(valueString);
-                                }
-                            } catch (NumberFormatException nufe) {
-                                value = valueString;
+                        }
+                        PsiAnnotationMemberValue[] initializers = result.toArray(
+                                PsiAnnotationMemberValue.EMPTY_ARRAY);
+                        pairs.add(new ExternalPsiNameValuePair(valueName, valueString,
+                                new ExternalPsiArrayInitializerMemberValue(initializers)));
+
+                        // We don't know the actual type of these fields; we'll assume they're
+                        // a special form of
+                    } else if (Character.isDigit(valueString.charAt(0))) {
+                        Object value;
+                        try {
+                            if (valueString.contains(".")) {
+                                value = Double.parseDouble(valueString);
+                            } else {
+                                value = Long.parseLong(valueString);
                             }
-                            pairs.add(new ExternalPsiNameValuePair(valueName, valueString,
-                                    new ExternalPsiAnnotationLiteralMemberValue(value)));
-                        } else {
-                            pairs.add(new ExternalPsiNameValuePair(valueName, valueString,
-                                    new ExternalPsiAnnotationLiteralMemberValue(valueString)));
+                        } catch (NumberFormatException nufe) {
+                            value = valueString;
                         }
+                        pairs.add(new ExternalPsiNameValuePair(valueName, valueString,
+                                new ExternalPsiAnnotationLiteralMemberValue(value)));
+                    } else {
+                        pairs.add(new ExternalPsiNameValuePair(valueName, valueString,
+                                new ExternalPsiAnnotationLiteralMemberValue(valueString)));
                     }
                 }
             }
@@ -23,6 +23,7 @@ import static com.android.tools.lint.detector.api.LintUtils.endsWith;
 import static com.android.tools.lint.detector.api.TextFormat.HTML;
 import static com.android.tools.lint.detector.api.TextFormat.RAW;
 
+import com.android.annotations.NonNull;
 import com.android.tools.lint.checks.BuiltinIssueRegistry;
 import com.android.tools.lint.client.api.Configuration;
 import com.android.tools.lint.detector.api.Category;
@@ -52,6 +53,7 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -141,191 +143,182 @@ public class HtmlReporter extends Reporter {
                 errorCount, warningCount));
         mWriter.write("<br/><br/>\n");                                   //$NON-NLS-1$
 
-        Issue previousIssue = null;
         if (!issues.isEmpty()) {
-            List<List<Warning>> related = new ArrayList<List<Warning>>();
-            List<Warning> currentList = null;
+            // One pass over the warnings to count them by issue, and another one to write
+            // them, such that reports never need all the warnings in memory at once
+            List<IssueSummary> summaries = summarize(issues);
+            writeOverview(summaries, missing.size());
+
+            Category previousCategory = null;
+            Iterator<IssueSummary> summaryIterator = summaries.iterator();
+            IssueSummary summary = null;
+            boolean partialHide = false;
+            int count = 0;
             for (Warning warning : issues) {
-                if (warning.issue != previousIssue) {
-                    previousIssue = warning.issue;
-                    currentList = new ArrayList<Warning>();
-                    related.add(currentList);
-                }
-                assert currentList != null;
-                currentList.add(warning);
-            }
+                if (summary == null || warning.issue != summary.issue) {
+                    if (summary != null) {
+                        writeIssueFooter(summary, partialHide);
+                    }
+                    summary = summaryIterator.next();
+                    Issue issue = summary.issue;
+                    if (issue.getCategory() != previousCategory) {
+                        previousCategory = issue.getCategory();
+                        mWriter.write("\n<a name=\"");                       //$NON-NLS-1$
+                        mWriter.write(issue.getCategory().getFullName());
+                        mWriter.write("\"></a>\n");                          //$NON-NLS-1$
+                        mWriter.write("<div class=\"category\"><a href=\"#\" title=\"Return to top\">");           //$NON-NLS-1$
+                        mWriter.write(issue.getCategory().getFullName());
+                        mWriter.write("</a><div class=\"categorySeparator\"></div>\n");//$NON-NLS-1$
+                        mWriter.write("</div>\n");                           //$NON-NLS-1$
+                    }
 
-            writeOverview(related, missing.size());
+                    mWriter.write("<a name=\"" + issue.getId() + "\"></a>\n"); //$NON-NLS-1$ //$NON-NLS-2$
+                    mWriter.write("<div class=\"issue\">\n");                //$NON-NLS-1$
 
-            Category previousCategory = null;
-            for (List<Warning> warnings : related) {
-                Warning first = warnings.get(0);
-                Issue issue = first.issue;
-
-                if (issue.getCategory() != previousCategory) {
-                    previousCategory = issue.getCategory();
-                    mWriter.write("\n<a name=\"");                       //$NON-NLS-1$
-                    mWriter.write(issue.getCategory().getFullName());
-                    mWriter.write("\"></a>\n");                          //$NON-NLS-1$
-                    mWriter.write("<div class=\"category\"><a href=\"#\" title=\"Return to top\">");           //$NON-NLS-1$
-                    mWriter.write(issue.getCategory().getFullName());
-                    mWriter.write("</a><div class=\"categorySeparator\"></div>\n");//$NON-NLS-1$
-                    mWriter.write("</div>\n");                           //$NON-NLS-1$
+                    // Explain this issue
+                    mWriter.write("<div class=\"id\"><a href=\"#\" title=\"Return to top\">");                     //$NON-NLS-1$
+                    mWriter.write(issue.getId());
+                    mWriter.write(": ");                                     //$NON-NLS-1$
+                    mWriter.write(issue.getBriefDescription(HTML));
+                    mWriter.write("</a><div class=\"issueSeparator\"></div>\n"); //$NON-NLS-1$
+                    mWriter.write("</div>\n");                               //$NON-NLS-1$
+
+                    mWriter.write("<div class=\"warningslist\">\n");         //$NON-NLS-1$
+                    partialHide = !mSimpleFormat && summary.count > SPLIT_LIMIT;
+                    count = 0;
                 }
 
-                mWriter.write("<a name=\"" + issue.getId() + "\"></a>\n"); //$NON-NLS-1$ //$NON-NLS-2$
-                mWriter.write("<div class=\"issue\">\n");                //$NON-NLS-1$
+                if (partialHide && count == SHOWN_COUNT) {
+                    String id = warning.issue.getId() + "Div";       //$NON-NLS-1$
+                    mWriter.write("<button id=\"");                  //$NON-NLS-1$
+                    mWriter.write(id);
+                    mWriter.write("Link\" onclick=\"reveal('");      //$NON-NLS-1$
+                    mWriter.write(id);
+                    mWriter.write("');\" />");                       //$NON-NLS-1$
+                    mWriter.write(String.format("+ %1$d More Occurrences...",
+                            summary.count - SHOWN_COUNT));
+                    mWriter.write("</button>\n");                    //$NON-NLS-1$
+                    mWriter.write("<div id=\"");                     //$NON-NLS-1$
+                    mWriter.write(id);
+                    mWriter.write("\" style=\"display: none\">\n");  //$NON-NLS-1$
+                }
+                count++;
+                String url = null;
+                if (warning.path != null) {
+                    url = writeLocation(warning.file, warning.path, warning.line);
+                    mWriter.write(':');
+                    mWriter.write(' ');
+                }
 
-                // Explain this issue
-                mWriter.write("<div class=\"id\"><a href=\"#\" title=\"Return to top\">");                     //$NON-NLS-1$
-                mWriter.write(issue.getId());
-                mWriter.write(": ");                                     //$NON-NLS-1$
-                mWriter.write(issue.getBriefDescription(HTML));
-                mWriter.write("</a><div class=\"issueSeparator\"></div>\n"); //$NON-NLS-1$
-                mWriter.write("</div>\n");                               //$NON-NLS-1$
+                // Is the URL for a single image? If so, place it here near the top
+                // of the error floating on the right. If there are multiple images,
+                // they will instead be placed in a horizontal box below the error
+                boolean addedImage = false;
+                if (url != null && warning.location != null
+                        && warning.location.getSecondary() == null) {
+                    addedImage = addImage(url, warning.location);
+                }
+                mWriter.write("<span class=\"message\">");           //$NON-NLS-1$
+                mWriter.append(RAW.convertTo(warning.message, HTML));
+                mWriter.write("</span>");                            //$NON-NLS-1$
+                if (addedImage) {
+                    mWriter.write("<br clear=\"right\"/>");          //$NON-NLS-1$
+                } else {
+                    mWriter.write("<br />");                         //$NON-NLS-1$
+                }
 
-                mWriter.write("<div class=\"warningslist\">\n");         //$NON-NLS-1$
-                boolean partialHide = !mSimpleFormat && warnings.size() > SPLIT_LIMIT;
+                // Insert surrounding code block window
+                if (warning.line >= 0 && warning.fileContents != null) {
+                    mWriter.write("<pre class=\"errorlines\">\n");   //$NON-NLS-1$
+                    appendCodeBlock(warning.fileContents, warning.line, warning.offset);
+                    mWriter.write("\n</pre>");                       //$NON-NLS-1$
+                }
+                mWriter.write('\n');
+                if (warning.location != null && warning.location.getSecondary() != null) {
+                    mWriter.write("<ul>");
+                    Location l = warning.location.getSecondary();
+                    int otherLocations = 0;
+                    while (l != null) {
+                        String message = l.getMessage();
+                        if (message != null && !message.isEmpty()) {
+                            Position start = l.getStart();
+                            int line = start != null ? start.getLine() : -1;
+                            String path = mClient.getDisplayPath(warning.project, l.getFile());
+                            writeLocation(l.getFile(), path, line);
+                            mWriter.write(':');
+                            mWriter.write(' ');
+                            mWriter.write("<span class=\"message\">");           //$NON-NLS-1$
+                            mWriter.append(RAW.convertTo(message, HTML));
+                            mWriter.write("</span>");                            //$NON-NLS-1$
+                            mWriter.write("<br />");                         //$NON-NLS-1$
+
+                            String name = l.getFile().getName();
+                            if (!(endsWith(name, DOT_PNG) || endsWith(name, DOT_JPG))) {
+                                String s = mClient.readFile(l.getFile());
+                                if (!s.isEmpty()) {
+                                    mWriter.write("<pre class=\"errorlines\">\n");   //$NON-NLS-1$
+                                    int offset = start != null ? start.getOffset() : -1;
+                                    appendCodeBlock(s, line, offset);
+                                    mWriter.write("\n</pre>");                       //$NON-NLS-1$
+                                }
+                            }
+                        } else {
+                            otherLocations++;
+                        }
 
-                int count = 0;
-                for (Warning warning : warnings) {
-                    if (partialHide && count == SHOWN_COUNT) {
-                        String id = warning.issue.getId() + "Div";       //$NON-NLS-1$
+                        l = l.getSecondary();
+                    }
+                    mWriter.write("</ul>");
+                    if (otherLocations > 0) {
+                        String id = "Location" + count + "Div";          //$NON-NLS-1$
                         mWriter.write("<button id=\"");                  //$NON-NLS-1$
                         mWriter.write(id);
                         mWriter.write("Link\" onclick=\"reveal('");      //$NON-NLS-1$
                         mWriter.write(id);
-                        mWriter.write("');\" />");                       //$NON-NLS-1$
-                        mWriter.write(String.format("+ %1$d More Occurrences...",
-                                warnings.size() - SHOWN_COUNT));
+                        mWriter.write("');\" />"); //$NON-NLS-1$
+                        mWriter.write(String.format("+ %1$d Additional Locations...",
+                                otherLocations));
                         mWriter.write("</button>\n");                    //$NON-NLS-1$
                         mWriter.write("<div id=\"");                     //$NON-NLS-1$
                         mWriter.write(id);
                         mWriter.write("\" style=\"display: none\">\n");  //$NON-NLS-1$
-                    }
-                    count++;
-                    String url = null;
-                    if (warning.path != null) {
-                        url = writeLocation(warning.file, warning.path, warning.line);
-                        mWriter.write(':');
-                        mWriter.write(' ');
-                    }
 
-                    // Is the URL for a single image? If so, place it here near the top
-                    // of the error floating on the right. If there are multiple images,
-                    // they will instead be placed in a horizontal box below the error
-                    boolean addedImage = false;
-                    if (url != null && warning.location != null
-                            && warning.location.getSecondary() == null) {
-                        addedImage = addImage(url, warning.location);
-                    }
-                    mWriter.write("<span class=\"message\">");           //$NON-NLS-1$
-                    mWriter.append(RAW.convertTo(warning.message, HTML));
-                    mWriter.write("</span>");                            //$NON-NLS-1$
-                    if (addedImage) {
-                        mWriter.write("<br clear=\"right\"/>");          //$NON-NLS-1$
-                    } else {
-                        mWriter.write("<br />");                         //$NON-NLS-1$
-                    }
-
-                    // Insert surrounding code block window
-                    if (warning.line >= 0 && warning.fileContents != null) {
-                        mWriter.write("<pre class=\"errorlines\">\n");   //$NON-NLS-1$
-                        appendCodeBlock(warning.fileContents, warning.line, warning.offset);
-                        mWriter.write("\n</pre>");                       //$NON-NLS-1$
-                    }
-                    mWriter.write('\n');
-                    if (warning.location != null && warning.location.getSecondary() != null) {
-                        mWriter.write("<ul>");
-                        Location l = warning.location.getSecondary();
-                        int otherLocations = 0;
+                        mWriter.write("Additional locations: ");
+                        mWriter.write("<ul>\n"); //$NON-NLS-1$
+                        l = warning.location.getSecondary();
                         while (l != null) {
-                            String message = l.getMessage();
-                            if (message != null && !message.isEmpty()) {
-                                Position start = l.getStart();
-                                int line = start != null ? start.getLine() : -1;
-                                String path = mClient.getDisplayPath(warning.project, l.getFile());
-                                writeLocation(l.getFile(), path, line);
-                                mWriter.write(':');
-                                mWriter.write(' ');
-                                mWriter.write("<span class=\"message\">");           //$NON-NLS-1$
-                                mWriter.append(RAW.convertTo(message, HTML));
-                                mWriter.write("</span>");                            //$NON-NLS-1$
-                                mWriter.write("<br />");                         //$NON-NLS-1$
-
-                                String name = l.getFile().getName();
-                                if (!(endsWith(name, DOT_PNG) || endsWith(name, DOT_JPG))) {
-                                    String s = mClient.readFile(l.getFile());
-                                    if (!s.isEmpty()) {
-                                        mWriter.write("<pre class=\"errorlines\">\n");   //$NON-NLS-1$
-                                        int offset = start != null ? start.getOffset() : -1;
-                                        appendCodeBlock(s, line, offset);
-                                        mWriter.write("\n</pre>");                       //$NON-NLS-1$
-                                    }
-                                }
-                            } else {
-                                otherLocations++;
-                            }
-
+                            Position start = l.getStart();
+                            int line = start != null ? start.getLine() : -1;
+                            String path = mClient.getDisplayPath(warning.project, l.getFile());
+                            mWriter.write("<li> "); //$NON-NLS-1$
+                            writeLocation(l.getFile(), path, line);
+                            mWriter.write("\n");  //$NON-NLS-1$
                             l = l.getSecondary();
                         }
-                        mWriter.write("</ul>");
-                        if (otherLocations > 0) {
-                            String id = "Location" + count + "Div";          //$NON-NLS-1$
-                            mWriter.write("<button id=\"");                  //$NON-NLS-1$
-                            mWriter.write(id);
-                            mWriter.write("Link\" onclick=\"reveal('");      //$NON-NLS-1$
-                            mWriter.write(id);
-                            mWriter.write("');\" />"); //$NON-NLS-1$
-                            mWriter.write(String.format("+ %1$d Additional Locations...",
-                                    otherLocations));
-                            mWriter.write("</button>\n");                    //$NON-NLS-1$
-                            mWriter.write("<div id=\"");                     //$NON-NLS-1$
-                            mWriter.write(id);
-                            mWriter.write("\" style=\"display: none\">\n");  //$NON-NLS-1$
-
-                            mWriter.write("Additional locations: ");
-                            mWriter.write("<ul>\n"); //$NON-NLS-1$
-                            l = warning.location.getSecondary();
-                            while (l != null) {
-                                Position start = l.getStart();
-                                int line = start != null ? start.getLine() : -1;
-                                String path = mClient.getDisplayPath(warning.project, l.getFile());
-                                mWriter.write("<li> "); //$NON-NLS-1$
-                                writeLocation(l.getFile(), path, line);
-                                mWriter.write("\n");  //$NON-NLS-1$
-                                l = l.getSecondary();
-                            }
-                            mWriter.write("</ul>\n"); //$NON-NLS-1$
-
-                            mWriter.write("</div><br/><br/>\n"); //$NON-NLS-1$
-                        }
-                    }
-
-                    // Place a block of images?
-                    if (!addedImage && url != null && warning.location != null
-                            && warning.location.getSecondary() != null) {
-                        addImage(url, warning.location);
-                    }
+                        mWriter.write("</ul>\n"); //$NON-NLS-1$
 
-                    if (warning.isVariantSpecific()) {
-                        mWriter.write("\n");
-                        mWriter.write("Applies to variants: ");
-                        mWriter.write(Joiner.on(", ").join(warning.getIncludedVariantNames()));
-                        mWriter.write("<br/>\n");
-                        mWriter.write("Does <b>not</b> apply to variants: ");
-                        mWriter.write(Joiner.on(", ").join(warning.getExcludedVariantNames()));
-                        mWriter.write("<br/>\n");
+                        mWriter.write("</div><br/><br/>\n"); //$NON-NLS-1$
                     }
                 }
-                if (partialHide) { // Close up the extra div
-                    mWriter.write("</div>\n");                           //$NON-NLS-1$
-                }
 
-                mWriter.write("</div>\n");                               //$NON-NLS-1$
-                writeIssueMetadata(issue, first.severity, null);
+                // Place a block of images?
+                if (!addedImage && url != null && warning.location != null
+                        && warning.location.getSecondary() != null) {
+                    addImage(url, warning.location);
+                }
 
-                mWriter.write("</div>\n");                               //$NON-NLS-1$
+                if (warning.isVariantSpecific()) {
+                    mWriter.write("\n");
+                    mWriter.write("Applies to variants: ");
+                    mWriter.write(Joiner.on(", ").join(warning.getIncludedVariantNames()));
+                    mWriter.write("<br/>\n");
+                    mWriter.write("Does <b>not</b> apply to variants: ");
+                    mWriter.write(Joiner.on(", ").join(warning.getExcludedVariantNames()));
+                    mWriter.write("<br/>\n");
+                }
+            }
+            if (summary != null) {
+                writeIssueFooter(summary, partialHide);
             }
 
             if (!mClient.isCheckingSpecificIssues()) {
@@ -346,6 +339,54 @@ public class HtmlReporter extends Reporter {
         }
     }
 
+    /** Closes the section of an issue, once all its warnings have been written */
+    private void writeIssueFooter(@NonNull IssueSummary summary, boolean partialHide)
+            throws IOException {
+        if (partialHide) { // Close up the extra div
+            mWriter.write("</div>\n");                                   //$NON-NLS-1$
+        }
+
+        mWriter.write("</div>\n");                                       //$NON-NLS-1$
+        writeIssueMetadata(summary.issue, summary.severity, null);
+
+        mWriter.write("</div>\n");                                       //$NON-NLS-1$
+    }
+
+    /**
+     * Returns the issues of the given sorted warnings, in order, with the number of warnings
+     * of each
+     */
+    @NonNull
+    private static List<IssueSummary> summarize(@NonNull List<Warning> warnings) {
+        List<IssueSummary> summaries = new ArrayList<IssueSummary>();
+        IssueSummary summary = null;
+        for (Warning warning : warnings) {
+            if (summary == null || warning.issue != summary.issue) {
+                summary = new IssueSummary(warning.issue, warning.severity);
+                summaries.add(summary);
+            }
+            summary.count++;
+            if (warning.severity == Severity.ERROR || warning.severity == Severity.FATAL) {
+                summary.isError = true;
+            }
+        }
+        return summaries;
+    }
+
+    /** The warnings found for an issue */
+    private static class IssueSummary {
+        @NonNull final Issue issue;
+        /** The severity of the first warning */
+        @NonNull final Severity severity;
+        int count;
+        boolean isError;
+
+        IssueSummary(@NonNull Issue issue, @NonNull Severity severity) {
+            this.issue = issue;
+            this.severity = severity;
+        }
+    }
+
     private void writeIssueMetadata(Issue issue, Severity severity, String disabledBy)
             throws IOException {
         mWriter.write("<div class=\"metadata\">");               //$NON-NLS-1$
@@ -552,7 +593,7 @@ public class HtmlReporter extends Reporter {
         }
     }
 
-    private void writeOverview(List<List<Warning>> related, int missingCount)
+    private void writeOverview(List<IssueSummary> summaries, int missingCount)
             throws IOException {
         // Write issue id summary
         mWriter.write("<table class=\"overview\">\n");                          //$NON-NLS-1$
@@ -566,16 +607,9 @@ public class HtmlReporter extends Reporter {
         }
 
         Category previousCategory = null;
-        for (List<Warning> warnings : related) {
-            Issue issue = warnings.get(0).issue;
-
-            boolean isError = false;
-            for (Warning warning : warnings) {
-                if (warning.severity == Severity.ERROR || warning.severity == Severity.FATAL) {
-                    isError = true;
-                    break;
-                }
-            }
+        for (IssueSummary summary : summaries) {
+            Issue issue = summary.issue;
+            boolean isError = summary.isError;
 
             if (issue.getCategory() != previousCategory) {
                 mWriter.write("<tr><td></td><td class=\"categoryColumn\">");
@@ -593,7 +627,7 @@ public class HtmlReporter extends Reporter {
 
             // Count column
             mWriter.write("<td class=\"countColumn\">");             //$NON-NLS-1$
-            mWriter.write(Integer.toString(warnings.size()));
+            mWriter.write(Integer.toString(summary.count));
             mWriter.write("</td>");                                  //$NON-NLS-1$
 
             mWriter.write("<td class=\"issueColumn\">");             //$NON-NLS-1$
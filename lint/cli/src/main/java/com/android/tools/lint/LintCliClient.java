@@ -33,6 +33,7 @@ import com.android.tools.lint.client.api.LintClient;
 import com.android.tools.lint.client.api.LintDriver;
 import com.android.tools.lint.client.api.LintListener;
 import com.android.tools.lint.client.api.LintRequest;
+import com.android.tools.lint.client.api.LintResultCache;
 import com.android.tools.lint.client.api.XmlParser;
 import com.android.tools.lint.detector.api.Context;
 import com.android.tools.lint.detector.api.Issue;
@@ -89,6 +90,9 @@ public class LintCliClient extends LintClient {
     protected final LintCliFlags mFlags;
     private Configuration mConfiguration;
     private boolean mValidatedIds;
+    /** The warnings spilled to disk, if more were found than {@link WarningStore#RUN_SIZE} */
+    private WarningStore mWarningStore;
+    private boolean mSpillFailed;
 
     /** Creates a CLI driver */
     public LintCliClient() {
@@ -115,6 +119,13 @@ public class LintCliClient extends LintClient {
         mDriver = new LintDriver(registry, this);
 
         mDriver.setAbbreviating(!mFlags.isShowEverything());
+        mDriver.setParallelism(mFlags.getThreads());
+        File resultCache = mFlags.getResultCache();
+        if (resultCache != null) {
+            String revision = getRevision();
+            mDriver.setResultCache(new LintResultCache(resultCache,
+                    revision != null ? revision : "unknown"));
+        }
         addProgressPrinter();
         mDriver.addLintListener(new LintListener() {
             @Override
@@ -128,16 +139,34 @@ public class LintCliClient extends LintClient {
             }
         });
 
-        mDriver.analyze(createLintRequest(files));
-
-        Collections.sort(mWarnings);
+        try {
+            mDriver.analyze(createLintRequest(files));
+        } finally {
+            disposeCaches();
+        }
 
         boolean hasConsoleOutput = false;
-        for (Reporter reporter : mFlags.getReporters()) {
-            reporter.write(mErrorCount, mWarningCount, mWarnings);
-            if (reporter instanceof TextReporter && ((TextReporter)reporter).isWriteToConsole()) {
-                hasConsoleOutput = true;
+        try {
+            List<Warning> warnings;
+            if (mWarningStore != null) {
+                warnings = mWarningStore.getWarnings(mWarnings);
+            } else {
+                Collections.sort(mWarnings);
+                warnings = mWarnings;
+            }
+
+            for (Reporter reporter : mFlags.getReporters()) {
+                reporter.write(mErrorCount, mWarningCount, warnings);
+                if (reporter instanceof TextReporter
+                        && ((TextReporter)reporter).isWriteToConsole()) {
+                    hasConsoleOutput = true;
+                }
             }
+        } catch (WarningStore.ReadException e) {
+            // The spilled warnings could not be read back while a reporter iterated over them
+            throw e.getCause();
+        } finally {
+            closeWarningStore();
         }
 
         if (!mFlags.isQuiet() && !hasConsoleOutput) {
@@ -148,6 +177,50 @@ public class LintCliClient extends LintClient {
         return mFlags.isSetExitCode() ? (mHasErrors ? ERRNO_ERRORS : ERRNO_SUCCESS) : ERRNO_SUCCESS;
     }
 
+    /**
+     * Releases the caches shared by the projects of a run, such as the jars of their class
+     * paths. Clients analyzing several runs in the same process, such as {@link LintServer},
+     * can keep them instead.
+     */
+    protected void disposeCaches() {
+        EcjClassPathCache.dispose();
+    }
+
+    /**
+     * Returns whether warnings may be spilled to disk when there are too many of them to keep
+     * in memory. Clients which read {@link #mWarnings} after the run, rather than through the
+     * reporters, should return false.
+     */
+    protected boolean isSpillingWarnings() {
+        return true;
+    }
+
+    /** Moves the warnings found so far to the {@link WarningStore} */
+    private void spillWarnings() {
+        try {
+            if (mWarningStore == null) {
+                mWarningStore = new WarningStore(this);
+            }
+            mWarningStore.spill(mWarnings);
+            // The spilled warnings read their file contents again when reported
+            mFileContents.clear();
+        } catch (IOException e) {
+            log(e, "Could not write lint warnings to disk; keeping them in memory");
+            mSpillFailed = true;
+        }
+    }
+
+    private void closeWarningStore() {
+        if (mWarningStore != null) {
+            try {
+                mWarningStore.close();
+            } catch (IOException e) {
+                log(e, null);
+            }
+            mWarningStore = null;
+        }
+    }
+
     protected void addProgressPrinter() {
         if (!mFlags.isQuiet()) {
             mDriver.addLintListener(new ProgressPrinter());
@@ -218,10 +291,27 @@ public class LintCliClient extends LintClient {
             @NonNull Location location,
             @NonNull String message,
             @NonNull TextFormat format) {
+        addWarning(context, issue, severity, location, message, format);
+    }
+
+    /**
+     * Records a reported issue as a {@link Warning}. The warning may already have been
+     * spilled to disk, and removed from {@link #mWarnings}, when this method returns.
+     *
+     * @return the warning, or null if the issue is ignored
+     */
+    @Nullable
+    protected Warning addWarning(
+            @NonNull Context context,
+            @NonNull Issue issue,
+            @NonNull Severity severity,
+            @NonNull Location location,
+            @NonNull String message,
+            @NonNull TextFormat format) {
         assert context.isEnabled(issue) || issue == LINT_ERROR;
 
         if (severity == Severity.IGNORE) {
-            return;
+            return null;
         }
 
         if (severity == Severity.ERROR || severity == Severity.FATAL) {
@@ -242,9 +332,21 @@ public class LintCliClient extends LintClient {
         if (location == null) {
             // Misbehaving third party lint rules
             log(Severity.ERROR, null, "No location provided for issue " + issue);
-            return;
+        } else {
+            setLocation(context, warning, location);
+        }
+
+        // Spill once the warning is complete, since spilling writes it out
+        if (mWarnings.size() >= WarningStore.RUN_SIZE && !mSpillFailed
+                && isSpillingWarnings()) {
+            spillWarnings();
         }
 
+        return warning;
+    }
+
+    private void setLocation(@NonNull Context context, @NonNull Warning warning,
+            @NonNull Location location) {
         warning.location = location;
         File file = location.getFile();
         warning.file = file;
@@ -768,6 +870,8 @@ public class LintCliClient extends LintClient {
     @VisibleForTesting
     public void reset() {
         mWarnings.clear();
+        closeWarningStore();
+        mSpillFailed = false;
         mErrorCount = 0;
         mWarningCount = 0;
 
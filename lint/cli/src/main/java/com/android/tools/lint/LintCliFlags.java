@@ -60,6 +60,8 @@ public class LintCliFlags {
 
     private File mDefaultConfiguration;
     private boolean mShowAll;
+    private int mThreads = 1;
+    private File mResultCache;
 
     public static final int ERRNO_SUCCESS = 0;
     public static final int ERRNO_ERRORS = 1;
@@ -395,4 +397,41 @@ public class LintCliFlags {
     public void setExplainIssues(boolean explainText) {
         mExplainIssues = explainText;
     }
+
+    /**
+     * Returns the number of threads lint should visit files from
+     *
+     * @return the number of threads, 1 by default
+     */
+    public int getThreads() {
+        return mThreads;
+    }
+
+    /**
+     * Sets the number of threads lint should visit files from
+     *
+     * @param threads the number of threads
+     */
+    public void setThreads(int threads) {
+        mThreads = threads;
+    }
+
+    /**
+     * Returns the file caching the issues found in each file between runs, if any
+     *
+     * @return the cache file, or null
+     */
+    @Nullable
+    public File getResultCache() {
+        return mResultCache;
+    }
+
+    /**
+     * Sets the file caching the issues found in each file between runs
+     *
+     * @param resultCache the cache file, or null to check all the files
+     */
+    public void setResultCache(@Nullable File resultCache) {
+        mResultCache = resultCache;
+    }
 }
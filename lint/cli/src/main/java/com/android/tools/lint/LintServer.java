@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint;
+
+import static com.android.tools.lint.LintCliFlags.ERRNO_EXISTS;
+import static com.android.tools.lint.LintCliFlags.ERRNO_INVALID_ARGS;
+import static com.android.tools.lint.detector.api.TextFormat.RAW;
+import static com.android.tools.lint.detector.api.TextFormat.TEXT;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.lint.checks.ApiLookup;
+import com.android.tools.lint.checks.TypoLookup;
+import com.android.tools.lint.client.api.IssueRegistry;
+import com.android.tools.lint.client.api.LintClient;
+import com.android.tools.lint.detector.api.Context;
+import com.android.tools.lint.detector.api.Issue;
+import com.android.tools.lint.detector.api.Location;
+import com.android.tools.lint.detector.api.Severity;
+import com.android.tools.lint.detector.api.TextFormat;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+
+/**
+ * A long running lint process, analyzing the files sent by clients on a local socket and
+ * streaming back the warnings found.
+ * <p>
+ * When lint is run on just a few files, most of the time goes into starting up: loading the
+ * issue registry and the detector classes, the API and typo databases, the external
+ * annotations and the jars of the class path. The server keeps all of these warm between
+ * requests, such that a pre-commit hook, for example, only pays for the analysis itself.
+ * Class folders are read again for each request, since their class files may have been
+ * recompiled in between.
+ * <p>
+ * The protocol is line based, in UTF-8. A client sends the paths of the projects or of the
+ * individual files to check, one per line, followed by an empty line. The server replies with
+ * one line per warning as soon as it is found ({@code path:line: Severity: message [Id]}),
+ * then a summary line, and finally {@code exit <code>}, with the exit code a lint run on the
+ * same files would have returned. A request made of the single line {@code shutdown} stops
+ * the server.
+ * <p>
+ * The server only listens on the loopback interface, and analyzes one request at a time, with
+ * the flags it was started with. A client which does not send its whole request within
+ * {@link #READ_TIMEOUT_MS} is disconnected, such that it cannot hold up the other clients.
+ */
+public class LintServer {
+    /** The request stopping the server */
+    public static final String SHUTDOWN = "shutdown"; //$NON-NLS-1$
+
+    /** Time a client has to send its request, in milliseconds */
+    public static final int READ_TIMEOUT_MS = 10000;
+
+    private final LintCliFlags mFlags;
+    private final IssueRegistry mRegistry;
+    private final ServerSocket mSocket;
+    private int mReadTimeout = READ_TIMEOUT_MS;
+
+    /**
+     * The SDK lookups, which are only weakly referenced by their own caches: held here such
+     * that they survive between requests
+     */
+    @SuppressWarnings({"FieldCanBeLocal", "unused"})
+    private ApiLookup mApiLookup;
+    @SuppressWarnings({"FieldCanBeLocal", "unused"})
+    private TypoLookup mTypoLookup;
+
+    /**
+     * Creates a new server listening on the given local port
+     *
+     * @param flags the flags to analyze each request with
+     * @param registry the registry of the issues to check
+     * @param port the port to listen on, or 0 to pick any free port
+     * @throws IOException if the port cannot be bound
+     */
+    public LintServer(@NonNull LintCliFlags flags, @NonNull IssueRegistry registry, int port)
+            throws IOException {
+        mFlags = flags;
+        mRegistry = registry;
+        mSocket = new ServerSocket(port, 0, InetAddress.getByName(null));
+    }
+
+    /** Returns the port the server is listening on */
+    public int getPort() {
+        return mSocket.getLocalPort();
+    }
+
+    @VisibleForTesting
+    void setReadTimeout(int timeoutMs) {
+        mReadTimeout = timeoutMs;
+    }
+
+    /**
+     * Serves requests until a client asks the server to shut down, or until {@link #close()}
+     * is called
+     */
+    public void run() throws IOException {
+        warmUp();
+        try {
+            while (!mSocket.isClosed()) {
+                Socket socket;
+                try {
+                    socket = mSocket.accept();
+                } catch (IOException e) {
+                    if (mSocket.isClosed()) {
+                        break;
+                    }
+                    throw e;
+                }
+                try {
+                    if (!serve(socket)) {
+                        break;
+                    }
+                } catch (IOException e) {
+                    // The client went away, or was too slow to send its request; keep serving
+                    // the others
+                    log(e);
+                } finally {
+                    socket.close();
+                }
+            }
+        } finally {
+            close();
+            EcjClassPathCache.dispose();
+        }
+    }
+
+    /** Stops the server */
+    public void close() throws IOException {
+        mSocket.close();
+    }
+
+    /** Loads the SDK lookups ahead of the first request */
+    private void warmUp() {
+        LintClient client = new LintCliClient(mFlags, LintClient.CLIENT_CLI);
+        mApiLookup = ApiLookup.get(client);
+        mTypoLookup = TypoLookup.get(client, "en", null); //$NON-NLS-1$
+    }
+
+    /**
+     * Reads a request from the given socket and analyzes it
+     *
+     * @return false if the client asked the server to shut down
+     */
+    private boolean serve(@NonNull Socket socket) throws IOException {
+        // Only the request is read: the analysis itself is not limited
+        socket.setSoTimeout(mReadTimeout);
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(socket.getInputStream(), Charsets.UTF_8));
+        PrintWriter writer = new PrintWriter(
+                new OutputStreamWriter(socket.getOutputStream(), Charsets.UTF_8));
+
+        List<File> files = Lists.newArrayList();
+        while (true) {
+            String line = reader.readLine();
+            if (line == null || line.isEmpty()) {
+                break;
+            }
+            if (line.equals(SHUTDOWN) && files.isEmpty()) {
+                return false;
+            }
+            files.add(new File(line));
+        }
+
+        writer.println("exit " + analyze(files, writer));
+        writer.flush();
+        return true;
+    }
+
+    /**
+     * Analyzes the given files, writing the warnings found into the given writer
+     *
+     * @return the exit code of the analysis
+     */
+    int analyze(@NonNull List<File> files, @NonNull PrintWriter writer) {
+        if (files.isEmpty()) {
+            writer.println("No files to analyze.");
+            return ERRNO_INVALID_ARGS;
+        }
+        for (File file : files) {
+            if (!file.exists()) {
+                writer.println(String.format("%1$s does not exist.", file.getPath()));
+                return ERRNO_EXISTS;
+            }
+        }
+
+        ServerClient client = new ServerClient(mFlags, writer);
+        SummaryReporter reporter = new SummaryReporter(client, writer);
+        mFlags.getReporters().add(reporter);
+        try {
+            return client.run(mRegistry, files);
+        } catch (IOException e) {
+            log(e);
+            writer.println(e.toString());
+            return ERRNO_INVALID_ARGS;
+        } finally {
+            mFlags.getReporters().remove(reporter);
+        }
+    }
+
+    private static void log(@NonNull Throwable throwable) {
+        System.err.println("Lint server: " + throwable);
+    }
+
+    /**
+     * Client of a single request, writing the warnings to the connection as they are found,
+     * and leaving the caches shared by the requests open
+     */
+    private static class ServerClient extends LintCliClient {
+        private final PrintWriter mWriter;
+
+        ServerClient(@NonNull LintCliFlags flags, @NonNull PrintWriter writer) {
+            super(flags, LintClient.CLIENT_CLI);
+            mWriter = writer;
+        }
+
+        @Nullable
+        @Override
+        protected Warning addWarning(@NonNull Context context, @NonNull Issue issue,
+                @NonNull Severity severity, @NonNull Location location, @NonNull String message,
+                @NonNull TextFormat format) {
+            Warning warning = super.addWarning(context, issue, severity, location, message,
+                    format);
+            if (warning != null) {
+                write(warning);
+            }
+            return warning;
+        }
+
+        private void write(@NonNull Warning warning) {
+            StringBuilder sb = new StringBuilder(200);
+            if (warning.path != null) {
+                sb.append(warning.path).append(':');
+                if (warning.line >= 0) {
+                    sb.append(Integer.toString(warning.line + 1)).append(':');
+                }
+                sb.append(' ');
+            }
+            Severity severity = warning.severity;
+            if (severity == Severity.FATAL) {
+                severity = Severity.ERROR;
+            }
+            sb.append(severity.getDescription()).append(':').append(' ');
+            // Keep each warning on a single line
+            sb.append(RAW.convertTo(warning.message, TEXT).replace('\n', ' '));
+            sb.append(' ').append('[').append(warning.issue.getId()).append(']');
+            mWriter.println(sb.toString());
+            mWriter.flush();
+        }
+
+        @Override
+        protected void addProgressPrinter() {
+            // No progress output on the server console
+        }
+
+        @Override
+        protected void disposeCaches() {
+            // The jars are kept for the next request, and closed when the server stops
+            EcjClassPathCache.disposeClassFolders();
+        }
+    }
+
+    /** Reporter writing the summary line of a request, after the streamed warnings */
+    private static class SummaryReporter extends Reporter {
+        private final PrintWriter mWriter;
+
+        SummaryReporter(@NonNull LintCliClient client, @NonNull PrintWriter writer) {
+            super(client, null);
+            mWriter = writer;
+        }
+
+        @Override
+        public void write(int errorCount, int warningCount, List<Warning> issues) {
+            if (errorCount == 0 && warningCount == 0) {
+                mWriter.println("No issues found.");
+            } else {
+                mWriter.println(String.format("%1$d errors, %2$d warnings", errorCount,
+                        warningCount));
+            }
+        }
+    }
+}
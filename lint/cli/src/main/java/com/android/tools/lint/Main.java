@@ -95,6 +95,9 @@ public class Main {
     private static final String ARG_SOURCES    = "--sources";      //$NON-NLS-1$
     private static final String ARG_RESOURCES  = "--resources";    //$NON-NLS-1$
     private static final String ARG_LIBRARIES  = "--libraries";    //$NON-NLS-1$
+    private static final String ARG_THREADS    = "--threads";      //$NON-NLS-1$
+    private static final String ARG_CACHE      = "--cache";        //$NON-NLS-1$
+    private static final String ARG_SERVER     = "--server";       //$NON-NLS-1$
 
     private static final String ARG_NO_WARN_2  = "--nowarn";       //$NON-NLS-1$
     // GCC style flag names for options
@@ -219,6 +222,9 @@ public class Main {
         // Mapping from file path prefix to URL. Applies only to HTML reports
         String urlMap = null;
 
+        // Port to serve lint requests on, if running as a server
+        int serverPort = -1;
+
         List<File> files = new ArrayList<File>();
         for (int index = 0; index < args.length; index++) {
             String arg = args[index];
@@ -618,6 +624,47 @@ public class Main {
                     }
                     libraries.add(input);
                 }
+            } else if (arg.equals(ARG_CACHE)) {
+                if (index == args.length - 1) {
+                    System.err.println("Missing cache file name");
+                    System.exit(ERRNO_INVALID_ARGS);
+                }
+                File cache = getOutArgumentPath(args[++index]);
+                if (cache.isDirectory()) {
+                    System.err.println(cache + " is a directory");
+                    System.exit(ERRNO_INVALID_ARGS);
+                }
+                mFlags.setResultCache(cache);
+            } else if (arg.equals(ARG_SERVER)) {
+                if (index == args.length - 1) {
+                    System.err.println("Missing port number");
+                    System.exit(ERRNO_INVALID_ARGS);
+                }
+                String port = args[++index];
+                try {
+                    serverPort = Integer.parseInt(port);
+                } catch (NumberFormatException e) {
+                    serverPort = -1;
+                }
+                if (serverPort < 0 || serverPort > 0xFFFF) {
+                    System.err.println("Invalid port number: " + port);
+                    System.exit(ERRNO_INVALID_ARGS);
+                }
+            } else if (arg.equals(ARG_THREADS)) {
+                if (index == args.length - 1) {
+                    System.err.println("Missing number of threads");
+                    System.exit(ERRNO_INVALID_ARGS);
+                }
+                String threads = args[++index];
+                try {
+                    mFlags.setThreads(Integer.parseInt(threads));
+                } catch (NumberFormatException e) {
+                    mFlags.setThreads(0);
+                }
+                if (mFlags.getThreads() < 1) {
+                    System.err.println("Invalid number of threads: " + threads);
+                    System.exit(ERRNO_INVALID_ARGS);
+                }
             } else if (arg.startsWith("--")) {
                 System.err.println("Invalid argument " + arg + "\n");
                 printUsage(System.err);
@@ -634,6 +681,25 @@ public class Main {
             }
         }
 
+        if (serverPort != -1) {
+            if (!files.isEmpty()) {
+                System.err.println(String.format(
+                        "The %1$s argument cannot be combined with files to analyze",
+                        ARG_SERVER));
+                System.exit(ERRNO_INVALID_ARGS);
+            }
+            try {
+                LintServer server = new LintServer(mFlags, new BuiltinIssueRegistry(),
+                        serverPort);
+                System.out.println("Lint server listening on port " + server.getPort());
+                server.run();
+                System.exit(ERRNO_SUCCESS);
+            } catch (IOException e) {
+                log(e, null);
+                System.exit(ERRNO_INVALID_ARGS);
+            }
+        }
+
         if (files.isEmpty()) {
             System.err.println("No files to analyze.");
             System.exit(ERRNO_INVALID_ARGS);
@@ -988,6 +1054,16 @@ public class Main {
             ARG_EXIT_CODE, "Set the exit code to " + ERRNO_ERRORS + " if errors are found.",
             ARG_SHOW, "List available issues along with full explanations.",
             ARG_SHOW + " <ids>", "Show full explanations for the given list of issue id's.",
+            ARG_THREADS + " <count>", "Visit source, resource and class files from the given " +
+                "number of threads. Only the checks which support it run concurrently; the " +
+                "output is the same as with a single thread.",
+            ARG_CACHE + " <filename>", "Cache the issues found in each file in the given " +
+                "file, and only check the files which changed since the previous run.",
+            ARG_SERVER + " <port>", "Instead of analyzing files, keep running and analyze " +
+                "the files sent on the given local port, one path per line followed by an " +
+                "empty line. Each warning is sent back as soon as it is found; the issue " +
+                "registry and the SDK databases stay loaded between requests. 0 picks a " +
+                "free port.",
 
             "", "\nEnabled Checks:",
             ARG_DISABLE + " <list>", "Disable the list of categories or " +
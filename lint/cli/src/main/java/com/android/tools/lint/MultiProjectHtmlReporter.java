@@ -52,23 +52,56 @@ public class MultiProjectHtmlReporter extends HtmlReporter {
 
     @Override
     public void write(int errorCount, int warningCount, List<Warning> allIssues) throws IOException {
+        Closer stores = Closer.create();
+        try {
+            write(errorCount, warningCount, allIssues, stores);
+        } catch (Throwable e) {
+            throw stores.rethrow(e, IOException.class);
+        } finally {
+            stores.close();
+        }
+    }
+
+    private void write(int errorCount, int warningCount, List<Warning> allIssues,
+            Closer stores) throws IOException {
+        // Split the warnings by project in a single pass. When the warnings were spilled to
+        // disk, they may not all fit in memory, so the warnings of each project are spilled
+        // to a store of their own instead, still in sorted order.
+        boolean spilled = allIssues instanceof WarningStore.WarningList;
+        Map<Project, int[]> projectToCounts = new HashMap<Project, int[]>();
         Map<Project, List<Warning>> projectToWarnings = new HashMap<Project, List<Warning>>();
+        Map<Project, WarningStore> projectToStore = new HashMap<Project, WarningStore>();
         for (Warning warning : allIssues) {
-            List<Warning> list = projectToWarnings.get(warning.project);
-            if (list == null) {
-                list = new ArrayList<Warning>();
-                projectToWarnings.put(warning.project, list);
+            int[] counts = projectToCounts.get(warning.project);
+            if (counts == null) {
+                counts = new int[3];
+                projectToCounts.put(warning.project, counts);
+                if (spilled) {
+                    projectToStore.put(warning.project,
+                            stores.register(new WarningStore(mClient)));
+                } else {
+                    projectToWarnings.put(warning.project, new ArrayList<Warning>());
+                }
+            }
+            if (spilled) {
+                projectToStore.get(warning.project).append(warning);
+            } else {
+                projectToWarnings.get(warning.project).add(warning);
+            }
+            counts[0]++;
+            if (warning.severity == Severity.ERROR || warning.severity == Severity.FATAL) {
+                counts[1]++;
+            } else if (warning.severity == Severity.WARNING) {
+                counts[2]++;
             }
-            list.add(warning);
         }
 
-
         // Set of unique file names: lowercase names to avoid case conflicts in web environment
         Set<String> unique = Sets.newHashSet();
         unique.add(INDEX_NAME.toLowerCase(Locale.US));
         List<ProjectEntry> projects = Lists.newArrayList();
 
-        for (Project project : projectToWarnings.keySet()) {
+        for (Project project : projectToCounts.keySet()) {
             // TODO: Can I get the project name from the Android manifest file instead?
             String projectName = project.getName();
 
@@ -103,16 +136,12 @@ public class MultiProjectHtmlReporter extends HtmlReporter {
             reporter.setSimpleFormat(mSimpleFormat);
             reporter.setUrlMap(mUrlMap);
 
-            List<Warning> issues = projectToWarnings.get(project);
-            int projectErrorCount = 0;
-            int projectWarningCount = 0;
-            for (Warning warning: issues) {
-                if (warning.severity == Severity.ERROR || warning.severity == Severity.FATAL) {
-                    projectErrorCount++;
-                } else if (warning.severity == Severity.WARNING) {
-                    projectWarningCount++;
-                }
-            }
+            int[] counts = projectToCounts.get(project);
+            int projectErrorCount = counts[1];
+            int projectWarningCount = counts[2];
+            List<Warning> issues = spilled
+                    ? projectToStore.get(project).getWarnings(Collections.<Warning>emptyList())
+                    : projectToWarnings.get(project);
 
             String prefix = project.getReferenceDir().getPath();
             String path = project.getDir().getPath();
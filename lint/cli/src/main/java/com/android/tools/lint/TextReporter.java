@@ -83,7 +83,7 @@ public class TextReporter extends Reporter {
     public void write(int errorCount, int warningCount, List<Warning> issues) throws IOException {
         boolean abbreviate = !mFlags.isShowEverything();
 
-        StringBuilder output = new StringBuilder(issues.size() * 200);
+        StringBuilder output = new StringBuilder(1000);
         if (issues.isEmpty()) {
             if (mDisplayEmpty) {
                 mWriter.write("No issues found.");
@@ -216,6 +216,10 @@ public class TextReporter extends Reporter {
                     output.append(Joiner.on(", ").join(names));
                     output.append('\n');
                 }
+
+                // Write out each warning rather than buffering the whole report
+                mWriter.write(output.toString());
+                output.setLength(0);
             }
             explainIssue(output, lastIssue);
 
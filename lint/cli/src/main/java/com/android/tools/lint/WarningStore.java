@@ -0,0 +1,513 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.lint.detector.api.DefaultPosition;
+import com.android.tools.lint.detector.api.Issue;
+import com.android.tools.lint.detector.api.Location;
+import com.android.tools.lint.detector.api.Position;
+import com.android.tools.lint.detector.api.Project;
+import com.android.tools.lint.detector.api.Severity;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Closeables;
+import com.google.common.io.CountingOutputStream;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.AbstractSequentialList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Storage for the warnings of a lint run, which bounds the memory they use however many
+ * warnings are found.
+ * <p>
+ * {@link LintCliClient} keeps warnings in memory until it has {@link #RUN_SIZE} of them, and
+ * then hands them to {@link #spill(List)}, which sorts them and appends them to a temporary
+ * file as a sorted run. {@link #getWarnings(List)} then merges the runs, reading one warning
+ * at a time from each, such that the reporters see all the warnings in order without them
+ * ever being all in memory.
+ * <p>
+ * Warnings read back do not hold on to their file contents either: these are read again,
+ * for the warnings which had them, as the warnings are iterated. Variant specific warnings
+ * are only created by the Gradle client, which does not spill warnings.
+ */
+class WarningStore implements Closeable {
+    /** Number of warnings kept in memory before they are spilled to disk */
+    static final int RUN_SIZE = 10000;
+
+    /**
+     * Thrown by the lists of {@link #getWarnings(List)} when the spilled warnings cannot be
+     * read back. The reporters only see a {@link List}, which cannot throw an
+     * {@link IOException}, so {@link LintCliClient} unwraps the cause once they return.
+     */
+    static class ReadException extends RuntimeException {
+        ReadException(@NonNull IOException cause) {
+            super(cause);
+        }
+
+        @NonNull
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+
+    private final LintCliClient mClient;
+    private final File mFile;
+    private final CountingOutputStream mCounter;
+    private final DataOutputStream mOut;
+
+    /** The offsets in {@link #mFile} of the sorted runs, and their number of warnings */
+    private final List<Long> mRunOffsets = Lists.newArrayList();
+    private final List<Integer> mRunSizes = Lists.newArrayList();
+    private int mSize;
+    /** Whether the last run is still open for {@link #append(Warning)} */
+    private boolean mAppending;
+
+    /** The issues and projects of the spilled warnings */
+    private final Map<String, Issue> mIssues = Maps.newHashMap();
+    private final List<Project> mProjects = Lists.newArrayList();
+    private final Map<Project, Integer> mProjectIndices = Maps.newIdentityHashMap();
+
+    /** Streams opened to read the runs back, closed with the store */
+    private final List<Closeable> mReaders = Lists.newArrayList();
+
+    WarningStore(@NonNull LintCliClient client) throws IOException {
+        mClient = client;
+        mFile = File.createTempFile("lint-warnings", ".bin"); //$NON-NLS-1$ //$NON-NLS-2$
+        mCounter = new CountingOutputStream(
+                new BufferedOutputStream(new FileOutputStream(mFile)));
+        mOut = new DataOutputStream(mCounter);
+    }
+
+    /**
+     * Sorts the given warnings and writes them to disk as a new run, and then clears the list.
+     * If writing fails, the list is left untouched and the runs spilled before remain readable.
+     */
+    void spill(@NonNull List<Warning> warnings) throws IOException {
+        if (warnings.isEmpty()) {
+            return;
+        }
+        Collections.sort(warnings);
+        long offset = mCounter.getCount();
+        for (Warning warning : warnings) {
+            write(warning);
+        }
+        mOut.flush();
+
+        mRunOffsets.add(offset);
+        mRunSizes.add(warnings.size());
+        mSize += warnings.size();
+        mAppending = false;
+        warnings.clear();
+    }
+
+    /**
+     * Writes a warning to disk at the end of the last run. The warnings must be appended in
+     * sorted order, such as the warnings of one project taken from the sorted warnings of
+     * another store.
+     */
+    void append(@NonNull Warning warning) throws IOException {
+        if (!mAppending) {
+            mRunOffsets.add(mCounter.getCount());
+            mRunSizes.add(0);
+            mAppending = true;
+        }
+        write(warning);
+        int last = mRunSizes.size() - 1;
+        mRunSizes.set(last, mRunSizes.get(last) + 1);
+        mSize++;
+    }
+
+    /**
+     * Returns all the warnings in sorted order: the spilled ones, merged with the given warnings
+     * still in memory.
+     * <p>
+     * The returned list can be iterated several times, but only forwards; it reads the
+     * spilled warnings from disk as it goes, and throws a {@link ReadException} if that fails.
+     */
+    @NonNull
+    List<Warning> getWarnings(@NonNull final List<Warning> inMemory) throws IOException {
+        mOut.flush();
+        Collections.sort(inMemory);
+        return new WarningList(new Iterable<Warning>() {
+            @Override
+            public Iterator<Warning> iterator() {
+                try {
+                    return new MergingIterator(inMemory);
+                } catch (IOException e) {
+                    throw new ReadException(e);
+                }
+            }
+        }, mSize + inMemory.size());
+    }
+
+    @VisibleForTesting
+    @NonNull
+    File getFile() {
+        return mFile;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Closeable reader : mReaders) {
+            Closeables.close(reader, true);
+        }
+        mReaders.clear();
+        Closeables.close(mOut, true);
+        //noinspection ResultOfMethodCallIgnored
+        mFile.delete();
+    }
+
+    // ---- Serialization ----
+
+    private void write(@NonNull Warning warning) throws IOException {
+        DataOutputStream out = mOut;
+        Issue issue = warning.issue;
+        mIssues.put(issue.getId(), issue);
+        out.writeUTF(issue.getId());
+        writeString(out, warning.message);
+        out.writeUTF(warning.severity.name());
+
+        int projectIndex = -1;
+        if (warning.project != null) {
+            Integer index = mProjectIndices.get(warning.project);
+            if (index == null) {
+                index = mProjects.size();
+                mProjects.add(warning.project);
+                mProjectIndices.put(warning.project, index);
+            }
+            projectIndex = index;
+        }
+        out.writeInt(projectIndex);
+
+        writeNullableString(out, warning.path);
+        out.writeInt(warning.line);
+        out.writeInt(warning.offset);
+        writeNullableString(out, warning.errorLine);
+        out.writeBoolean(warning.fileContents != null);
+        writeLocation(out, warning.location);
+    }
+
+    @NonNull
+    private Warning read(@NonNull DataInputStream in) throws IOException {
+        Issue issue = mIssues.get(in.readUTF());
+        String message = readString(in);
+        Severity severity = Severity.valueOf(in.readUTF());
+        int projectIndex = in.readInt();
+        Project project = projectIndex != -1 ? mProjects.get(projectIndex) : null;
+
+        Warning warning = new Warning(issue, message, severity, project);
+        warning.path = readNullableString(in);
+        warning.line = in.readInt();
+        warning.offset = in.readInt();
+        warning.errorLine = readNullableString(in);
+        boolean hasContents = in.readBoolean();
+        warning.location = readLocation(in);
+        if (warning.location != null) {
+            warning.file = warning.location.getFile();
+            if (hasContents) {
+                warning.fileContents = getContents(warning.file);
+            }
+        }
+        return warning;
+    }
+
+    private static void writeLocation(@NonNull DataOutputStream out,
+            @Nullable Location location) throws IOException {
+        out.writeBoolean(location != null);
+        if (location == null) {
+            return;
+        }
+        writeString(out, location.getFile().getPath());
+        writePosition(out, location.getStart());
+        writePosition(out, location.getEnd());
+        writeNullableString(out, location.getMessage());
+        writeLocation(out, location.getSecondary());
+    }
+
+    @Nullable
+    private static Location readLocation(@NonNull DataInputStream in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        File file = new File(readString(in));
+        Position start = readPosition(in);
+        Position end = readPosition(in);
+        Location location = start != null
+                ? Location.create(file, start, end) : Location.create(file);
+        String message = readNullableString(in);
+        if (message != null) {
+            location.setMessage(message);
+        }
+        location.setSecondary(readLocation(in));
+        return location;
+    }
+
+    private static void writePosition(@NonNull DataOutputStream out,
+            @Nullable Position position) throws IOException {
+        out.writeBoolean(position != null);
+        if (position != null) {
+            out.writeInt(position.getLine());
+            out.writeInt(position.getColumn());
+            out.writeInt(position.getOffset());
+        }
+    }
+
+    @Nullable
+    private static Position readPosition(@NonNull DataInputStream in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        return new DefaultPosition(in.readInt(), in.readInt(), in.readInt());
+    }
+
+    private static void writeString(@NonNull DataOutputStream out, @NonNull String string)
+            throws IOException {
+        // Not writeUTF: messages and source lines are not limited to 64K
+        byte[] bytes = string.getBytes(Charsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    @NonNull
+    private static String readString(@NonNull DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, Charsets.UTF_8);
+    }
+
+    private static void writeNullableString(@NonNull DataOutputStream out,
+            @Nullable String string) throws IOException {
+        out.writeBoolean(string != null);
+        if (string != null) {
+            writeString(out, string);
+        }
+    }
+
+    @Nullable
+    private static String readNullableString(@NonNull DataInputStream in) throws IOException {
+        return in.readBoolean() ? readString(in) : null;
+    }
+
+    /** The file whose contents were read last, since sorted warnings come grouped by file */
+    private File mContentsFile;
+    private String mContents;
+
+    @NonNull
+    private String getContents(@NonNull File file) {
+        if (!file.equals(mContentsFile)) {
+            mContents = mClient.readFile(file);
+            mContentsFile = file;
+        }
+        return mContents;
+    }
+
+    // ---- Reading back ----
+
+    /** Reads the warnings of a single spilled run */
+    private class RunReader {
+        private final int mIndex;
+        private final DataInputStream mIn;
+        private int mRemaining;
+        private Warning mNext;
+
+        RunReader(int index) throws IOException {
+            mIndex = index;
+            FileInputStream fis = new FileInputStream(mFile);
+            fis.getChannel().position(mRunOffsets.get(index));
+            mIn = new DataInputStream(new BufferedInputStream(fis));
+            mReaders.add(mIn);
+            mRemaining = mRunSizes.get(index);
+            advance();
+        }
+
+        /** Reads the next warning of the run, or closes the run when done */
+        void advance() throws IOException {
+            if (mRemaining == 0) {
+                mNext = null;
+                mReaders.remove(mIn);
+                Closeables.close(mIn, true);
+                return;
+            }
+            mRemaining--;
+            mNext = read(mIn);
+        }
+    }
+
+    /** Merges the sorted spilled runs and the sorted warnings still in memory */
+    private class MergingIterator implements Iterator<Warning> {
+        private final PriorityQueue<RunReader> mQueue;
+        private final List<Warning> mInMemory;
+        private int mInMemoryIndex;
+
+        MergingIterator(@NonNull List<Warning> inMemory) throws IOException {
+            mInMemory = inMemory;
+            mQueue = new PriorityQueue<RunReader>(Math.max(1, mRunOffsets.size()),
+                    new Comparator<RunReader>() {
+                        @Override
+                        public int compare(RunReader reader1, RunReader reader2) {
+                            int delta = reader1.mNext.compareTo(reader2.mNext);
+                            return delta != 0 ? delta : reader1.mIndex - reader2.mIndex;
+                        }
+                    });
+            for (int i = 0; i < mRunOffsets.size(); i++) {
+                RunReader reader = new RunReader(i);
+                if (reader.mNext != null) {
+                    mQueue.add(reader);
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !mQueue.isEmpty() || mInMemoryIndex < mInMemory.size();
+        }
+
+        @Override
+        public Warning next() {
+            RunReader reader = mQueue.peek();
+            Warning inMemory = mInMemoryIndex < mInMemory.size()
+                    ? mInMemory.get(mInMemoryIndex) : null;
+            if (reader == null) {
+                if (inMemory == null) {
+                    throw new NoSuchElementException();
+                }
+                mInMemoryIndex++;
+                return inMemory;
+            }
+            if (inMemory != null && inMemory.compareTo(reader.mNext) < 0) {
+                mInMemoryIndex++;
+                return inMemory;
+            }
+
+            mQueue.poll();
+            Warning next = reader.mNext;
+            try {
+                reader.advance();
+            } catch (IOException e) {
+                throw new ReadException(e);
+            }
+            if (reader.mNext != null) {
+                mQueue.add(reader);
+            }
+            return next;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * A read-only list which can only be iterated forwards, such as the merged warnings of a
+     * {@link WarningStore}. This lets reporters, which only iterate over the warnings, process
+     * warnings that are not all in memory.
+     */
+    static class WarningList extends AbstractSequentialList<Warning> {
+        private final Iterable<Warning> mWarnings;
+        private final int mSize;
+
+        WarningList(@NonNull Iterable<Warning> warnings, int size) {
+            mWarnings = warnings;
+            mSize = size;
+        }
+
+        @Override
+        public int size() {
+            return mSize;
+        }
+
+        @NonNull
+        @Override
+        public ListIterator<Warning> listIterator(final int index) {
+            final Iterator<Warning> iterator = mWarnings.iterator();
+            for (int i = 0; i < index; i++) {
+                iterator.next();
+            }
+            return new ListIterator<Warning>() {
+                private int mIndex = index;
+
+                @Override
+                public boolean hasNext() {
+                    return iterator.hasNext();
+                }
+
+                @Override
+                public Warning next() {
+                    mIndex++;
+                    return iterator.next();
+                }
+
+                @Override
+                public boolean hasPrevious() {
+                    return mIndex > 0;
+                }
+
+                @Override
+                public Warning previous() {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public int nextIndex() {
+                    return mIndex;
+                }
+
+                @Override
+                public int previousIndex() {
+                    return mIndex - 1;
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public void set(Warning warning) {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public void add(Warning warning) {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+    }
+}
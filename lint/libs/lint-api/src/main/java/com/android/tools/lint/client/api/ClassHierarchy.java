@@ -0,0 +1,364 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint.client.api;
+
+import static org.objectweb.asm.Opcodes.ASM5;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.tree.ClassNode;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * An index of the classes scanned by the class file detectors of a project: the super class
+ * and interfaces of each class, and the class entry it was read from.
+ * <p>
+ * The index is built when the driver starts checking the class files of a project, by skimming
+ * the headers of all the classes, in parallel when the driver has worker threads. Lookups of
+ * super classes then no longer go through the super class maps of the project and of each of
+ * its libraries, the ancestors of each class are computed once, and {@link ClassNode}s of
+ * classes found in the scanned jars and class folders are parsed from the bytes already read,
+ * and kept in a size bounded cache.
+ * <p>
+ * The index is safe to use from several threads.
+ */
+class ClassHierarchy {
+    /** Maximum number of parsed class nodes kept */
+    @VisibleForTesting
+    static final int MAX_CACHED_NODES = 500;
+
+    /** Minimum number of classes indexed by each task */
+    private static final int MIN_TASK_SIZE = 256;
+
+    private static final String JAVA_LANG_OBJECT = "java/lang/Object"; //$NON-NLS-1$
+
+    private final LintClient mClient;
+    private final Map<String, ClassEntry> mEntries;
+    private final Map<String, String> mSuperClasses;
+    private final Map<String, String[]> mInterfaces;
+
+    /** The ancestors of the classes looked up so far */
+    private final ConcurrentMap<String, Ancestors> mAncestors =
+            new ConcurrentHashMap<String, Ancestors>();
+
+    /** Recently used class nodes, keyed by ASM flags and class name */
+    private final Map<String, ClassNode> mNodes =
+            new LinkedHashMap<String, ClassNode>(64, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, ClassNode> eldest) {
+                    return size() > MAX_CACHED_NODES;
+                }
+            };
+
+    private ClassHierarchy(@NonNull LintClient client, @NonNull Index index) {
+        mClient = client;
+        mEntries = index.entries;
+        mSuperClasses = index.superClasses;
+        mInterfaces = index.interfaces;
+    }
+
+    /**
+     * Indexes the given classes. When a class is found in several entries, the last one wins,
+     * like in the super class map of a project.
+     *
+     * @param client the client to log broken class files to
+     * @param executor the executor to index the classes from, or null to index them from the
+     *            calling thread
+     * @param parallelism the number of tasks to split the indexing into
+     * @param entries the lists of classes to index, in increasing order of precedence
+     * @return the index
+     */
+    @NonNull
+    static ClassHierarchy create(
+            @NonNull final LintClient client,
+            @Nullable ExecutorService executor,
+            int parallelism,
+            @NonNull List<List<ClassEntry>> entries) {
+        List<ClassEntry> all = Lists.newArrayList();
+        for (List<ClassEntry> list : entries) {
+            all.addAll(list);
+        }
+
+        int taskSize = Math.max(MIN_TASK_SIZE, (all.size() + parallelism - 1) / parallelism);
+        if (executor == null || all.size() <= taskSize) {
+            Index index = new Index(all.size());
+            index.add(client, all);
+            return new ClassHierarchy(client, index);
+        }
+
+        List<Future<Index>> futures = Lists.newArrayList();
+        for (int start = 0; start < all.size(); start += taskSize) {
+            final List<ClassEntry> task = all.subList(start,
+                    Math.min(all.size(), start + taskSize));
+            futures.add(executor.submit(new Callable<Index>() {
+                @Override
+                public Index call() throws Exception {
+                    Index index = new Index(task.size());
+                    index.add(client, task);
+                    return index;
+                }
+            }));
+        }
+
+        // Merge in order, such that later entries still override earlier ones
+        Index merged = new Index(all.size());
+        for (Future<Index> future : futures) {
+            try {
+                Index index = future.get();
+                merged.interfaces.keySet().removeAll(index.superClasses.keySet());
+                merged.entries.putAll(index.entries);
+                merged.superClasses.putAll(index.superClasses);
+                merged.interfaces.putAll(index.interfaces);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                client.log(e.getCause(), null);
+            }
+        }
+        return new ClassHierarchy(client, merged);
+    }
+
+    /** Returns true if the given class is in the index */
+    boolean contains(@NonNull String name) {
+        return mSuperClasses.containsKey(name);
+    }
+
+    /**
+     * Returns the super class of the given class, or null if the class is not in the index or
+     * directly extends {@code java/lang/Object}
+     */
+    @Nullable
+    String getSuperClass(@NonNull String name) {
+        return mSuperClasses.get(name);
+    }
+
+    /**
+     * Returns whether the given class extends the given super class, or null if this is not
+     * known because some of the ancestors of the class are not in the index
+     */
+    @Nullable
+    Boolean isSubclassOf(@NonNull String name, @NonNull String superClassName) {
+        Ancestors ancestors = getAncestors(name);
+        if (ancestors.superClasses.contains(superClassName)) {
+            return Boolean.TRUE;
+        }
+        return ancestors.superClassesComplete ? Boolean.FALSE : null;
+    }
+
+    /**
+     * Returns whether the given class implements the given interface, directly or through its
+     * super classes or super interfaces, or null if this is not known because some of the
+     * ancestors of the class are not in the index
+     */
+    @Nullable
+    Boolean implementsInterface(@NonNull String name, @NonNull String interfaceName) {
+        Ancestors ancestors = getAncestors(name);
+        if (ancestors.interfaces.contains(interfaceName)) {
+            return Boolean.TRUE;
+        }
+        return ancestors.superClassesComplete && ancestors.interfacesComplete
+                ? Boolean.FALSE : null;
+    }
+
+    @NonNull
+    private Ancestors getAncestors(@NonNull String name) {
+        Ancestors ancestors = mAncestors.get(name);
+        if (ancestors == null) {
+            ancestors = computeAncestors(name);
+            Ancestors previous = mAncestors.putIfAbsent(name, ancestors);
+            if (previous != null) {
+                ancestors = previous;
+            }
+        }
+        return ancestors;
+    }
+
+    @NonNull
+    private Ancestors computeAncestors(@NonNull String name) {
+        Set<String> superClasses = Sets.newHashSet();
+        Set<String> interfaces = Sets.newHashSet();
+        boolean superClassesComplete = true;
+        boolean interfacesComplete = true;
+
+        // First the super class chain, then the interfaces found along the way
+        Deque<String> pending = new ArrayDeque<String>();
+        Set<String> seen = Sets.newHashSet();
+        String current = name;
+        while (current != null) {
+            if (!seen.add(current)) {
+                break; // Broken class path with a cycle
+            }
+            String[] implemented = mInterfaces.get(current);
+            if (implemented != null) {
+                Collections.addAll(pending, implemented);
+            }
+            if (JAVA_LANG_OBJECT.equals(current)) {
+                break;
+            }
+            String superClass = mSuperClasses.get(current);
+            if (superClass == null && !mSuperClasses.containsKey(current)) {
+                superClassesComplete = false;
+                break;
+            }
+            current = superClass != null ? superClass : JAVA_LANG_OBJECT;
+            superClasses.add(current);
+        }
+
+        while (!pending.isEmpty()) {
+            String itf = pending.removeFirst();
+            if (!interfaces.add(itf)) {
+                continue;
+            }
+            String[] implemented = mInterfaces.get(itf);
+            if (implemented != null) {
+                Collections.addAll(pending, implemented);
+            } else if (!mSuperClasses.containsKey(itf)) {
+                interfacesComplete = false;
+            }
+        }
+
+        return new Ancestors(superClasses, interfaces, superClassesComplete,
+                interfacesComplete);
+    }
+
+    /**
+     * Returns the class node of the given class, if it is in the index, or null
+     *
+     * @param name the internal name of the class
+     * @param flags the ASM flags to parse the class with, if it is not cached
+     * @return the class node, or null
+     */
+    @Nullable
+    ClassNode getClassNode(@NonNull String name, int flags) {
+        synchronized (mNodes) {
+            ClassNode node = mNodes.get(getNodeKey(name, flags));
+            if (node == null && flags != 0) {
+                node = mNodes.get(getNodeKey(name, 0));
+            }
+            if (node != null) {
+                return node;
+            }
+        }
+
+        ClassEntry entry = mEntries.get(name);
+        if (entry == null) {
+            return null;
+        }
+        ClassNode node = new ClassNode();
+        try {
+            new ClassReader(entry.bytes).accept(node, flags);
+        } catch (Throwable t) {
+            mClient.log(null, "Error processing %1$s: broken class file?", entry.path());
+            return null;
+        }
+        synchronized (mNodes) {
+            mNodes.put(getNodeKey(name, flags), node);
+        }
+        return node;
+    }
+
+    /** Caches a class node parsed with no ASM flags, as the driver does for the classes scanned */
+    void putClassNode(@NonNull ClassNode node) {
+        synchronized (mNodes) {
+            mNodes.put(getNodeKey(node.name, 0), node);
+        }
+    }
+
+    @NonNull
+    private static String getNodeKey(@NonNull String name, int flags) {
+        return flags == 0 ? name : Integer.toString(flags) + ':' + name;
+    }
+
+    /** The transitive super classes and interfaces of a class */
+    private static class Ancestors {
+        final Set<String> superClasses;
+        final Set<String> interfaces;
+        /** Whether all the super classes, and all the interfaces, were in the index */
+        final boolean superClassesComplete;
+        final boolean interfacesComplete;
+
+        Ancestors(@NonNull Set<String> superClasses, @NonNull Set<String> interfaces,
+                boolean superClassesComplete, boolean interfacesComplete) {
+            this.superClasses = superClasses;
+            this.interfaces = interfaces;
+            this.superClassesComplete = superClassesComplete;
+            this.interfacesComplete = interfacesComplete;
+        }
+    }
+
+    /** The index of a list of classes, built by a single task */
+    private static class Index extends ClassVisitor {
+        final Map<String, ClassEntry> entries;
+        /** Super classes; java/lang/Object is stored as null */
+        final Map<String, String> superClasses;
+        final Map<String, String[]> interfaces;
+        private ClassEntry mEntry;
+
+        Index(int size) {
+            super(ASM5);
+            entries = Maps.newHashMapWithExpectedSize(size);
+            superClasses = Maps.newHashMapWithExpectedSize(size);
+            interfaces = Maps.newHashMapWithExpectedSize(size);
+        }
+
+        void add(@NonNull LintClient client, @NonNull List<ClassEntry> classEntries) {
+            int flags = ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES;
+            for (ClassEntry entry : classEntries) {
+                mEntry = entry;
+                try {
+                    new ClassReader(entry.bytes).accept(this, flags);
+                } catch (Throwable t) {
+                    client.log(null, "Error processing %1$s: broken class file?", entry.path());
+                }
+            }
+            mEntry = null;
+        }
+
+        @Override
+        public void visit(int version, int access, String name, String signature,
+                String superName, String[] interfaceNames) {
+            entries.put(name, mEntry);
+            superClasses.put(name, JAVA_LANG_OBJECT.equals(superName) ? null : superName);
+            if (interfaceNames != null && interfaceNames.length > 0) {
+                interfaces.put(name, interfaceNames);
+            } else {
+                interfaces.remove(name);
+            }
+        }
+    }
+}
@@ -417,6 +417,17 @@ public abstract class JavaParser {
      */
     public abstract void runReadAction(@NonNull Runnable runnable);
 
+    /**
+     * Returns true if, once {@link #prepareJavaParse(List)} has been called, the files can be
+     * converted with {@link #parseJavaToPsi(JavaContext)} and their PSI visited from several
+     * threads at the same time. Lint only visits Java files in parallel when this is the case.
+     *
+     * @return true if this parser supports concurrent visits
+     */
+    public boolean isThreadSafe() {
+        return false;
+    }
+
     /**
      * A description of a type, such as a primitive int or the android.app.Activity class
      * @deprecated Use {@link PsiType} instead
@@ -29,9 +29,11 @@ import com.android.sdklib.repository.AndroidSdkHandler;
 import com.android.tools.lint.client.api.LintListener.EventType;
 import com.android.tools.lint.detector.api.*;
 import com.google.common.annotations.Beta;
+import com.google.common.base.Charsets;
 import com.google.common.base.Objects;
 import com.google.common.base.Splitter;
 import com.google.common.collect.*;
+import com.google.common.hash.Hashing;
 import com.intellij.psi.*;
 import lombok.ast.*;
 import org.objectweb.asm.ClassReader;
@@ -45,6 +47,12 @@ import java.io.IOException;
 import java.net.URL;
 import java.net.URLConnection;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -88,6 +96,32 @@ public class LintDriver {
     private Map<Object,Object> mProperties;
     /** Whether we need to look for legacy (old Lombok-based Java API) detectors */
     private boolean mRunCompatChecks = true;
+    /** Number of threads visiting files, see {@link #setParallelism(int)} */
+    private int mParallelism = 1;
+    /** Pool of threads visiting files, only set during {@link #analyze()} if parallel */
+    private ExecutorService mExecutor;
+    /** Index of the classes of the project whose class files are being checked, if any */
+    private ClassHierarchy mClassHierarchy;
+    /**
+     * Reports made while visiting a file from a worker thread, which are delivered to the
+     * client once all the files have been visited
+     */
+    private final ThreadLocal<List<PendingReport>> mPendingReports =
+            new ThreadLocal<List<PendingReport>>();
+    /** Cache of the issues found in individual files, see {@link #setResultCache} */
+    private LintResultCache mResultCache;
+    /** The result dependencies of each detector class, null if it cannot be cached */
+    private Map<Class<? extends Detector>, EnumSet<Scope>> mResultDependencies;
+    /** Signatures of the configuration of the projects checked, see {@link #getResultSignature} */
+    private Map<Project, String> mProjectSignatures;
+    /** Hashes of the files of each result dependency scope of the projects checked */
+    private Map<Project, Map<Scope, String>> mDependencyHashes;
+
+    /** Result dependency scopes supported by {@link #getDependencyHash(Project, Scope)} */
+    private static final EnumSet<Scope> CACHEABLE_DEPENDENCIES = EnumSet.of(
+            Scope.JAVA_FILE, Scope.JAVA_LIBRARIES, Scope.RESOURCE_FILE,
+            Scope.ALL_RESOURCE_FILES, Scope.RESOURCE_FOLDER, Scope.BINARY_RESOURCE_FILE,
+            Scope.MANIFEST);
 
     /**
      * Creates a new {@link LintDriver}
@@ -229,6 +263,54 @@ public class LintDriver {
         return null;
     }
 
+    /**
+     * Sets the number of threads used to visit the Java, resource and class files of each
+     * project. Only the detectors which return true from {@link Detector#isThreadSafe()} are
+     * run from several threads; the other detectors are still run from the calling thread,
+     * in the usual order. Java files are only visited in parallel if the {@link JavaParser}
+     * supports it, see {@link JavaParser#isThreadSafe()}.
+     * <p>
+     * Whatever the number of threads, the issues found are reported to the client from the
+     * calling thread, in the same order for each run.
+     *
+     * @param parallelism the number of threads, 1 to visit all the files from the calling thread
+     */
+    public void setParallelism(int parallelism) {
+        mParallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Returns the number of threads used to visit files, see {@link #setParallelism(int)}.
+     *
+     * @return the number of threads, at least 1
+     */
+    public int getParallelism() {
+        return mParallelism;
+    }
+
+    /**
+     * Sets the cache of the issues found in individual files. When set, the Java and resource
+     * files which have not changed since they were cached, along with everything the
+     * detectors checking them depend on (see {@link Detector#getResultDependencies()}), are
+     * not visited again: the issues cached for them are reported instead. The cache is
+     * updated with the files visited and saved at the end of {@link #analyze(LintRequest)}.
+     *
+     * @param cache the cache to use, or null to visit all the files
+     */
+    public void setResultCache(@Nullable LintResultCache cache) {
+        mResultCache = cache;
+    }
+
+    /**
+     * Returns the cache of the issues found in individual files, if any
+     *
+     * @return the cache, or null
+     */
+    @Nullable
+    public LintResultCache getResultCache() {
+        return mResultCache;
+    }
+
     /**
      * Sets whether lint should abbreviate output when appropriate.
      *
@@ -312,9 +394,16 @@ public class LintDriver {
     public void analyze(@NonNull LintRequest request) {
         try {
             mRequest = request;
+            if (mParallelism > 1) {
+                mExecutor = Executors.newFixedThreadPool(mParallelism);
+            }
             analyze();
         } finally {
             mRequest = null;
+            if (mExecutor != null) {
+                mExecutor.shutdownNow();
+                mExecutor = null;
+            }
         }
     }
 
@@ -360,6 +449,8 @@ public class LintDriver {
 
         for (Project project : projects) {
             mPhase = 1;
+            mProjectSignatures = null;
+            mDependencyHashes = null;
 
             Project main = mRequest.getMainProject(project);
 
@@ -379,6 +470,14 @@ public class LintDriver {
             runExtraPhases(project, main);
         }
 
+        if (mResultCache != null && !mCanceled) {
+            try {
+                mResultCache.save();
+            } catch (IOException e) {
+                mClient.log(e, "Could not save the lint result cache");
+            }
+        }
+
         fireEvent(mCanceled ? EventType.CANCELED : EventType.COMPLETED, null);
     }
 
@@ -1139,6 +1238,13 @@ public class LintDriver {
      */
     @Nullable
     public String getSuperClass(@NonNull String name) {
+        ClassHierarchy hierarchy = mClassHierarchy;
+        if (hierarchy != null) {
+            String superClass = hierarchy.getSuperClass(name);
+            if (superClass != null) {
+                return superClass;
+            }
+        }
         return mClient.getSuperClass(mCurrentProject, name);
     }
 
@@ -1163,6 +1269,14 @@ public class LintDriver {
             }
         }
 
+        ClassHierarchy hierarchy = mClassHierarchy;
+        if (hierarchy != null) {
+            Boolean isSub = hierarchy.isSubclassOf(classNode.name, superClassName);
+            if (isSub != null) {
+                return isSub;
+            }
+        }
+
         String className = classNode.name;
         while (className != null) {
             if (className.equals(superClassName)) {
@@ -1173,6 +1287,7 @@ public class LintDriver {
 
         return false;
     }
+
     @Nullable
     private static List<Detector> union(
             @Nullable List<Detector> list1,
@@ -1207,7 +1322,28 @@ public class LintDriver {
 
         List<File> libraries = project.getJavaLibraries(false);
         List<ClassEntry> libraryEntries = ClassEntry.fromClassPath(mClient, libraries, true);
+        List<ClassEntry> classEntries = readClassEntries(project, main);
+        mClassHierarchy = ClassHierarchy.create(mClient, mExecutor, mParallelism,
+                ImmutableList.of(libraryEntries, classEntries));
+        try {
+            // Actually run the detectors. Libraries should be called before the
+            // main classes.
+            runClassDetectors(Scope.JAVA_LIBRARIES, libraryEntries, project, main);
+
+            if (mCanceled) {
+                return;
+            }
+
+            runClassDetectors(Scope.CLASS_FILE, classEntries, project, main);
+            runClassDetectors(Scope.ALL_CLASS_FILES, classEntries, project, main);
+        } finally {
+            mClassHierarchy = null;
+        }
+    }
 
+    /** Reads the classes of the class folders of the given project */
+    @NonNull
+    private List<ClassEntry> readClassEntries(@NonNull Project project, @Nullable Project main) {
         List<File> classFolders = project.getJavaClassFolders();
         List<ClassEntry> classEntries;
         if (classFolders.isEmpty()) {
@@ -1223,17 +1359,7 @@ public class LintDriver {
         } else {
             classEntries = ClassEntry.fromClassPath(mClient, classFolders, true);
         }
-
-        // Actually run the detectors. Libraries should be called before the
-        // main classes.
-        runClassDetectors(Scope.JAVA_LIBRARIES, libraryEntries, project, main);
-
-        if (mCanceled) {
-            return;
-        }
-
-        runClassDetectors(Scope.CLASS_FILE, classEntries, project, main);
-        runClassDetectors(Scope.ALL_CLASS_FILES, classEntries, project, main);
+        return classEntries;
     }
 
     private void checkIndividualClassFiles(
@@ -1255,104 +1381,183 @@ public class LintDriver {
                 true);
         if (!entries.isEmpty()) {
             Collections.sort(entries);
-            runClassDetectors(Scope.CLASS_FILE, entries, project, main);
+            mClassHierarchy = ClassHierarchy.create(mClient, mExecutor, mParallelism,
+                    Collections.singletonList(entries));
+            try {
+                runClassDetectors(Scope.CLASS_FILE, entries, project, main);
+            } finally {
+                mClassHierarchy = null;
+            }
         }
     }
 
     /**
-     * Stack of {@link ClassNode} nodes for outer classes of the currently
-     * processed class, including that class itself. Populated by
-     * {@link #runClassDetectors(Scope, List, Project, Project)} and used by
+     * Stack of {@link ClassNode} nodes for outer classes of the class currently
+     * processed by this thread, including that class itself. Populated by
+     * {@link #visitClasses(Scope, List, Project, Project, AsmVisitor)} and used by
      * {@link #getOuterClassNode(ClassNode)}
      */
-    private Deque<ClassNode> mOuterClasses;
+    private final ThreadLocal<Deque<ClassNode>> mOuterClasses =
+            new ThreadLocal<Deque<ClassNode>>();
 
     private void runClassDetectors(Scope scope, List<ClassEntry> entries,
             Project project, Project main) {
         if (mScope.contains(scope)) {
             List<Detector> classDetectors = mScopeDetectors.get(scope);
             if (classDetectors != null && !classDetectors.isEmpty() && !entries.isEmpty()) {
-                AsmVisitor visitor = new AsmVisitor(mClient, classDetectors);
-
-                String sourceContents = null;
-                String sourceName = "";
-                mOuterClasses = new ArrayDeque<ClassNode>();
-                ClassEntry prev = null;
-                for (ClassEntry entry : entries) {
-                    if (prev != null && prev.compareTo(entry) == 0) {
-                        // Duplicate entries for some reason: ignore
-                        continue;
-                    }
-                    prev = entry;
+                List<Detector> parallelDetectors = Collections.emptyList();
+                if (mExecutor != null) {
+                    parallelDetectors = filterThreadSafe(classDetectors, true);
+                    classDetectors = filterThreadSafe(classDetectors, false);
+                }
 
-                    ClassReader reader;
-                    ClassNode classNode;
-                    try {
-                        reader = new ClassReader(entry.bytes);
-                        classNode = new ClassNode();
-                        reader.accept(classNode, 0 /* flags */);
-                    } catch (Throwable t) {
-                        mClient.log(null, "Error processing %1$s: broken class file?",
-                                entry.path());
-                        continue;
-                    }
+                if (!classDetectors.isEmpty()) {
+                    visitClasses(scope, entries, project, main,
+                            new AsmVisitor(mClient, classDetectors));
+                }
 
-                    ClassNode peek;
-                    while ((peek = mOuterClasses.peek()) != null) {
-                        if (classNode.name.startsWith(peek.name)) {
-                            break;
-                        } else {
-                            mOuterClasses.pop();
-                        }
-                    }
-                    mOuterClasses.push(classNode);
+                if (!parallelDetectors.isEmpty() && !mCanceled) {
+                    visitClassesInParallel(scope, entries, project, main, parallelDetectors);
+                }
+            }
+        }
+    }
 
-                    if (isSuppressed(null, classNode)) {
-                        // Class was annotated with suppress all -- no need to look any further
-                        continue;
-                    }
+    /**
+     * Visits the classes with thread safe detectors from the worker threads. Inner classes are
+     * visited by the same thread as their outer class, right after it, as when visiting from
+     * a single thread, such that {@link #getOuterClassNode(ClassNode)} works the same.
+     */
+    private void visitClassesInParallel(
+            @NonNull final Scope scope,
+            @NonNull List<ClassEntry> entries,
+            @NonNull final Project project,
+            @Nullable final Project main,
+            @NonNull final List<Detector> detectors) {
+        final List<List<ClassEntry>> groups = Lists.newArrayList();
+        String groupRoot = null;
+        int groupStart = 0;
+        for (int i = 0; i < entries.size(); i++) {
+            String root = getOuterClassPath(entries.get(i));
+            if (groupRoot != null && !groupRoot.equals(root)) {
+                groups.add(entries.subList(groupStart, i));
+                groupStart = i;
+            }
+            groupRoot = root;
+        }
+        groups.add(entries.subList(groupStart, entries.size()));
 
-                    if (sourceContents != null) {
-                        // Attempt to reuse the source buffer if initialized
-                        // This means making sure that the source files
-                        //    foo/bar/MyClass and foo/bar/MyClass$Bar
-                        //    and foo/bar/MyClass$3 and foo/bar/MyClass$3$1 have the same prefix.
-                        String newName = classNode.name;
-                        int newRootLength = newName.indexOf('$');
-                        if (newRootLength == -1) {
-                            newRootLength = newName.length();
-                        }
-                        int oldRootLength = sourceName.indexOf('$');
-                        if (oldRootLength == -1) {
-                            oldRootLength = sourceName.length();
-                        }
-                        if (newRootLength != oldRootLength ||
-                                !sourceName.regionMatches(0, newName, 0, newRootLength)) {
-                            sourceContents = null;
-                        }
-                    }
+        visitInParallel(groups.size(), null, new ParallelVisit<AsmVisitor>() {
+            @Override
+            AsmVisitor createVisitor() {
+                return new AsmVisitor(mClient, detectors);
+            }
 
-                    ClassContext context = new ClassContext(this, project, main,
-                            entry.file, entry.jarFile, entry.binDir, entry.bytes,
-                            classNode, scope == Scope.JAVA_LIBRARIES /*fromLibrary*/,
-                            sourceContents);
+            @Override
+            void visit(@NonNull AsmVisitor visitor, int index) {
+                visitClasses(scope, groups.get(index), project, main, visitor);
+            }
+        });
+    }
 
-                    try {
-                        visitor.runClassDetectors(context);
-                    } catch (Exception e) {
-                        mClient.log(e, null);
+    /** Returns the path of the top level class of the class of the given entry */
+    @NonNull
+    private static String getOuterClassPath(@NonNull ClassEntry entry) {
+        String path = entry.path();
+        int nameStart = Math.max(path.lastIndexOf('/'), path.lastIndexOf(File.separatorChar));
+        int end = path.indexOf('$', nameStart + 1);
+        if (end == -1) {
+            end = path.endsWith(DOT_CLASS) ? path.length() - DOT_CLASS.length() : path.length();
+        }
+        return path.substring(0, end);
+    }
+
+    private void visitClasses(Scope scope, List<ClassEntry> entries,
+            Project project, Project main, AsmVisitor visitor) {
+        Deque<ClassNode> outerClasses = new ArrayDeque<ClassNode>();
+        mOuterClasses.set(outerClasses);
+        try {
+            String sourceContents = null;
+            String sourceName = "";
+            ClassEntry prev = null;
+            for (ClassEntry entry : entries) {
+                if (prev != null && prev.compareTo(entry) == 0) {
+                    // Duplicate entries for some reason: ignore
+                    continue;
+                }
+                prev = entry;
+
+                ClassReader reader;
+                ClassNode classNode;
+                try {
+                    reader = new ClassReader(entry.bytes);
+                    classNode = new ClassNode();
+                    reader.accept(classNode, 0 /* flags */);
+                } catch (Throwable t) {
+                    mClient.log(null, "Error processing %1$s: broken class file?",
+                            entry.path());
+                    continue;
+                }
+
+                ClassNode peek;
+                while ((peek = outerClasses.peek()) != null) {
+                    if (classNode.name.startsWith(peek.name)) {
+                        break;
+                    } else {
+                        outerClasses.pop();
                     }
+                }
+                outerClasses.push(classNode);
+                ClassHierarchy hierarchy = mClassHierarchy;
+                if (hierarchy != null) {
+                    hierarchy.putClassNode(classNode);
+                }
 
-                    if (mCanceled) {
-                        return;
+                if (isSuppressed(null, classNode)) {
+                    // Class was annotated with suppress all -- no need to look any further
+                    continue;
+                }
+
+                if (sourceContents != null) {
+                    // Attempt to reuse the source buffer if initialized
+                    // This means making sure that the source files
+                    //    foo/bar/MyClass and foo/bar/MyClass$Bar
+                    //    and foo/bar/MyClass$3 and foo/bar/MyClass$3$1 have the same prefix.
+                    String newName = classNode.name;
+                    int newRootLength = newName.indexOf('$');
+                    if (newRootLength == -1) {
+                        newRootLength = newName.length();
+                    }
+                    int oldRootLength = sourceName.indexOf('$');
+                    if (oldRootLength == -1) {
+                        oldRootLength = sourceName.length();
+                    }
+                    if (newRootLength != oldRootLength ||
+                            !sourceName.regionMatches(0, newName, 0, newRootLength)) {
+                        sourceContents = null;
                     }
+                }
+
+                ClassContext context = new ClassContext(this, project, main,
+                        entry.file, entry.jarFile, entry.binDir, entry.bytes,
+                        classNode, scope == Scope.JAVA_LIBRARIES /*fromLibrary*/,
+                        sourceContents);
+
+                try {
+                    visitor.runClassDetectors(context);
+                } catch (Exception e) {
+                    mClient.log(e, null);
+                }
 
-                    sourceContents = context.getSourceContents(false/*read*/);
-                    sourceName = classNode.name;
+                if (mCanceled) {
+                    return;
                 }
 
-                mOuterClasses = null;
+                sourceContents = context.getSourceContents(false/*read*/);
+                sourceName = classNode.name;
             }
+        } finally {
+            mOuterClasses.remove();
         }
     }
 
@@ -1362,7 +1567,11 @@ public class LintDriver {
     public ClassNode getOuterClassNode(@NonNull ClassNode classNode) {
         String outerName = classNode.outerClass;
 
-        Iterator<ClassNode> iterator = mOuterClasses.iterator();
+        Deque<ClassNode> outerClasses = mOuterClasses.get();
+        if (outerClasses == null) {
+            return null;
+        }
+        Iterator<ClassNode> iterator = outerClasses.iterator();
         while (iterator.hasNext()) {
             ClassNode node = iterator.next();
             if (outerName != null) {
@@ -1374,6 +1583,12 @@ public class LintDriver {
             }
         }
 
+        // Not a class being visited by this thread, e.g. one returned by findClass
+        ClassHierarchy hierarchy = mClassHierarchy;
+        if (outerName != null && hierarchy != null) {
+            return hierarchy.getClassNode(outerName, 0);
+        }
+
         return null;
     }
 
@@ -1389,6 +1604,14 @@ public class LintDriver {
      */
     @Nullable
     public ClassNode findClass(@NonNull ClassContext context, @NonNull String type, int flags) {
+        ClassHierarchy hierarchy = mClassHierarchy;
+        if (hierarchy != null) {
+            ClassNode classNode = hierarchy.getClassNode(type, flags);
+            if (classNode != null) {
+                return classNode;
+            }
+        }
+
         String relative = type.replace('/', File.separatorChar) + DOT_CLASS;
         File classFile = findClassFile(context.getProject(), relative);
         if (classFile != null) {
@@ -1484,11 +1707,60 @@ public class LintDriver {
             }
         }
 
+        // The files whose cached issues were reported are only visited by the detectors
+        // which cannot be cached
+        Set<File> cached = filterCachedFiles(contexts, checks);
+        List<Detector> cachedScanners = scanners;
+        if (!cached.isEmpty()) {
+            if (getUncachedDetectors(checks).isEmpty()) {
+                contexts = filterCached(contexts, cached, false);
+                cached = Collections.emptySet();
+                if (contexts.isEmpty()) {
+                    mResultCache.stopRecording();
+                    return;
+                }
+            } else {
+                cachedScanners = getUncachedDetectors(scanners);
+            }
+        }
+
+        List<Detector> parallelScanners = Collections.emptyList();
+        List<Detector> parallelCachedScanners = Collections.emptyList();
+        if (mExecutor != null && javaParser.isThreadSafe()) {
+            parallelScanners = filterThreadSafe(scanners, true);
+            scanners = filterThreadSafe(scanners, false);
+            parallelCachedScanners = filterThreadSafe(cachedScanners, true);
+            cachedScanners = filterThreadSafe(cachedScanners, false);
+        }
+
         JavaPsiVisitor visitor = new JavaPsiVisitor(javaParser, scanners);
+        JavaPsiVisitor cachedVisitor = cachedScanners.size() == scanners.size() ? visitor
+                : new JavaPsiVisitor(javaParser, cachedScanners);
         visitor.prepare(contexts);
-        for (JavaContext context : contexts) {
-            fireEvent(EventType.SCANNING_FILE, context);
-            visitor.visitFile(context);
+        if (!scanners.isEmpty() || parallelScanners.isEmpty()) {
+            for (JavaContext context : contexts) {
+                fireEvent(EventType.SCANNING_FILE, context);
+                if (!cached.contains(context.file)) {
+                    visitor.visitFile(context);
+                } else if (!cachedScanners.isEmpty()) {
+                    cachedVisitor.visitFile(context);
+                }
+                if (mCanceled) {
+                    return;
+                }
+            }
+        }
+
+        if (!parallelScanners.isEmpty()) {
+            if (cached.isEmpty()) {
+                visitJavaFilesInParallel(parallelScanners, javaParser, contexts,
+                        scanners.isEmpty());
+            } else {
+                visitJavaFilesInParallel(parallelScanners, javaParser,
+                        filterCached(contexts, cached, false), scanners.isEmpty());
+                visitJavaFilesInParallel(parallelCachedScanners, javaParser,
+                        filterCached(contexts, cached, true), scanners.isEmpty());
+            }
             if (mCanceled) {
                 return;
             }
@@ -1533,11 +1805,19 @@ public class LintDriver {
 
 
                 JavaVisitor oldVisitor = new JavaVisitor(javaParser, filtered);
+                List<Detector> cachedFiltered = cached.isEmpty() ? filtered
+                        : getUncachedDetectors(filtered);
+                JavaVisitor cachedOldVisitor = cachedFiltered.size() == filtered.size()
+                        ? oldVisitor : new JavaVisitor(javaParser, cachedFiltered);
 
                 oldVisitor.prepare(contexts);
                 for (JavaContext context : contexts) {
                     fireEvent(EventType.SCANNING_FILE, context);
-                    oldVisitor.visitFile(context);
+                    if (!cached.contains(context.file)) {
+                        oldVisitor.visitFile(context);
+                    } else if (!cachedFiltered.isEmpty()) {
+                        cachedOldVisitor.visitFile(context);
+                    }
                     if (mCanceled) {
                         return;
                     }
@@ -1545,6 +1825,33 @@ public class LintDriver {
                 oldVisitor.dispose();
             }
         }
+
+        if (mResultCache != null) {
+            mResultCache.stopRecording();
+        }
+    }
+
+    /**
+     * Visits the Java files with thread safe detectors from the worker threads. The parser has
+     * already been prepared for these files by the sequential visitor.
+     */
+    private void visitJavaFilesInParallel(
+            @NonNull final List<Detector> scanners,
+            @NonNull final JavaParser javaParser,
+            @NonNull final List<JavaContext> contexts,
+            boolean fireEvents) {
+        visitInParallel(contexts.size(), fireEvents ? contexts : null,
+                new ParallelVisit<JavaPsiVisitor>() {
+            @Override
+            JavaPsiVisitor createVisitor() {
+                return new JavaPsiVisitor(javaParser, scanners);
+            }
+
+            @Override
+            void visit(@NonNull JavaPsiVisitor visitor, int index) {
+                visitor.visitFile(contexts.get(index));
+            }
+        });
     }
 
     private void checkIndividualJavaFiles(
@@ -1644,6 +1951,39 @@ public class LintDriver {
         return mCurrentVisitor;
     }
 
+    /**
+     * Returns a visitor running the detectors of the given lists which apply to the given
+     * folder type and cannot be cached, or null if there are none
+     */
+    @Nullable
+    private ResourceVisitor getUncachedVisitor(
+            @NonNull ResourceFolderType type,
+            @NonNull List<ResourceXmlDetector> checks,
+            @Nullable List<Detector> binaryChecks) {
+        List<ResourceXmlDetector> xmlChecks = new ArrayList<ResourceXmlDetector>();
+        for (ResourceXmlDetector check : getUncachedDetectors(checks)) {
+            if (check.appliesTo(type)) {
+                xmlChecks.add(check);
+            }
+        }
+        List<Detector> applicableBinaryChecks = null;
+        if (binaryChecks != null) {
+            applicableBinaryChecks = new ArrayList<Detector>();
+            for (Detector check : getUncachedDetectors(binaryChecks)) {
+                if (check.appliesTo(type)) {
+                    applicableBinaryChecks.add(check);
+                }
+            }
+        }
+        if (xmlChecks.isEmpty()
+                && (applicableBinaryChecks == null || applicableBinaryChecks.isEmpty())) {
+            return null;
+        }
+        XmlParser parser = mClient.getXmlParser();
+        return parser != null
+                ? new ResourceVisitor(parser, xmlChecks, applicableBinaryChecks) : null;
+    }
+
     private void checkResFolder(
             @NonNull Project project,
             @Nullable Project main,
@@ -1683,6 +2023,20 @@ public class LintDriver {
             @Nullable List<Detector> dirChecks,
             @Nullable List<Detector> binaryChecks) {
 
+        List<ResourceXmlDetector> parallelXmlChecks = Collections.emptyList();
+        List<Detector> parallelBinaryChecks = Collections.emptyList();
+        if (mExecutor != null) {
+            parallelXmlChecks = filterThreadSafe(xmlChecks, true);
+            xmlChecks = filterThreadSafe(xmlChecks, false);
+            if (binaryChecks != null) {
+                parallelBinaryChecks = filterThreadSafe(binaryChecks, true);
+                binaryChecks = filterThreadSafe(binaryChecks, false);
+                if (binaryChecks.isEmpty()) {
+                    binaryChecks = null;
+                }
+            }
+        }
+
         // Process the resource folder
 
         if (dirChecks != null && !dirChecks.isEmpty()) {
@@ -1696,7 +2050,8 @@ public class LintDriver {
                     check.afterCheckFile(context);
                 }
             }
-            if (binaryChecks == null && xmlChecks.isEmpty()) {
+            if (binaryChecks == null && xmlChecks.isEmpty()
+                    && parallelXmlChecks.isEmpty() && parallelBinaryChecks.isEmpty()) {
                 return;
             }
         }
@@ -1706,28 +2061,565 @@ public class LintDriver {
             return;
         }
 
+        // Process files in alphabetical order, to ensure stable output
+        // (for example for the duplicate resource detector)
+        Arrays.sort(files);
+
+        // The files whose cached issues were reported are only visited by the detectors
+        // which cannot be cached
+        Set<File> cached = Collections.emptySet();
+        if (mResultCache != null) {
+            cached = filterCachedResources(project, main, type, files, xmlChecks, binaryChecks,
+                    parallelXmlChecks, parallelBinaryChecks);
+        }
+
         ResourceVisitor visitor = getVisitor(type, xmlChecks, binaryChecks);
+        ResourceVisitor cachedVisitor = cached.isEmpty() ? visitor
+                : getUncachedVisitor(type, xmlChecks, binaryChecks);
         if (visitor != null) { // if not, there are no applicable rules in this folder
-            // Process files in alphabetical order, to ensure stable output
-            // (for example for the duplicate resource detector)
-            Arrays.sort(files);
             for (File file : files) {
+                ResourceVisitor fileVisitor = cached.contains(file) ? cachedVisitor : visitor;
+                if (fileVisitor == null) {
+                    continue;
+                }
                 if (LintUtils.isXmlFile(file)) {
                     XmlContext context = new XmlContext(this, project, main, file, type,
-                            visitor.getParser());
+                            fileVisitor.getParser());
                     fireEvent(EventType.SCANNING_FILE, context);
-                    visitor.visitFile(context, file);
+                    fileVisitor.visitFile(context, file);
                 } else if (binaryChecks != null && (LintUtils.isBitmapFile(file) ||
                             type == ResourceFolderType.RAW)) {
                     ResourceContext context = new ResourceContext(this, project, main, file, type);
                     fireEvent(EventType.SCANNING_FILE, context);
-                    visitor.visitBinaryResource(context);
+                    fileVisitor.visitBinaryResource(context);
                 }
                 if (mCanceled) {
                     return;
                 }
             }
         }
+
+        if (!parallelXmlChecks.isEmpty() || !parallelBinaryChecks.isEmpty()) {
+            if (cached.isEmpty()) {
+                visitResourcesInParallel(project, main, type, files, parallelXmlChecks,
+                        parallelBinaryChecks, visitor == null);
+            } else {
+                visitResourcesInParallel(project, main, type, filterCached(files, cached, false),
+                        parallelXmlChecks, parallelBinaryChecks, visitor == null);
+                visitResourcesInParallel(project, main, type, filterCached(files, cached, true),
+                        getUncachedDetectors(parallelXmlChecks),
+                        getUncachedDetectors(parallelBinaryChecks), visitor == null);
+            }
+        }
+
+        if (mResultCache != null) {
+            mResultCache.stopRecording();
+        }
+    }
+
+    /**
+     * Reports the cached issues of the resource files of a folder, and returns these files.
+     * See {@link #filterCachedFiles(List, List)}.
+     */
+    @NonNull
+    private Set<File> filterCachedResources(
+            @NonNull Project project,
+            @Nullable Project main,
+            @NonNull ResourceFolderType type,
+            @NonNull File[] files,
+            @NonNull List<ResourceXmlDetector> xmlChecks,
+            @Nullable List<Detector> binaryChecks,
+            @NonNull List<ResourceXmlDetector> parallelXmlChecks,
+            @NonNull List<Detector> parallelBinaryChecks) {
+        List<Detector> checks = new ArrayList<Detector>();
+        for (List<? extends Detector> list : Arrays.asList(xmlChecks, binaryChecks,
+                parallelXmlChecks, parallelBinaryChecks)) {
+            if (list != null) {
+                for (Detector check : list) {
+                    if (check.appliesTo(type)) {
+                        checks.add(check);
+                    }
+                }
+            }
+        }
+
+        boolean binary = binaryChecks != null || !parallelBinaryChecks.isEmpty();
+        List<ResourceContext> contexts = Lists.newArrayListWithExpectedSize(files.length);
+        for (File file : files) {
+            if (LintUtils.isXmlFile(file) || binary && (LintUtils.isBitmapFile(file) ||
+                    type == ResourceFolderType.RAW)) {
+                contexts.add(new ResourceContext(this, project, main, file, type));
+            }
+        }
+        return filterCachedFiles(contexts, checks);
+    }
+
+    /**
+     * Reports the cached issues of the files which have not changed since they were cached,
+     * and returns these files. In the other files, the issues found by the given detectors
+     * which can be cached are recorded in the cache, until
+     * {@link LintResultCache#stopRecording()} is called.
+     * <p>
+     * The returned files must still be visited by the detectors which cannot be cached, see
+     * {@link #getUncachedDetectors(List)}, and only by them.
+     *
+     * @param contexts the contexts of the files to check
+     * @param detectors all the detectors checking these files
+     * @return the files whose cached issues were reported
+     */
+    @NonNull
+    private Set<File> filterCachedFiles(
+            @NonNull List<? extends Context> contexts,
+            @NonNull List<? extends Detector> detectors) {
+        if (mResultCache == null || mPhase > 1 || contexts.isEmpty()) {
+            // Later phases only run the detectors which asked for them
+            return Collections.emptySet();
+        }
+        Context first = contexts.get(0);
+        String signature = getResultSignature(first.getProject(), first.getMainProject(),
+                detectors);
+        if (signature == null) {
+            for (Context context : contexts) {
+                mResultCache.remove(context.file);
+            }
+            return Collections.emptySet();
+        }
+
+        Set<File> cached = Sets.newHashSet();
+        for (Context context : contexts) {
+            if (mResultCache.isUpToDate(context.file, signature)) {
+                mResultCache.replay(context, mRegistry, mClient);
+                cached.add(context.file);
+            } else {
+                mResultCache.startRecording(context.file, signature);
+            }
+        }
+        return cached;
+    }
+
+    /** Returns the detectors of the given list whose results cannot be cached */
+    @NonNull
+    private <T extends Detector> List<T> getUncachedDetectors(@NonNull List<T> detectors) {
+        List<T> uncached = new ArrayList<T>(detectors.size());
+        for (T detector : detectors) {
+            if (getResultDependencies(detector) == null) {
+                uncached.add(detector);
+            }
+        }
+        return uncached;
+    }
+
+    /**
+     * Returns false if the given issue is found by a detector whose results cannot be
+     * cached. Issues not found by detectors, such as parser errors, are cached.
+     */
+    private boolean isCacheable(@NonNull Issue issue) {
+        Class<? extends Detector> detectorClass = issue.getImplementation().getDetectorClass();
+        return mResultDependencies == null || !mResultDependencies.containsKey(detectorClass)
+                || mResultDependencies.get(detectorClass) != null;
+    }
+
+    /** Returns the contexts of the given list whose files are (or are not) in the given set */
+    @NonNull
+    private static <C extends Context> List<C> filterCached(@NonNull List<C> contexts,
+            @NonNull Set<File> cached, boolean isCached) {
+        List<C> filtered = new ArrayList<C>(contexts.size());
+        for (C context : contexts) {
+            if (cached.contains(context.file) == isCached) {
+                filtered.add(context);
+            }
+        }
+        return filtered;
+    }
+
+    /** Returns the files of the given array which are (or are not) in the given set */
+    @NonNull
+    private static File[] filterCached(@NonNull File[] files, @NonNull Set<File> cached,
+            boolean isCached) {
+        List<File> filtered = new ArrayList<File>(files.length);
+        for (File file : files) {
+            if (cached.contains(file) == isCached) {
+                filtered.add(file);
+            }
+        }
+        return filtered.toArray(new File[filtered.size()]);
+    }
+
+    /**
+     * Returns the signature of everything the issues found by the given detectors which can
+     * be cached depend on, besides the contents of the file checked, or null if none of the
+     * detectors can be cached.
+     */
+    @Nullable
+    private String getResultSignature(@NonNull Project project, @Nullable Project main,
+            @NonNull List<? extends Detector> detectors) {
+        EnumSet<Scope> dependencies = null;
+        for (Detector detector : detectors) {
+            EnumSet<Scope> detectorDependencies = getResultDependencies(detector);
+            if (detectorDependencies != null) {
+                if (dependencies == null) {
+                    dependencies = EnumSet.noneOf(Scope.class);
+                }
+                dependencies.addAll(detectorDependencies);
+            }
+        }
+        if (dependencies == null) {
+            return null;
+        }
+
+        StringBuilder sb = new StringBuilder(getProjectSignature(project, main));
+        for (Scope scope : dependencies) {
+            sb.append(scope.name()).append('=').append(getDependencyHash(project, scope));
+            sb.append(';');
+        }
+        return Hashing.sha1().hashString(sb, Charsets.UTF_8).toString();
+    }
+
+    /**
+     * Returns the signature of the configuration of the project, and of the main project
+     * when checking a library: enabled issues, SDK versions and manifests, which all the
+     * cached issues depend on
+     */
+    @NonNull
+    private String getProjectSignature(@NonNull Project project, @Nullable Project main) {
+        if (mProjectSignatures == null) {
+            mProjectSignatures = new HashMap<Project, String>();
+        }
+        String signature = mProjectSignatures.get(project);
+        if (signature == null) {
+            StringBuilder sb = new StringBuilder(1000);
+            sb.append(LintClient.getClientName()).append(';').append(mScope).append(';');
+            Configuration configuration = project.getConfiguration(this);
+            for (Issue issue : mRegistry.getIssues()) {
+                if (configuration.isEnabled(issue)) {
+                    sb.append(issue.getId()).append(':');
+                    sb.append(configuration.getSeverity(issue)).append(',');
+                }
+            }
+            List<Project> projects = main != null && main != project
+                    ? Arrays.asList(project, main) : Collections.singletonList(project);
+            for (Project p : projects) {
+                sb.append(';').append(p.isLibrary());
+                sb.append(';').append(p.getMinSdkVersion().getApiString());
+                sb.append(';').append(p.getTargetSdkVersion().getApiString());
+                sb.append(';').append(p.getBuildSdk());
+                for (File manifest : p.getManifestFiles()) {
+                    sb.append(';').append(mResultCache.getHash(manifest));
+                }
+            }
+            signature = Hashing.sha1().hashString(sb, Charsets.UTF_8).toString();
+            mProjectSignatures.put(project, signature);
+        }
+        return signature;
+    }
+
+    /**
+     * Returns a hash of all the files of the given result dependency scope, in the project
+     * and its libraries: the Java source files for {@link Scope#JAVA_FILE}, the jars and
+     * class folders for {@link Scope#JAVA_LIBRARIES}, and the resource files for the
+     * resource scopes
+     */
+    @NonNull
+    private String getDependencyHash(@NonNull Project project, @NonNull Scope scope) {
+        if (scope == Scope.MANIFEST) {
+            // Already part of the project signature
+            return "";
+        }
+        Scope key = scope == Scope.JAVA_FILE || scope == Scope.JAVA_LIBRARIES
+                ? scope : Scope.ALL_RESOURCE_FILES;
+        if (mDependencyHashes == null) {
+            mDependencyHashes = new HashMap<Project, Map<Scope, String>>();
+        }
+        Map<Scope, String> hashes = mDependencyHashes.get(project);
+        if (hashes == null) {
+            hashes = new EnumMap<Scope, String>(Scope.class);
+            mDependencyHashes.put(project, hashes);
+        }
+        String hash = hashes.get(key);
+        if (hash == null) {
+            List<Project> projects = new ArrayList<Project>();
+            projects.add(project);
+            projects.addAll(project.getAllLibraries());
+            List<File> files = new ArrayList<File>();
+            for (Project p : projects) {
+                List<File> roots;
+                if (key == Scope.JAVA_FILE) {
+                    roots = p.getJavaSourceFolders();
+                } else if (key == Scope.JAVA_LIBRARIES) {
+                    roots = p.getJavaLibraries(true);
+                } else {
+                    roots = p.getResourceFolders();
+                }
+                for (File root : roots) {
+                    gatherAllFiles(root, files);
+                }
+            }
+            Collections.sort(files);
+            StringBuilder sb = new StringBuilder(files.size() * 100);
+            for (File file : files) {
+                sb.append(file.getPath()).append('=').append(mResultCache.getHash(file));
+                sb.append(';');
+            }
+            hash = Hashing.sha1().hashString(sb, Charsets.UTF_8).toString();
+            hashes.put(key, hash);
+        }
+        return hash;
+    }
+
+    private static void gatherAllFiles(@NonNull File file, @NonNull List<File> result) {
+        if (file.isFile()) {
+            result.add(file);
+        } else {
+            File[] files = file.listFiles();
+            if (files != null) {
+                for (File child : files) {
+                    gatherAllFiles(child, result);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the scopes the issues found by the given detector depend on, see
+     * {@link Detector#getResultDependencies()}, or null if they cannot be cached
+     */
+    @Nullable
+    private EnumSet<Scope> getResultDependencies(@NonNull Detector detector) {
+        if (mResultDependencies == null) {
+            mResultDependencies = new HashMap<Class<? extends Detector>, EnumSet<Scope>>();
+        }
+        Class<? extends Detector> detectorClass = detector.getClass();
+        if (mResultDependencies.containsKey(detectorClass)) {
+            return mResultDependencies.get(detectorClass);
+        }
+
+        EnumSet<Scope> dependencies = detector.getResultDependencies();
+        if (dependencies == null && !overridesProjectCallbacks(detectorClass)) {
+            // Infer them from the scopes of its issues
+            dependencies = EnumSet.noneOf(Scope.class);
+            for (Issue issue : mRegistry.getIssues()) {
+                if (issue.getImplementation().getDetectorClass() != detectorClass) {
+                    continue;
+                }
+                EnumSet<Scope> scope = issue.getImplementation().getScope();
+                if (scope.equals(Scope.JAVA_FILE_SCOPE)) {
+                    // Symbols resolved in other Java files and libraries
+                    dependencies.add(Scope.JAVA_FILE);
+                    dependencies.add(Scope.JAVA_LIBRARIES);
+                } else if (scope.equals(Scope.RESOURCE_FILE_SCOPE)) {
+                    // Resources resolved from other resource files
+                    dependencies.add(Scope.ALL_RESOURCE_FILES);
+                } else {
+                    dependencies = null;
+                    break;
+                }
+            }
+        }
+        if (dependencies != null && !CACHEABLE_DEPENDENCIES.containsAll(dependencies)) {
+            dependencies = null;
+        }
+        mResultDependencies.put(detectorClass, dependencies);
+        return dependencies;
+    }
+
+    /**
+     * Returns true if the given detector class implements any of the project callbacks, in
+     * which case it is assumed to gather information across files
+     */
+    private static boolean overridesProjectCallbacks(@NonNull Class<? extends Detector> type) {
+        try {
+            for (String name : new String[] { "beforeCheckProject", "afterCheckProject",
+                    "beforeCheckLibraryProject", "afterCheckLibraryProject" }) {
+                if (type.getMethod(name, Context.class).getDeclaringClass() != Detector.class) {
+                    return true;
+                }
+            }
+            return false;
+        } catch (NoSuchMethodException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Visits the files of a resource folder with thread safe detectors from the worker threads
+     */
+    private void visitResourcesInParallel(
+            @NonNull Project project,
+            @Nullable Project main,
+            @NonNull ResourceFolderType type,
+            @NonNull File[] files,
+            @NonNull List<ResourceXmlDetector> xmlChecks,
+            @NonNull List<Detector> binaryChecks,
+            boolean fireEvents) {
+        final XmlParser parser = mClient.getXmlParser();
+        if (parser == null) {
+            return;
+        }
+        final List<ResourceXmlDetector> applicableXmlChecks =
+                new ArrayList<ResourceXmlDetector>(xmlChecks.size());
+        for (ResourceXmlDetector check : xmlChecks) {
+            if (check.appliesTo(type)) {
+                applicableXmlChecks.add(check);
+            }
+        }
+        final List<Detector> applicableBinaryChecks = new ArrayList<Detector>(binaryChecks.size());
+        for (Detector check : binaryChecks) {
+            if (check.appliesTo(type)) {
+                applicableBinaryChecks.add(check);
+            }
+        }
+
+        final List<ResourceContext> contexts = Lists.newArrayListWithExpectedSize(files.length);
+        for (File file : files) {
+            if (LintUtils.isXmlFile(file)) {
+                if (!applicableXmlChecks.isEmpty()) {
+                    contexts.add(new XmlContext(this, project, main, file, type, parser));
+                }
+            } else if (!applicableBinaryChecks.isEmpty() && (LintUtils.isBitmapFile(file) ||
+                    type == ResourceFolderType.RAW)) {
+                contexts.add(new ResourceContext(this, project, main, file, type));
+            }
+        }
+
+        visitInParallel(contexts.size(), fireEvents ? contexts : null,
+                new ParallelVisit<ResourceVisitor>() {
+            @Override
+            ResourceVisitor createVisitor() {
+                return new ResourceVisitor(parser, applicableXmlChecks, applicableBinaryChecks);
+            }
+
+            @Override
+            void visit(@NonNull ResourceVisitor visitor, int index) {
+                ResourceContext context = contexts.get(index);
+                if (context instanceof XmlContext) {
+                    visitor.visitFile((XmlContext) context, context.file);
+                } else {
+                    visitor.visitBinaryResource(context);
+                }
+            }
+        });
+    }
+
+    /** Returns the detectors of the given list which are (or are not) thread safe */
+    @NonNull
+    private static <T extends Detector> List<T> filterThreadSafe(@NonNull List<T> detectors,
+            boolean threadSafe) {
+        List<T> filtered = new ArrayList<T>(detectors.size());
+        for (T detector : detectors) {
+            if (detector.isThreadSafe() == threadSafe) {
+                filtered.add(detector);
+            }
+        }
+        return filtered;
+    }
+
+    /**
+     * A visit of a list of files from the worker threads, see
+     * {@link #visitInParallel(int, List, ParallelVisit)}
+     *
+     * @param <V> the type of visitor, of which each worker thread gets its own instance
+     */
+    private abstract static class ParallelVisit<V> {
+        @NonNull
+        abstract V createVisitor();
+
+        abstract void visit(@NonNull V visitor, int index);
+    }
+
+    /**
+     * Visits {@code count} files from at most {@link #getParallelism()} worker threads, and
+     * waits for all of them to be visited. The issues reported while visiting each file are
+     * then delivered to the client from the calling thread, in file order, such that the
+     * output does not depend on the scheduling of the threads.
+     *
+     * @param count the number of files to visit
+     * @param contexts the contexts of the files, for which {@link EventType#SCANNING_FILE}
+     *            events are fired, or null to not fire events
+     * @param visit the visit of a single file
+     */
+    private <V> void visitInParallel(
+            int count,
+            @Nullable List<? extends Context> contexts,
+            @NonNull final ParallelVisit<V> visit) {
+        if (count == 0) {
+            return;
+        }
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicReferenceArray<List<PendingReport>> reports =
+                new AtomicReferenceArray<List<PendingReport>>(count);
+        int workers = Math.min(mParallelism, count);
+        List<Future<?>> futures = Lists.newArrayListWithCapacity(workers);
+        for (int i = 0; i < workers; i++) {
+            futures.add(mExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    V visitor = visit.createVisitor();
+                    int index;
+                    while (!mCanceled && (index = next.getAndIncrement()) < reports.length()) {
+                        List<PendingReport> pending = new ArrayList<PendingReport>();
+                        mPendingReports.set(pending);
+                        try {
+                            visit.visit(visitor, index);
+                        } catch (RuntimeException e) {
+                            mClient.log(e, null);
+                        } finally {
+                            mPendingReports.remove();
+                        }
+                        reports.set(index, pending);
+                    }
+                }
+            }));
+        }
+
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                // Stop visiting files, keeping the reports made so far
+                mCanceled = true;
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                mClient.log(e.getCause(), null);
+            }
+        }
+
+        for (int i = 0; i < count; i++) {
+            if (contexts != null) {
+                fireEvent(EventType.SCANNING_FILE, contexts.get(i));
+            }
+            List<PendingReport> pending = reports.get(i);
+            if (pending != null) {
+                for (PendingReport report : pending) {
+                    mClient.report(report.context, report.issue, report.severity,
+                            report.location, report.message, report.format);
+                }
+            }
+        }
+    }
+
+    /** An issue reported from a worker thread, see {@link #visitInParallel} */
+    private static class PendingReport {
+        @NonNull private final Context context;
+        @NonNull private final Issue issue;
+        @NonNull private final Severity severity;
+        @NonNull private final Location location;
+        @NonNull private final String message;
+        @NonNull private final TextFormat format;
+
+        PendingReport(
+                @NonNull Context context,
+                @NonNull Issue issue,
+                @NonNull Severity severity,
+                @NonNull Location location,
+                @NonNull String message,
+                @NonNull TextFormat format) {
+            this.context = context;
+            this.issue = issue;
+            this.severity = severity;
+            this.location = location;
+            this.message = message;
+            this.format = format;
+        }
     }
 
     /** Checks individual resources */
@@ -1850,6 +2742,20 @@ public class LintDriver {
                 return;
             }
 
+            List<PendingReport> pending = mPendingReports.get();
+            if (pending != null) {
+                // Visiting from a worker thread: deliver once all files have been visited
+                pending.add(new PendingReport(context, issue, severity, location, message,
+                        format));
+                return;
+            }
+
+            if (mResultCache != null && !mResultCache.record(context, issue, severity, location,
+                    message, format, isCacheable(issue))) {
+                // Already reported from the cache
+                return;
+            }
+
             assert mCurrentProject != null;
             if (!mCurrentProject.getReportIssues()) {
                 return;
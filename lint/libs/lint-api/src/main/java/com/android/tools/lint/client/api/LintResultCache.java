@@ -0,0 +1,495 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint.client.api;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.lint.detector.api.Context;
+import com.android.tools.lint.detector.api.DefaultPosition;
+import com.android.tools.lint.detector.api.Issue;
+import com.android.tools.lint.detector.api.Location;
+import com.android.tools.lint.detector.api.Position;
+import com.android.tools.lint.detector.api.Severity;
+import com.android.tools.lint.detector.api.TextFormat;
+import com.google.common.annotations.Beta;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Closeables;
+import com.google.common.io.Files;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A persistent cache of the issues found in individual files, which lets the
+ * {@link LintDriver} skip the files which have not changed since a previous run and
+ * report the issues found back then instead.
+ * <p>
+ * For each file, the cache stores a hash of its contents, a signature of everything else
+ * the issues found in the file depend on (the lint version, the configuration, and the
+ * files covered by {@link com.android.tools.lint.detector.api.Detector#getResultDependencies()}
+ * for the detectors which apply to the file), and the issues themselves. The issues of a file
+ * are reused if both its hash and signature are unchanged. Only the issues found by detectors
+ * which can be cached are stored: the driver still runs the other detectors on such files.
+ * <p>
+ * To avoid reading every file on each run, the hash of a file is only computed again if its
+ * length or modification time changed. The entries of the files which no longer exist are
+ * discarded when the cache is saved.
+ * <p>
+ * <b>NOTE: This is not a public or final API; if you rely on this be prepared
+ * to adjust your code for the next tools release.</b>
+ */
+@Beta
+public class LintResultCache {
+    /** Header of the cache file, followed by {@link #FORMAT_VERSION} */
+    private static final int MAGIC = 0x4C524331; // "LRC1"
+    /** Version of the cache file format, files in other formats are ignored */
+    private static final int FORMAT_VERSION = 1;
+
+    @NonNull
+    private final File mFile;
+    @NonNull
+    private final String mLintVersion;
+    /** Entries for the files checked, keyed by absolute path */
+    @NonNull
+    private final Map<String, Entry> mEntries = Maps.newHashMap();
+    /** Content hashes of all the files seen, keyed by absolute path */
+    @NonNull
+    private final Map<String, FileHash> mHashes = Maps.newHashMap();
+    /** Paths of the files whose issues are being recorded */
+    @NonNull
+    private final Set<String> mRecording = Sets.newHashSet();
+    /** Paths of the files whose cached issues were reported, see {@link #replay} */
+    @NonNull
+    private final Set<String> mReplayed = Sets.newHashSet();
+    private boolean mModified;
+
+    /**
+     * Creates a new cache, stored in the given file. If the file exists and was written by
+     * the same version of lint, the cached results are loaded from it.
+     *
+     * @param file the file to load the cache from, and to save it to
+     * @param lintVersion the version of lint, the cache is discarded when it changes
+     */
+    public LintResultCache(@NonNull File file, @NonNull String lintVersion) {
+        mFile = file;
+        mLintVersion = lintVersion;
+        if (file.exists()) {
+            try {
+                read();
+            } catch (IOException e) {
+                // Corrupt or truncated: start over
+                mEntries.clear();
+                mHashes.clear();
+                mModified = true;
+            }
+        }
+    }
+
+    /**
+     * Saves the cache to its file, if anything changed since it was loaded.
+     *
+     * @throws IOException if the cache could not be written
+     */
+    public void save() throws IOException {
+        pruneDeletedFiles();
+        if (!mModified) {
+            return;
+        }
+        File parent = mFile.getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Could not create " + parent);
+        }
+        // Write to a temporary file first, such that an interrupted save does not
+        // leave a truncated cache behind
+        File temp = new File(mFile.getPath() + ".tmp"); //$NON-NLS-1$
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            write(out);
+        } finally {
+            Closeables.close(out, true);
+        }
+        if (mFile.exists() && !mFile.delete() || !temp.renameTo(mFile)) {
+            throw new IOException("Could not write " + mFile);
+        }
+        mModified = false;
+    }
+
+    /**
+     * Returns the hash of the contents of the given file, or null if it cannot be read
+     */
+    @Nullable
+    String getHash(@NonNull File file) {
+        String path = file.getAbsolutePath();
+        long length = file.length();
+        long lastModified = file.lastModified();
+        FileHash hash = mHashes.get(path);
+        if (hash != null && hash.length == length && hash.lastModified == lastModified) {
+            return hash.hash;
+        }
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            String value = Files.hash(file, Hashing.sha1()).toString();
+            mHashes.put(path, new FileHash(length, lastModified, value));
+            mModified = true;
+            return value;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns true if the cached issues for the given file are still valid
+     */
+    boolean isUpToDate(@NonNull File file, @NonNull String signature) {
+        Entry entry = mEntries.get(file.getAbsolutePath());
+        return entry != null && entry.signature.equals(signature)
+                && entry.hash.equals(getHash(file));
+    }
+
+    /**
+     * Reports the cached issues of the given file, which must be up to date, to the given
+     * client. Until {@link #stopRecording()} is called, {@link #record} then rejects the
+     * issues found in the file again by detectors which can be cached.
+     */
+    void replay(@NonNull Context context, @NonNull IssueRegistry registry,
+            @NonNull LintClient client) {
+        String path = context.file.getAbsolutePath();
+        Entry entry = mEntries.get(path);
+        if (entry == null) {
+            return;
+        }
+        for (Report report : entry.reports) {
+            Issue issue = registry.getIssue(report.issue);
+            if (issue == null) {
+                continue;
+            }
+            client.report(context, issue, report.severity, report.location.create(),
+                    report.message, report.format);
+        }
+        // Only reject the issues found again once the cached ones went through the client,
+        // which may itself pass them to {@link #record}
+        mReplayed.add(path);
+    }
+
+    /**
+     * Starts recording the issues found in the given file, replacing the ones cached so far.
+     * The issues are added by {@link #record} until {@link #stopRecording()} is called.
+     */
+    void startRecording(@NonNull File file, @NonNull String signature) {
+        String hash = getHash(file);
+        String path = file.getAbsolutePath();
+        if (hash == null) {
+            remove(file);
+            return;
+        }
+        mEntries.put(path, new Entry(hash, signature));
+        mRecording.add(path);
+        mModified = true;
+    }
+
+    /**
+     * Records an issue, if it was found in a file being recorded by a detector which can be
+     * cached
+     *
+     * @param cacheable false if the issue was found by a detector which cannot be cached
+     * @return false if the issue was already reported from the cache, see {@link #replay}
+     */
+    boolean record(
+            @NonNull Context context,
+            @NonNull Issue issue,
+            @NonNull Severity severity,
+            @NonNull Location location,
+            @NonNull String message,
+            @NonNull TextFormat format,
+            boolean cacheable) {
+        if (!cacheable || mRecording.isEmpty() && mReplayed.isEmpty()) {
+            return true;
+        }
+        String path = context.file.getAbsolutePath();
+        if (mRecording.contains(path)) {
+            mEntries.get(path).reports.add(new Report(issue.getId(), severity,
+                    new CachedLocation(location), message, format));
+            return true;
+        }
+        return !mReplayed.contains(path);
+    }
+
+    /**
+     * Stops recording the issues of the files passed to {@link #startRecording}, and
+     * accepts the issues of the replayed files again
+     */
+    void stopRecording() {
+        mRecording.clear();
+        mReplayed.clear();
+    }
+
+    /** Discards the cached issues of the given file */
+    void remove(@NonNull File file) {
+        if (mEntries.remove(file.getAbsolutePath()) != null) {
+            mModified = true;
+        }
+    }
+
+    /** Discards the hashes and cached issues of the files which no longer exist */
+    private void pruneDeletedFiles() {
+        for (Iterator<String> iterator = mHashes.keySet().iterator(); iterator.hasNext(); ) {
+            if (!new File(iterator.next()).exists()) {
+                iterator.remove();
+                mModified = true;
+            }
+        }
+        for (Iterator<String> iterator = mEntries.keySet().iterator(); iterator.hasNext(); ) {
+            String path = iterator.next();
+            if (!mHashes.containsKey(path) && !new File(path).exists()) {
+                iterator.remove();
+                mModified = true;
+            }
+        }
+    }
+
+    private void read() throws IOException {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(mFile)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION
+                    || !in.readUTF().equals(mLintVersion)) {
+                mModified = true;
+                return;
+            }
+            int hashCount = in.readInt();
+            for (int i = 0; i < hashCount; i++) {
+                String path = in.readUTF();
+                mHashes.put(path, new FileHash(in.readLong(), in.readLong(), in.readUTF()));
+            }
+            int entryCount = in.readInt();
+            for (int i = 0; i < entryCount; i++) {
+                String path = in.readUTF();
+                Entry entry = new Entry(in.readUTF(), in.readUTF());
+                int reportCount = in.readInt();
+                for (int j = 0; j < reportCount; j++) {
+                    String issue = in.readUTF();
+                    Severity severity = Severity.valueOf(in.readUTF());
+                    TextFormat format = TextFormat.valueOf(in.readUTF());
+                    String message = in.readUTF();
+                    entry.reports.add(new Report(issue, severity, CachedLocation.read(in),
+                            message, format));
+                }
+                mEntries.put(path, entry);
+            }
+        } catch (IllegalArgumentException e) {
+            // Unknown severity or format name
+            throw new IOException(e);
+        } finally {
+            Closeables.closeQuietly(in);
+        }
+    }
+
+    private void write(@NonNull DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeUTF(mLintVersion);
+        out.writeInt(mHashes.size());
+        for (Map.Entry<String, FileHash> entry : mHashes.entrySet()) {
+            FileHash hash = entry.getValue();
+            out.writeUTF(entry.getKey());
+            out.writeLong(hash.length);
+            out.writeLong(hash.lastModified);
+            out.writeUTF(hash.hash);
+        }
+        out.writeInt(mEntries.size());
+        for (Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeUTF(entry.getValue().hash);
+            out.writeUTF(entry.getValue().signature);
+            List<Report> reports = entry.getValue().reports;
+            out.writeInt(reports.size());
+            for (Report report : reports) {
+                out.writeUTF(report.issue);
+                out.writeUTF(report.severity.name());
+                out.writeUTF(report.format.name());
+                out.writeUTF(report.message);
+                report.location.write(out);
+            }
+        }
+    }
+
+    private static class FileHash {
+        private final long length;
+        private final long lastModified;
+        @NonNull private final String hash;
+
+        FileHash(long length, long lastModified, @NonNull String hash) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+    }
+
+    private static class Entry {
+        @NonNull private final String hash;
+        @NonNull private final String signature;
+        @NonNull private final List<Report> reports = Lists.newArrayList();
+
+        Entry(@NonNull String hash, @NonNull String signature) {
+            this.hash = hash;
+            this.signature = signature;
+        }
+    }
+
+    private static class Report {
+        @NonNull private final String issue;
+        @NonNull private final Severity severity;
+        @NonNull private final CachedLocation location;
+        @NonNull private final String message;
+        @NonNull private final TextFormat format;
+
+        Report(
+                @NonNull String issue,
+                @NonNull Severity severity,
+                @NonNull CachedLocation location,
+                @NonNull String message,
+                @NonNull TextFormat format) {
+            this.issue = issue;
+            this.severity = severity;
+            this.location = location;
+            this.message = message;
+            this.format = format;
+        }
+    }
+
+    /**
+     * The serializable parts of a {@link Location}: client data is not cached
+     */
+    private static class CachedLocation {
+        private static final int NO_POSITION = -2;
+
+        @NonNull private final String file;
+        @Nullable private final int[] start;
+        @Nullable private final int[] end;
+        @Nullable private final String message;
+        @Nullable private final CachedLocation secondary;
+
+        CachedLocation(@NonNull Location location) {
+            this(location.getFile().getPath(), toArray(location.getStart()),
+                    toArray(location.getEnd()), location.getMessage(),
+                    location.getSecondary() != null
+                            ? new CachedLocation(location.getSecondary()) : null);
+        }
+
+        private CachedLocation(@NonNull String file, @Nullable int[] start, @Nullable int[] end,
+                @Nullable String message, @Nullable CachedLocation secondary) {
+            this.file = file;
+            this.start = start;
+            this.end = end;
+            this.message = message;
+            this.secondary = secondary;
+        }
+
+        @NonNull
+        Location create() {
+            Location location;
+            if (start != null) {
+                location = Location.create(new File(file), toPosition(start), toPosition(end));
+            } else {
+                location = Location.create(new File(file));
+            }
+            if (message != null) {
+                location.setMessage(message);
+            }
+            if (secondary != null) {
+                location.setSecondary(secondary.create());
+            }
+            return location;
+        }
+
+        void write(@NonNull DataOutputStream out) throws IOException {
+            out.writeUTF(file);
+            writePosition(out, start);
+            writePosition(out, end);
+            out.writeBoolean(message != null);
+            if (message != null) {
+                out.writeUTF(message);
+            }
+            out.writeBoolean(secondary != null);
+            if (secondary != null) {
+                secondary.write(out);
+            }
+        }
+
+        @NonNull
+        static CachedLocation read(@NonNull DataInputStream in) throws IOException {
+            String file = in.readUTF();
+            int[] start = readPosition(in);
+            int[] end = readPosition(in);
+            String message = in.readBoolean() ? in.readUTF() : null;
+            CachedLocation secondary = in.readBoolean() ? read(in) : null;
+            return new CachedLocation(file, start, end, message, secondary);
+        }
+
+        @Nullable
+        private static int[] toArray(@Nullable Position position) {
+            if (position == null) {
+                return null;
+            }
+            return new int[] { position.getLine(), position.getColumn(), position.getOffset() };
+        }
+
+        @Nullable
+        private static Position toPosition(@Nullable int[] position) {
+            if (position == null) {
+                return null;
+            }
+            return new DefaultPosition(position[0], position[1], position[2]);
+        }
+
+        private static void writePosition(@NonNull DataOutputStream out,
+                @Nullable int[] position) throws IOException {
+            if (position == null) {
+                out.writeInt(NO_POSITION);
+                return;
+            }
+            out.writeInt(position[0]);
+            out.writeInt(position[1]);
+            out.writeInt(position[2]);
+        }
+
+        @Nullable
+        private static int[] readPosition(@NonNull DataInputStream in) throws IOException {
+            int line = in.readInt();
+            if (line == NO_POSITION) {
+                return null;
+            }
+            return new int[] { line, in.readInt(), in.readInt() };
+        }
+    }
+}
@@ -971,6 +971,45 @@ public abstract class Detector {
     public void afterCheckFile(@NonNull Context context) {
     }
 
+    /**
+     * Returns true if this detector can check several files at the same time, from different
+     * threads, when the {@link com.android.tools.lint.client.api.LintDriver} is configured to
+     * visit files in parallel. In that case {@link #beforeCheckFile(Context)}, the visit
+     * methods and {@link #afterCheckFile(Context)} may be called concurrently for different
+     * files, so the detector must not keep any per-file state in fields, and any state shared
+     * between files must be thread safe. The project level callbacks are still called from
+     * a single thread, after all the files have been visited.
+     *
+     * @return true if this detector can be run from several threads at once
+     */
+    public boolean isThreadSafe() {
+        return false;
+    }
+
+    /**
+     * Returns the scopes of the files which the issues this detector finds in a file depend
+     * on, besides that file itself and the configuration of the project (enabled issues,
+     * SDK versions and manifest). This lets lint skip the files which have not changed when
+     * a {@link com.android.tools.lint.client.api.LintResultCache} is used: for example a
+     * detector resolving symbols from other Java files would return
+     * {@code EnumSet.of(Scope.JAVA_FILE)}, and a detector only looking at the file being
+     * checked an empty set.
+     * <p>
+     * The default implementation returns null, in which case lint infers the dependencies:
+     * a detector whose issues all have the {@link Scope#JAVA_FILE_SCOPE} or
+     * {@link Scope#RESOURCE_FILE_SCOPE} scope, and which does not implement the project
+     * callbacks such as {@link #afterCheckProject(Context)}, is assumed to depend on all the
+     * Java files or all the resource files of the project; other detectors are never cached.
+     * Detectors gathering information across files without the project callbacks should
+     * return {@link Scope#ALL}, which is never cached.
+     *
+     * @return the scopes the results depend on, or null to infer them
+     */
+    @Nullable
+    public EnumSet<Scope> getResultDependencies() {
+        return null;
+    }
+
     /**
      * Returns the expected speed of this detector
      *
@@ -34,6 +34,7 @@ import org.w3c.dom.Attr;
 
 import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumSet;
 
 /**
  * Checks that byte order marks do not appear in resource names
@@ -62,6 +63,16 @@ public class ByteOrderMarkDetector extends ResourceXmlDetector {
     public ByteOrderMarkDetector() {
     }
 
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
+    @Override
+    public EnumSet<Scope> getResultDependencies() {
+        return EnumSet.noneOf(Scope.class);
+    }
+
     @NonNull
     @Override
     public Speed getSpeed() {
@@ -33,6 +33,7 @@ import org.w3c.dom.NodeList;
 
 import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumSet;
 
 /**
  * Check which makes sure NFC tech lists do not include spaces around {@code <tech>} values
@@ -64,6 +65,16 @@ public class NfcTechListDetector extends ResourceXmlDetector {
     public NfcTechListDetector() {
     }
 
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
+    @Override
+    public EnumSet<Scope> getResultDependencies() {
+        return EnumSet.noneOf(Scope.class);
+    }
+
     @Override
     public boolean appliesTo(@NonNull ResourceFolderType folderType) {
         return folderType == ResourceFolderType.XML;
@@ -668,8 +668,14 @@ public class ResourceUsageModel {
         if (attr == null) {
             return;
         }
-        String localName = attr.getLocalName();
-        String value = attr.getValue();
+        recordToolsAttribute(attr.getLocalName(), attr.getValue());
+    }
+
+    /**
+     * Records a tools attribute by its local name and value, as found by
+     * {@link #recordToolsAttributes(Attr)}
+     */
+    public void recordToolsAttribute(@Nullable String localName, @NonNull String value) {
         if (ATTR_KEEP.equals(localName)) {
             if (mKeepAttributes == null) {
                 mKeepAttributes = Lists.newArrayList();
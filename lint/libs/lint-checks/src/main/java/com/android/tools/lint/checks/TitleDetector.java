@@ -37,6 +37,7 @@ import org.w3c.dom.Element;
 
 import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumSet;
 
 /**
  * Check which makes sure menu items specify a title
@@ -73,6 +74,16 @@ public class TitleDetector extends ResourceXmlDetector {
     public TitleDetector() {
     }
 
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
+    @Override
+    public EnumSet<Scope> getResultDependencies() {
+        return EnumSet.noneOf(Scope.class);
+    }
+
     @Override
     public boolean appliesTo(@NonNull ResourceFolderType folderType) {
         return folderType == ResourceFolderType.MENU;
@@ -29,6 +29,7 @@ import com.android.tools.lint.detector.api.XmlContext;
 
 import org.w3c.dom.Document;
 
+import java.util.EnumSet;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -66,6 +67,16 @@ public class Utf8Detector extends ResourceXmlDetector {
     public Utf8Detector() {
     }
 
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
+    @Override
+    public EnumSet<Scope> getResultDependencies() {
+        return EnumSet.noneOf(Scope.class);
+    }
+
     @NonNull
     @Override
     public Speed getSpeed() {
@@ -901,7 +901,12 @@ public abstract class LintDetectorTest extends SdkTestCase {
                 request.setProjects(projects);
             }
 
-            mDriver.analyze(request.setScope(getLintScope(files)));
+            try {
+                mDriver.analyze(request.setScope(getLintScope(files)));
+            } finally {
+                // Close the class path jars opened for this run
+                disposeCaches();
+            }
 
             // Check compare contract
             Warning prev = null;
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint;
+
+import com.android.utils.FileUtils;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import org.eclipse.jdt.core.compiler.CharOperation;
+import org.eclipse.jdt.internal.compiler.env.IBinaryMethod;
+import org.eclipse.jdt.internal.compiler.env.INameEnvironment;
+import org.eclipse.jdt.internal.compiler.env.NameEnvironmentAnswer;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+public class EcjClassPathCacheTest extends TestCase {
+    private File mDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDir = Files.createTempDir();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        EcjClassPathCache.dispose();
+        FileUtils.deletePath(mDir);
+        super.tearDown();
+    }
+
+    public void testRecompiledClassFolder() throws Exception {
+        File classes = new File(mDir, "classes");
+        File packageDir = new File(classes, "test");
+        assertTrue(packageDir.mkdirs());
+        Files.write(createClass("test/Foo", "one"), new File(packageDir, "Foo.class"));
+        long classesModified = classes.lastModified();
+        long packageModified = packageDir.lastModified();
+        List<String> classPath = ImmutableList.of(classes.getPath());
+
+        INameEnvironment environment = EcjClassPathCache.get().createEnvironment(classPath, null);
+        assertEquals("one", getMethod(environment, "test.Foo"));
+        assertNull(findType(environment, "test.Bar"));
+
+        // Recompile Foo, which does not change the folders, and add Bar, which changes at most
+        // the timestamp of its folder
+        Files.write(createClass("test/Foo", "two"), new File(packageDir, "Foo.class"));
+        Files.write(createClass("test/Bar", "bar"), new File(packageDir, "Bar.class"));
+        assertTrue(packageDir.setLastModified(packageModified));
+        assertTrue(classes.setLastModified(classesModified));
+
+        // Next run
+        EcjClassPathCache.disposeClassFolders();
+        environment = EcjClassPathCache.get().createEnvironment(classPath, null);
+        assertEquals("two", getMethod(environment, "test.Foo"));
+        assertEquals("bar", getMethod(environment, "test.Bar"));
+    }
+
+    public void testJarKeptBetweenRuns() throws Exception {
+        File jar = new File(mDir, "classes.jar");
+        writeJar(jar, createClass("test/Foo", "one"));
+        List<String> classPath = ImmutableList.of(jar.getPath());
+
+        INameEnvironment environment = EcjClassPathCache.get().createEnvironment(classPath, null);
+        NameEnvironmentAnswer answer = findType(environment, "test.Foo");
+        assertNotNull(answer);
+
+        // Next run: the jar has not changed, so its types are reused
+        EcjClassPathCache.disposeClassFolders();
+        environment = EcjClassPathCache.get().createEnvironment(classPath, null);
+        assertSame(answer, findType(environment, "test.Foo"));
+    }
+
+    private static NameEnvironmentAnswer findType(INameEnvironment environment, String name) {
+        return environment.findType(CharOperation.splitOn('.', name.toCharArray()));
+    }
+
+    /** Returns the name of the single method of the given type, other than its constructor */
+    private static String getMethod(INameEnvironment environment, String name) {
+        NameEnvironmentAnswer answer = findType(environment, name);
+        assertNotNull(answer);
+        assertTrue(answer.isBinaryType());
+        IBinaryMethod[] methods = answer.getBinaryType().getMethods();
+        assertNotNull(methods);
+        assertEquals(1, methods.length);
+        return new String(methods[0].getSelector());
+    }
+
+    private static byte[] createClass(String name, String method) {
+        ClassWriter writer = new ClassWriter(0);
+        writer.visit(Opcodes.V1_6, Opcodes.ACC_PUBLIC | Opcodes.ACC_ABSTRACT, name, null,
+                "java/lang/Object", null);
+        MethodVisitor visitor = writer.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_ABSTRACT,
+                method, "()V", null, null);
+        visitor.visitEnd();
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+
+    private static void writeJar(File jar, byte[] fooClass) throws Exception {
+        JarOutputStream out = new JarOutputStream(new FileOutputStream(jar));
+        try {
+            out.putNextEntry(new JarEntry("test/Foo.class"));
+            out.write(fooClass);
+            out.closeEntry();
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -40,13 +40,17 @@ import com.google.common.base.Splitter;
 import com.google.common.collect.Lists;
 import com.google.common.io.Files;
 
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import lombok.ast.ClassDeclaration;
 import lombok.ast.ForwardingAstVisitor;
@@ -387,6 +391,91 @@ public class ExternalAnnotationRepositoryTest extends SdkTestCase {
         assertNotNull(manager.getAnnotation(pkg, "my.pkg.MyAnnotation"));
     }
 
+    public void testBinaryIndex() throws Exception {
+        File dir = TestUtils.createTempDirDeletedOnExit();
+        try {
+            File zip = new File(dir, "annotations.zip");
+            ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(zip));
+            try {
+                zos.putNextEntry(new ZipEntry("android/graphics/annotations.xml"));
+                zos.write((""
+                        + "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                        + "<root>\n"
+                        + "  <item name=\"android.graphics.Color\">\n"
+                        + "    <annotation name=\"android.support.annotation.Annotation1\" />\n"
+                        + "  </item>\n"
+                        + "  <item name=\"android.graphics.Color BLUE\">\n"
+                        + "    <annotation name=\"android.support.annotation.Annotation3\" />\n"
+                        + "  </item>\n"
+                        + "  <item name=\"android.graphics.Color int HSVToColor(int, float[]) 1\">\n"
+                        + "    <annotation name=\"android.support.annotation.Annotation7\">\n"
+                        + "      <val name=\"value\" val=\"3\" />\n"
+                        + "    </annotation>\n"
+                        + "  </item>\n"
+                        + "  <item name=\"android.graphics.package-info\">\n"
+                        + "    <annotation name=\"my.pkg.MyAnnotation\"/>\n"
+                        + "  </item>\n"
+                        + "</root>\n").getBytes(UTF_8));
+                zos.closeEntry();
+            } finally {
+                zos.close();
+            }
+
+            File cacheDir = new File(dir, "cache");
+            assertTrue(cacheDir.mkdirs());
+            File index = new File(cacheDir,
+                    ExternalAnnotationRepository.AnnotationsDatabase.getIndexFileName(cacheDir,
+                            zip));
+
+            // First the index is written, then it is reused
+            for (int i = 0; i < 2; i++) {
+                ExternalAnnotationRepository.AnnotationsDatabase database =
+                        ExternalAnnotationRepository.getDatabase(cacheDir, zip);
+                assertNotNull(database);
+                assertTrue(index.isFile());
+
+                ResolvedClass cls = createClass("android.graphics.Color");
+                assertNotNull(database.getAnnotation(cls,
+                        "android.support.annotation.Annotation1"));
+                assertNull(database.getAnnotation(createClass("android.graphics.Paint"),
+                        "android.support.annotation.Annotation1"));
+                ResolvedField blueField = createField("android.graphics.Color", "BLUE");
+                assertNotNull(database.getAnnotation(blueField,
+                        "android.support.annotation.Annotation3"));
+                ResolvedMethod method = createMethod("android.graphics.Color", "int",
+                        "HSVToColor", "int, float[]");
+                ResolvedAnnotation annotation = database.getAnnotation(method, 1,
+                        "android.support.annotation.Annotation7");
+                assertNotNull(annotation);
+                assertEquals(3L, annotation.getValue());
+                assertNotNull(database.getAnnotation(cls.getPackage(), "my.pkg.MyAnnotation"));
+            }
+
+            // The hash in the stamp file is trusted while the length and modification time
+            // of the zip are unchanged, and computed again once they change
+            File stamp = ExternalAnnotationRepository.AnnotationsDatabase.getStampFile(cacheDir,
+                    zip);
+            assertTrue(stamp.isFile());
+            DataOutputStream out = new DataOutputStream(new FileOutputStream(stamp));
+            try {
+                out.writeLong(zip.length());
+                out.writeLong(zip.lastModified());
+                out.writeUTF("stale");
+            } finally {
+                out.close();
+            }
+            assertEquals("annotations-1-stale.bin",
+                    ExternalAnnotationRepository.AnnotationsDatabase.getIndexFileName(cacheDir,
+                            zip));
+            assertTrue(zip.setLastModified(zip.lastModified() - 10000));
+            assertEquals(index.getName(),
+                    ExternalAnnotationRepository.AnnotationsDatabase.getIndexFileName(cacheDir,
+                            zip));
+        } finally {
+            deleteFile(dir);
+        }
+    }
+
     public void testMatchWithEcj() throws Exception {
         try {
             ExternalAnnotationRepository manager = getExternalAnnotations("test.pkg", ""
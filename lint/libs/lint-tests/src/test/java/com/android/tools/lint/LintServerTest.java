@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint;
+
+import static com.android.tools.lint.LintCliFlags.ERRNO_EXISTS;
+import static com.android.tools.lint.LintCliFlags.ERRNO_SUCCESS;
+
+import com.android.tools.lint.checks.AbstractCheckTest;
+import com.android.tools.lint.checks.AccessibilityDetector;
+import com.android.tools.lint.checks.BuiltinIssueRegistry;
+import com.android.tools.lint.detector.api.Detector;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.List;
+
+public class LintServerTest extends AbstractCheckTest {
+    private LintServer mServer;
+    private Thread mServerThread;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        LintCliFlags flags = new LintCliFlags();
+        flags.setQuiet(true);
+        flags.setExactCheckedIds(Collections.singleton("ContentDescription"));
+        mServer = new LintServer(flags, new BuiltinIssueRegistry(), 0);
+        mServer.setReadTimeout(500);
+        mServerThread = new Thread("Lint server") {
+            @Override
+            public void run() {
+                try {
+                    mServer.run();
+                } catch (IOException e) {
+                    fail(e.toString());
+                }
+            }
+        };
+        mServerThread.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.close();
+        mServerThread.join(10000);
+        super.tearDown();
+    }
+
+    public void testRequests() throws Exception {
+        File project = getProjectDir(null, "res/layout/accessibility.xml");
+
+        // The same server answers several requests
+        for (int i = 0; i < 2; i++) {
+            List<String> lines = request(project.getPath());
+            assertEquals(lines.toString(), 4, lines.size());
+            assertTrue(lines.get(0), lines.get(0).startsWith(
+                    "res/layout/accessibility.xml:4: Warning: "));
+            assertTrue(lines.get(0), lines.get(0).endsWith(" [ContentDescription]"));
+            assertTrue(lines.get(1), lines.get(1).startsWith(
+                    "res/layout/accessibility.xml:5: Warning: "));
+            assertEquals("0 errors, 2 warnings", lines.get(2));
+            assertEquals("exit " + ERRNO_SUCCESS, lines.get(3));
+        }
+    }
+
+    public void testMissingFile() throws Exception {
+        File file = new File(getTargetDir(), "does-not-exist");
+        List<String> lines = request(file.getPath());
+        assertEquals(2, lines.size());
+        assertEquals(file.getPath() + " does not exist.", lines.get(0));
+        assertEquals("exit " + ERRNO_EXISTS, lines.get(1));
+    }
+
+    public void testIdleClient() throws Exception {
+        File project = getProjectDir(null, "res/layout/accessibility.xml");
+
+        // A client which connects and sends nothing does not hold up the next one
+        Socket idle = connect();
+        try {
+            List<String> lines = request(project.getPath());
+            assertEquals("exit " + ERRNO_SUCCESS, lines.get(lines.size() - 1));
+        } finally {
+            idle.close();
+        }
+    }
+
+    public void testShutdown() throws Exception {
+        assertTrue(request(LintServer.SHUTDOWN).isEmpty());
+        mServerThread.join(10000);
+        assertFalse(mServerThread.isAlive());
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket(InetAddress.getByName(null), mServer.getPort());
+        // Fail rather than hang if the server does not answer
+        socket.setSoTimeout(30000);
+        return socket;
+    }
+
+    /** Sends a request made of the given lines, and returns the lines of the response */
+    private List<String> request(String... request) throws IOException {
+        Socket socket = connect();
+        try {
+            Writer writer = new OutputStreamWriter(socket.getOutputStream(), Charsets.UTF_8);
+            for (String line : request) {
+                writer.write(line + '\n');
+            }
+            writer.write('\n');
+            writer.flush();
+
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), Charsets.UTF_8));
+            List<String> lines = Lists.newArrayList();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+            return lines;
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Override
+    protected Detector getDetector() {
+        return new AccessibilityDetector();
+    }
+}
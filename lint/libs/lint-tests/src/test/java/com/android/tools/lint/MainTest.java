@@ -397,6 +397,37 @@ public class MainTest extends AbstractCheckTest {
         });
     }
 
+    public void testServerInvalidPort() throws Exception {
+        checkDriver(
+        "",
+        "Invalid port number: 70000\n",
+
+        // Expected exit code
+        ERRNO_INVALID_ARGS,
+
+        // Args
+        new String[] {
+                "--server",
+                "70000"
+        });
+    }
+
+    public void testServerWithFiles() throws Exception {
+        checkDriver(
+        "",
+        "The --server argument cannot be combined with files to analyze\n",
+
+        // Expected exit code
+        ERRNO_INVALID_ARGS,
+
+        // Args
+        new String[] {
+                "--server",
+                "0",
+                getProjectDir(null, "res/layout/accessibility.xml").getPath()
+        });
+    }
+
     @Override
     protected Detector getDetector() {
         // Sample issue to check by the main driver
@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint;
+
+import com.android.tools.lint.checks.HardcodedValuesDetector;
+import com.android.tools.lint.checks.ManifestDetector;
+import com.android.tools.lint.detector.api.DefaultPosition;
+import com.android.tools.lint.detector.api.Issue;
+import com.android.tools.lint.detector.api.Location;
+import com.android.tools.lint.detector.api.Position;
+import com.android.tools.lint.detector.api.Project;
+import com.android.tools.lint.detector.api.Severity;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+public class WarningStoreTest extends TestCase {
+    private static final Issue[] ISSUES = new Issue[] {
+            ManifestDetector.USES_SDK,
+            ManifestDetector.ORDER,
+            HardcodedValuesDetector.ISSUE
+    };
+
+    private LintCliClient mClient;
+    private Project mProject;
+    private WarningStore mStore;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mClient = new LintCliClient();
+        File dir = Files.createTempDir();
+        mProject = Project.create(mClient, dir, dir);
+        mStore = new WarningStore(mClient);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mStore.close();
+        super.tearDown();
+    }
+
+    public void testMergeSpilledRuns() throws Exception {
+        List<Warning> expected = new ArrayList<Warning>();
+        List<Warning> inMemory = new ArrayList<Warning>();
+        Random random = new Random(42);
+        int count = 2 * WarningStore.RUN_SIZE + 500;
+        for (int i = 0; i < count; i++) {
+            Warning warning = createWarning(ISSUES[random.nextInt(ISSUES.length)],
+                    "res/layout/layout" + random.nextInt(50) + ".xml", random.nextInt(1000),
+                    "Message " + i);
+            expected.add(warning);
+            inMemory.add(warning);
+            if (inMemory.size() == WarningStore.RUN_SIZE) {
+                mStore.spill(inMemory);
+                assertTrue(inMemory.isEmpty());
+            }
+        }
+        assertEquals(500, inMemory.size());
+        Collections.sort(expected);
+
+        List<Warning> warnings = mStore.getWarnings(inMemory);
+        assertEquals(count, warnings.size());
+        // The list can be iterated several times
+        for (int pass = 0; pass < 2; pass++) {
+            Iterator<Warning> iterator = warnings.iterator();
+            Warning previous = null;
+            for (Warning warning : expected) {
+                assertTrue(iterator.hasNext());
+                Warning next = iterator.next();
+                if (previous != null) {
+                    assertTrue(previous.compareTo(next) <= 0);
+                }
+                assertSame(warning.issue, next.issue);
+                assertEquals(warning.message, next.message);
+                assertEquals(warning.path, next.path);
+                assertEquals(warning.line, next.line);
+                previous = next;
+            }
+            assertFalse(iterator.hasNext());
+        }
+    }
+
+    public void testAppend() throws Exception {
+        List<Warning> expected = new ArrayList<Warning>();
+        for (int i = 0; i < 100; i++) {
+            expected.add(createWarning(ISSUES[i % ISSUES.length], "src/Foo" + i + ".java", i,
+                    "Message " + i));
+        }
+        Collections.sort(expected);
+        for (Warning warning : expected) {
+            mStore.append(warning);
+        }
+
+        List<Warning> warnings = mStore.getWarnings(new ArrayList<Warning>());
+        assertEquals(expected.size(), warnings.size());
+        int index = 0;
+        for (Warning warning : warnings) {
+            assertEquals(expected.get(index++).message, warning.message);
+        }
+    }
+
+    public void testRoundTrip() throws Exception {
+        File file = new File(mProject.getDir(), "AndroidManifest.xml");
+        String contents = "<manifest>\n    <uses-sdk android:minSdkVersion=\"8\" />\n</manifest>\n";
+        Files.write(contents, file, Charsets.UTF_8);
+
+        StringBuilder longMessage = new StringBuilder("Unicode é中\u0000: ");
+        while (longMessage.length() < 70000) {
+            longMessage.append("long message ");
+        }
+        Warning warning = new Warning(ManifestDetector.USES_SDK, longMessage.toString(),
+                Severity.FATAL, mProject);
+        warning.file = file;
+        warning.path = "AndroidManifest.xml";
+        warning.line = 1;
+        warning.offset = 15;
+        warning.errorLine = "    <uses-sdk android:minSdkVersion=\"8\" />\n    ^\n";
+        warning.fileContents = contents;
+        warning.location = Location.create(file, new DefaultPosition(1, 4, 15),
+                new DefaultPosition(1, 42, 53));
+        Location secondary = Location.create(file);
+        secondary.setMessage("Secondary location");
+        warning.location.setSecondary(secondary);
+        Location tertiary = Location.create(file, new DefaultPosition(0, 0, 0), null);
+        secondary.setSecondary(tertiary);
+
+        Warning noLocation = new Warning(HardcodedValuesDetector.ISSUE, "No location",
+                Severity.INFORMATIONAL, null);
+
+        List<Warning> spilled = new ArrayList<Warning>();
+        spilled.add(warning);
+        spilled.add(noLocation);
+        mStore.spill(spilled);
+
+        List<Warning> warnings = mStore.getWarnings(new ArrayList<Warning>());
+        assertEquals(2, warnings.size());
+        Iterator<Warning> iterator = warnings.iterator();
+        Warning read = iterator.next();
+        Warning readNoLocation = iterator.next();
+        if (read.issue != warning.issue) {
+            Warning swap = read;
+            read = readNoLocation;
+            readNoLocation = swap;
+        }
+
+        assertSame(warning.issue, read.issue);
+        assertEquals(warning.message, read.message);
+        assertEquals(warning.severity, read.severity);
+        assertSame(mProject, read.project);
+        assertEquals(file, read.file);
+        assertEquals(warning.path, read.path);
+        assertEquals(warning.line, read.line);
+        assertEquals(warning.offset, read.offset);
+        assertEquals(warning.errorLine, read.errorLine);
+        assertEquals(contents, read.fileContents);
+
+        Location location = read.location;
+        assertEquals(file, location.getFile());
+        checkPosition(warning.location.getStart(), location.getStart());
+        checkPosition(warning.location.getEnd(), location.getEnd());
+        assertNull(location.getMessage());
+        Location readSecondary = location.getSecondary();
+        assertNotNull(readSecondary);
+        assertEquals("Secondary location", readSecondary.getMessage());
+        assertNull(readSecondary.getStart());
+        Location readTertiary = readSecondary.getSecondary();
+        assertNotNull(readTertiary);
+        checkPosition(tertiary.getStart(), readTertiary.getStart());
+        assertNull(readTertiary.getEnd());
+        assertNull(readTertiary.getSecondary());
+
+        assertSame(noLocation.issue, readNoLocation.issue);
+        assertEquals(noLocation.message, readNoLocation.message);
+        assertEquals(noLocation.severity, readNoLocation.severity);
+        assertNull(readNoLocation.project);
+        assertNull(readNoLocation.location);
+        assertNull(readNoLocation.file);
+        assertNull(readNoLocation.path);
+        assertNull(readNoLocation.errorLine);
+        assertNull(readNoLocation.fileContents);
+        assertEquals(-1, readNoLocation.line);
+        assertEquals(-1, readNoLocation.offset);
+    }
+
+    public void testReadFailure() throws Exception {
+        List<Warning> spilled = new ArrayList<Warning>();
+        for (int i = 0; i < 10; i++) {
+            spilled.add(createWarning(ManifestDetector.USES_SDK, "src/Foo.java", i, "Message"));
+        }
+        mStore.spill(spilled);
+        List<Warning> warnings = mStore.getWarnings(new ArrayList<Warning>());
+
+        // Cut the run in the middle of the second warning
+        RandomAccessFile file = new RandomAccessFile(mStore.getFile(), "rw");
+        try {
+            file.setLength(file.length() / 10 + 5);
+        } finally {
+            file.close();
+        }
+
+        try {
+            for (Warning ignored : warnings) {
+                // Read them all
+            }
+            fail("Expected a read failure");
+        } catch (WarningStore.ReadException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    private Warning createWarning(Issue issue, String path, int line, String message) {
+        Warning warning = new Warning(issue, message, Severity.WARNING, mProject);
+        warning.file = new File(mProject.getDir(), path);
+        warning.path = path;
+        warning.line = line;
+        warning.location = Location.create(warning.file, new DefaultPosition(line, 0, line * 10),
+                null);
+        return warning;
+    }
+
+    private static void checkPosition(Position expected, Position actual) {
+        assertNotNull(actual);
+        assertEquals(expected.getLine(), actual.getLine());
+        assertEquals(expected.getColumn(), actual.getColumn());
+        assertEquals(expected.getOffset(), actual.getOffset());
+    }
+}
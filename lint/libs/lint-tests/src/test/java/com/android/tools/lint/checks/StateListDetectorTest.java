@@ -16,15 +16,64 @@
 
 package com.android.tools.lint.checks;
 
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.lint.client.api.LintDriver;
+import com.android.tools.lint.client.api.LintListener;
+import com.android.tools.lint.client.api.LintResultCache;
+import com.android.tools.lint.detector.api.Context;
 import com.android.tools.lint.detector.api.Detector;
+import com.android.tools.lint.detector.api.Issue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
 @SuppressWarnings("javadoc")
 public class StateListDetectorTest extends AbstractCheckTest {
+    private int mParallelism = 1;
+    private File mResultCache;
+    private boolean mUncachedDetector;
+    private final List<String> mScannedFiles = new ArrayList<String>();
+
     @Override
     protected Detector getDetector() {
         return new StateListDetector();
     }
 
+    @Override
+    protected List<Issue> getIssues() {
+        List<Issue> issues = super.getIssues();
+        if (mUncachedDetector) {
+            // Gathers state across files, so its results are never cached
+            issues.add(UnusedResourceDetector.ISSUE);
+        }
+        return issues;
+    }
+
+    @Override
+    protected boolean isEnabled(Issue issue) {
+        return super.isEnabled(issue) || mUncachedDetector && issue == UnusedResourceDetector.ISSUE;
+    }
+
+    @Override
+    protected void configureDriver(LintDriver driver) {
+        driver.setParallelism(mParallelism);
+        if (mResultCache != null) {
+            driver.setResultCache(new LintResultCache(mResultCache, "test"));
+        }
+        mScannedFiles.clear();
+        driver.addLintListener(new LintListener() {
+            @Override
+            public void update(@NonNull LintDriver driver, @NonNull EventType type,
+                    @Nullable Context context) {
+                if (type == EventType.SCANNING_FILE && context != null) {
+                    mScannedFiles.add(context.file.getName());
+                }
+            }
+        });
+    }
+
     public void testStates() throws Exception {
         assertEquals(
             "res/drawable/states.xml:3: Warning: This item is unreachable because a previous item (item #1) is a more general match than this one [StateListReachable]\n" +
@@ -52,4 +101,81 @@ public class StateListDetectorTest extends AbstractCheckTest {
             "",
             lintProject("res/drawable/states3.xml"));
     }
+
+    public void testParallel() throws Exception {
+        // Same reports, in the same order, as when visiting the files from a single thread
+        String[] files = {
+                "res/drawable/states.xml",
+                "res/drawable/states2.xml",
+                "res/drawable/states3.xml" };
+        String expected = lintProject(files);
+        mParallelism = 4;
+        assertEquals(expected, lintProject(files));
+    }
+
+    public void testResultCache() throws Exception {
+        // The second run reports the cached issues, which must match the first one
+        mResultCache = File.createTempFile("lint-results", ".bin");
+        try {
+            assertTrue(mResultCache.delete());
+            String expected = lintProject("res/drawable/states.xml", "res/drawable/states3.xml");
+            assertTrue(mScannedFiles.contains("states.xml"));
+            assertTrue(mScannedFiles.contains("states3.xml"));
+            assertTrue(mResultCache.exists());
+            long length = mResultCache.length();
+            assertEquals(expected,
+                    lintProject("res/drawable/states.xml", "res/drawable/states3.xml"));
+            assertEquals(length, mResultCache.length());
+            // The files were not visited again
+            assertFalse(mScannedFiles.contains("states.xml"));
+            assertFalse(mScannedFiles.contains("states3.xml"));
+        } finally {
+            mResultCache.delete();
+        }
+    }
+
+    public void testResultCacheWithUncachedDetector() throws Exception {
+        mResultCache = File.createTempFile("lint-results", ".bin");
+        try {
+            assertTrue(mResultCache.delete());
+            lintProject("res/drawable/states.xml", "res/drawable/states3.xml");
+            long length = mResultCache.length();
+            assertTrue(mResultCache.delete());
+
+            // The issues of StateListDetector are still cached
+            mUncachedDetector = true;
+            BuiltinIssueRegistry.reset();
+            String expected = lintProject("res/drawable/states.xml", "res/drawable/states3.xml");
+            assertTrue(expected, expected.contains("[StateListReachable]"));
+            assertTrue(expected, expected.contains("[UnusedResources]"));
+            assertEquals(length, mResultCache.length());
+
+            // The files are visited again, by UnusedResourceDetector only: the cached issues
+            // are not reported twice
+            assertEquals(expected,
+                    lintProject("res/drawable/states.xml", "res/drawable/states3.xml"));
+            assertTrue(mScannedFiles.contains("states.xml"));
+            assertEquals(length, mResultCache.length());
+        } finally {
+            mResultCache.delete();
+        }
+    }
+
+    public void testResultCacheDeletedFile() throws Exception {
+        mResultCache = File.createTempFile("lint-results", ".bin");
+        try {
+            assertTrue(mResultCache.delete());
+            lintProject("res/drawable/states.xml");
+            long length = mResultCache.length();
+            lintProject("res/drawable/states.xml", "res/drawable/states3.xml");
+            assertTrue(mResultCache.length() > length);
+
+            // The project is created again without states3.xml: the entry of the deleted
+            // file is discarded
+            lintProject("res/drawable/states.xml");
+            assertEquals(length, mResultCache.length());
+        } finally {
+            mResultCache.delete();
+        }
+    }
 }
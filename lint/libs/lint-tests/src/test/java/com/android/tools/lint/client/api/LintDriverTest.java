@@ -23,6 +23,11 @@ import com.android.tools.lint.detector.api.Detector;
 import com.android.tools.lint.detector.api.Project;
 import com.google.common.collect.Lists;
 
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.ClassNode;
+
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -62,6 +67,52 @@ public class LintDriverTest extends AbstractCheckTest {
         assertTrue(c1.compareTo(c0) <= 0);
     }
 
+    public void testClassHierarchy() throws Exception {
+        ClassEntry base = createClassEntry("test/pkg/Base", "java/lang/Object",
+                "java/lang/Runnable");
+        ClassEntry child = createClassEntry("test/pkg/Child", "test/pkg/Base");
+        ClassEntry grandChild = createClassEntry("test/pkg/GrandChild", "test/pkg/Child",
+                "test/pkg/Listener");
+        ClassEntry listener = createClassEntry("test/pkg/Listener", "java/lang/Object",
+                "java/util/EventListener");
+        ClassEntry view = createClassEntry("test/pkg/MyView", "android/view/View");
+
+        ClassHierarchy hierarchy = ClassHierarchy.create(createClient(), null, 1,
+                Arrays.asList(Arrays.asList(base, listener),
+                        Arrays.asList(child, grandChild, view)));
+
+        assertEquals("test/pkg/Child", hierarchy.getSuperClass("test/pkg/GrandChild"));
+        assertNull(hierarchy.getSuperClass("test/pkg/Base"));
+        assertNull(hierarchy.getSuperClass("test/pkg/Unknown"));
+
+        assertEquals(Boolean.TRUE, hierarchy.isSubclassOf("test/pkg/GrandChild", "test/pkg/Base"));
+        assertEquals(Boolean.FALSE, hierarchy.isSubclassOf("test/pkg/Base", "test/pkg/Child"));
+        // Only part of the hierarchy of MyView is known
+        assertNull(hierarchy.isSubclassOf("test/pkg/MyView", "android/app/Activity"));
+        assertEquals(Boolean.TRUE, hierarchy.isSubclassOf("test/pkg/MyView",
+                "android/view/View"));
+
+        assertEquals(Boolean.TRUE, hierarchy.implementsInterface("test/pkg/GrandChild",
+                "java/lang/Runnable"));
+        // Super interfaces of interfaces outside of the index are not known
+        assertNull(hierarchy.implementsInterface("test/pkg/Child", "java/io/Closeable"));
+
+        ClassNode node = hierarchy.getClassNode("test/pkg/Child", 0);
+        assertNotNull(node);
+        assertEquals("test/pkg/Base", node.superName);
+        assertSame(node, hierarchy.getClassNode("test/pkg/Child", ClassReader.SKIP_CODE));
+        assertNull(hierarchy.getClassNode("test/pkg/Unknown", 0));
+    }
+
+    @SuppressWarnings("ConstantConditions")
+    private static ClassEntry createClassEntry(String name, String superName,
+            String... interfaces) {
+        ClassWriter writer = new ClassWriter(0);
+        writer.visit(Opcodes.V1_6, Opcodes.ACC_PUBLIC, name, null, superName, interfaces);
+        writer.visitEnd();
+        return new ClassEntry(new File(name + ".class"), null, null, writer.toByteArray());
+    }
+
     public void testMissingResourceDirectory() throws Exception {
         assertEquals("No warnings.", lintProject("res/layout/layout1.xml"));
     }
@@ -29,6 +29,8 @@ import com.google.common.base.Joiner;
 import com.google.common.base.Strings;
 import com.google.common.collect.Maps;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -114,6 +116,33 @@ public class ResourceResolver extends RenderResources {
         return resolver;
     }
 
+    /**
+     * Creates a new {@link ResourceResolver} object optimized for repeated lookups, as done when
+     * rendering several times against the same theme.
+     * <p>
+     * Attribute names are interned to integer ids and every style is flattened, on first use,
+     * into a sorted table holding its own items and the items inherited from its parents. Theme
+     * lookups are memoised for as long as the list of applied themes doesn't change. Lookups
+     * therefore no longer walk the style inheritance chain once the tables are built.
+     *
+     * @param projectResources the project resources.
+     * @param frameworkResources the framework resources.
+     * @param themeName the name of the current theme.
+     * @param isProjectTheme Is this a project theme?
+     * @return a new {@link ResourceResolver}
+     */
+    public static ResourceResolver createIndexed(
+            Map<ResourceType, Map<String, ResourceValue>> projectResources,
+            Map<ResourceType, Map<String, ResourceValue>> frameworkResources,
+            String themeName, boolean isProjectTheme) {
+
+        ResourceResolver resolver = new IndexedResourceResolver(projectResources,
+                frameworkResources, themeName, isProjectTheme);
+        resolver.computeStyleMaps();
+
+        return resolver;
+    }
+
     /**
      * This will override the DeviceDefault styles so they point to the given parent styles (e.g. If
      * "Material" is passed, Theme.DeviceDefault parent will become Theme.Material). This patches
@@ -941,4 +970,228 @@ public class ResourceResolver extends RenderResources {
             return resourceValue;
         }
     }
+
+    private static class IndexedResourceResolver extends ResourceResolver {
+        /** Marker for memoised theme lookups which did not find any value. */
+        private static final ResourceValue NOT_FOUND =
+                new ResourceValue(ResourceType.ATTR, "", false);
+
+        /** Interned attribute names, per namespace. Ids are shared by the two namespaces. */
+        private final Map<String, Integer> mFrameworkAttrIds = Maps.newHashMap();
+        private final Map<String, Integer> mProjectAttrIds = Maps.newHashMap();
+        private int mNextAttrId;
+
+        /**
+         * Flattened styles, or null for styles with a cyclic inheritance, which are left to the
+         * default lookup so that the error gets reported.
+         */
+        private final Map<StyleResourceValue, FlattenedStyle> mFlattenedStyles =
+                Maps.newIdentityHashMap();
+
+        /** The list of themes {@link #mThemeItems} was computed for. */
+        private final List<StyleResourceValue> mCachedThemes = new ArrayList<StyleResourceValue>();
+        /** Memoised {@link #findItemInTheme(String, boolean)} results, indexed by item key. */
+        private ResourceValue[] mThemeItems = new ResourceValue[0];
+
+        private IndexedResourceResolver(
+                @NonNull Map<ResourceType, Map<String, ResourceValue>> projectResources,
+                @NonNull Map<ResourceType, Map<String, ResourceValue>> frameworkResources,
+                @NonNull String themeName, boolean isProjectTheme) {
+            super(projectResources, frameworkResources, themeName, isProjectTheme);
+        }
+
+        @Override
+        public void setDeviceDefaults(@NonNull String deviceDefaultParent) {
+            super.setDeviceDefaults(deviceDefaultParent);
+            // The style inheritance may have changed.
+            mFlattenedStyles.clear();
+            mCachedThemes.clear();
+            mThemeItems = new ResourceValue[0];
+        }
+
+        @Override
+        public ItemResourceValue findItemInStyle(StyleResourceValue style, String itemName,
+                boolean isFrameworkAttr) {
+            FlattenedStyle flattenedStyle = getFlattenedStyle(style);
+            if (flattenedStyle == null) {
+                return super.findItemInStyle(style, itemName, isFrameworkAttr);
+            }
+            Integer id = getAttrIds(isFrameworkAttr).get(itemName);
+            if (id == null) {
+                // No style defines this item.
+                return null;
+            }
+            return flattenedStyle.get(getItemKey(id, isFrameworkAttr));
+        }
+
+        @Override
+        public ResourceValue findItemInTheme(String attrName, boolean isFrameworkAttr) {
+            Integer id = getAttrIds(isFrameworkAttr).get(attrName);
+            if (id == null) {
+                return super.findItemInTheme(attrName, isFrameworkAttr);
+            }
+
+            List<StyleResourceValue> themes = getAllThemes();
+            if (!isSameThemeList(themes)) {
+                mCachedThemes.clear();
+                mCachedThemes.addAll(themes);
+                mThemeItems = new ResourceValue[mThemeItems.length];
+            }
+
+            int key = getItemKey(id, isFrameworkAttr);
+            if (key >= mThemeItems.length) {
+                mThemeItems = Arrays.copyOf(mThemeItems, Math.max(key + 1, 2 * mNextAttrId));
+            }
+            ResourceValue value = mThemeItems[key];
+            if (value == null) {
+                value = super.findItemInTheme(attrName, isFrameworkAttr);
+                mThemeItems[key] = value != null ? value : NOT_FOUND;
+                return value;
+            }
+            return value != NOT_FOUND ? value : null;
+        }
+
+        private boolean isSameThemeList(@NonNull List<StyleResourceValue> themes) {
+            if (themes.size() != mCachedThemes.size()) {
+                return false;
+            }
+            int i = 0;
+            for (StyleResourceValue theme : themes) {
+                if (theme != mCachedThemes.get(i++)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @NonNull
+        private Map<String, Integer> getAttrIds(boolean isFrameworkAttr) {
+            return isFrameworkAttr ? mFrameworkAttrIds : mProjectAttrIds;
+        }
+
+        private int internAttr(@NonNull String name, boolean isFrameworkAttr) {
+            Map<String, Integer> ids = getAttrIds(isFrameworkAttr);
+            Integer id = ids.get(name);
+            if (id == null) {
+                id = mNextAttrId++;
+                ids.put(name, id);
+            }
+            return id;
+        }
+
+        private static int getItemKey(int attrId, boolean isFrameworkAttr) {
+            return (attrId << 1) | (isFrameworkAttr ? 1 : 0);
+        }
+
+        /**
+         * Returns the flattened version of the given style, or null if its inheritance chain is
+         * cyclic.
+         */
+        @Nullable
+        private FlattenedStyle getFlattenedStyle(@NonNull StyleResourceValue style) {
+            FlattenedStyle flattenedStyle = mFlattenedStyles.get(style);
+            if (flattenedStyle != null || mFlattenedStyles.containsKey(style)) {
+                return flattenedStyle;
+            }
+
+            // Collect the ancestors which have not been flattened yet, closest first.
+            List<StyleResourceValue> chain = new ArrayList<StyleResourceValue>();
+            FlattenedStyle parentFlattenedStyle = FlattenedStyle.EMPTY;
+            StyleResourceValue current = style;
+            while (current != null) {
+                if (mFlattenedStyles.containsKey(current)) {
+                    parentFlattenedStyle = mFlattenedStyles.get(current);
+                    break;
+                }
+                if (chain.size() > MAX_RESOURCE_INDIRECTION) {
+                    parentFlattenedStyle = null;
+                    break;
+                }
+                chain.add(current);
+                current = getParent(current);
+            }
+
+            if (parentFlattenedStyle == null) {
+                // Cyclic inheritance: don't flatten any style of this chain.
+                for (StyleResourceValue chainStyle : chain) {
+                    mFlattenedStyles.put(chainStyle, null);
+                }
+                return null;
+            }
+
+            // Flatten from the furthest ancestor down, so that each style is built on top of its
+            // flattened parent.
+            for (int i = chain.size() - 1; i >= 0; i--) {
+                StyleResourceValue chainStyle = chain.get(i);
+                parentFlattenedStyle = flatten(chainStyle, parentFlattenedStyle);
+                mFlattenedStyles.put(chainStyle, parentFlattenedStyle);
+            }
+            return parentFlattenedStyle;
+        }
+
+        @NonNull
+        private FlattenedStyle flatten(@NonNull StyleResourceValue style,
+                @NonNull FlattenedStyle parent) {
+            Collection<ItemResourceValue> items = style.getValues();
+            if (items.isEmpty()) {
+                return parent;
+            }
+
+            // Sort the items of the style by key.
+            long[] ownEntries = new long[items.size()];
+            ItemResourceValue[] ownItems = items.toArray(new ItemResourceValue[items.size()]);
+            for (int i = 0; i < ownItems.length; i++) {
+                int key = getItemKey(internAttr(ownItems[i].getName(),
+                        ownItems[i].isFrameworkAttr()), ownItems[i].isFrameworkAttr());
+                ownEntries[i] = ((long) key << 32) | i;
+            }
+            Arrays.sort(ownEntries);
+
+            // Merge them with the parent items, the style items taking precedence.
+            int[] keys = new int[ownEntries.length + parent.mKeys.length];
+            ItemResourceValue[] values = new ItemResourceValue[keys.length];
+            int count = 0;
+            int own = 0;
+            int inherited = 0;
+            while (own < ownEntries.length || inherited < parent.mKeys.length) {
+                int ownKey = own < ownEntries.length
+                        ? (int) (ownEntries[own] >>> 32) : Integer.MAX_VALUE;
+                int inheritedKey = inherited < parent.mKeys.length
+                        ? parent.mKeys[inherited] : Integer.MAX_VALUE;
+                if (ownKey <= inheritedKey) {
+                    keys[count] = ownKey;
+                    values[count++] = ownItems[(int) ownEntries[own++]];
+                    if (ownKey == inheritedKey) {
+                        inherited++;
+                    }
+                } else {
+                    keys[count] = inheritedKey;
+                    values[count++] = parent.mValues[inherited++];
+                }
+            }
+            return new FlattenedStyle(Arrays.copyOf(keys, count), Arrays.copyOf(values, count));
+        }
+    }
+
+    /**
+     * The items of a style and of all its parents, sorted by item key.
+     */
+    private static final class FlattenedStyle {
+        static final FlattenedStyle EMPTY =
+                new FlattenedStyle(new int[0], new ItemResourceValue[0]);
+
+        private final int[] mKeys;
+        private final ItemResourceValue[] mValues;
+
+        private FlattenedStyle(@NonNull int[] keys, @NonNull ItemResourceValue[] values) {
+            mKeys = keys;
+            mValues = values;
+        }
+
+        @Nullable
+        ItemResourceValue get(int key) {
+            int index = Arrays.binarySearch(mKeys, key);
+            return index >= 0 ? mValues[index] : null;
+        }
+    }
 }
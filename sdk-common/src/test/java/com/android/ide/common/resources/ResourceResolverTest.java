@@ -640,4 +640,89 @@ public class ResourceResolverTest extends TestCase {
         projectRepository.dispose();
 
     }
+
+    public void testIndexedResolver() throws Exception {
+        TestResourceRepository frameworkRepository = TestResourceRepository.create(true,
+                new Object[] {
+                        "values/themes.xml", ""
+                        + "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n"
+                        + "<resources>\n"
+                        + "    <style name=\"Theme\" parent=\"\">\n"
+                        + "         <item name=\"android:textColor\">#000000</item>\n"
+                        + "         <item name=\"android:colorBackground\">#ffffff</item>\n"
+                        + "    </style>\n"
+                        + "    <style name=\"Theme.Holo\" parent=\"Theme\">\n"
+                        + "         <item name=\"android:textColor\">#0000ff</item>\n"
+                        + "    </style>\n"
+                        + "    <style name=\"Theme.DeviceDefault\" parent=\"Theme.Holo\"/>\n"
+                        + "</resources>\n",
+                });
+
+        TestResourceRepository projectRepository = TestResourceRepository.create(false,
+                new Object[] {
+                        "values/themes.xml", ""
+                        + "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n"
+                        + "<resources>\n"
+                        + "    <style name=\"AppTheme\" parent=\"android:Theme.DeviceDefault\">\n"
+                        + "         <item name=\"textColor\">#ff0000</item>\n"
+                        + "    </style>\n"
+                        + "    <style name=\"Overlay\" parent=\"\">\n"
+                        + "         <item name=\"android:colorBackground\">#00ff00</item>\n"
+                        + "    </style>\n"
+                        + "    <style name=\"foo\" parent=\"bar\">\n"
+                        + "         <item name=\"android:textColor\">#123456</item>\n"
+                        + "    </style>\n"
+                        + "    <style name=\"bar\" parent=\"foo\"/>\n"
+                        + "</resources>\n"
+                });
+
+        FolderConfiguration config = FolderConfiguration.getConfigForFolder("values");
+        assertNotNull(config);
+        Map<ResourceType, Map<String, ResourceValue>> projectResources = projectRepository
+                .getConfiguredResources(config);
+        Map<ResourceType, Map<String, ResourceValue>> frameworkResources = frameworkRepository
+                .getConfiguredResources(config);
+        ResourceResolver resolver = ResourceResolver.createIndexed(projectResources,
+                frameworkResources, "AppTheme", true);
+        assertNotNull(resolver);
+
+        // Items are found through the whole inheritance chain, the closest definition winning,
+        // and the two attribute namespaces are kept apart.
+        assertEquals("#0000ff", resolver.findItemInTheme("textColor", true).getValue());
+        assertEquals("#ff0000", resolver.findItemInTheme("textColor", false).getValue());
+        assertEquals("#ffffff", resolver.findItemInTheme("colorBackground", true).getValue());
+        assertNull(resolver.findItemInTheme("colorBackground", false));
+        assertNull(resolver.findItemInTheme("missing", true));
+        // Memoised lookups return the same values.
+        assertEquals("#0000ff", resolver.findItemInTheme("textColor", true).getValue());
+        assertNull(resolver.findItemInTheme("colorBackground", false));
+
+        // Applying a style invalidates the memoised theme lookups.
+        resolver.applyStyle(resolver.getStyle("Overlay", false), true);
+        assertEquals("#00ff00", resolver.findItemInTheme("colorBackground", true).getValue());
+        resolver.clearStyles();
+        assertEquals("#ffffff", resolver.findItemInTheme("colorBackground", true).getValue());
+
+        // Changing the device default theme invalidates the flattened styles.
+        resolver.setDeviceDefaults(ResourceResolver.LEGACY_THEME);
+        assertEquals("#000000", resolver.findItemInTheme("textColor", true).getValue());
+
+        // Cyclic styles are still reported.
+        final AtomicBoolean wasWarned = new AtomicBoolean(false);
+        resolver.setLogger(new LayoutLog() {
+            @Override
+            public void error(String tag, String message, Object data) {
+                assertEquals(LayoutLog.TAG_BROKEN, tag);
+                wasWarned.set(true);
+            }
+        });
+        StyleResourceValue foo = resolver.getStyle("foo", false);
+        assertEquals("#123456", resolver.findItemInStyle(foo, "textColor", true).getValue());
+        assertFalse(wasWarned.get());
+        assertNull(resolver.findItemInStyle(foo, "missing", true));
+        assertTrue(wasWarned.get());
+
+        frameworkRepository.dispose();
+        projectRepository.dispose();
+    }
 }